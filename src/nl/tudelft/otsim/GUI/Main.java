@@ -1102,7 +1102,7 @@ public class Main extends JPanel implements ActionListener {
 			GraphicsPanelClient gpc = graphicsPanel.getClient();
 			if (gpc instanceof LaneSimulator) {
 				for (Movable m : ((LaneSimulator) gpc).getModel().getVehicles())
-					mapping.put("vehicle_" + m.id, m);
+					mapping.put("vehicle_" + m.id(), m);
 			} else
 				throw new Error("Collecting vehicle list not supported in simulator " + gpc.toString());
 		}  else
@@ -481,6 +481,9 @@ public class Conflict {
         /** Most downstream vehicle that is upstream of or partially on the conflict. */
         private Movable up;
         
+        /** Generation of <tt>up</tt>, see {@link Movable#generation()}. */
+        private int upGeneration;
+        
         /** Set of merge conflicts where the nearest vehicle may be upstream of. */
         protected java.util.ArrayList<Conflict.conflictRSU> upstreamMergeConflicts = 
             new java.util.ArrayList<Conflict.conflictRSU>();
@@ -506,7 +509,7 @@ public class Conflict {
         public Movable up() {
             // check whether upstream vehicle has not been deleted
         	//System.out.println("Movable");
-            if ((null != up) && (!model.exists(up))) {
+            if ((null != up) && (!model.exists(up) || (up.generation() != upGeneration))) {
                 up = null;
                 control();
             }
@@ -645,10 +648,21 @@ public class Conflict {
                     }
                 }
             }
+            // resolve the visibility here, as drivers read it concurrently
+            visibility();
         }
         
         int lastControlTimeStep = -1;
 
+        /**
+         * Returns that the conflict runs every time step, as the upstream
+         * vehicles are only searched in <tt>control()</tt>.
+         */
+        @Override
+        public Wake wake() {
+            return Wake.EVERY_STEP;
+        }
+
         /**
          * Maintain bookkeeping regarding which vehicle is upstream. The 
          * previous upstream vehicle may have passed the RSU fully, or may have 
@@ -663,7 +677,9 @@ public class Conflict {
         	if (lastControlTimeStep == model.k)
         		return;
             lastControlTimeStep = model.k;
-        	model.numberOfRSUCalls++;
+        	model.numberOfRSUCalls.incrementAndGet();
+        	if ((null != up) && (up.generation() != upGeneration))
+        		up = null;	// deleted and reused by the pool
         	long startTime = System.currentTimeMillis();
         	// Check if the current up is covering the end of this Conflict
         	double distanceToVehicle;
@@ -684,7 +700,7 @@ public class Conflict {
             }
             // check existing vehicle
     		long endTime2 = System.currentTimeMillis() - startTime;
-            model.rsuTime2 = model.rsuTime2 + endTime2;
+            model.rsuTime2.addAndGet(endTime2);
 
             long startTime3 = System.currentTimeMillis();
             if (up!=null && mergeConflictOfUp==null) {
@@ -703,7 +719,7 @@ public class Conflict {
                 up = null;
             }
     		long endTime3 = System.currentTimeMillis() - startTime3;
-            model.rsuTime3 = model.rsuTime3 + endTime3;    
+            model.rsuTime3.addAndGet(endTime3);    
             
             // find vehicle upstream of RSU
             if (up == null)
@@ -726,12 +742,14 @@ public class Conflict {
                     }
                 }
         		long endTime4 = System.currentTimeMillis() - startTime4;
-                model.rsuTime4 = model.rsuTime4 + endTime4;
+                model.rsuTime4.addAndGet(endTime4);
             }
             */
         	up = findVehicleUpOfConflict (defaultMaxDistance);
+        	if (null != up)
+        		upGeneration = up.generation();
     		long endTime = System.currentTimeMillis() - startTime;
-            model.rsuTime1 = model.rsuTime1 + endTime;
+            model.rsuTime1.addAndGet(endTime);
         }
         
         private Movable findVehicleUpOfConflict (double maxDistance) {
@@ -16,7 +16,12 @@ package nl.tudelft.otsim.Simulators.LaneSimulator;
  * <br>
  * Controllers that do not run with a fixed interval, should override the 
  * <tt>run()</tt> method and there determine whether to run <tt>control()</tt>
- * or <tt>noControl()</tt>.
+ * or <tt>noControl()</tt>.<br>
+ * <br>
+ * If the model schedules its units (see {@link UnitScheduler}), <tt>wake()</tt>
+ * determines in which time steps <tt>run()</tt> is called. Subclasses that
+ * change <tt>control()</tt> or <tt>noControl()</tt> should check whether the
+ * <tt>wake()</tt> of their superclass still holds.
  */
 public abstract class Controller {
 
@@ -86,6 +91,51 @@ public abstract class Controller {
      * Control method to be defined by subclasses.
      */
     public abstract void control();
+    
+    /**
+     * Returns in which time steps the model needs to run this unit, if the
+     * model schedules its units. By default this is every time step.
+     * @return Way in which the unit is woken.
+     */
+    public Wake wake() {
+        return Wake.EVERY_STEP;
+    }
+    
+    /**
+     * Returns the time at which a unit with <tt>wake()</tt> 
+     * {@link Wake#SCHEDULED} needs to run next. This is called after each run. 
+     * By default this is the next control run according to <tt>period</tt>.
+     * @return Time [s] of the next run, infinite if the unit needs no more runs.
+     */
+    public double dueTime() {
+        return t + period;
+    }
+    
+    /**
+     * Returns whether a unit with <tt>wake()</tt> {@link Wake#PASSAGE} needs
+     * to run in the next time step without a vehicle passing. This is called
+     * after each run.
+     * @return Whether the unit needs to run in the next time step.
+     */
+    public boolean stayAwake() {
+        return false;
+    }
+    
+    /** Ways in which the model can wake a unit, see {@link Controller#wake()}. */
+    public enum Wake {
+        /** Run every time step. */
+        EVERY_STEP, 
+        /** Run at {@link Controller#dueTime()}, as <tt>noControl()</tt> does nothing. */
+        SCHEDULED,
+        /** 
+         * Run in the time step after a vehicle passed and while 
+         * {@link Controller#stayAwake()}, as <tt>control()</tt> and 
+         * <tt>noControl()</tt> do nothing otherwise. 
+         */
+        PASSAGE,
+        /** Never run, as <tt>control()</tt> and <tt>noControl()</tt> do nothing. */
+        IDLE
+    }
 
     /**
      * No control method to be defined by subclasses. The main purpose of this
@@ -30,6 +30,9 @@ public class Detector extends RSU {
     /** ID of real-life detector / user recognizable number. */
     protected String id;
 
+    /** Primitive accumulators of aggregation windows, replacing the histories if used. */
+    protected DetectorAccumulator accumulator;
+
     /**
      * Constructor that initializes the jDelayed measurements.
      * @param lane Lane where detector is at.
@@ -44,9 +47,25 @@ public class Detector extends RSU {
         v = new Delayed<Double>(lane.model.settings.getDouble("detectorDelay"), lane.model.dt);
     }
 
-    /** Empty, needs to be implemented. */
+    /**
+     * Creates the accumulators if detector data is stored and the setting
+     * "detectorAccumulators" is <tt>true</tt>. The setting "detectorWindows"
+     * gives the periods [s] of the windows, separated by commas.
+     */
     @Override
-	public void init() {}
+	public void init() {
+        Settings settings = lane.model.settings;
+        if (settings.getBoolean("storeDetectorData") && settings.getBoolean("detectorAccumulators")) {
+            String[] fields = settings.getString("detectorWindows").split(",");
+            double[] periods = new double[fields.length];
+            for (int i = 0; i<fields.length; i++)
+                periods[i] = Double.parseDouble(fields[i].trim());
+            java.io.File spill = null;
+            if (settings.getBoolean("detectorSpill"))
+                spill = new java.io.File(new java.io.File(settings.getString("outputDir"), "detectors"), "detector" + id + ".spill");
+            accumulator = new DetectorAccumulator(id, lane.id, x, periods, settings.getInteger("detectorCapacity"), spill);
+        }
+    }
     
     /**
      * Performs the detector task. At the end of each aggregation period, a flow
@@ -57,7 +76,13 @@ public class Detector extends RSU {
         // data is aggregated this time step
         q.put(qCur);
         v.put(vCur);
-        if (lane.model.settings.getBoolean("storeDetectorData")) {
+        if (null != accumulator) {
+            try {
+                accumulator.advance(lane.model.t);
+            } catch (java.io.IOException e) {
+                throw new RuntimeException("Unable to spill data of detector " + id + ".", e);
+            }
+        } else if (lane.model.settings.getBoolean("storeDetectorData")) {
             qHist.add(qCur);
             vHist.add(vCur);
             tHist.add(lane.model.t);
@@ -87,6 +112,13 @@ public class Detector extends RSU {
         else
             vCur = ((vCur*qCur)+veh.v)/(qCur+1);	// add velocity to average
         qCur++;
+        if (null != accumulator) {
+            try {
+                accumulator.pass(lane.model.t, veh.v, veh.l);
+            } catch (java.io.IOException e) {
+                throw new RuntimeException("Unable to spill data of detector " + id + ".", e);
+            }
+        }
     }
 
     /**
@@ -95,6 +127,14 @@ public class Detector extends RSU {
      */
     public void isNoticed(Driver driver) {}
     
+    /**
+     * Returns the accumulators of this detector.
+     * @return Accumulators, <tt>null</tt> if the histories are used.
+     */
+    public DetectorAccumulator getAccumulator() {
+        return accumulator;
+    }
+    
     /**
      * Returns the ID of this detector.
      * @return ID of this detector.
@@ -0,0 +1,369 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Primitive accumulators of a {@link Detector}, as an alternative to the boxed
+ * histories of the detector.<br>
+ * <br>
+ * The accumulator aggregates passing vehicles in several windows at once,
+ * for example of 1 s, 60 s and 300 s. Windows are aligned at multiples of
+ * their period. Each closed window gives a record with the start time, the
+ * count, the arithmetic and harmonic mean speed and the occupancy. The
+ * occupancy is estimated as the sum of vehicle length over speed, relative to
+ * the period. Records are kept in primitive ring buffers of fixed capacity.
+ * A full buffer is either spilled to disk in chunks, if a spill file is
+ * given, or overwrites the oldest records.<br>
+ * <br>
+ * {@link #export(File)} writes all records in a compact binary file, which
+ * is read by {@link #read(File)}. A file holds a header with the detector,
+ * and per window the period and chunks of records in columns.
+ */
+public class DetectorAccumulator {
+	private static final int MAGIC = 0x4f444131;
+	/** Speed below which passing vehicles count as passing at this speed in the harmonic mean and occupancy [m/s]. */
+	public static final double MIN_SPEED = 0.1;
+
+	private final String id;
+	private final int lane;
+	private final double x;
+	private final Window[] windows;
+	/** File that full buffers are spilled to, <tt>null</tt> to overwrite the oldest records. */
+	private final File spill;
+
+	/**
+	 * Constructor.
+	 * @param id detector id
+	 * @param lane lane id of the detector
+	 * @param x position of the detector on the lane [m]
+	 * @param periods periods of the windows [s]
+	 * @param capacity number of records per window kept in memory
+	 * @param spill file that full buffers are spilled to, <tt>null</tt> to overwrite the oldest records
+	 */
+	public DetectorAccumulator(String id, int lane, double x, double[] periods, int capacity, File spill) {
+		if (capacity < 1)
+			throw new Error("Invalid capacity of detector accumulator: " + capacity);
+		this.id = id;
+		this.lane = lane;
+		this.x = x;
+		this.spill = spill;
+		windows = new Window[periods.length];
+		for (int w = 0; w<periods.length; w++) {
+			if (!(periods[w] > 0))
+				throw new Error("Invalid period of detector window: " + periods[w]);
+			windows[w] = new Window(periods[w], capacity);
+		}
+	}
+
+	/**
+	 * Adds a passing vehicle to all windows, after closing the windows that end before it.
+	 * Speeds below {@link #MIN_SPEED} are raised to it in the harmonic mean speed and
+	 * occupancy, so stopped vehicles do not make these infinite.
+	 * @param t time [s]
+	 * @param v speed of the vehicle [m/s]
+	 * @param length length of the vehicle [m]
+	 */
+	public void pass(double t, double v, double length) throws IOException {
+		advance(t);
+		double floored = Math.max(v, MIN_SPEED);
+		for (Window window: windows) {
+			window.n++;
+			window.sumSpeed += v;
+			window.sumInverseSpeed += 1/floored;
+			window.sumOccupied += length/floored;
+		}
+	}
+
+	/**
+	 * Closes all windows that end at or before a time, including empty windows.
+	 * @param t time [s]
+	 */
+	public void advance(double t) throws IOException {
+		for (int w = 0; w<windows.length; w++) {
+			Window window = windows[w];
+			while (t >= window.start + window.period - 1e-9*window.period) {
+				if (window.size == window.capacity()) {
+					if (null == spill)
+						window.drop();
+					else
+						spill(w);
+				}
+				window.close();
+			}
+		}
+	}
+
+	/**
+	 * @return number of records of all windows that were overwritten
+	 */
+	public long getDropped() {
+		long dropped = 0;
+		for (Window window: windows)
+			dropped += window.dropped;
+		return dropped;
+	}
+
+	/**
+	 * Write all closed windows, from the spill file and the buffers, to a file.
+	 * @param file export file
+	 */
+	public void export(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeUTF(id);
+			out.writeInt(lane);
+			out.writeDouble(x);
+			out.writeInt(windows.length);
+			for (int w = 0; w<windows.length; w++) {
+				Window window = windows[w];
+				out.writeDouble(window.period);
+				out.writeInt(window.spilled + (window.size > 0 ? 1 : 0));
+				if (window.spilled > 0)
+					copySpilled(w, out);
+				if (window.size > 0)
+					window.writeChunk(out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read a file written by {@link #export(File)}.
+	 * @param file export file
+	 * @return detector and records
+	 */
+	public static Export read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a detector accumulator export: " + file);
+			String id = in.readUTF();
+			int lane = in.readInt();
+			double x = in.readDouble();
+			Series[] series = new Series[in.readInt()];
+			for (int w = 0; w<series.length; w++) {
+				double period = in.readDouble();
+				int chunks = in.readInt();
+				Series[] parts = new Series[chunks];
+				int n = 0;
+				for (int c = 0; c<chunks; c++) {
+					parts[c] = readChunk(period, in);
+					n += parts[c].size();
+				}
+				series[w] = new Series(period, n);
+				int at = 0;
+				for (Series part: parts) {
+					int size = part.size();
+					System.arraycopy(part.t, 0, series[w].t, at, size);
+					System.arraycopy(part.count, 0, series[w].count, at, size);
+					System.arraycopy(part.meanSpeed, 0, series[w].meanSpeed, at, size);
+					System.arraycopy(part.harmonicSpeed, 0, series[w].harmonicSpeed, at, size);
+					System.arraycopy(part.occupancy, 0, series[w].occupancy, at, size);
+					at += size;
+				}
+			}
+			return new Export(id, lane, x, series);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Records of the closed windows of one period. */
+	public static class Series {
+		/** Period of the windows [s]. */
+		public final double period;
+		/** Start times of the windows [s]. */
+		public final double[] t;
+		/** Vehicle counts. */
+		public final int[] count;
+		/** Arithmetic mean speeds [m/s], <tt>NaN</tt> without vehicles. */
+		public final double[] meanSpeed;
+		/** Harmonic mean speeds [m/s], <tt>NaN</tt> without vehicles. */
+		public final double[] harmonicSpeed;
+		/** Occupancies [0...1]. */
+		public final double[] occupancy;
+
+		Series(double period, int n) {
+			this.period = period;
+			t = new double[n];
+			count = new int[n];
+			meanSpeed = new double[n];
+			harmonicSpeed = new double[n];
+			occupancy = new double[n];
+		}
+
+		/** @return number of records */
+		public int size() {
+			return t.length;
+		}
+	}
+
+	/** Contents of an export file. */
+	public static class Export {
+		/** Detector id. */
+		public final String id;
+		/** Lane id of the detector. */
+		public final int lane;
+		/** Position of the detector on the lane [m]. */
+		public final double x;
+		/** Records per window, in the order of the periods of the accumulator. */
+		public final Series[] windows;
+
+		Export(String id, int lane, double x, Series[] windows) {
+			this.id = id;
+			this.lane = lane;
+			this.x = x;
+			this.windows = windows;
+		}
+	}
+
+	/** Current sums and ring buffer of records of one period. */
+	private static class Window {
+		final double period;
+		/** Start of the current window [s]. */
+		double start = 0;
+		int n;
+		double sumSpeed;
+		double sumInverseSpeed;
+		double sumOccupied;
+		final double[] t;
+		final int[] count;
+		final double[] meanSpeed;
+		final double[] harmonicSpeed;
+		final double[] occupancy;
+		/** Index of the oldest record. */
+		int head = 0;
+		/** Number of records in the buffer. */
+		int size = 0;
+		/** Number of chunks in the spill file. */
+		int spilled = 0;
+		/** Number of overwritten records. */
+		long dropped = 0;
+
+		Window(double period, int capacity) {
+			this.period = period;
+			t = new double[capacity];
+			count = new int[capacity];
+			meanSpeed = new double[capacity];
+			harmonicSpeed = new double[capacity];
+			occupancy = new double[capacity];
+		}
+
+		int capacity() {
+			return t.length;
+		}
+
+		/** Adds the record of the current window and starts the next window. */
+		void close() {
+			int i = (head + size) % capacity();
+			size++;
+			t[i] = start;
+			count[i] = n;
+			meanSpeed[i] = n > 0 ? sumSpeed/n : Double.NaN;
+			harmonicSpeed[i] = n > 0 ? n/sumInverseSpeed : Double.NaN;
+			occupancy[i] = Math.min(1, sumOccupied/period);
+			// next window, aligned at a multiple of the period
+			start = (Math.floor(start/period + 0.5) + 1)*period;
+			n = 0;
+			sumSpeed = 0;
+			sumInverseSpeed = 0;
+			sumOccupied = 0;
+		}
+
+		/** Removes the oldest record. */
+		void drop() {
+			head = (head + 1) % capacity();
+			size--;
+			dropped++;
+		}
+
+		/** Writes the buffer as a chunk of columns, oldest record first. */
+		void writeChunk(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			for (int k = 0; k<size; k++)
+				out.writeDouble(t[(head + k) % capacity()]);
+			for (int k = 0; k<size; k++)
+				out.writeInt(count[(head + k) % capacity()]);
+			for (int k = 0; k<size; k++)
+				out.writeDouble(meanSpeed[(head + k) % capacity()]);
+			for (int k = 0; k<size; k++)
+				out.writeDouble(harmonicSpeed[(head + k) % capacity()]);
+			for (int k = 0; k<size; k++)
+				out.writeDouble(occupancy[(head + k) % capacity()]);
+		}
+	}
+
+	private static Series readChunk(double period, DataInputStream in) throws IOException {
+		int n = in.readInt();
+		Series chunk = new Series(period, n);
+		for (int k = 0; k<n; k++)
+			chunk.t[k] = in.readDouble();
+		for (int k = 0; k<n; k++)
+			chunk.count[k] = in.readInt();
+		for (int k = 0; k<n; k++)
+			chunk.meanSpeed[k] = in.readDouble();
+		for (int k = 0; k<n; k++)
+			chunk.harmonicSpeed[k] = in.readDouble();
+		for (int k = 0; k<n; k++)
+			chunk.occupancy[k] = in.readDouble();
+		return chunk;
+	}
+
+	/** Appends the buffer of a window to the spill file and empties it. */
+	private void spill(int w) throws IOException {
+		Window window = windows[w];
+		File directory = spill.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		// a new accumulator starts a new spill file
+		boolean append = false;
+		for (Window other: windows)
+			append |= other.spilled > 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill, append)));
+		try {
+			out.writeInt(w);
+			window.writeChunk(out);
+		} finally {
+			out.close();
+		}
+		window.spilled++;
+		window.head = 0;
+		window.size = 0;
+	}
+
+	/** Copies the spilled chunks of a window to an export. */
+	private void copySpilled(int w, DataOutputStream out) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill)));
+		try {
+			for (int found = 0; found<windows[w].spilled; ) {
+				int chunkWindow = in.readInt();
+				Series chunk = readChunk(windows[chunkWindow].period, in);
+				if (chunkWindow != w)
+					continue;
+				out.writeInt(chunk.size());
+				for (double value: chunk.t)
+					out.writeDouble(value);
+				for (int value: chunk.count)
+					out.writeInt(value);
+				for (double value: chunk.meanSpeed)
+					out.writeDouble(value);
+				for (double value: chunk.harmonicSpeed)
+					out.writeDouble(value);
+				for (double value: chunk.occupancy)
+					out.writeDouble(value);
+				found++;
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/** Test the windows, buffers and export of the DetectorAccumulator */
+public class DetectorAccumulatorTest {
+
+	/** Vehicles at 0.5 s, 0.7 s, 3.2 s and 6 s, closed up to 12 s */
+	private static void pass(DetectorAccumulator accumulator) throws IOException {
+		accumulator.pass(0.5, 10, 4);
+		accumulator.pass(0.7, 20, 4);
+		accumulator.pass(3.2, 5, 10);
+		accumulator.pass(6, 10, 5);
+		accumulator.advance(12);
+	}
+
+	/**
+	 * All windows of 1 s and 5 s are read back from the spill file and the buffers
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testSpill() throws IOException {
+		File spill = File.createTempFile("detectorAccumulatorTest", ".spill");
+		File file = File.createTempFile("detectorAccumulatorTest", ".bin");
+		try {
+			DetectorAccumulator accumulator = new DetectorAccumulator("d1", 4, 120, new double[] {1, 5}, 3, spill);
+			pass(accumulator);
+			accumulator.export(file);
+			assertEquals(0, accumulator.getDropped());
+
+			DetectorAccumulator.Export export = DetectorAccumulator.read(file);
+			assertEquals("d1", export.id);
+			assertEquals(4, export.lane);
+			assertEquals(120, export.x, 0);
+			assertEquals(2, export.windows.length);
+			DetectorAccumulator.Series second = export.windows[0];
+			assertEquals(1, second.period, 0);
+			assertEquals(12, second.size());
+			for (int k = 0; k<12; k++)
+				assertEquals(k, second.t[k], 1e-9);
+			assertArrayEquals(new int[] {2, 0, 0, 1, 0, 0, 1, 0, 0, 0, 0, 0}, second.count);
+			assertEquals(15, second.meanSpeed[0], 1e-9);
+			assertEquals(2/(0.1 + 0.05), second.harmonicSpeed[0], 1e-9);
+			assertEquals(0.6, second.occupancy[0], 1e-9);
+			assertEquals(1, second.occupancy[3], 0);	// 2 s at 1 s windows
+			assertTrue(Double.isNaN(second.meanSpeed[1]));
+			assertTrue(Double.isNaN(second.harmonicSpeed[11]));
+			assertEquals(0, second.occupancy[11], 0);
+			assertEquals(10, second.meanSpeed[6], 1e-9);
+			DetectorAccumulator.Series fiveSeconds = export.windows[1];
+			assertArrayEquals(new double[] {0, 5}, fiveSeconds.t, 1e-9);
+			assertArrayEquals(new int[] {3, 1}, fiveSeconds.count);
+			assertEquals(35/3.0, fiveSeconds.meanSpeed[0], 1e-9);
+			assertEquals(3/(0.1 + 0.05 + 0.2), fiveSeconds.harmonicSpeed[0], 1e-9);
+			assertEquals((0.4 + 0.2 + 2)/5, fiveSeconds.occupancy[0], 1e-9);
+			assertEquals(0.1, fiveSeconds.occupancy[1], 1e-9);
+		} finally {
+			spill.delete();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Without spill file only the latest records are kept
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testRing() throws IOException {
+		File file = File.createTempFile("detectorAccumulatorTest", ".bin");
+		try {
+			DetectorAccumulator accumulator = new DetectorAccumulator("d2", 1, 0, new double[] {1, 5}, 3, null);
+			pass(accumulator);
+			assertEquals(9, accumulator.getDropped());
+			accumulator.export(file);
+			DetectorAccumulator.Export export = DetectorAccumulator.read(file);
+			assertArrayEquals(new double[] {9, 10, 11}, export.windows[0].t, 1e-9);
+			assertArrayEquals(new double[] {0, 5}, export.windows[1].t, 1e-9);
+			assertArrayEquals(new int[] {3, 1}, export.windows[1].count);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * A stopped vehicle passes at the minimum speed in the harmonic mean speed and
+	 * occupancy, which stay finite, and at zero speed in the arithmetic mean speed
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testStopped() throws IOException {
+		File file = File.createTempFile("detectorAccumulatorTest", ".bin");
+		try {
+			DetectorAccumulator accumulator = new DetectorAccumulator("d3", 1, 0, new double[] {60}, 3, null);
+			accumulator.pass(10, 0, 4);
+			accumulator.pass(20, 10, 4);
+			accumulator.advance(60);
+			accumulator.export(file);
+			DetectorAccumulator.Series series = DetectorAccumulator.read(file).windows[0];
+			assertArrayEquals(new int[] {2}, series.count);
+			assertEquals(5, series.meanSpeed[0], 1e-9);
+			double inverse = 1/DetectorAccumulator.MIN_SPEED + 0.1;
+			assertEquals(2/inverse, series.harmonicSpeed[0], 1e-9);
+			assertEquals(4*inverse/60, series.occupancy[0], 1e-9);
+		} finally {
+			file.delete();
+		}
+	}
+}
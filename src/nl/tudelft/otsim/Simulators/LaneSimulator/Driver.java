@@ -145,6 +145,10 @@ public class Driver {
     protected java.util.HashMap<Conflict.conflictRSU, Movable> conflictYieldPlans = 
             new java.util.HashMap<Conflict.conflictRSU, Movable>();
     
+    /** Generation of the vehicles in <tt>conflictYieldPlans</tt>, see {@link Movable#generation()}. */
+    protected java.util.HashMap<Conflict.conflictRSU, Integer> conflictYieldGenerations = 
+            new java.util.HashMap<Conflict.conflictRSU, Integer>();
+    
     /** Whether further conflicts can be ignored in the current time step. */
     protected boolean ignoreFurtherConflicts = false;
     
@@ -165,6 +169,37 @@ public class Driver {
     protected java.util.ArrayList<Conflict.conflictRSU> keepClearConflicts = 
             new java.util.ArrayList<Conflict.conflictRSU>();
 
+    // PUBLISHED STATE
+    /** Value of <tt>a</tt> at the start of the driver decisions of this time step. */
+    private double publishedA;
+    
+    /** Value of <tt>b</tt> at the start of the driver decisions of this time step. */
+    private double publishedB;
+    
+    /** Value of <tt>s0</tt> at the start of the driver decisions of this time step. */
+    private double publishedS0;
+    
+    /** Value of <tt>T</tt> at the start of the driver decisions of this time step. */
+    private double publishedT;
+    
+    /** Value of <tt>Tmin</tt> at the start of the driver decisions of this time step. */
+    private double publishedTmin;
+    
+    /** Value of <tt>dLeft</tt> at the start of the driver decisions of this time step. */
+    private double publishedDLeft;
+    
+    /** Value of <tt>dRight</tt> at the start of the driver decisions of this time step. */
+    private double publishedDRight;
+    
+    /** Value of <tt>conflictBlocked</tt> at the start of the driver decisions of this time step. */
+    private boolean publishedConflictBlocked;
+    
+    /** New follower of a lane change started in this time step, set by <tt>commitDecision()</tt>. */
+    private Movable newFollower;
+    
+    /** Lane change desire applied to the headway of <tt>newFollower</tt>. */
+    private double newFollowerDesire;
+
     // OTHER
     /** Current value for the headway [s], initiated at <tt>Tmax</tt>. */
     protected double T = Tmax;
@@ -188,6 +223,76 @@ public class Driver {
         vehicle.setRSURange(noticeableRange);
     }
     
+    /**
+     * Resets the driver to the state of a new driver of the same vehicle, for 
+     * reuse by the {@link MovablePool}. The values are those of the field 
+     * declarations.
+     */
+    protected void reset() {
+        accelerations.clear();
+        activationLevel = 0;
+        ActLevel = 0;
+        ActLInc = 0;
+        RandomAct = 0;
+        transitionTime = 0;
+        s0 = 3;
+        a = 1.25;
+        aMin = 1.25;
+        b = 2.09;
+        b0 = .5;
+        Tmax = 1.2;
+        dFree = .365;
+        dSync = .577;
+        dCoop = .788;
+        t0 = 43;
+        x0 = 295;
+        vGain = 69.6/3.6;
+        vCong = 60/3.6;
+        bSafe = 2.09;
+        Tmin = .56;
+        tau = 25;
+        bYellow = 3.5;
+        aInter = 2;
+        noticeableRange = 300;
+        fSpeed = 1;
+        duration = 3;
+        estTimeFactor = 1.75;
+        s0conflict = .5;
+        yieldWithPriority = true;
+        Ttmp = Tmax;
+        dLeft = 0;
+        dRight = 0;
+        vDes = 0;
+        leftSync = false;
+        rightSync = false;
+        leftYield = false;
+        rightYield = false;
+        antFromLeft.clear();
+        antInLane.clear();
+        antFromRight.clear();
+        conflictYieldPlans.clear();
+        conflictYieldGenerations.clear();
+        ignoreFurtherConflicts = false;
+        dLeftIntersection = 0;
+        dRightIntersection = 0;
+        conflictBlocked = false;
+        keepClearConflicts.clear();
+        T = Tmax;
+        publishedA = 0;
+        publishedB = 0;
+        publishedS0 = 0;
+        publishedT = 0;
+        publishedTmin = 0;
+        publishedDLeft = 0;
+        publishedDRight = 0;
+        publishedConflictBlocked = false;
+        newFollower = null;
+        newFollowerDesire = 0;
+        kForActions.clear();
+        bDeadend = 5;
+        vehicle.setRSURange(noticeableRange);
+    }
+    
     /**
      * Sets the range within which RSU are noticed.
      * @param noticeableRange Range within which RSU are noticed [m].
@@ -196,6 +301,90 @@ public class Driver {
         this.noticeableRange = noticeableRange;
         vehicle.setRSURange(noticeableRange);
     }
+    
+    /**
+     * Publishes the state that drivers of other vehicles read during the 
+     * driver decisions. Other drivers only read the published state, so the
+     * decisions do not depend on the order in which drivers decide.
+     */
+    void publish() {
+        publishedA = a;
+        publishedB = b;
+        publishedS0 = s0;
+        publishedT = T;
+        publishedTmin = Tmin;
+        publishedDLeft = dLeft;
+        publishedDRight = dRight;
+        publishedConflictBlocked = conflictBlocked;
+    }
+    
+    /**
+     * Returns the left lane change desire at the start of the driver decisions.
+     * @return Left lane change desire.
+     */
+    public double publishedDLeft() {
+        return publishedDLeft;
+    }
+    
+    /**
+     * Returns the right lane change desire at the start of the driver decisions.
+     * @return Right lane change desire.
+     */
+    public double publishedDRight() {
+        return publishedDRight;
+    }
+    
+    /**
+     * Returns whether the driver was blocked for a conflict at the start of 
+     * the driver decisions.
+     * @return Whether the driver was blocked for a conflict.
+     */
+    public boolean publishedConflictBlocked() {
+        return publishedConflictBlocked;
+    }
+    
+    /**
+     * Returns the acceleration towards a leader with the headway set by 
+     * <tt>setT(d)</tt>, using the published parameters. This is the 
+     * acceleration another driver expects of this driver when merging in 
+     * front of it.
+     * @param leader Acceleration is based on this vehicle.
+     * @param d Desire for lane change.
+     * @return Acceleration [m/s^2].
+     */
+    public double publishedAcceleration(Movable leader, double d) {
+        double t = publishedT;
+        if (d>0 && d<1) {
+            double Tint = d*publishedTmin + (1-d)*Tmax;
+            t = t <= Tint ? t : Tint;
+        } else if (d<=0)
+            t = t <= Tmax ? t : Tmax;
+        else
+            t = t <= publishedTmin ? t : publishedTmin;
+        double v = vehicle.v;
+        double dv = v - leader.v;
+        double s = vehicle.getHeadway(leader);
+        double ss = publishedS0 + v * t + (v * dv) / (2 * Math.sqrt(publishedA * publishedB));
+        ss = ss >= 0 ? ss : 0;
+        s = s > 1e-99 ? s : 1e-99;
+        double v0 = desiredVelocity(vehicle.getLane());
+        double aFree = publishedA * (1 - Math.pow((v / v0), 4));
+        aFree = aFree >= -b0 ? aFree : -b0;
+        double sf = ss / s;
+        double aInt = publishedA * (1 - sf * sf);
+        return aInt < aFree ? aInt : aFree;
+    }
+    
+    /**
+     * Applies the decision of this driver to other drivers. This is invoked by
+     * {@link Model} after all drivers have decided, in the order of the lanes.
+     */
+    void commitDecision() {
+        if (null != newFollower) {
+            newFollower.getDriver().setT(newFollowerDesire);
+            newFollower = null;
+        }
+    }
 
     /**
      * Returns whether the current time step is a new time step and the given
@@ -223,6 +412,19 @@ public class Driver {
         return out;
     }
     
+    /**
+     * Returns the vehicle that is yielded for at a conflict.
+     * @param conflict Conflict of the yield plan.
+     * @return Vehicle that is yielded for, <tt>null</tt> if there is none or
+     * if it was deleted and reused by the {@link MovablePool}.
+     */
+    protected Movable yieldPlan(Conflict.conflictRSU conflict) {
+        Movable plan = conflictYieldPlans.get(conflict);
+        if ((null != plan) && (plan.generation() != conflictYieldGenerations.get(conflict)))
+            return null;
+        return plan;
+    }
+    
     public final static double maximumSearchDistance = 300;	// [m]
 
     /**
@@ -282,6 +484,7 @@ public class Driver {
         
         noticeRSUs();
         
+        newFollower = null;
         // Initialize interaction booleans to false
         leftSync = false; // for visualization only
         rightSync = false;
@@ -500,11 +703,9 @@ public class Driver {
                     double aFollow = 0; // assume current speed is fine
                     Movable follower = vehicle.getNeighbor(Movable.flipDirection(direction, Movable.FLIP_UD));
                     if (null != follower) {
-                    	if (follower.getHeadway(vehicle) > 0) {
-                    		follower.getDriver().setT(desire);
-                    		aFollow = calculateAcceleration(follower, vehicle);
-                    		follower.getDriver().resetT();
-                    	} else
+                    	if (follower.getHeadway(vehicle) > 0)
+                    		aFollow = follower.getDriver().publishedAcceleration(vehicle, desire);
+                    	else
                     		aFollow = Double.NEGATIVE_INFINITY;// Negative headway; reject gap
                     } else {	// Do not change lanes right after a merge because some followers may not be visible (BUG)
                     	Lane otherLane = Movable.LEFT_DOWN == direction ? vehicle.getLane().left : vehicle.getLane().right;
@@ -539,9 +740,12 @@ public class Driver {
                     // Set headway
                     setT(dLeft);
                     // Set response headway of new follower
+                    // Set response headway of new follower, after all decisions
                     Movable follower = vehicle.getNeighbor(Movable.LEFT_UP);
-                    if ((null != follower) && (follower.getNeighbor(Movable.RIGHT_DOWN) == vehicle))
-                    	follower.getDriver().setT(dLeft);
+                    if ((null != follower) && (follower.getNeighbor(Movable.RIGHT_DOWN) == vehicle)) {
+                    	newFollower = follower;
+                    	newFollowerDesire = dLeft;
+                    }
                 } else if ((dRight >= dLeft) && (dRight >= dFree) && acceptRight) {
                     // Set dy to the right
                 	// 20140314/PK: prevent negative lane change durations
@@ -550,8 +754,10 @@ public class Driver {
                     // Set headway
                     setT(dRight);
                     Movable follower = vehicle.getNeighbor(Movable.RIGHT_UP);
-                    if ((null != follower) && (follower.getNeighbor(Movable.LEFT_DOWN) == vehicle))
-                    	follower.getDriver().setT(dRight);
+                    if ((null != follower) && (follower.getNeighbor(Movable.LEFT_DOWN) == vehicle)) {
+                    	newFollower = follower;
+                    	newFollowerDesire = dRight;
+                    }
                 } else if ((dLeft >= dRight) && (dLeft >= dCoop))
                     vehicle.leftIndicator = true;	// Indicate need to left
                 else if ((dRight >= dLeft) && (dRight >= dCoop))
@@ -583,10 +789,10 @@ public class Driver {
             	Movable leader = vehicle.getNeighbor(direction);
             	if (null == leader)
             		continue;	// Take care of the easy cases first
-            	boolean indicator = Movable.LEFT_DOWN == direction ? leader.rightIndicator : leader.leftIndicator;
+            	boolean indicator = Movable.LEFT_DOWN == direction ? leader.publishedRightIndicator() : leader.publishedLeftIndicator();
             	if ((leader.getNeighbor(Movable.flipDirection(direction, Movable.FLIP_DIAGONAL)) == vehicle) && indicator) {
             		// Apply shorter headway for gap-creation
-            		setT(Movable.LEFT_DOWN == direction ? leader.getDriver().dRight : leader.getDriver().dLeft);
+            		setT(Movable.LEFT_DOWN == direction ? leader.getDriver().publishedDRight() : leader.getDriver().publishedDLeft());
             		lowerAcceleration(safe(calculateAcceleration(vehicle, leader)));
             		resetT();
             		if (Movable.LEFT_DOWN == direction)
@@ -788,9 +994,9 @@ public class Driver {
                  * a slow queue adjacent to an empty lane, where the anticipated
                  * speeds are then consequently low.
                  */
-                if (down.leftIndicator && (lane != vehicle.getLane()))
+                if (down.publishedLeftIndicator() && (lane != vehicle.getLane()))
                     vLeft = Math.min(vLeft, v);
-                else if (down.rightIndicator && (lane != vehicle.getLane()))
+                else if (down.publishedRightIndicator() && (lane != vehicle.getLane()))
                     vRight = Math.min(vRight, v);
             }
             // go to next vehicle
@@ -1128,6 +1334,7 @@ public class Driver {
                 if ((sSelf < conflict.length()) || ((vehicle.v == 0) && (up.v == 0))) {
                     // Clear yield plan if on conflict or if both vehicles are fully stopped
                     conflictYieldPlans.remove(conflict);
+                    conflictYieldGenerations.remove(conflict);
                 }
             }
             
@@ -1163,10 +1370,10 @@ public class Driver {
              *     o The driver itself is blocked (ttp_d>tte_o) and the other
              *       vehicle is within a distance sYield of the conflict
              */
-            if (yieldWithPriority && !up.getDriver().isConflictBlocked() && 
-                    isFirstUp && (leader != conflictYieldPlans.get(conflict)) && 
+            if (yieldWithPriority && !up.getDriver().publishedConflictBlocked() && 
+                    isFirstUp && (leader != yieldPlan(conflict)) && 
                     up.getDriver().vehicle.route.canBeFollowedFrom(conflict.otherRSU().lane) &&
-                    ((conflictYieldPlans.get(conflict) == up) || 
+                    ((yieldPlan(conflict) == up) || 
                     ((tte_o < ttp_d) && (up.v == 0)))) {
                 
                 // Stop before conflict to yield, but only with safe 
@@ -1175,6 +1382,7 @@ public class Driver {
                 
                 // Register yield plan
                 conflictYieldPlans.put(conflict, up);
+                conflictYieldGenerations.put(conflict, up.generation());
             } else {
                 // Take priority, but avoid collision
                 if (conflict.isCrossing()) {
@@ -1250,7 +1458,7 @@ public class Driver {
             // Calculate tte_c for current acceleration and comfortable 
             // deceleration
             s = sOther - conflict.otherRSU().length();
-            double tte_c = anticipateConflictMovement(s, up.v, up.a);
+            double tte_c = anticipateConflictMovement(s, up.v, up.publishedA());
             double tte_c2 = anticipateConflictMovement(s, up.v, -b);
             
             // Accept the gap ?
@@ -1550,7 +1758,7 @@ public class Driver {
     
     @Override
 	public String toString() {
-    	return String.format("Driver s0=%.2fm in vehicle %d", s0, vehicle.id);
+    	return String.format("Driver s0=%.2fm in vehicle %d", s0, vehicle.id());
     }
     
     /**
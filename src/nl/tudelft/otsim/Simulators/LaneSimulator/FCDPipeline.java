@@ -0,0 +1,379 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+/**
+ * Compiled sampling of floating car data, as an alternative to the FCD
+ * objects that {@link Trajectory#append()} creates through reflection.<br>
+ * <br>
+ * The fields of the pipeline are resolved once into probes, which read the
+ * state of a vehicle straight into primitive columns of its trajectory. The
+ * built-in fields are those of {@link FCD}: <tt>t</tt>, <tt>x</tt>,
+ * <tt>v</tt>, <tt>a</tt>, <tt>lane</tt> (the lane id) and <tt>lcProgress</tt>.
+ * Other fields are added with a probe. Each vehicle has its own sampling
+ * period, given by {@link #period(Vehicle)}, and vehicles without a period
+ * are not sampled. Finished trajectories are given to the sink of the
+ * pipeline by {@link Model#saveTrajectoryData(Trajectory)}. The pipeline is
+ * used if it is set with {@link Model#setFCDPipeline(FCDPipeline)} and the
+ * setting <tt>storeTrajectoryData</tt> is <tt>true</tt>.
+ */
+public class FCDPipeline {
+
+	/** Sink of finished trajectories. */
+	private final Sink sink;
+
+	/** Names of the double fields. */
+	private String[] doubleFields = new String[0];
+
+	/** Probes of the double fields. */
+	private DoubleProbe[] doubleProbes = new DoubleProbe[0];
+
+	/** Names of the int fields. */
+	private String[] intFields = new String[0];
+
+	/** Probes of the int fields. */
+	private IntProbe[] intProbes = new IntProbe[0];
+
+	/** Whether sampling has started, after which no fields can be added. */
+	private boolean started = false;
+
+	/** Sampling period [s], <tt>NaN</tt> for the setting <tt>trajectoryPeriod</tt>. */
+	private double period = Double.NaN;
+
+	/** Fraction of vehicles that is sampled. */
+	private double fraction = 1;
+
+	/**
+	 * Constructor with the fields of {@link FCD}.
+	 * @param sink Sink of finished trajectories.
+	 */
+	public FCDPipeline(Sink sink) {
+		this(new String[] {"t", "x", "v", "a", "lane", "lcProgress"}, sink);
+	}
+
+	/**
+	 * Constructor with built-in fields.
+	 * @param fields Names of built-in fields.
+	 * @param sink Sink of finished trajectories.
+	 */
+	public FCDPipeline(String[] fields, Sink sink) {
+		this.sink = sink;
+		for (String field : fields) {
+			if (field.equals("t"))
+				addField(field, new DoubleProbe() {
+					@Override
+					public double sample(Vehicle vehicle) {
+						return vehicle.model.t;
+					}
+				});
+			else if (field.equals("x"))
+				addField(field, new DoubleProbe() {
+					@Override
+					public double sample(Vehicle vehicle) {
+						return vehicle.x;
+					}
+				});
+			else if (field.equals("v"))
+				addField(field, new DoubleProbe() {
+					@Override
+					public double sample(Vehicle vehicle) {
+						return vehicle.v;
+					}
+				});
+			else if (field.equals("a"))
+				addField(field, new DoubleProbe() {
+					@Override
+					public double sample(Vehicle vehicle) {
+						return vehicle.a;
+					}
+				});
+			else if (field.equals("lane"))
+				addField(field, new IntProbe() {
+					@Override
+					public int sample(Vehicle vehicle) {
+						return null == vehicle.getLane() ? -1 : vehicle.getLane().id;
+					}
+				});
+			else if (field.equals("lcProgress"))
+				addField(field, new DoubleProbe() {
+					@Override
+					public double sample(Vehicle vehicle) {
+						return vehicle.lcDirection == Model.latDirection.LEFT ? -vehicle.lcProgress : vehicle.lcProgress;
+					}
+				});
+			else
+				throw new Error("Unknown FCD field " + field);
+		}
+	}
+
+	/**
+	 * Adds a double field.
+	 * @param field Name of the field.
+	 * @param probe Probe of the field.
+	 */
+	public void addField(String field, DoubleProbe probe) {
+		checkField(field);
+		doubleFields = java.util.Arrays.copyOf(doubleFields, doubleFields.length + 1);
+		doubleFields[doubleFields.length - 1] = field;
+		doubleProbes = java.util.Arrays.copyOf(doubleProbes, doubleProbes.length + 1);
+		doubleProbes[doubleProbes.length - 1] = probe;
+	}
+
+	/**
+	 * Adds an int field.
+	 * @param field Name of the field.
+	 * @param probe Probe of the field.
+	 */
+	public void addField(String field, IntProbe probe) {
+		checkField(field);
+		intFields = java.util.Arrays.copyOf(intFields, intFields.length + 1);
+		intFields[intFields.length - 1] = field;
+		intProbes = java.util.Arrays.copyOf(intProbes, intProbes.length + 1);
+		intProbes[intProbes.length - 1] = probe;
+	}
+
+	/** Checks that a field can be added. */
+	private void checkField(String field) {
+		if (started)
+			throw new Error("Field " + field + " is added after sampling has started");
+		if (java.util.Arrays.asList(doubleFields).contains(field) || java.util.Arrays.asList(intFields).contains(field))
+			throw new Error("Field " + field + " is added twice");
+	}
+
+	/**
+	 * Sets the sampling period of all vehicles.
+	 * @param period Sampling period [s].
+	 */
+	public void setPeriod(double period) {
+		this.period = period;
+	}
+
+	/**
+	 * Sets the fraction of vehicles that is sampled. Vehicles are selected by
+	 * a hash of their id, so the random numbers of the model are not affected.
+	 * @param fraction Fraction of vehicles that is sampled [0...1].
+	 */
+	public void setFraction(double fraction) {
+		this.fraction = fraction;
+	}
+
+	/**
+	 * Returns the sampling period of a vehicle. This is called once when the
+	 * trajectory of the vehicle starts. Subclasses may override this method
+	 * for other periods or selections of vehicles.
+	 * @param vehicle Vehicle.
+	 * @return Sampling period [s], <tt>NaN</tt> if the vehicle is not sampled.
+	 */
+	protected double period(Vehicle vehicle) {
+		if ((fraction < 1) && ((vehicle.id() * 0x9E3779B9) >>> 8) >= fraction * (1 << 24))
+			return Double.NaN;
+		return Double.isNaN(period) ? vehicle.model.settings.getDouble("trajectoryPeriod") : period;
+	}
+
+	/**
+	 * Samples the vehicle of a trajectory if its sampling period has passed.
+	 * @param trajectory Trajectory of the vehicle.
+	 */
+	public void sample(Trajectory trajectory) {
+		Buffer buffer = trajectory.samples;
+		if ((null == buffer) || (buffer.pipeline != this)) {
+			started = true;
+			buffer = new Buffer(this);
+			trajectory.samples = buffer;
+		}
+		Vehicle vehicle = trajectory.vehicle;
+		double t = vehicle.model.t;
+		if (!buffer.started) {
+			// as Trajectory.append, the first sample is taken immediately
+			buffer.started = true;
+			buffer.period = period(vehicle);
+			buffer.last = t - buffer.period;
+		}
+		if (!(t - buffer.last >= buffer.period))
+			return;
+		buffer.add(vehicle);
+		buffer.last = buffer.last + buffer.period;
+	}
+
+	/**
+	 * Gives the samples of a finished trajectory to the sink and clears them.
+	 * @param trajectory Finished trajectory.
+	 */
+	public void finish(Trajectory trajectory) {
+		Buffer buffer = trajectory.samples;
+		if ((null == buffer) || (buffer.pipeline != this))
+			return;
+		try {
+			if (buffer.size > 0)
+				sink.trajectory(trajectory.vehicle.id(), trajectory.vehicle.classID, buffer);
+		} catch (java.io.IOException e) {
+			throw new RuntimeException("Unable to write trajectory of vehicle " + trajectory.vehicle.id() + ".", e);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Closes the sink, after the simulation has finished.
+	 */
+	public void close() {
+		try {
+			sink.close();
+		} catch (java.io.IOException e) {
+			throw new RuntimeException("Unable to close FCD sink.", e);
+		}
+	}
+
+	/** Reads a double from the state of a vehicle. */
+	public static abstract class DoubleProbe {
+		/**
+		 * Returns the value of a vehicle.
+		 * @param vehicle Sampled vehicle.
+		 * @return Value of the field.
+		 */
+		public abstract double sample(Vehicle vehicle);
+	}
+
+	/** Reads an int from the state of a vehicle. */
+	public static abstract class IntProbe {
+		/**
+		 * Returns the value of a vehicle.
+		 * @param vehicle Sampled vehicle.
+		 * @return Value of the field.
+		 */
+		public abstract int sample(Vehicle vehicle);
+	}
+
+	/** Receiver of finished trajectories. */
+	public interface Sink {
+		/**
+		 * Receives the samples of a finished trajectory.
+		 * @param vehicle Vehicle id.
+		 * @param classID Class id of the vehicle.
+		 * @param samples Samples, which are cleared after this call.
+		 * @throws java.io.IOException If the samples could not be written.
+		 */
+		void trajectory(int vehicle, int classID, Buffer samples) throws java.io.IOException;
+
+		/**
+		 * Called after the simulation has finished.
+		 * @throws java.io.IOException If the sink could not be closed.
+		 */
+		void close() throws java.io.IOException;
+	}
+
+	/**
+	 * Sink that saves trajectories as {@link TrajectoryData} files of the
+	 * model, with the fields of the pipeline and the class id.
+	 */
+	public static class TrajectoryFiles implements Sink {
+		/** Model that saves the files. */
+		private final Model model;
+
+		/**
+		 * Constructor.
+		 * @param model Model that saves the files.
+		 */
+		public TrajectoryFiles(Model model) {
+			this.model = model;
+		}
+
+		@Override
+		public void trajectory(int vehicle, int classID, Buffer samples) {
+			TrajectoryData data = new TrajectoryData();
+			for (String field : samples.pipeline.doubleFields)
+				data.put(field, samples.getDouble(field));
+			for (String field : samples.pipeline.intFields)
+				data.put(field, samples.getInt(field));
+			data.put("classID", classID);
+			model.saveTrajectoryData(data);
+		}
+
+		@Override
+		public void close() {
+			// the model saves its buffer
+		}
+	}
+
+	/** Primitive columns of the samples of one trajectory. */
+	public static class Buffer {
+		/** Pipeline of the columns. */
+		private final FCDPipeline pipeline;
+
+		/** Double columns. */
+		private final double[][] doubles;
+
+		/** Int columns. */
+		private final int[][] ints;
+
+		/** Number of samples. */
+		private int size = 0;
+
+		/** Whether sampling has started. */
+		private boolean started = false;
+
+		/** Sampling period [s]. */
+		private double period;
+
+		/** Time of the last sample [s]. */
+		private double last;
+
+		/**
+		 * Constructor.
+		 * @param pipeline Pipeline of the columns.
+		 */
+		Buffer(FCDPipeline pipeline) {
+			this.pipeline = pipeline;
+			doubles = new double[pipeline.doubleProbes.length][16];
+			ints = new int[pipeline.intProbes.length][16];
+		}
+
+		/** Adds a sample of a vehicle. */
+		private void add(Vehicle vehicle) {
+			if ((doubles.length > 0 ? doubles[0].length : ints.length > 0 ? ints[0].length : Integer.MAX_VALUE) == size) {
+				for (int i = 0; i < doubles.length; i++)
+					doubles[i] = java.util.Arrays.copyOf(doubles[i], 2 * size);
+				for (int i = 0; i < ints.length; i++)
+					ints[i] = java.util.Arrays.copyOf(ints[i], 2 * size);
+			}
+			DoubleProbe[] doubleProbes = pipeline.doubleProbes;
+			for (int i = 0; i < doubleProbes.length; i++)
+				doubles[i][size] = doubleProbes[i].sample(vehicle);
+			IntProbe[] intProbes = pipeline.intProbes;
+			for (int i = 0; i < intProbes.length; i++)
+				ints[i][size] = intProbes[i].sample(vehicle);
+			size++;
+		}
+
+		/** Removes all samples and restarts sampling, keeping the columns. */
+		void clear() {
+			size = 0;
+			started = false;
+		}
+
+		/**
+		 * Returns the number of samples.
+		 * @return Number of samples.
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the samples of a double field.
+		 * @param field Name of the field.
+		 * @return Copy of the samples, <tt>null</tt> if there is no such double field.
+		 */
+		public double[] getDouble(String field) {
+			int i = java.util.Arrays.asList(pipeline.doubleFields).indexOf(field);
+			return i < 0 ? null : java.util.Arrays.copyOf(doubles[i], size);
+		}
+
+		/**
+		 * Returns the samples of an int field.
+		 * @param field Name of the field.
+		 * @return Copy of the samples, <tt>null</tt> if there is no such int field.
+		 */
+		public int[] getInt(String field) {
+			int i = java.util.Arrays.asList(pipeline.intFields).indexOf(field);
+			return i < 0 ? null : java.util.Arrays.copyOf(ints[i], size);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/** Test the sampling of the FCDPipeline */
+public class FCDPipelineTest {
+
+	/** Sink that keeps the trajectories */
+	private static class Collector implements FCDPipeline.Sink {
+		final ArrayList<Integer> vehicles = new ArrayList<Integer>();
+		final ArrayList<double[]> times = new ArrayList<double[]>();
+		final ArrayList<int[]> lanes = new ArrayList<int[]>();
+		final ArrayList<FCDPipeline.Buffer> samples = new ArrayList<FCDPipeline.Buffer>();
+
+		Collector() {
+		}
+
+		@Override
+		public void trajectory(int vehicle, int classID, FCDPipeline.Buffer buffer) {
+			vehicles.add(vehicle);
+			times.add(buffer.getDouble("t"));
+			lanes.add(buffer.getInt("lane"));
+			samples.add(buffer);
+		}
+
+		@Override
+		public void close() {
+			// nothing to close
+		}
+	}
+
+	/**
+	 * Samples follow the period of the vehicle, as the FCD objects of Trajectory, and have the
+	 * values of the built-in and added fields
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testSampling() throws Exception {
+		Model model = new Model();
+		model.settings.putBoolean("storeTrajectoryData", true);
+		model.settings.putDouble("trajectoryPeriod", 0.5);
+		Lane lane = new Lane(model, new double[]{0, 1000}, new double[]{0, 0}, 7);
+		Collector collector = new Collector();
+		FCDPipeline pipeline = new FCDPipeline(collector);
+		pipeline.addField("length", new FCDPipeline.DoubleProbe() {
+			@Override
+			public double sample(Vehicle vehicle) {
+				return vehicle.l;
+			}
+		});
+		model.setFCDPipeline(pipeline);
+		Vehicle vehicle = new Vehicle(model);
+		vehicle.l = 4;
+		vehicle.trajectory = new Trajectory(vehicle, "nl.tudelft.otsim.Simulators.LaneSimulator.FCD");
+		vehicle.setLane(lane);
+		for (int k = 0; k<=10; k++) {
+			model.t = k*0.2;
+			vehicle.x = 10*k;
+			vehicle.v = k;
+			vehicle.trajectory.append();
+		}
+		model.saveTrajectoryData(vehicle.trajectory);
+		assertEquals(1, collector.vehicles.size());
+		assertEquals(vehicle.id(), (int) collector.vehicles.get(0));
+		assertArrayEquals(new int[] {7, 7, 7, 7, 7}, collector.lanes.get(0));
+		FCDPipeline.Buffer samples = collector.samples.get(0);
+		assertEquals(0, samples.size());	// cleared after the sink
+		assertArrayEquals(new double[] {0, 0.6, 1.0, 1.6, 2.0}, collector.times.get(0), 1e-9);
+		// a new trajectory after a reset, without FCD objects
+		model.settings.putDouble("trajectoryPeriod", 1);
+		vehicle.trajectory.reset(vehicle.trajectory.getFCDclass());
+		assertTrue(vehicle.trajectory.FCD.isEmpty());
+		for (int k = 0; k<=4; k++) {
+			model.t = 10 + k*0.5;
+			vehicle.x = 5*k;
+			vehicle.trajectory.append();
+		}
+		pipeline.finish(vehicle.trajectory);
+		assertArrayEquals(new double[] {10, 11, 12}, collector.times.get(1), 1e-9);
+		assertNull(collector.samples.get(1).getDouble("lane"));
+		assertTrue(vehicle.trajectory.FCD.isEmpty());
+	}
+
+	/**
+	 * Only the given fraction of vehicles is sampled
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testFraction() throws Exception {
+		Model model = new Model();
+		Collector collector = new Collector();
+		FCDPipeline pipeline = new FCDPipeline(new String[] {"t", "lane"}, collector);
+		pipeline.setPeriod(0.1);
+		pipeline.setFraction(0.2);
+		model.setFCDPipeline(pipeline);
+		Lane lane = new Lane(model, new double[]{0, 1000}, new double[]{0, 0}, 3);
+		for (int i = 0; i<2000; i++) {
+			Vehicle vehicle = new Vehicle(model);
+			vehicle.trajectory = new Trajectory(vehicle, null);
+			vehicle.setLane(lane);
+			vehicle.trajectory.append();
+			model.saveTrajectoryData(vehicle.trajectory);
+		}
+		assertEquals(400, collector.vehicles.size(), 40);
+		assertArrayEquals(new int[] {3}, collector.lanes.get(0));
+	}
+
+	/**
+	 * Unknown fields are not accepted
+	 */
+	@SuppressWarnings("static-method")
+	@Test(expected = Error.class)
+	public void testUnknownField() {
+		new FCDPipeline(new String[] {"t", "speed"}, new Collector());
+	}
+}
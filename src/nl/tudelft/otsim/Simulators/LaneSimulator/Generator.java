@@ -464,14 +464,18 @@ public class Generator extends Controller {
         		break;
         	l.marked = true;
             for (int i = 0; i < l.RSUcount(); i++)
-                if (l.getRSU(i).passable)
+                if (l.getRSU(i).passable) {
+                    veh.model.passed(l.getRSU(i));
                     l.getRSU(i).pass(veh);
+                }
             l = l.up;
         }
         // lane itself
         for (int i = 0; i < veh.getLane().RSUcount(); i++)
-            if ((veh.getLane().getRSU(i).x <= veh.x) && veh.getLane().getRSU(i).passable)
+            if ((veh.getLane().getRSU(i).x <= veh.x) && veh.getLane().getRSU(i).passable) {
+                veh.model.passed(veh.getLane().getRSU(i));
                 veh.getLane().getRSU(i).pass(veh);
+            }
         for (l = veh.getLane().up; (l != null) && l.marked; l = l.up)
         	l.marked = false;
     }
@@ -27,6 +27,19 @@ public class LCVehicle extends Movable {
         l = vehicle.l;
     }
 
+    /**
+     * Resets this lane change vehicle to the state of a new lane change 
+     * vehicle, for reuse by the {@link MovablePool}.
+     * @param newVehicle Lane changing vehicle.
+     */
+    void reset(Vehicle newVehicle) {
+        reset();
+        vehicle = newVehicle;
+        a = newVehicle.a;
+        v = newVehicle.v;
+        l = newVehicle.l;
+    }
+
     /**
      * Moves the movable a certain distance downstream, entering new lanes as
      * required.
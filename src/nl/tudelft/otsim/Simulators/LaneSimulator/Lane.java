@@ -16,7 +16,6 @@ import nl.tudelft.otsim.GUI.Main;
 public class Lane {
 	
 	boolean marked;
-	boolean markedForXadj;
 	
     /** Array of x-coordinates defining the lane curvature. */
     public double[] x;
@@ -27,6 +26,9 @@ public class Lane {
     /** Length of the lane [m]. */
     public double l;
 
+    /** Cumulative length [m] at each point of the lane curvature. */
+    private double[] cumLength;
+
     /** Main model. */
     public Model model;
 
@@ -64,7 +66,10 @@ public class Lane {
     protected java.util.ArrayList<RSU> RSUs = new java.util.ArrayList<RSU>();
 
     /** All Movables on this lane, in order of increasing x. */
-    private java.util.ArrayList<Movable> vehicles = new java.util.ArrayList<Movable>(0);
+    private LaneOccupancy vehicles = new LaneOccupancy();
+    
+    /** Number of insertions and removals of Movables, to detect changes after neighbors were linked. */
+    private int modifications = 0;
 
     /** Destination number, NODESTINATION if no destination. */
     public int destination;
@@ -75,24 +80,14 @@ public class Lane {
     /** Legal speed limit [km/h]. */
     public double vLim = 120;
     
-    private void checkOrdering () {
-    	Movable prevM = null;
-    	for (Movable thisM : vehicles) {
-    		if (null != prevM)
-    			if (prevM.x > thisM.x)
-    				throw new Error("cannot happen");
-    		prevM = thisM;
-    	}
-    }
-    
     /**
      * Insert a Movable in the list of vehicles on this Lane.
      * @param m Movable to insert
      * @param pos Double; longitudinal position on this lane
      */
     public void paste (Movable m, double pos) {
-    	vehicles.add(findVehicleIndex(pos), m);
-    	checkOrdering();
+    	vehicles.insert(m, findVehicleIndex(pos));
+    	modifications++;
     }
     
     /**
@@ -101,7 +96,15 @@ public class Lane {
      */
     public void cut (Movable m) {
     	vehicles.remove(m);
-    	checkOrdering();
+    	modifications++;
+    }
+    
+    /**
+     * Number of insertions and removals of Movables on this Lane.
+     * @return Integer; the number of insertions and removals
+     */
+    public int modifications() {
+    	return modifications;
     }
     
     /** 
@@ -118,17 +121,7 @@ public class Lane {
      * @return index where a Movable at position pos should be inserted in the vehicles list
      */
     public int findVehicleIndex(double pos) {
-    	if (vehicles.size() == 0)
-    		return 0;
-    	int result = (int) (pos / l * vehicles.size());
-    	// Move backward while we're too far
-    	while ((result > 0) && (vehicles.get(result - 1).x > pos))
-    		result--;
-    	if (result < 0)
-    		return 0;
-    	while ((result < vehicles.size()) && (vehicles.get(result).x < pos))
-    		result++;
-    	return result;
+    	return vehicles.insertionIndex(pos, l);
     }
     
     /**
@@ -136,7 +129,7 @@ public class Lane {
      * @return ArrayList&lt;Movable&gt;; the copy of the vehicles list
      */
     public java.util.ArrayList<Movable> getVehicles() {
-    	return new java.util.ArrayList<Movable> (vehicles);
+    	return vehicles.toList();
     }
 
     /**
@@ -156,12 +149,6 @@ public class Lane {
     /** Vehicle generator, if any. */
     public Generator generator;
 
-    /**
-     * Set of calculated x adjustments with longitudinally linked lanes. These
-     * will be calculated and stored as needed.
-     */
-    protected java.util.HashMap<Integer, Double> xAdjust = new java.util.HashMap<Integer, Double>();
-    
     /**
      * First downstream splitting lane. This is used for neighbor bookkeeping 
      * where pointers past a split from downstream are invalid (and thus removed).
@@ -213,19 +200,20 @@ public class Lane {
      * Sets the lane length based on the x and y coordinates. This method is 
      * called within the constructor and should only be used if coordinates are
      * changed afterwards (for instance to nicely connect lanes at the same 
-     * point).
+     * point). The cumulative lengths at the points are stored for position
+     * lookups by {@link #section(double)}.
      */
     public void calculateLength() {
         // compute and set length
-        double cumLength = 0;
+        cumLength = new double[x.length];
         double dx;
         double dy;
         for (int i=1; i<=x.length-1; i++) {
             dx = this.x[i]-this.x[i-1];
             dy = this.y[i]-this.y[i-1];
-            cumLength = cumLength + Math.sqrt(dx*dx + dy*dy);
+            cumLength[i] = cumLength[i-1] + Math.sqrt(dx*dx + dy*dy);
         }
-        l = cumLength;
+        l = x.length>0 ? cumLength[x.length-1] : 0;
     }
 
     /**
@@ -482,7 +470,9 @@ public class Lane {
      * Finds a movable beginning at some location and moving either up- or
      * downstream. The search will not pass merging or splitting lanes in the
      * direction where multiple lanes become available (i.e. only the 
-     * <tt>up</tt> and <tt>down</tt> field of lanes are used).
+     * <tt>up</tt> and <tt>down</tt> field of lanes are used). The search stops
+     * when it returns to this lane or another lane it visited, so on a ring it
+     * does not find movables on this lane.
      * @param startX Double; Start location [m] for the search.
      * @param updown Whether to search up or downstream.
      * @return Found movable, <tt>null</tt> if none found.
@@ -498,47 +488,74 @@ public class Lane {
         if (updown == Model.longDirection.UP) {
         	if (index > 0)
         		return vehicles.get(--index);
-        	if (null != up) {
-        		markedForXadj = true;
-        		Movable result = up.lastVehicle(maxDistance - l);
-        		markedForXadj = false;
-        		return result;
+        	// search the upstream lanes until the walk returns to a visited lane
+        	java.util.HashSet<Lane> visited = null; // created when the walk passes an empty lane
+        	for (Lane j = up; (null != j) && (j != this); j = j.up) {
+        		if (! j.isEmpty())
+        			return j.vehicles.get(j.vehicles.size() - 1);
+        		if (null == visited)
+        			visited = new java.util.HashSet<Lane>();
+        		if (! visited.add(j))
+        			break;
         	}
         } else {
         	if (index < vehicles.size())
         		return vehicles.get(index);
-        	if (null != down) {
-        		markedForXadj = true;
-        		Movable result = down.firstVehicle(maxDistance - l);
-        		markedForXadj = false;
-        		return result;
+        	// search the downstream lanes within range until the walk returns to a visited lane
+        	double distance = maxDistance - l;
+        	java.util.HashSet<Lane> visited = null; // created when the walk passes an empty lane
+        	for (Lane j = down; (null != j) && (j != this) && (distance >= 0); j = j.down) {
+        		if (! j.isEmpty())
+        			return j.vehicles.get(0);
+        		distance -= j.l;
+        		if (null == visited)
+        			visited = new java.util.HashSet<Lane>();
+        		if (! visited.add(j))
+        			break;
         	}
         }
     	return null;
     }
     
-    private Movable lastVehicle (double maxDistance) {
-    	if (! isEmpty())
-    		return vehicles.get(vehicles.size() - 1);
-    	if ((null == up) || up.markedForXadj)
-    		return null;
-    	markedForXadj = true;
-    	Movable result = up.lastVehicle(maxDistance - l);
-    	markedForXadj = false;
-    	return result;
+    /**
+     * Links the Movables on this lane to the lateral neighbors that 
+     * {@link Movable#getNeighbor(int)} would find at this moment. This lane and
+     * the adjacent lane are traversed together, instead of searching the 
+     * adjacent lane for every Movable. Neighbors beyond the adjacent lane are 
+     * left to be searched by <tt>getNeighbor</tt>.
+     */
+    public void linkLateralNeighbors() {
+        linkLateralNeighbors(Model.latDirection.LEFT, left, Movable.LEFT_UP);
+        linkLateralNeighbors(Model.latDirection.RIGHT, right, Movable.RIGHT_UP);
     }
     
-    private Movable firstVehicle (double maxDistance) {
-    	if (maxDistance < 0)
-    		return null;
-    	if (! isEmpty())
-    		return vehicles.get(0);
-    	if ((null == down) || down.markedForXadj)
-    		return null;
-    	markedForXadj = true;
-    	Movable result = down.firstVehicle(maxDistance - l);
-    	markedForXadj = false;
-    	return result;
+    /**
+     * Links the Movables on this lane to the neighbors on one side.
+     * @param dir Left or right.
+     * @param adjacent Adjacent lane at that side, may be <tt>null</tt>.
+     * @param upDirection LEFT_UP or RIGHT_UP.
+     */
+    private void linkLateralNeighbors(Model.latDirection dir, Lane adjacent, int upDirection) {
+        int downDirection = Movable.flipDirection(upDirection, Movable.FLIP_UD);
+        int[] bounds = new int[2];
+        for (int i = 0; i < vehicles.size(); i++) {
+            Movable m = vehicles.get(i);
+            if (m.getLane() != this)
+                continue;
+            if (null == adjacent) {
+                m.linkNeighbor(upDirection, null, null);
+                m.linkNeighbor(downDirection, null, null);
+                continue;
+            }
+            double adjacentX = getAdjacentX(m.x, dir);
+            if (adjacentX > adjacent.l + 0.002)
+                continue; // out of range, reported by findVehicle
+            int index = adjacent.vehicles.insertionIndex(adjacentX, adjacent.l, bounds);
+            if (index > 0)
+                m.linkNeighbor(upDirection, adjacent.vehicles.get(index - 1), adjacent);
+            if (index < adjacent.vehicles.size())
+                m.linkNeighbor(downDirection, adjacent.vehicles.get(index), adjacent);
+        }
     }
     
     /*
@@ -618,38 +635,7 @@ public class Lane {
      * @return Next RSU, multiple if multiple at the same location.
      */
     public java.util.ArrayList<RSU> findRSU(double startX, double range) {
-        java.util.ArrayList<RSU> out = new java.util.ArrayList<RSU>();
-        Lane atLane = this;
-        double searchRange = 0;
-        while (atLane!=null && searchRange<=range) {
-            // Loop all RSUs on this lane
-            for (int i=0; i<atLane.RSUcount(); i++) {
-                double xAdj = xAdj(atLane);
-                if (xAdj+atLane.getRSU(i).x>startX 
-                        && xAdj+atLane.getRSU(i).x-startX<=range) {
-                    out.add(atLane.getRSU(i));
-                    // Add additional RSUs at the same location
-                    double xRsu = atLane.getRSU(i).x();
-                    i++;
-                    while (i<atLane.RSUcount() && atLane.getRSU(i).x()==xRsu) {
-                        out.add(atLane.getRSU(i));
-                        i++;
-                    }
-                    return out;
-                }
-                // Update search range and quit if possible
-                searchRange = xAdj+atLane.getRSU(i).x-startX;
-                if (searchRange>range) {
-                    return out;
-                }
-            }
-            // If no RSUs, move to next lane
-            atLane = atLane.down;
-            // Update searchRange at start of new lane
-            if (atLane!=null)
-                searchRange = xAdj(atLane)-startX;
-        }
-        return out;
+        return findRSU(startX, range, false);
     }
     
     /**
@@ -660,14 +646,33 @@ public class Lane {
      * @return Next noticeable RSU, multiple if multiple at the same location.
      */
     public java.util.ArrayList<RSU> findNoticeableRSU(double startX, double range) {
+        return findRSU(startX, range, true);
+    }
+    
+    /**
+     * Performs the actual work of <tt>findRSU</tt> and <tt>findNoticeableRSU</tt>.
+     * The lanes along <tt>down</tt> and their offsets are taken from the 
+     * {@link LaneTopology} of the model as far as it was compiled.
+     * @param startX Double; Start location of search [m].
+     * @param range Range of search [m].
+     * @param noticeable Whether only noticeable RSUs are found.
+     * @return Next (noticeable) RSU, multiple if multiple at the same location.
+     */
+    private java.util.ArrayList<RSU> findRSU(double startX, double range, boolean noticeable) {
         java.util.ArrayList<RSU> out = new java.util.ArrayList<RSU>();
+        LaneTopology topology = model.getTopology();
+        Lane[] chain = null == topology ? null : topology.downChain(this);
+        double[] chainOffsets = null == chain ? null : topology.downChainOffsets(this);
+        boolean chainComplete = (null != chain) && topology.isDownChainComplete(this);
         Lane atLane = this;
+        double xAdj = 0;
         double searchRange = 0;
+        int step = 0;
         while ((null != atLane) && (searchRange <= range)) {
             // Loop all RSUs on this lane
             for (int i = 0; i < atLane.RSUcount(); i++) {
-                if (atLane.getRSU(i).noticeable && (xAdj(atLane) + atLane.getRSU(i).x > startX) 
-                        && (xAdj(atLane) + atLane.getRSU(i).x - startX <= range)) {
+                if ((! noticeable || atLane.getRSU(i).noticeable) && (xAdj + atLane.getRSU(i).x > startX) 
+                        && (xAdj + atLane.getRSU(i).x - startX <= range)) {
                     out.add(atLane.getRSU(i));
                     // Add additional RSUs at the same location
                     double xRsu = atLane.getRSU(i).x();
@@ -679,15 +684,24 @@ public class Lane {
                     return out;
                 }
                 // Update search range and quit if possible
-                searchRange = xAdj(atLane) + atLane.getRSU(i).x - startX;
+                searchRange = xAdj + atLane.getRSU(i).x - startX;
                 if (searchRange > range)
                     return out;
             }
-            // If no noticeable RSUs, move to next lane
-            atLane = atLane.down;
+            // If no (noticeable) RSUs, move to next lane
+            step++;
+            if ((null != chain) && (step < chain.length)) {
+                atLane = chain[step];
+                xAdj = chainOffsets[step];
+            } else if (chainComplete)
+                atLane = null;
+            else {
+                xAdj = null == chain ? xAdj(atLane.down) : xAdj + atLane.l;
+                atLane = atLane.down;
+            }
             // Update searchRange at start of new lane
             if (null != atLane)
-                searchRange = xAdj(atLane) - startX;
+                searchRange = xAdj - startX;
         }
         return out;
     }
@@ -706,7 +720,7 @@ public class Lane {
      * other.<br>
      * <br>
      * Note that this method can be called often, as adjustment values between
-     * any set of lanes are calculated once, and then stored for successive use.
+     * lanes are compiled in the {@link LaneTopology} of the model.
      * @param otherLane Lane from which the adjustment is required.
      * @return Distance [m] to other lane.
      */
@@ -714,59 +728,11 @@ public class Lane {
         // 0 for self or no other lane
         if ((this == otherLane) || (null == otherLane))
             return 0;
-        // return earlier found value
-        if (xAdjust.containsKey(otherLane.id))
-            return xAdjust.get(otherLane.id);
-        // find, store (in helper method) and return value
-        return xAdj(otherLane, 0, new Object());
-    }
-    
-    // distance marker for xAdj recursion to stop in case of (longer) loop
-    private double xAdjDistance = Double.POSITIVE_INFINITY;
-    // last lane on which xAdj(otherLane) was called, the search of which reached this lane
-    //private Lane xAdjLane = null;
-    // last key when xAdj(otherLane) was called, the search of which reached this lane
-    protected Object xAdjKey = null;
-
-    /**
-     * Performs the actual work of <tt>xAdj(jLane)</tt>.
-     * @param otherLane Lane from which the adjustment is required.
-     * @param dir Direction of search, use <tt>null</tt> for both.
-     * @return Distance [m] to other lane.
-     */
-    protected double xAdj(Lane otherLane, double distance, final Object key) {
-        // return not found value if better value has already been found (to stop recursion in a loop)
-        // this will overwrite information in case distance<xAdjDistance as this is a shorter connection
-        if ((key == xAdjKey) && (distance >= xAdjDistance))
-            return 0;
-        xAdjDistance = distance; // remember distance traveled up to this lane
-        xAdjKey = key; // remember to which original lane this pertains    
-        double dx = 0; // longitudinal difference between two lanes
-        double dx2; // used for recursive search
-        if (null != down) {
-            if (down == otherLane)
-                dx = l;
-            else { // use further recursion
-                dx2 = down.xAdj(otherLane, distance + l, key);
-                if (dx2 > 0)
-                    dx = dx2 + l;
-            }
-        } else if (isSplit()) {
-            if (downs.contains(otherLane))
-                dx = l;
-            else { // find the minimum distance from any of the splits
-                double minDx2 = Double.POSITIVE_INFINITY;
-                for (Lane j : downs) { // use further recursion
-                    dx2 = j.xAdj(otherLane, distance + l, key);
-                    if ((dx2 > 0) && (dx2 < minDx2))
-                    	minDx2 = dx2;
-                }
-                if (!Double.isInfinite(minDx2))
-                    dx = minDx2 + l;
-            }
-        }
-        xAdjust.put(otherLane.id, dx);
-        return dx;
+        LaneTopology topology = model.getTopology();
+        if (null != topology)
+            return topology.xAdj(this, otherLane);
+        // not yet compiled
+        return LaneTopology.search(this, otherLane);
     }
 
     /*
@@ -870,31 +836,32 @@ public class Lane {
             return myX * right.l/l; // maybe not physically adjacent, use total length only
         else {
             // get appropriate section, and fraction within section
-            double xCumul = 0; // length at end of appropriate section
-            int section = 0;
-            double dx = 0;
-            double dy = 0;
+            double xCumul; // length at end of appropriate section
+            int section;
             if (myX>l) {
                 // last section
                 section = this.x.length-2;
-                dx = this.x[section+1]-this.x[section];
-                dy = this.y[section+1]-this.y[section];
                 xCumul = l;
             } else if (myX<=0) {
                 // first section
-                dx = this.x[section+1]-this.x[section];
-                dy = this.y[section+1]-this.y[section];
-                xCumul = Math.sqrt(dx*dx + dy*dy);
+                section = 0;
+                xCumul = cumLength[1];
             } else {
-                // find section by looping
-                while (xCumul<myX) {
-                    dx = this.x[section+1]-this.x[section];
-                    dy = this.y[section+1]-this.y[section];
-                    xCumul = xCumul + Math.sqrt(dx*dx + dy*dy);
-                    section++;
+                // find first section that ends at or beyond myX
+                int low = 1;
+                int high = this.x.length-1;
+                while (low<high) {
+                    int mid = (low+high) >>> 1;
+                    if (cumLength[mid]<myX)
+                        low = mid+1;
+                    else
+                        high = mid;
                 }
-                section--;
+                section = low-1;
+                xCumul = cumLength[low];
             }
+            double dx = this.x[section+1]-this.x[section];
+            double dy = this.y[section+1]-this.y[section];
             double lSection = Math.sqrt(dx*dx + dy*dy); // length of appropriate section
             double fSection = 1-(xCumul-myX)/lSection; // fraction within appropriate section
             // loop appropriate adjacent lane
@@ -903,13 +870,8 @@ public class Lane {
                 lane = left;
             else if (dir==Model.latDirection.RIGHT)
                 lane = right;
-            // loop preceding sections
-            double xStart = 0;
-            for (int i=0; i<section; i++) {
-                dx = lane.x[i+1]-lane.x[i];
-                dy = lane.y[i+1]-lane.y[i];
-                xStart = xStart + Math.sqrt(dx*dx + dy*dy);
-            }
+            // length of preceding sections
+            double xStart = lane.cumLength[section];
             // add part of appropriate section
             dx = lane.x[section+1]-lane.x[section];
             dy = lane.y[section+1]-lane.y[section];
@@ -942,38 +904,78 @@ public class Lane {
         this.up = upLane;
     }
 
+    /**
+     * Returns the section of the lane curvature at the given position. Section
+     * <tt>i</tt> runs from point <tt>i-1</tt> to point <tt>i</tt>. Positions
+     * beyond the lane are in the last section.
+     * @param pos Position [m] on the lane.
+     * @return Index of the end point of the section.
+     */
+    public int section(double pos) {
+        int low = 1;
+        int high = x.length-1;
+        while (low<high) {
+            int mid = (low + high) >>> 1;
+            if (cumLength[mid]>pos)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the section of the lane curvature at the given position, trying
+     * the section of a previous lookup and the next section before searching.
+     * Any hint gives the same result as {@link #section(double)}.
+     * @param pos Position [m] on the lane.
+     * @param hint Section of a previous lookup, possibly on another lane.
+     * @return Index of the end point of the section.
+     */
+    public int section(double pos, int hint) {
+        if (isSection(pos, hint))
+            return hint;
+        if (isSection(pos, hint+1))
+            return hint+1;
+        return section(pos);
+    }
+
+    /**
+     * Returns whether the given position is in the given section.
+     * @param pos Position [m] on the lane.
+     * @param i Index of the end point of the section.
+     * @return Whether <tt>i</tt> equals <tt>section(pos)</tt>.
+     */
+    private boolean isSection(double pos, int i) {
+        return i>=1 && i<x.length && (i==x.length-1 || cumLength[i]>pos) && (i==1 || !(cumLength[i-1]>pos));
+    }
+
     /**
      * Returns the global x and y at the lane center.
      * @param pos Position [m] on the lane.
      * @return Point with x and y coordinate.
      */
     public java.awt.geom.Point2D.Double XY(double pos) {
-        double cumlength[] = new double[x.length];
-        cumlength[0] = 0;
-        double dx; // section distance in x
-        double dy; // section distance in y
-        int section = -1; // current section of vehicle
-        // calculate cumulative lengths until x of vehicle is passed
-        for (int i = 1; i < x.length; i++) {
-            dx = x[i] - x[i - 1];
-            dy = y[i] - y[i - 1];
-            cumlength[i] = cumlength[i - 1] + java.lang.Math.sqrt(dx * dx + dy * dy);
-            if (section==-1 && cumlength[i]>pos) {
-                section = i;
-                i = x.length; // stop loop
-            }
-        }
-        if (section == -1) {
-            // the vehicle is probably beyond the lane, extrapolate from last section
-            section = x.length-1;
-        }
+        return XY(pos, section(pos), new java.awt.geom.Point2D.Double());
+    }
+
+    /**
+     * Sets the global x and y at the lane center in the given point.
+     * @param pos Position [m] on the lane.
+     * @param section Section of the position, see {@link #section(double, int)}.
+     * @param result Point in which the x and y coordinate are set.
+     * @return The result point.
+     */
+    public java.awt.geom.Point2D.Double XY(double pos, int section, java.awt.geom.Point2D.Double result) {
         double x0 = x[section - 1]; // start of current section
         double y0 = y[section - 1];
         double x1 = x[section]; // end of current section
         double y1 = y[section];
-        double res = pos - cumlength[section - 1]; // distance within section
-        double sec = cumlength[section] - cumlength[section - 1]; // section length
-        return new java.awt.geom.Point2D.Double(x0 + (x1 - x0)*(res / sec), y0 + (y1 - y0) * (res / sec));
+        double res = pos - cumLength[section - 1]; // distance within section
+        double sec = cumLength[section] - cumLength[section - 1]; // section length
+        result.x = x0 + (x1 - x0)*(res / sec);
+        result.y = y0 + (y1 - y0) * (res / sec);
+        return result;
     }
     
     /**
@@ -990,29 +992,22 @@ public class Lane {
      * @return Point where x and y are the x and y headings.
      */
     public java.awt.geom.Point2D.Double heading(double pos) {
-        double cumlength[] = new double[x.length];
-        cumlength[0] = 0;
-        double dx; // section distance in x
-        double dy; // section distance in y
-        int section = -1; // current section of vehicle
-        // calculate cumulative lengths untill x of vehicle is passed
-        for (int i=1; i<x.length; i++) {
-            dx = x[i] - x[i-1];
-            dy = y[i] - y[i-1];
-            cumlength[i] = cumlength[i-1] + java.lang.Math.sqrt(dx*dx + dy*dy);
-            if (section==-1 && cumlength[i]>pos) {
-                section = i;
-                i = x.length; // stop loop
-            }
-        }
-        if (section==-1) {
-            // the point is probably beyond the lane, extrapolate from last section
-            section = x.length-1;
-        }
-        dx = x[section] - x[section-1];
-        dy = y[section] - y[section-1];
+        return heading(section(pos), new java.awt.geom.Point2D.Double());
+    }
+
+    /**
+     * Sets the heading of a section of the lane in the given point.
+     * @param section Section, see {@link #section(double, int)}.
+     * @param result Point in which the x and y headings are set.
+     * @return The result point.
+     */
+    public java.awt.geom.Point2D.Double heading(int section, java.awt.geom.Point2D.Double result) {
+        double dx = x[section] - x[section-1];
+        double dy = y[section] - y[section-1];
         double f = 1/Math.sqrt(dx*dx + dy*dy);
-        return new java.awt.geom.Point2D.Double(dx*f, dy*f);
+        result.x = dx*f;
+        result.y = dy*f;
+        return result;
     }
     
     /**
@@ -1203,6 +1198,12 @@ public class Lane {
         /** Empty, needs to be implemented. */
         @Override
         public void noControl() {}
+
+        /** Returns that this split never needs to run, as it is only passed and noticed. */
+        @Override
+        public Wake wake() {
+            return Wake.IDLE;
+        }
         
         /**
          * Return a human readable description of this splitRSU.
@@ -0,0 +1,175 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+/**
+ * The Movables on a {@link Lane} in order of increasing x. Positions are found by binary
+ * search and neighbors are found by stepping the index, so a position search costs O(log n)
+ * and a neighbor step O(1). A Movable at the same position as others is placed among them
+ * exactly where the linear search of earlier versions of {@link Lane} placed it.
+ */
+public class LaneOccupancy {
+	private final java.util.ArrayList<Movable> movables = new java.util.ArrayList<Movable>(0);
+
+	/**
+	 * Number of Movables.
+	 * @return Integer; the number of Movables
+	 */
+	public int size() {
+		return movables.size();
+	}
+
+	/**
+	 * Report presence of Movables.
+	 * @return Boolean; true if there are no Movables
+	 */
+	public boolean isEmpty() {
+		return movables.isEmpty();
+	}
+
+	/**
+	 * Retrieve a Movable by index.
+	 * @param index Integer; index in order of increasing x
+	 * @return Movable; the Movable at the index
+	 */
+	public Movable get(int index) {
+		return movables.get(index);
+	}
+
+	/**
+	 * Index of the first Movable that is not upstream of a position.
+	 * @param pos Double; the position
+	 * @return Integer; number of Movables with <tt>x &lt; pos</tt>
+	 */
+	public int lowerIndex(double pos) {
+		int low = 0;
+		int high = movables.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (movables.get(mid).x < pos)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Index of the first Movable downstream of a position.
+	 * @param pos Double; the position
+	 * @return Integer; number of Movables that are not downstream of pos
+	 */
+	public int upperIndex(double pos) {
+		int low = 0;
+		int high = movables.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (movables.get(mid).x > pos)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Return the index where a Movable at position pos should be inserted. Among Movables at
+	 * exactly pos, the index is the one nearest to the estimate <tt>pos / length * size()</tt>,
+	 * as found by the original linear search from that estimate.
+	 * @param pos Double; the position of the Movable to be inserted
+	 * @param length Double; length of the lane
+	 * @return Integer; index where a Movable at position pos should be inserted
+	 */
+	public int insertionIndex(double pos, double length) {
+		if (movables.isEmpty())
+			return 0;
+		int estimate = (int) (pos / length * movables.size());
+		if (estimate < 0)
+			return 0;
+		return Math.max(Math.min(estimate, upperIndex(pos)), lowerIndex(pos));
+	}
+
+	/**
+	 * Return the same index as {@link #insertionIndex(double, double)}, moving the lower and
+	 * upper index of the previous position to this position. This costs O(1) per position if
+	 * the positions increase in small steps, as they do along an adjacent lane.
+	 * @param pos Double; the position of the Movable to be inserted
+	 * @param length Double; length of the lane
+	 * @param bounds Integer[2]; lower and upper index of the previous position, or zeros, updated
+	 * @return Integer; index where a Movable at position pos should be inserted
+	 */
+	public int insertionIndex(double pos, double length, int[] bounds) {
+		int size = movables.size();
+		int low = Math.min(bounds[0], size);
+		while ((low > 0) && !(movables.get(low - 1).x < pos))
+			low--;
+		while ((low < size) && (movables.get(low).x < pos))
+			low++;
+		int high = Math.min(bounds[1], size);
+		while ((high > 0) && (movables.get(high - 1).x > pos))
+			high--;
+		while ((high < size) && !(movables.get(high).x > pos))
+			high++;
+		bounds[0] = low;
+		bounds[1] = high;
+		if (movables.isEmpty())
+			return 0;
+		int estimate = (int) (pos / length * size);
+		if (estimate < 0)
+			return 0;
+		return Math.max(Math.min(estimate, high), low);
+	}
+
+	/**
+	 * Find the index of a Movable.
+	 * @param m Movable; the Movable to find
+	 * @return Integer; index of the Movable, or -1 if it is not present
+	 */
+	public int indexOf(Movable m) {
+		for (int index = lowerIndex(m.x); index < movables.size() && !(movables.get(index).x > m.x); index++)
+			if (movables.get(index) == m)
+				return index;
+		// the Movable was inserted at a position other than its x
+		return movables.indexOf(m);
+	}
+
+	/**
+	 * Insert a Movable.
+	 * @param m Movable; the Movable to insert
+	 * @param index Integer; the index, normally from {@link #insertionIndex(double, double)}
+	 */
+	public void insert(Movable m, int index) {
+		movables.add(index, m);
+		checkOrdering(index - 1, index + 2);
+	}
+
+	/**
+	 * Remove a Movable.
+	 * @param m Movable; the Movable to remove
+	 * @return Boolean; true if the Movable was present
+	 */
+	public boolean remove(Movable m) {
+		int index = indexOf(m);
+		if (index < 0)
+			return false;
+		movables.remove(index);
+		checkOrdering(index - 1, index + 1);
+		return true;
+	}
+
+	/**
+	 * Check the order of the Movables around an insertion or removal. Positions elsewhere
+	 * are not affected by these operations.
+	 */
+	private void checkOrdering(int from, int to) {
+		for (int index = Math.max(from, 0) + 1; index < Math.min(to, movables.size()); index++)
+			if (movables.get(index - 1).x > movables.get(index).x)
+				throw new Error("cannot happen");
+	}
+
+	/**
+	 * Return a copy of the Movables in order of increasing x.
+	 * @return ArrayList&lt;Movable&gt;; the copy of the list of Movables
+	 */
+	public java.util.ArrayList<Movable> toList() {
+		return new java.util.ArrayList<Movable>(movables);
+	}
+}
@@ -0,0 +1,87 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Test the LaneOccupancy of a Lane against the linear search it replaces */
+public class LaneOccupancyTest {
+
+	/** The linear search of the original Lane.findVehicleIndex */
+	private static int linearIndex(ArrayList<Movable> vehicles, double pos, double l) {
+		if (vehicles.size() == 0)
+			return 0;
+		int result = (int) (pos / l * vehicles.size());
+		while ((result > 0) && (vehicles.get(result - 1).x > pos))
+			result--;
+		if (result < 0)
+			return 0;
+		while ((result < vehicles.size()) && (vehicles.get(result).x < pos))
+			result++;
+		return result;
+	}
+
+	/**
+	 * Random pastes and cuts, with many vehicles at equal positions, give the same order and
+	 * the same findVehicle results as the linear search
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testEquivalence() {
+		Random random = new Random(11);
+		Model model = new Model();
+		double length = 2000;
+		Lane lane = new Lane(model, new double[]{0, length}, new double[]{0, 0}, 1);
+		ArrayList<Movable> reference = new ArrayList<Movable>();
+		for (int operation = 0; operation<20000; operation++) {
+			if (reference.isEmpty() || random.nextInt(5) < 3) {
+				Vehicle vehicle = new Vehicle(model);
+				// coarse positions give many ties, a few are just outside the lane
+				vehicle.x = random.nextInt(4) == 0 ? random.nextInt(40)*50 : random.nextDouble()*(length + 0.002);
+				reference.add(linearIndex(reference, vehicle.x, length), vehicle);
+				lane.paste(vehicle, vehicle.x);
+			} else {
+				Movable vehicle = reference.remove(random.nextInt(reference.size()));
+				lane.cut(vehicle);
+			}
+			if (operation%50 == 0)
+				assertEquals(reference, lane.getVehicles());
+			for (int search = 0; search<5; search++) {
+				double pos = random.nextBoolean() && !reference.isEmpty() ? reference.get(random.nextInt(reference.size())).x : random.nextDouble()*length;
+				int index = linearIndex(reference, pos, length);
+				assertEquals(index, lane.findVehicleIndex(pos));
+				assertSame(index > 0 ? reference.get(index - 1) : null, lane.findVehicle(pos, Model.longDirection.UP, 1000));
+				assertSame(index < reference.size() ? reference.get(index) : null, lane.findVehicle(pos, Model.longDirection.DOWN, 1000));
+			}
+		}
+		assertEquals(reference, lane.getVehicles());
+	}
+
+	/**
+	 * Moving the bounds along increasing and sometimes decreasing positions gives the same
+	 * index as the binary search
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testMovingBounds() {
+		Random random = new Random(13);
+		Model model = new Model();
+		double length = 1000;
+		LaneOccupancy occupancy = new LaneOccupancy();
+		int[] bounds = new int[2];
+		assertEquals(0, occupancy.insertionIndex(10, length, bounds));
+		for (int i = 0; i<300; i++) {
+			Vehicle vehicle = new Vehicle(model);
+			vehicle.x = random.nextInt(3) == 0 ? random.nextInt(20)*50 : random.nextDouble()*length;
+			occupancy.insert(vehicle, occupancy.insertionIndex(vehicle.x, length));
+		}
+		double pos = -5;
+		while (pos < length + 5) {
+			assertEquals(occupancy.insertionIndex(pos, length), occupancy.insertionIndex(pos, length, bounds));
+			pos = random.nextInt(4) == 0 ? Math.round(pos / 50) * 50 : pos + random.nextDouble()*10 - 2;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Test the position lookups of a Lane */
+public class LaneTest {
+
+	/** Section of a position as found by walking the sections from the start of the lane */
+	private static int linearSection(double[] x, double[] y, double pos) {
+		double cumLength = 0;
+		for (int i = 1; i<x.length; i++) {
+			double dx = x[i] - x[i-1];
+			double dy = y[i] - y[i-1];
+			cumLength = cumLength + Math.sqrt(dx*dx + dy*dy);
+			if (cumLength>pos)
+				return i;
+		}
+		return x.length-1;
+	}
+
+	/** Global position as computed by walking the sections from the start of the lane */
+	private static java.awt.geom.Point2D.Double linearXY(double[] x, double[] y, double pos) {
+		double[] cumLength = new double[x.length];
+		int section = linearSection(x, y, pos);
+		for (int i = 1; i<=section; i++) {
+			double dx = x[i] - x[i-1];
+			double dy = y[i] - y[i-1];
+			cumLength[i] = cumLength[i-1] + Math.sqrt(dx*dx + dy*dy);
+		}
+		double res = pos - cumLength[section-1];
+		double sec = cumLength[section] - cumLength[section-1];
+		return new java.awt.geom.Point2D.Double(x[section-1] + (x[section] - x[section-1])*(res / sec),
+				y[section-1] + (y[section] - y[section-1]) * (res / sec));
+	}
+
+	/**
+	 * The binary searched section and the positions on curved lanes equal those of the
+	 * linear walk, at random positions, at and next to the segment boundaries, before the
+	 * lane and at and beyond the lane end, with any hint
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testSection() {
+		Random r = new Random(3);
+		Model model = new Model();
+		for (int n = 2; n<=12; n++) {
+			double[] x = new double[n];
+			double[] y = new double[n];
+			for (int i = 1; i<n; i++) {
+				x[i] = x[i-1] + 1 + 50*r.nextDouble();
+				y[i] = y[i-1] + 20*r.nextGaussian();
+			}
+			Lane lane = new Lane(model, x, y, n);
+			ArrayList<Double> positions = new ArrayList<Double>();
+			double cumLength = 0;
+			positions.add(0.0);
+			for (int i = 1; i<n; i++) {
+				double dx = x[i] - x[i-1];
+				double dy = y[i] - y[i-1];
+				cumLength = cumLength + Math.sqrt(dx*dx + dy*dy);
+				positions.add(cumLength);
+				positions.add(Math.nextUp(cumLength));
+				positions.add(Math.nextDown(cumLength));
+			}
+			assertEquals(cumLength, lane.l, 0);
+			positions.add(-5.0);
+			positions.add(lane.l + 10);
+			for (int k = 0; k<20; k++)
+				positions.add(lane.l*r.nextDouble());
+			java.awt.geom.Point2D.Double point = new java.awt.geom.Point2D.Double();
+			for (double pos: positions) {
+				int expected = linearSection(x, y, pos);
+				assertEquals("position " + pos, expected, lane.section(pos));
+				for (int hint = 0; hint<=n; hint++)
+					assertEquals("position " + pos + " hint " + hint, expected, lane.section(pos, hint));
+				java.awt.geom.Point2D.Double xy = linearXY(x, y, pos);
+				assertEquals(xy, lane.XY(pos));
+				assertEquals(xy, lane.XY(pos, lane.section(pos, 1), point));
+				double dx = x[expected] - x[expected-1];
+				double dy = y[expected] - y[expected-1];
+				double f = 1/Math.sqrt(dx*dx + dy*dy);
+				assertEquals(new java.awt.geom.Point2D.Double(dx*f, dy*f), lane.heading(pos));
+			}
+		}
+	}
+
+	/**
+	 * On a ring of lanes the search up- and downstream finds the movables on the other
+	 * lanes, but never returns to the lane it started on, also beyond the ring length; a
+	 * loop that does not contain the start lane ends the search
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testFindVehicleRing() {
+		Model model = new Model();
+		Lane[] ring = new Lane[4];
+		for (int i = 0; i<ring.length; i++)
+			ring[i] = new Lane(model, new double[]{0, 100}, new double[]{0, 0}, i);
+		for (int i = 0; i<ring.length; i++)
+			ring[(i+1)%ring.length].connectLong(ring[i]);
+		Vehicle own = new Vehicle(model);
+		own.x = 50;
+		ring[0].paste(own, own.x);
+		assertNull(ring[0].findVehicle(60, Model.longDirection.DOWN, 10000));
+		assertNull(ring[0].findVehicle(40, Model.longDirection.UP, 10000));
+		assertSame(own, ring[1].findVehicle(0, Model.longDirection.UP, 10000));
+		assertSame(own, ring[1].findVehicle(0, Model.longDirection.DOWN, 10000));
+		assertSame(own, ring[3].findVehicle(0, Model.longDirection.DOWN, 10000));
+		assertNull(ring[3].findVehicle(0, Model.longDirection.DOWN, 50));
+
+		Vehicle other = new Vehicle(model);
+		other.x = 20;
+		ring[2].paste(other, other.x);
+		assertSame(other, ring[0].findVehicle(60, Model.longDirection.DOWN, 10000));
+		assertSame(other, ring[0].findVehicle(40, Model.longDirection.UP, 10000));
+		assertSame(own, ring[2].findVehicle(10, Model.longDirection.UP, 10000));
+		assertSame(own, ring[2].findVehicle(30, Model.longDirection.DOWN, 10000));
+
+		// a lane leading into the empty part of a loop
+		ring[0].cut(own);
+		ring[2].cut(other);
+		Lane entry = new Lane(model, new double[]{0, 100}, new double[]{0, 0}, ring.length);
+		entry.down = ring[1];
+		assertNull(entry.findVehicle(0, Model.longDirection.DOWN, 10000));
+	}
+}
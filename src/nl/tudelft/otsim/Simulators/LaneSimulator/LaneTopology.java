@@ -0,0 +1,270 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+/**
+ * Longitudinal offsets between the lanes of a network, compiled once by
+ * {@link Model#init()}. For every lane the offsets to all downstream lanes
+ * within a radius are stored in a small hash table, and the chain of lanes
+ * along <tt>down</tt> is stored with the offsets at the start of each lane.
+ * Offsets beyond the radius are searched on demand and remembered. The
+ * compiled tables are not changed after construction and no flags are set on
+ * the lanes, so the topology can be queried from concurrent threads.
+ */
+public class LaneTopology {
+
+	/** Default radius [m] within which offsets are compiled. */
+	public static final double DEFAULT_RADIUS = 2000;
+
+	/** Radius [m] within which offsets are compiled. */
+	private final double radius;
+
+	/** Compiled tables, in the order of the network. */
+	private final Entry[] entries;
+
+	/** Lane of the network to index in <tt>entries</tt>. */
+	private final java.util.IdentityHashMap<Lane, Integer> indices = new java.util.IdentityHashMap<Lane, Integer>();
+
+	/** Offsets between lanes of the network that are further apart than the radius. */
+	private final java.util.concurrent.ConcurrentHashMap<Long, Double> farOffsets = new java.util.concurrent.ConcurrentHashMap<Long, Double>();
+
+	/**
+	 * Compiles the offsets between the lanes of a network.
+	 * @param network Lanes of the network.
+	 * @param radius Radius [m] within which offsets are compiled.
+	 */
+	public LaneTopology(Lane[] network, double radius) {
+		this.radius = radius;
+		entries = new Entry[network.length];
+		for (int i = 0; i < network.length; i++)
+			indices.put(network[i], i);
+		for (int i = 0; i < network.length; i++)
+			entries[i] = new Entry(network[i]);
+	}
+
+	/**
+	 * Returns the index of a lane.
+	 * @param lane Lane of the network.
+	 * @return Index of the lane in the network, -1 if the lane is not in the network.
+	 */
+	public int index(Lane lane) {
+		Integer index = indices.get(lane);
+		return null == index ? -1 : index;
+	}
+
+	/**
+	 * Returns the number of lanes in the network.
+	 * @return Number of lanes in the network.
+	 */
+	public int laneCount() {
+		return entries.length;
+	}
+
+	/**
+	 * Returns the offset of the start of a lane from the start of a lane
+	 * upstream of it, as defined by {@link Lane#xAdj(Lane)}.
+	 * @param lane Lane from which the offset is measured.
+	 * @param otherLane Lane to which the offset is measured.
+	 * @return Distance [m] between the starts of the lanes, 0 if <tt>otherLane</tt> is not downstream.
+	 */
+	public double xAdj(Lane lane, Lane otherLane) {
+		if ((lane == otherLane) || (null == otherLane))
+			return 0;
+		Integer index = indices.get(lane);
+		Integer otherIndex = indices.get(otherLane);
+		if ((null == index) || (null == otherIndex))
+			return search(lane, otherLane);
+		Entry entry = entries[index];
+		int slot = entry.find(otherIndex + 1);
+		if (entry.keys[slot] != 0)
+			return entry.offsets[slot];
+		if (entry.complete)
+			return 0;
+		Long key = ((long) index << 32) | otherIndex;
+		Double result = farOffsets.get(key);
+		if (null == result) {
+			result = search(lane, otherLane);
+			farOffsets.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the lanes along <tt>down</tt> from a lane, starting with the lane
+	 * itself, up to the radius, the end of the chain or a loop.
+	 * @param lane Lane at the start of the chain.
+	 * @return Lanes of the chain, <tt>null</tt> if the lane is not in the network.
+	 */
+	public Lane[] downChain(Lane lane) {
+		Integer index = indices.get(lane);
+		return null == index ? null : entries[index].chain;
+	}
+
+	/**
+	 * Returns the offsets of the lanes of {@link #downChain(Lane)}.
+	 * @param lane Lane at the start of the chain.
+	 * @return Offsets [m] of the starts of the lanes of the chain, <tt>null</tt> if the lane is not in the network.
+	 */
+	public double[] downChainOffsets(Lane lane) {
+		Integer index = indices.get(lane);
+		return null == index ? null : entries[index].chainOffsets;
+	}
+
+	/**
+	 * Returns whether the chain of a lane ends at a lane without <tt>down</tt>
+	 * or at a loop, rather than at the radius.
+	 * @param lane Lane at the start of the chain.
+	 * @return Whether the chain is complete.
+	 */
+	public boolean isDownChainComplete(Lane lane) {
+		Integer index = indices.get(lane);
+		return (null != index) && entries[index].chainComplete;
+	}
+
+	/**
+	 * Searches the offset of a lane from a lane upstream of it, without any
+	 * table or state on the lanes. The search moves along <tt>down</tt>, or
+	 * along all <tt>downs</tt> at a split, and finds the shortest connection.
+	 * @param lane Lane from which the offset is measured.
+	 * @param otherLane Lane to which the offset is measured.
+	 * @return Distance [m] between the starts of the lanes, 0 if <tt>otherLane</tt> is not downstream.
+	 */
+	public static double search(Lane lane, Lane otherLane) {
+		if ((lane == otherLane) || (null == otherLane))
+			return 0;
+		java.util.IdentityHashMap<Lane, Lane> previous = new java.util.IdentityHashMap<Lane, Lane>();
+		reach(lane, otherLane, Double.POSITIVE_INFINITY, previous);
+		return previous.containsKey(otherLane) ? offset(lane, otherLane, previous) : 0;
+	}
+
+	/**
+	 * Finds the shortest connections from a lane, until the target is found or
+	 * the radius is exceeded.
+	 * @param lane Lane to start from.
+	 * @param target Lane at which to stop, may be <tt>null</tt>.
+	 * @param radius Radius [m] of the search.
+	 * @param previous Receives, for every lane reached, the lane before it.
+	 * @return Whether lanes beyond the radius were not searched.
+	 */
+	private static boolean reach(Lane lane, Lane target, double radius, java.util.IdentityHashMap<Lane, Lane> previous) {
+		java.util.PriorityQueue<Label> queue = new java.util.PriorityQueue<Label>();
+		java.util.IdentityHashMap<Lane, Lane> settled = new java.util.IdentityHashMap<Lane, Lane>();
+		queue.add(new Label(lane, null, 0));
+		while (!queue.isEmpty()) {
+			Label label = queue.poll();
+			if (settled.containsKey(label.lane))
+				continue;
+			if (label.distance > radius)
+				return true;
+			settled.put(label.lane, label.lane);
+			if (label.lane != lane)
+				previous.put(label.lane, label.previous);
+			if (label.lane == target)
+				return false;
+			double distance = label.distance + label.lane.l;
+			if (null != label.lane.down) {
+				if (!settled.containsKey(label.lane.down))
+					queue.add(new Label(label.lane.down, label.lane, distance));
+			} else
+				for (Lane j : label.lane.downs)
+					if (!settled.containsKey(j))
+						queue.add(new Label(j, label.lane, distance));
+		}
+		return false;
+	}
+
+	/**
+	 * Sums the lengths of the lanes of a connection, from the last lane back
+	 * to the first as the recursive search of earlier versions did.
+	 */
+	private static double offset(Lane lane, Lane otherLane, java.util.IdentityHashMap<Lane, Lane> previous) {
+		double dx = 0;
+		for (Lane j = previous.get(otherLane); j != lane; j = previous.get(j))
+			dx = dx + j.l;
+		return dx + lane.l;
+	}
+
+	/** A lane reached by the search, with the distance to its start. */
+	private static class Label implements Comparable<Label> {
+		final Lane lane;
+		final Lane previous;
+		final double distance;
+
+		Label(Lane lane, Lane previous, double distance) {
+			this.lane = lane;
+			this.previous = previous;
+			this.distance = distance;
+		}
+
+		@Override
+		public int compareTo(Label other) {
+			return Double.compare(distance, other.distance);
+		}
+	}
+
+	/** Compiled offsets and chain of one lane. */
+	private class Entry {
+		/** Network index + 1 of the lanes within the radius, 0 for an empty slot. */
+		final int[] keys;
+		/** Offsets [m] of the lanes in <tt>keys</tt>. */
+		final double[] offsets;
+		/** Whether all downstream lanes are within the radius. */
+		final boolean complete;
+		/** Lanes along <tt>down</tt>. */
+		final Lane[] chain;
+		/** Offsets [m] of the lanes in <tt>chain</tt>. */
+		final double[] chainOffsets;
+		/** Whether the chain ends at a lane without <tt>down</tt> or at a loop. */
+		final boolean chainComplete;
+
+		Entry(Lane lane) {
+			java.util.IdentityHashMap<Lane, Lane> previous = new java.util.IdentityHashMap<Lane, Lane>();
+			boolean truncated = reach(lane, null, radius, previous);
+			int size = 4;
+			while (size < 2 * previous.size())
+				size *= 2;
+			keys = new int[size];
+			offsets = new double[size];
+			// lanes outside the network are found by search when needed
+			for (Lane j : previous.keySet()) {
+				Integer index = indices.get(j);
+				if (null == index)
+					truncated = true;
+				else {
+					int slot = find(index + 1);
+					keys[slot] = index + 1;
+					offsets[slot] = offset(lane, j, previous);
+				}
+			}
+			complete = !truncated;
+			java.util.ArrayList<Lane> lanes = new java.util.ArrayList<Lane>();
+			java.util.ArrayList<Double> starts = new java.util.ArrayList<Double>();
+			java.util.IdentityHashMap<Lane, Lane> visited = new java.util.IdentityHashMap<Lane, Lane>();
+			Lane atLane = lane;
+			double start = 0;
+			while ((null != atLane) && !visited.containsKey(atLane) && (start <= radius)) {
+				visited.put(atLane, atLane);
+				lanes.add(atLane);
+				starts.add(start);
+				start = start + atLane.l;
+				atLane = atLane.down;
+			}
+			chainComplete = (null == atLane) || visited.containsKey(atLane);
+			chain = lanes.toArray(new Lane[lanes.size()]);
+			chainOffsets = new double[chain.length];
+			for (int i = 1; i < chain.length; i++)
+				chainOffsets[i] = previous.containsKey(chain[i]) ? offset(lane, chain[i], previous) : starts.get(i);
+		}
+
+		/**
+		 * Returns the slot of a key, or the empty slot where it would be stored.
+		 * @param key Network index + 1 of a lane.
+		 * @return Slot in <tt>keys</tt>.
+		 */
+		int find(int key) {
+			int mask = keys.length - 1;
+			int slot = (key * 0x9E3779B9 >>> 16) & mask;
+			while ((keys[slot] != 0) && (keys[slot] != key))
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/** Test the LaneTopology on a small network with a split and a loop */
+public class LaneTopologyTest {
+
+	/** An RSU that does nothing */
+	private static class Marker extends RSU {
+		Marker(Lane lane, double x, boolean noticeable) {
+			super(lane, x, false, noticeable);
+		}
+
+		@Override
+		public void init() {
+			// nothing to initialize
+		}
+
+		@Override
+		public void pass(Vehicle vehicle) {
+			// nothing to do
+		}
+
+		@Override
+		public void control() {
+			// nothing to control
+		}
+
+		@Override
+		public void noControl() {
+			// nothing to control
+		}
+	}
+
+	/**
+	 * Lanes a, b, c, d and e where b splits into c and d, which both lead to e, and e leads back to a
+	 */
+	private static Lane[] createNetwork(Model model) {
+		double[] lengths = new double[]{100, 200, 50, 30, 400};
+		Lane[] lanes = new Lane[lengths.length];
+		for (int i = 0; i<lanes.length; i++)
+			lanes[i] = new Lane(model, new double[]{0, lengths[i]}, new double[]{0, 0}, i);
+		lanes[1].connectLong(lanes[0]);
+		lanes[1].downs.add(lanes[2]);
+		lanes[1].downs.add(lanes[3]);
+		lanes[4].connectLong(lanes[2]);
+		lanes[3].down = lanes[4];
+		lanes[0].connectLong(lanes[4]);
+		model.network = lanes;
+		return lanes;
+	}
+
+	/**
+	 * Offsets follow the shortest connection downstream, past the split and around the loop,
+	 * and are the same within and beyond the compiled radius
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testXAdj() {
+		double[][] expected = new double[][]{
+				{0, 100, 300, 300, 330},
+				{630, 0, 200, 200, 230},
+				{450, 550, 0, 750, 50},
+				{430, 530, 730, 0, 30},
+				{400, 500, 700, 700, 0}};
+		for (double radius : new double[]{LaneTopology.DEFAULT_RADIUS, 120}) {
+			Model model = new Model();
+			Lane[] lanes = createNetwork(model);
+			// searched before the topology is compiled
+			assertEquals(330, lanes[0].xAdj(lanes[4]), 1e-9);
+			model.topology = new LaneTopology(lanes, radius);
+			for (int i = 0; i<lanes.length; i++)
+				for (int j = 0; j<lanes.length; j++) {
+					assertEquals(expected[i][j], lanes[i].xAdj(lanes[j]), 1e-9);
+					assertEquals(expected[i][j], LaneTopology.search(lanes[i], lanes[j]), 1e-9);
+				}
+		}
+	}
+
+	/**
+	 * RSUs are found along the downstream chain, with RSUs at the same location, and not
+	 * beyond the range or past the split
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testFindRSU() {
+		for (double radius : new double[]{LaneTopology.DEFAULT_RADIUS, 120}) {
+			Model model = new Model();
+			Lane[] lanes = createNetwork(model);
+			RSU first = new Marker(lanes[4], 10, false);
+			RSU second = new Marker(lanes[4], 10, false);
+			RSU third = new Marker(lanes[4], 15, true);
+			RSU fourth = new Marker(lanes[0], 50, true);
+			new Marker(lanes[2], 20, true);
+			model.topology = new LaneTopology(lanes, radius);
+			java.util.ArrayList<RSU> found = lanes[3].findRSU(0, 100);
+			assertEquals(2, found.size());
+			assertTrue(found.contains(first));
+			assertTrue(found.contains(second));
+			assertTrue(lanes[3].findRSU(0, 39).isEmpty());
+			found = lanes[3].findNoticeableRSU(0, 100);
+			assertEquals(1, found.size());
+			assertSame(third, found.get(0));
+			found = lanes[4].findNoticeableRSU(15, 500);
+			assertEquals(1, found.size());
+			assertSame(fourth, found.get(0));
+			assertTrue(lanes[0].findRSU(60, 1000).isEmpty());
+		}
+	}
+}
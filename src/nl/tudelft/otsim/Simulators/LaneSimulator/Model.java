@@ -55,6 +55,15 @@ public class Model implements SimulatedModel {
     /** Set of lanes that make up the network. */
     public Lane[] network = new Lane[0];
     
+    /** Offsets between the lanes of the network, compiled at initialization. */
+    protected LaneTopology topology;
+    
+    /** Number of threads for driver decisions, 1 for sequential decisions. */
+    private int decisionThreads = 1;
+    
+    /** Pool for parallel driver decisions. */
+    private java.util.concurrent.ForkJoinPool decisionPool;
+    
     /** Set of all vehicle-driver classes. */
     protected java.util.ArrayList<VehicleDriver> classes = new java.util.ArrayList<VehicleDriver>();
     
@@ -70,6 +79,13 @@ public class Model implements SimulatedModel {
      */
     public boolean debug = false;
     
+    /**
+     * Enables validation of the lateral neighbors that are linked by the lanes
+     * in each time step. Every link that is used is compared with a search and
+     * an Error is thrown if they differ.
+     */
+    public boolean validateNeighbors = false;
+    
     /** 
      * Enabled during vehicle generation. This is used to disable acceleration 
      * bookkeeping during generation attempts. 
@@ -79,6 +95,9 @@ public class Model implements SimulatedModel {
     /** Expandable set of general modeling settings. */
     public Settings settings = new Settings();
     
+    /** Deleted vehicles and lane change vehicles for reuse. */
+    protected MovablePool pool = new MovablePool(this);
+    
     /** Temporary trajectory storage before a set is saved to disk. */
     protected java.util.ArrayList<TrajectoryData> trajectories = 
             new java.util.ArrayList<TrajectoryData>();
@@ -86,28 +105,58 @@ public class Model implements SimulatedModel {
     /** Counter of all saved trajectories. This is part of the filename. */
     protected int trajectoriesSaved = 0;
     
+    /** Columnar trajectory storage, created when the first trajectory is saved. */
+    protected TrajectoryStore trajectoryStore;
+    
+    /** Compiled FCD sampling, <tt>null</tt> for FCD objects by reflection. */
+    protected FCDPipeline fcdPipeline;
+    
+    /** Scheduler of road-side units and controllers, <tt>null</tt> to run all every time step. */
+    protected UnitScheduler unitScheduler;
+    
     /**
      * Constructor that sets some default settings.<br>
      * <br><pre>
      * boolean "storeTrajectoryData" = false
      * double  "trajectoryPeriod"    = 1 [s]
      * int     "trajectoryBuffer"    = 50
+     * boolean "trajectoryColumns"   = false
+     * int     "trajectorySegment"   = 65536
      * boolean "storeDetectorData"   = false
+     * boolean "detectorAccumulators" = false
+     * String  "detectorWindows"     = "60" [s]
+     * int     "detectorCapacity"    = 1440
+     * boolean "detectorSpill"       = false
      * double  "detectorDelay"       = 120 [s]
      * double  "detectorPeriod"      = 60 [s]
-     * String  "outputDir"           = "output"</pre>
+     * String  "outputDir"           = "output"
+     * boolean "poolMovables"        = false
+     * boolean "scheduleUnits"       = false
+     * boolean "linkNeighbors"       = true</pre>
      */
     public Model() {
         // trajectory data for analysis
         settings.putBoolean("storeTrajectoryData", false);
         settings.putDouble("trajectoryPeriod", 1); // sampling period
         settings.putInteger("trajectoryBuffer", 50); // trajectories saved on disc
+        settings.putBoolean("trajectoryColumns", false); // TrajectoryStore instead of files
+        settings.putInteger("trajectorySegment", 65536); // samples per segment file
         // detector data for analysis
         settings.putBoolean("storeDetectorData", false);
+        settings.putBoolean("detectorAccumulators", false); // DetectorAccumulator instead of histories
+        settings.putString("detectorWindows", "60"); // aggregation windows of accumulators
+        settings.putInteger("detectorCapacity", 1440); // records per window in memory
+        settings.putBoolean("detectorSpill", false); // spill full buffers to disk
         settings.putDouble("detectorDelay", 120); // send delay
         settings.putDouble("detectorPeriod", 60); // aggregation period
         // directory
         settings.putString("outputDir", "output");
+        // reuse of deleted vehicles
+        settings.putBoolean("poolMovables", false);
+        // run road-side units and controllers only when needed
+        settings.putBoolean("scheduleUnits", false);
+        // link lateral neighbors by the lanes instead of searching them
+        settings.putBoolean("linkNeighbors", true);
     }
     
     /**
@@ -132,6 +181,9 @@ public class Model implements SimulatedModel {
         vehicles = new java.util.ArrayList<Vehicle>();
         lcVehicles = new java.util.ArrayList<LCVehicle>();
 
+        // Compile the lane topology
+        topology = new LaneTopology(network, LaneTopology.DEFAULT_RADIUS);
+        
         // Initialize lanes
         for (Lane l : network)
         	l.init();
@@ -139,6 +191,9 @@ public class Model implements SimulatedModel {
         // Initialize controllers
         for (Controller c : controllers)
         	c.init();
+        
+        // Schedule road-side units and controllers
+        unitScheduler = settings.getBoolean("scheduleUnits") ? new UnitScheduler(this) : null;
     }
 
     /* (non-Javadoc)
@@ -160,14 +215,15 @@ public class Model implements SimulatedModel {
             		l.generator.run();
             generating = false;
 
+            // Link lateral neighbors, so drivers do not need to search them
+            if (settings.getBoolean("linkNeighbors"))
+            	for (Lane l : network)
+            		l.linkLateralNeighbors();
+
             // Drive
             // copy pointer array as vehicles may be deleted
             java.util.ArrayList<Vehicle> tmp = new java.util.ArrayList<Vehicle>(vehicles);
-            for (Vehicle v : tmp) {
-            	v.driver.drive();	// sets a and dy
-            	if ((v.dy != 0) && (v.lcProgress == 0))
-            		v.startLaneChange();
-            }
+            decide(tmp);
             // Move
             // copy pointer array as vehicles may be deleted
             tmp = new java.util.ArrayList<Vehicle>(vehicles);
@@ -255,15 +311,107 @@ public class Model implements SimulatedModel {
     
     
     
+    /**
+     * Lets the drivers decide on acceleration and lane change, and starts the 
+     * lane changes. All movables first publish the state that other drivers 
+     * read, so each decision only depends on the state at the start of the 
+     * decisions. The drivers on each lane decide in one task, in parallel if 
+     * more than one thread is set. The decisions are then committed and the 
+     * lane changes are started in the order of the lanes, so sequential and 
+     * parallel decisions give equal results.
+     * @param tmp Vehicles in simulation.
+     */
+    private void decide(java.util.ArrayList<Vehicle> tmp) {
+    	for (LCVehicle lcv : lcVehicles)
+    		lcv.publish();
+    	for (Vehicle v : tmp)
+    		v.publish();
+    	// group per lane, vehicles on lanes that were added after initialization last
+    	int laneCount = null == topology ? 0 : topology.laneCount();
+    	java.util.ArrayList<java.util.ArrayList<Vehicle>> groups = new java.util.ArrayList<java.util.ArrayList<Vehicle>>(laneCount + 1);
+    	for (int i = 0; i <= laneCount; i++)
+    		groups.add(null);
+    	for (Vehicle v : tmp) {
+    		int i = null == topology ? -1 : topology.index(v.getLane());
+    		if (i < 0)
+    			i = laneCount;
+    		if (null == groups.get(i))
+    			groups.set(i, new java.util.ArrayList<Vehicle>());
+    		groups.get(i).add(v);
+    	}
+    	if (decisionThreads > 1)
+    		driveParallel(groups);
+    	else
+    		for (java.util.ArrayList<Vehicle> group : groups)
+    			if (null != group)
+    				for (Vehicle v : group)
+    					v.driver.drive();	// sets a and dy
+    	for (java.util.ArrayList<Vehicle> group : groups)
+    		if (null != group)
+    			for (Vehicle v : group) {
+    				v.driver.commitDecision();
+    				if ((v.dy != 0) && (v.lcProgress == 0))
+    					v.startLaneChange();
+    			}
+    }
+    
+    /**
+     * Lets the drivers of each group decide in a task of the decision pool.
+     * @param groups Vehicles per lane, <tt>null</tt> for lanes without vehicles.
+     */
+    private void driveParallel(java.util.ArrayList<java.util.ArrayList<Vehicle>> groups) {
+    	java.util.ArrayList<java.util.concurrent.Callable<Object>> tasks = new java.util.ArrayList<java.util.concurrent.Callable<Object>>();
+    	for (final java.util.ArrayList<Vehicle> group : groups)
+    		if (null != group)
+    			tasks.add(new java.util.concurrent.Callable<Object>() {
+    				@Override
+    				public Object call() {
+    					for (Vehicle v : group)
+    						v.driver.drive();	// sets a and dy
+    					return null;
+    				}
+    			});
+    	if (null == decisionPool)
+    		decisionPool = new java.util.concurrent.ForkJoinPool(decisionThreads);
+    	try {
+    		for (java.util.concurrent.Future<Object> future : decisionPool.invokeAll(tasks))
+    			future.get();
+    	} catch (InterruptedException e) {
+    		throw new Error("Interrupted during driver decisions", e);
+    	} catch (java.util.concurrent.ExecutionException e) {
+    		if (e.getCause() instanceof RuntimeException)
+    			throw (RuntimeException) e.getCause();
+    		if (e.getCause() instanceof Error)
+    			throw (Error) e.getCause();
+    		throw new Error(e.getCause());
+    	}
+    }
+    
+    /**
+     * Sets the number of threads for driver decisions. With more than one
+     * thread, the drivers on different lanes decide in parallel, with results
+     * equal to sequential decisions.
+     * @param threads Number of threads, 1 for sequential decisions.
+     */
+    public void setDecisionThreads(int threads) {
+    	if (threads < 1)
+    		throw new Error("Number of threads must be at least 1 (got " + threads + ")");
+    	if ((threads != decisionThreads) && (null != decisionPool)) {
+    		decisionPool.shutdown();
+    		decisionPool = null;
+    	}
+    	decisionThreads = threads;
+    }
+    
     // GUUS has added some tests for computer time taken by "Control"
     // see also Conflict - control()
-    long rsuTime1 = 0;	// visible within package
-    long rsuTime2 = 0;	// visible within package
-    long rsuTime3 = 0;	// visible within package
-    long rsuTime4 = 0;	// visible within package
+    final java.util.concurrent.atomic.AtomicLong rsuTime1 = new java.util.concurrent.atomic.AtomicLong();	// visible within package
+    final java.util.concurrent.atomic.AtomicLong rsuTime2 = new java.util.concurrent.atomic.AtomicLong();	// visible within package
+    final java.util.concurrent.atomic.AtomicLong rsuTime3 = new java.util.concurrent.atomic.AtomicLong();	// visible within package
+    final java.util.concurrent.atomic.AtomicLong rsuTime4 = new java.util.concurrent.atomic.AtomicLong();	// visible within package
     private long beginTime = System.currentTimeMillis();
     private long time = System.currentTimeMillis() - beginTime;
-    long numberOfRSUCalls = 0;
+    final java.util.concurrent.atomic.AtomicLong numberOfRSUCalls = new java.util.concurrent.atomic.AtomicLong();
     private long numberOfRSU = 0;
     /** Set to true to output lots of info regarding RSU performance */
     public boolean debugRSURuntime = false;
@@ -276,6 +424,10 @@ public class Model implements SimulatedModel {
      * main model loop.
      */
     protected void runUnits() {	// Run road-side units
+    	if (null != unitScheduler) {
+    		unitScheduler.run();
+    		return;
+    	}
     	int i = 0;
 		int j = 0;
 		final int clusterSize = 100;
@@ -304,7 +456,20 @@ public class Model implements SimulatedModel {
     		}
     	}
         // Run on-board units
-    	i = 0;
+    	runOBUs();
+        // Run controllers
+    	for (Controller c : controllers)  {
+    		//System.out.println("test Controller" + i);
+    		//i++;
+    		c.run();
+    	}
+    }
+    
+    /**
+     * Runs the on-board units of all equipped vehicles.
+     */
+    void runOBUs() {
+    	int i = 0;
     	for (Vehicle v : vehicles)  {
     		if (v.isEquipped())  {
         		System.out.println("test OBU" + i);
@@ -312,13 +477,16 @@ public class Model implements SimulatedModel {
     			v.OBU.run();
     		}
     	}
-        // Run controllers
-    	i = 0;
-    	for (Controller c : controllers)  {
-    		//System.out.println("test Controller" + i);
-    		//i++;
-    		c.run();
-    	}
+    }
+    
+    /**
+     * Notifies the scheduler of units, if any, that a vehicle passed an RSU. 
+     * This wakes RSUs that only run after vehicles passed.
+     * @param rsu RSU that was passed.
+     */
+    void passed(RSU rsu) {
+    	if (null != unitScheduler)
+    		unitScheduler.passed(rsu);
     }
 
     /** 
@@ -349,7 +517,7 @@ public class Model implements SimulatedModel {
         if (vehicle instanceof Vehicle) {
             vehicles.add((Vehicle) vehicle);
             vehicle.setXY();
-            String logFileName = Main.mainFrame.getVehicleLifeLogFileName();
+            String logFileName = vehicleLifeLogFileName();
             if (null != logFileName)
             	Log.logMessage(logFileName, false, "Created at\t%.3f\t%s\t%s\t\n", t, vehicle.toString(), vehicle.marker); //export TrafficClass + Destination & Origin??? + vehicle.getDriver().activationLevel
         }
@@ -357,13 +525,21 @@ public class Model implements SimulatedModel {
             lcVehicles.add((LCVehicle) vehicle);
     }
     
+    /**
+     * Returns the name of the vehicle life log file of the GUI.
+     * @return Name of the file, <tt>null</tt> if there is no log or no GUI.
+     */
+    private static String vehicleLifeLogFileName() {
+    	return null == Main.mainFrame ? null : Main.mainFrame.getVehicleLifeLogFileName();
+    }
+    
     /**
      * Removes a vehicle from the simulation.
      * @param vehicle Vehicle to remove.
      */
     public void removeVehicle(Movable vehicle) {
         if (vehicle instanceof Vehicle) {
-            String logFileName = Main.mainFrame.getVehicleLifeLogFileName();
+            String logFileName = vehicleLifeLogFileName();
             if (null != logFileName)
             	Log.logMessage(logFileName, false, "Destroyed at\t%.3f\t%s\t%s\t\n", t, vehicle.toString(), vehicle.marker); //Destroy veh. only contains [last node]
             vehicles.remove(vehicle);
@@ -402,6 +578,22 @@ public class Model implements SimulatedModel {
         return lcVehicles;
     }
     
+    /**
+     * Returns the offsets between the lanes of the network.
+     * @return Lane topology, <tt>null</tt> before the model is initialized.
+     */
+    public LaneTopology getTopology() {
+        return topology;
+    }
+    
+    /**
+     * Returns the pool of deleted vehicles and lane change vehicles.
+     * @return Pool of deleted vehicles and lane change vehicles.
+     */
+    public MovablePool getPool() {
+        return pool;
+    }
+    
     private static void checkCut(Movable cutMovable, Movable other) {
         final int[] directions = { Movable.UP, Movable.DOWN};
         for (int direction : directions) {
@@ -518,6 +710,16 @@ public class Model implements SimulatedModel {
         		if (null != v.trajectory)
         			saveTrajectoryData(v.trajectory);
             saveTrajectoryBufferToDisk();
+            if (null != trajectoryStore) {
+                try {
+                    trajectoryStore.close();
+                } catch (java.io.IOException e) {
+                    throw new RuntimeException("Unable to close trajectory store.", e);
+                }
+                trajectoryStore = null;
+            }
+            if (null != fcdPipeline)
+                fcdPipeline.close();
         }
         if (settings.getBoolean("storeDetectorData")) {
             // Store detector data
@@ -529,15 +731,60 @@ public class Model implements SimulatedModel {
     }
 
     /**
-     * Saves trajectory in memory and saves buffer to disk if it is full.
+     * Saves trajectory in memory and saves buffer to disk if it is full. If
+     * the setting "trajectoryColumns" is <tt>true</tt>, trajectories with FCD
+     * of class {@link FCD} are appended to a {@link TrajectoryStore} in the
+     * trajectories folder instead. Trajectories with FCD of a subclass are
+     * still saved to files, as the store does not keep the added fields. If an {@link FCDPipeline} is set,
+     * the trajectory is given to its sink.
      * @param trajectory Trajectory to save.
      */
     public synchronized void saveTrajectoryData(Trajectory trajectory) {
-        trajectories.add(trajectory.asSerializable());
+        if (null != fcdPipeline) {
+            fcdPipeline.finish(trajectory);
+            return;
+        }
+        if (settings.getBoolean("trajectoryColumns") && FCD.class == trajectory.getFCDclass()) {
+            try {
+                if (null == trajectoryStore)
+                    trajectoryStore = TrajectoryStore.create(new java.io.File(settings.getString("outputDir"), "trajectories"),
+                            settings.getInteger("trajectorySegment"));
+                trajectoryStore.append(trajectory);
+            } catch (java.io.IOException e) {
+                throw new RuntimeException("Unable to write to trajectory store.", e);
+            }
+            return;
+        }
+        saveTrajectoryData(trajectory.asSerializable());
+    }
+    
+    /**
+     * Saves trajectory data in memory and saves buffer to disk if it is full.
+     * @param data Trajectory data to save.
+     */
+    public synchronized void saveTrajectoryData(TrajectoryData data) {
+        trajectories.add(data);
         if (trajectories.size() >= settings.getInteger("trajectoryBuffer"))
             saveTrajectoryBufferToDisk();
     }
     
+    /**
+     * Sets compiled FCD sampling, which replaces the FCD objects that 
+     * trajectories create by reflection.
+     * @param pipeline FCD pipeline, <tt>null</tt> for FCD objects.
+     */
+    public void setFCDPipeline(FCDPipeline pipeline) {
+        fcdPipeline = pipeline;
+    }
+    
+    /**
+     * Returns the compiled FCD sampling.
+     * @return FCD pipeline, <tt>null</tt> if FCD objects are used.
+     */
+    public FCDPipeline getFCDPipeline() {
+        return fcdPipeline;
+    }
+    
     /**
      * Saves the trajectory buffer, no matter what size, to disk. The buffer
      * will be empty afterwards.
@@ -567,9 +814,25 @@ public class Model implements SimulatedModel {
 
     /**
      * Saves detector data to disk in a file with the detector id in the name.
+     * A detector with accumulators is exported to a binary file instead, which
+     * is read with {@link DetectorAccumulator#read(java.io.File)}, after closing
+     * the windows that ended up to the current time.
      * @param detector Detector.
      */
     public void saveDetectorData(Detector detector) {
+        if (null != detector.accumulator) {
+            java.io.File directory = new java.io.File(settings.getString("outputDir"), "detectors");
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs())
+                    throw new java.io.IOException("Cannot create " + directory);
+                // close the windows that ended after the last control run
+                detector.accumulator.advance(t);
+                detector.accumulator.export(new java.io.File(directory, "detector" + detector.id() + ".bin"));
+            } catch (java.io.IOException e) {
+                throw new RuntimeException("Unable to write data of detector " + detector.id() + ".", e);
+            }
+            return;
+        }
         saveData(new DetectorData(detector), "detectors", "detector"+detector.id()+".dat");
     }
 
@@ -0,0 +1,100 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import nl.tudelft.otsim.Events.Scheduler;
+import nl.tudelft.otsim.GUI.FakeGraphicsPanel;
+
+import org.junit.Test;
+
+/** Test the parallel driver decisions and the pool of the Model */
+public class ModelTest {
+
+	/** A road of two lanes with trucks to overtake, crossed by a road that yields to both lanes */
+	private static final String NETWORK = "EndTime:\t300.00\nSeed:\t1\n"
+			+ "Lane\tlaneID:\t0\tSpeedLimit:\t120\tXY:\t0.00,-1.75\t3000.00,-1.75\n"
+			+ "Lane\tlaneID:\t1\tSpeedLimit:\t120\tXY:\t0.00,-5.25\t3000.00,-5.25\n"
+			+ "Lane\tlaneID:\t10\tSpeedLimit:\t80\tXY:\t1500.00,-1500.00\t1500.00,1500.00\n"
+			+ "LaneData\tlaneID:\t0\tright:\t1\tgoRight:\ttrue\torigin:\t1\tdestination:\t2\n"
+			+ "LaneData\tlaneID:\t1\tleft:\t0\tgoLeft:\ttrue\torigin:\t1\tdestination:\t2\n"
+			+ "LaneData\tlaneID:\t10\tcrossingYieldTo:\t0\tcrossingYieldTo:\t1\torigin:\t11\tdestination:\t12\n"
+			+ "TrafficClass\tPassengerCar\t4.000\t160.000\t-6.000\t0.000000\t0.000\n"
+			+ "TrafficClass\tTruck\t15.000\t85.000\t-6.000\t0.000000\t0.000\n"
+			+ "TripPattern\tnumberOfTrips:\t[0.000/2500.000000][0.000/1.000000]\tLocationPattern:\t[z1, z2]\tFractions\tPassengerCar:0.800000\tTruck:0.200000\n"
+			+ "TripPatternPath\tnumberOfTrips:\t[0.000/2500.000000][0.000/1.000000]\tNodePattern:\t[]\n"
+			+ "Path:\t1.000000\tnodes:\t1\t2\n"
+			+ "TripPattern\tnumberOfTrips:\t[0.000/600.000000][0.000/1.000000]\tLocationPattern:\t[z11, z12]\tFractions\tPassengerCar:1.000000\n"
+			+ "TripPatternPath\tnumberOfTrips:\t[0.000/600.000000][0.000/1.000000]\tNodePattern:\t[]\n"
+			+ "Path:\t1.000000\tnodes:\t11\t12\n";
+
+	/** State of all movables every 10 s */
+	private static ArrayList<String> run(int threads, boolean pool) {
+		return run(threads, pool, false, true);
+	}
+
+	/** State of all movables every 10 s, with validated or unlinked lateral neighbors */
+	private static ArrayList<String> run(int threads, boolean pool, boolean validate, boolean link) {
+		Scheduler scheduler = new Scheduler(LaneSimulator.simulatorType, new FakeGraphicsPanel(), NETWORK);
+		Model model = ((LaneSimulator) scheduler.getSimulator()).getModel();
+		model.setDecisionThreads(threads);
+		model.settings.putBoolean("poolMovables", pool);
+		model.debug = pool;	// checks released movables
+		model.validateNeighbors = validate;
+		model.settings.putBoolean("linkNeighbors", link);
+		ArrayList<String> result = new ArrayList<String>();
+		int laneChanges = 0;
+		for (double t = 10; t <= 300; t += 10) {
+			scheduler.stepUpTo(t);
+			for (Vehicle v : model.getVehicles())
+				result.add(String.format("%d %d %s %s %s %s", v.id(), v.getLane().id(), Double.toHexString(v.x), Double.toHexString(v.v), Double.toHexString(v.a), Double.toHexString(v.lcProgress)));
+			for (LCVehicle lcVehicle : model.getLcVehicles())
+				result.add(String.format("%d %d %s", lcVehicle.id(), lcVehicle.getLane().id(), Double.toHexString(lcVehicle.x)));
+			laneChanges += model.getLcVehicles().size();
+			result.add(Integer.toString(model.nextMovableId));
+		}
+		assertTrue("lane changes take place", laneChanges > 0);
+		assertEquals(pool, model.getPool().reused() > 0);
+		return result;
+	}
+
+	/**
+	 * Parallel decisions give the same result as sequential decisions
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testParallelDecisions() {
+		assertEquals(run(1, false), run(3, false));
+	}
+
+	/**
+	 * Reuse of deleted vehicles and lane change vehicles gives the same result
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testPooledMovables() {
+		assertEquals(run(1, false), run(1, true));
+	}
+
+	/**
+	 * The lateral neighbors linked by the lanes equal those found by a search,
+	 * also with parallel decisions and reused movables
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testValidatedNeighbors() {
+		ArrayList<String> expected = run(1, false);
+		assertEquals(expected, run(1, false, true, true));
+		assertEquals(expected, run(3, true, true, true));
+	}
+
+	/**
+	 * Searching all lateral neighbors instead of linking them gives the same result
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testUnlinkedNeighbors() {
+		assertEquals(run(1, false), run(3, false, false, false));
+	}
+}
@@ -10,8 +10,11 @@ import nl.tudelft.otsim.GUI.Main;
  */
 
 public abstract class Movable  {
-	/** Serial number */
-	public final int id;
+	/** Serial number, assigned on construction and on reuse by the {@link MovablePool}. */
+	private int id;
+	
+	/** Number of times this Movable was reused by the {@link MovablePool}. */
+	private int generation = 0;
 
     /** Main model. */
     public Model model;
@@ -55,6 +58,12 @@ public abstract class Movable  {
     /** Normalized heading of the vehicle. */
     public java.awt.geom.Point2D.Double heading = new java.awt.geom.Point2D.Double();
     
+    /** Section of the lane curvature at the last position lookup, hint for the next lookup. */
+    protected int laneSection = 1;
+    
+    /** Global x and y at the lane center, set by {@link #atLaneXY()}. */
+    private final java.awt.geom.Point2D.Double laneXY = new java.awt.geom.Point2D.Double();
+    
     /** Handle special case of vehicle stopping too early at conflict due to length of conflicting vehicle */
     public boolean ignoreLeader = false;
     
@@ -62,6 +71,18 @@ public abstract class Movable  {
     private java.util.ArrayList<Movable> reverseNeighbors = new java.util.ArrayList<Movable> ();
     private int[] neighborUpdated = new int[6];
     
+    /** Time step in which each lateral neighbor was linked by {@link Lane#linkLateralNeighbors()}. */
+    private int[] neighborLinked = new int[6];
+    
+    /** Modifications of the neighboring lane when each lateral neighbor was linked. */
+    private int[] linkedModifications = new int[6];
+    
+    /** Lane of this Movable when the lateral neighbors were linked. */
+    private Lane linkedLane;
+    
+    /** Position of this Movable when the lateral neighbors were linked. */
+    private double linkedX;
+    
     /* Allowed values for the neighbor parameter of getNeighbor */
     /* The Java enum cannot be used in subtract and exclusive or which would have been so nice */ 
 	/** Left neighboring lane; upstream */
@@ -94,11 +115,18 @@ public abstract class Movable  {
     public Movable getNeighbor (int direction) {
     	if ((UP == direction) || (DOWN == direction) || (neighborUpdated[direction] == model.k))
     		return neighbors[direction];
-    	// We'll have to find it
     	Lane neighborLane = ((LEFT_UP == direction) || (LEFT_DOWN == direction)) ? lane.left : lane.right;
+    	if (isLinked(direction, neighborLane)) {
+    		// Linked by the lane in this time step and nothing changed since
+    		if (model.validateNeighbors && (searchNeighbor(direction, neighborLane) != neighbors[direction]))
+    			throw new Error("Linked " + directionToString(direction) + " neighbor of " + toString() + " is " 
+    					+ neighbors[direction] + " instead of " + searchNeighbor(direction, neighborLane));
+    		neighborUpdated[direction] = model.k;
+    		return neighbors[direction];
+    	}
+    	// We'll have to find it
     	if (null != neighborLane) {
-    		double xNeighborLane = lane.getAdjacentX(x, ((LEFT_UP == direction) || (LEFT_DOWN == direction)) ? Model.latDirection.LEFT : Model.latDirection.RIGHT);
-    		setNeighbor(direction, neighborLane.findVehicle(xNeighborLane, alignDirection(direction) == UP ? Model.longDirection.UP : Model.longDirection.DOWN, Driver.maximumSearchDistance));
+    		setNeighbor(direction, searchNeighbor(direction, neighborLane));
     	} else {
     		setNeighbor(direction, null);
     		setNeighbor(flipDirection(direction, FLIP_UD), null);
@@ -108,6 +136,50 @@ public abstract class Movable  {
     	return neighbors[direction];
     }
     
+    /**
+     * Search a lateral neighbor of this Movable.
+     * @param direction Integer; one of the direction values LEFT_UP, LEFT_DOWN, RIGHT_UP, RIGHT_DOWN
+     * @param neighborLane Lane; the lane in that direction (may be null)
+     * @return Movable; the neighbor (which may be null)
+     */
+    private Movable searchNeighbor (int direction, Lane neighborLane) {
+    	if (null == neighborLane)
+    		return null;
+    	double xNeighborLane = lane.getAdjacentX(x, ((LEFT_UP == direction) || (LEFT_DOWN == direction)) ? Model.latDirection.LEFT : Model.latDirection.RIGHT);
+    	return neighborLane.findVehicle(xNeighborLane, alignDirection(direction) == UP ? Model.longDirection.UP : Model.longDirection.DOWN, Driver.maximumSearchDistance);
+    }
+    
+    /**
+     * Set a lateral neighbor of this Movable as found by {@link Lane#linkLateralNeighbors()}.
+     * The link is used by getNeighbor in this time step, until this Movable moves or 
+     * Movables are added to or removed from the neighboring lane. A neighbor that was 
+     * already retrieved in this time step is not changed.
+     * @param direction Integer; one of the direction values LEFT_UP, LEFT_DOWN, RIGHT_UP, RIGHT_DOWN
+     * @param newNeighbor Movable; the neighbor in the specified direction (may be null)
+     * @param neighborLane Lane; the lane in that direction (may be null)
+     */
+    void linkNeighbor (int direction, Movable newNeighbor, Lane neighborLane) {
+    	if (neighborUpdated[direction] == model.k)
+    		return;
+    	if (neighbors[direction] != newNeighbor)
+    		setNeighbor(direction, newNeighbor);
+    	neighborLinked[direction] = model.k;
+    	linkedModifications[direction] = null == neighborLane ? 0 : neighborLane.modifications();
+    	linkedLane = lane;
+    	linkedX = x;
+    }
+    
+    /**
+     * Check that a lateral neighbor linked by the lane is still valid.
+     * @param direction Integer; one of the direction values LEFT_UP, LEFT_DOWN, RIGHT_UP, RIGHT_DOWN
+     * @param neighborLane Lane; the lane in that direction (may be null)
+     * @return Boolean; true if the link can be used in place of a search
+     */
+    private boolean isLinked (int direction, Lane neighborLane) {
+    	return (neighborLinked[direction] == model.k) && (linkedLane == lane) && (linkedX == x)
+    			&& ((null == neighborLane) || (linkedModifications[direction] == neighborLane.modifications()));
+    }
+    
     /**
      * Flip a direction of a neighbor
      * @param direction Integer; direction that must be flipped
@@ -258,6 +330,15 @@ public abstract class Movable  {
     /** Right indicator on. */
     public boolean rightIndicator = false;
 
+    /** Acceleration at the start of the driver decisions of this time step [m/s^2]. */
+    private double publishedA;
+
+    /** Left indicator at the start of the driver decisions of this time step. */
+    private boolean publishedLeftIndicator;
+
+    /** Right indicator at the start of the driver decisions of this time step. */
+    private boolean publishedRightIndicator;
+
     /**
      * Constructor that sets the main model.
      * @param model Main model.
@@ -265,8 +346,103 @@ public abstract class Movable  {
     public Movable(Model model) {
     	id = ++model.nextMovableId;
         this.model = model;
-    	for (int i = 0; i < neighborUpdated.length; i++)
+    	for (int i = 0; i < neighborUpdated.length; i++) {
+    		neighborUpdated[i] = -1;
+    		neighborLinked[i] = -1;
+    	}
+    }
+
+    /**
+     * Resets this Movable to the state of a new Movable with a new id, for 
+     * reuse by the {@link MovablePool}. The Movable must have been deleted.
+     */
+    protected void reset() {
+    	if (! reverseNeighbors.isEmpty())
+    		throw new Error("Movable " + toString() + " is still a neighbor of " + reverseNeighbors.get(0).toString());
+    	id = ++model.nextMovableId;
+    	generation++;
+    	lane = null;
+    	x = 0;
+    	v = 0;
+    	a = 0;
+    	l = 0;
+    	global = null;
+    	heading.setLocation(0, 0);
+    	laneSection = 1;
+    	laneXY.setLocation(0, 0);
+    	ignoreLeader = false;
+    	for (int i = 0; i < neighbors.length; i++) {
+    		setNeighbor(i, null);
     		neighborUpdated[i] = -1;
+    		neighborLinked[i] = -1;
+    		linkedModifications[i] = 0;
+    	}
+    	linkedLane = null;
+    	linkedX = 0;
+    	marker = null;
+    	handle = null;
+    	leftIndicator = false;
+    	rightIndicator = false;
+    	publishedA = 0;
+    	publishedLeftIndicator = false;
+    	publishedRightIndicator = false;
+    }
+    
+    /**
+     * Returns the serial number of this Movable.
+     * @return Serial number.
+     */
+    public int id() {
+    	return id;
+    }
+    
+    /**
+     * Publishes the state that drivers of other vehicles read during the 
+     * driver decisions, and resolves all neighbors. This is invoked by 
+     * {@link Model} for all movables before the decisions, so that the 
+     * decisions do not depend on the order or thread in which they are made.
+     */
+    void publish() {
+    	publishedA = a;
+    	publishedLeftIndicator = leftIndicator;
+    	publishedRightIndicator = rightIndicator;
+    	for (int i = 0; i < neighbors.length; i++)
+    		getNeighbor(i);
+    }
+    
+    /**
+     * Returns the acceleration at the start of the driver decisions.
+     * @return Acceleration [m/s^2].
+     */
+    public double publishedA() {
+    	return publishedA;
+    }
+    
+    /**
+     * Returns the left indicator at the start of the driver decisions.
+     * @return Whether the left indicator was on.
+     */
+    public boolean publishedLeftIndicator() {
+    	return publishedLeftIndicator;
+    }
+    
+    /**
+     * Returns the right indicator at the start of the driver decisions.
+     * @return Whether the right indicator was on.
+     */
+    public boolean publishedRightIndicator() {
+    	return publishedRightIndicator;
+    }
+    
+    /**
+     * Returns the number of times this Movable was reused by the 
+     * {@link MovablePool}. References to Movables that are kept across time 
+     * steps should keep the generation as well; a Movable with another 
+     * generation is not the same vehicle.
+     * @return Number of times this Movable was reused.
+     */
+    public int generation() {
+    	return generation;
     }
 
     /**
@@ -275,11 +451,14 @@ public abstract class Movable  {
     public abstract void setXY();
     
     /**
-     * Returns the global x and y at the lane center.
-     * @return 2-element array with x and y at the lane.
+     * Returns the global x and y at the lane center. The returned point is 
+     * shared by all calls on this movable and is overwritten by the next call;
+     * callers that keep the position or hand it out must copy it.
+     * @return Point with x and y at the lane, not to be kept or modified.
      */
     public java.awt.geom.Point2D.Double atLaneXY() {
-        return lane.XY(x);
+        laneSection = lane.section(x, laneSection);
+        return lane.XY(x, laneSection, laneXY);
     }
 
     /**
@@ -419,6 +598,11 @@ public abstract class Movable  {
             }
             // model
             model.removeVehicle(veh);
+            // pool, keeping the driver and trajectory
+            if (model.pool.isEnabled() && MovablePool.isPoolable(veh)) {
+            	model.pool.release(veh);
+            	return;
+            }
             // trajectory
             if (veh.trajectory != null) {
                 veh.trajectory.vehicle = null; // data remains, vehicle does not
@@ -445,6 +629,9 @@ public abstract class Movable  {
             // vehicle
             veh.vehicle.lcVehicle = null;
             veh.vehicle = null;
+            // pool
+            if (model.pool.isEnabled() && (veh.getClass() == LCVehicle.class))
+            	model.pool.release(veh);
         }
     }
 
@@ -497,19 +684,31 @@ public abstract class Movable  {
      * @return Set of vehicles that is upstream of this, or an upstream merge.
      */
     protected java.util.ArrayList<Movable> findVehiclesUpstreamOfMerge(Lane merge, double maximumDistance) {
+        return findVehiclesUpstreamOfMerge(merge, maximumDistance, new java.util.HashSet<Lane>());
+    }
+    
+    /**
+     * Returns a set of vehicles that is upstream of a merge, skipping the lanes
+     * of the current search path. The path is kept in a set instead of marks
+     * on the lanes, as drivers may search concurrently.
+     * @param merge Lane to look for vehicles upstream of.
+     * @param maximumDistance Maximum search distance [m].
+     * @param path Lanes of the current search path.
+     * @return Set of vehicles that is upstream of the merge.
+     */
+    private java.util.ArrayList<Movable> findVehiclesUpstreamOfMerge(Lane merge, double maximumDistance, java.util.HashSet<Lane> path) {
         java.util.ArrayList<Movable> out = new java.util.ArrayList<Movable>();
         if (maximumDistance < 0)
         	return out;
         for (Lane j : merge.upMerge.ups) {
-        	if (j.marked)
+        	if (! path.add(j))
         		continue;
-        	j.marked = true;
             Movable d = j.findVehicle(j.l, Model.longDirection.UP, maximumDistance - merge.l);
             if (d != null)
                 out.add(d);
             else if (j.upMerge != null)
-                out.addAll(findVehiclesUpstreamOfMerge(j, maximumDistance - merge.l - j.upMerge.l));
-            j.marked = false;
+                out.addAll(findVehiclesUpstreamOfMerge(j, maximumDistance - merge.l - j.upMerge.l, path));
+            path.remove(j);
         }
         return out;
     }
@@ -522,19 +721,30 @@ public abstract class Movable  {
      * @return Set of vehicles that is downstream of this, or a downstream split.
      */
     protected java.util.ArrayList<Movable> findVehiclesDownstreamOfSplit(Lane split, double maxDistance) {
+        return findVehiclesDownstreamOfSplit(split, maxDistance, new java.util.HashSet<Lane>());
+    }
+    
+    /**
+     * Returns a set of vehicles that is downstream of a split, skipping the 
+     * lanes of the current search path.
+     * @param split Lane to look for vehicles downstream of.
+     * @param maxDistance Maximum search distance [m].
+     * @param path Lanes of the current search path.
+     * @return Set of vehicles that is downstream of the split.
+     */
+    private java.util.ArrayList<Movable> findVehiclesDownstreamOfSplit(Lane split, double maxDistance, java.util.HashSet<Lane> path) {
         java.util.ArrayList<Movable> out = new java.util.ArrayList<Movable>();
         if (maxDistance < 0)
         	return out;
         for (Lane j : split.downSplit.downs) {
-        	if (j.marked)
+        	if (! path.add(j))
         		continue;
-        	j.marked = true;
             Movable d = j.findVehicle(0, Model.longDirection.DOWN, maxDistance - split.l);
             if (d != null)
                 out.add(d);
             else if (j.downSplit!=null)
-                out.addAll(findVehiclesDownstreamOfSplit(j, maxDistance - split.l - j.downSplit.l));
-            j.marked = false;
+                out.addAll(findVehiclesDownstreamOfSplit(j, maxDistance - split.l - j.downSplit.l, path));
+            path.remove(j);
         }
         return out;
     }
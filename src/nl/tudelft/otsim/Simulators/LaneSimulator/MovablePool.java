@@ -0,0 +1,140 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+/**
+ * Deleted vehicles, with their driver and trajectory, and deleted lane change
+ * vehicles, kept for reuse by new vehicles and lane changes. This avoids the
+ * allocation of these objects during long simulations. The pool is used if
+ * the boolean setting <tt>poolMovables</tt> of the model is <tt>true</tt>.<br>
+ * <br>
+ * A Movable taken from the pool is reset to the state of a new Movable and
+ * gets a new id, so the simulation is the same as without the pool. Only
+ * objects of the classes of this package are pooled and vehicles with an OBU
+ * are not, as subclasses and OBUs may have state that cannot be reset.
+ * References to Movables that are kept across time steps must also keep
+ * {@link Movable#generation()}, as a deleted Movable may return as another
+ * vehicle. In debug mode of the model, released Movables are checked for
+ * references that remain in the simulation.
+ */
+public class MovablePool {
+
+	/** Main model. */
+	private final Model model;
+
+	/** Deleted vehicles, with driver and trajectory. */
+	private final java.util.ArrayList<Vehicle> vehicles = new java.util.ArrayList<Vehicle>();
+
+	/** Deleted lane change vehicles. */
+	private final java.util.ArrayList<LCVehicle> lcVehicles = new java.util.ArrayList<LCVehicle>();
+
+	/** Number of Movables that were taken from the pool. */
+	private int reused = 0;
+
+	/**
+	 * Constructor for the pool of a model.
+	 * @param model Main model.
+	 */
+	public MovablePool(Model model) {
+		this.model = model;
+	}
+
+	/**
+	 * Returns whether the pool is used.
+	 * @return Value of the setting <tt>poolMovables</tt>.
+	 */
+	public boolean isEnabled() {
+		return model.settings.getBoolean("poolMovables");
+	}
+
+	/**
+	 * Returns whether a vehicle, with its driver and trajectory, can be pooled.
+	 * @param vehicle Vehicle.
+	 * @return Whether the vehicle has no OBU and all classes are of this package.
+	 */
+	public static boolean isPoolable(Vehicle vehicle) {
+		return (vehicle.getClass() == Vehicle.class) && !vehicle.isEquipped()
+				&& (null != vehicle.driver) && (vehicle.driver.getClass() == Driver.class)
+				&& ((null == vehicle.trajectory) || (vehicle.trajectory.getClass() == Trajectory.class));
+	}
+
+	/**
+	 * Takes a deleted vehicle from the pool, reset to the state of a new
+	 * vehicle with a new driver and trajectory.
+	 * @return Vehicle, <tt>null</tt> if the pool is empty.
+	 */
+	public synchronized Vehicle vehicle() {
+		if (vehicles.isEmpty())
+			return null;
+		Vehicle vehicle = vehicles.remove(vehicles.size() - 1);
+		vehicle.reset();
+		reused++;
+		return vehicle;
+	}
+
+	/**
+	 * Returns a lane change vehicle for a vehicle, taken from the pool if the
+	 * pool is used and not empty.
+	 * @param vehicle Lane changing vehicle.
+	 * @return New or reset lane change vehicle.
+	 */
+	public synchronized LCVehicle lcVehicle(Vehicle vehicle) {
+		if (lcVehicles.isEmpty() || !isEnabled())
+			return new LCVehicle(vehicle);
+		LCVehicle lcVehicle = lcVehicles.remove(lcVehicles.size() - 1);
+		lcVehicle.reset(vehicle);
+		reused++;
+		return lcVehicle;
+	}
+
+	/**
+	 * Adds a deleted vehicle, with its driver and trajectory, to the pool.
+	 * @param vehicle Deleted vehicle.
+	 */
+	public synchronized void release(Vehicle vehicle) {
+		if (model.debug)
+			checkReleased(vehicle);
+		vehicles.add(vehicle);
+	}
+
+	/**
+	 * Adds a deleted lane change vehicle to the pool.
+	 * @param lcVehicle Deleted lane change vehicle.
+	 */
+	public synchronized void release(LCVehicle lcVehicle) {
+		if (model.debug)
+			checkReleased(lcVehicle);
+		lcVehicles.add(lcVehicle);
+	}
+
+	/**
+	 * Checks that a released Movable is no longer in simulation.
+	 * @param movable Released Movable.
+	 */
+	private void checkReleased(Movable movable) {
+		if (vehicles.contains(movable) || lcVehicles.contains(movable))
+			throw new Error("Movable " + movable.toString() + " is released twice");
+		if (model.exists(movable))
+			throw new Error("Released movable " + movable.toString() + " is still in simulation");
+		for (Lane lane : model.network)
+			if (lane.getVehicles().contains(movable))
+				throw new Error("Released movable " + movable.toString() + " is still on lane " + lane.id());
+		model.checkForRemainingPointers(movable);
+		if ((movable instanceof Vehicle) && (null != ((Vehicle) movable).lcVehicle))
+			throw new Error("Released vehicle " + movable.toString() + " still has a lane change vehicle");
+	}
+
+	/**
+	 * Returns the number of Movables in the pool.
+	 * @return Number of Movables in the pool.
+	 */
+	public synchronized int size() {
+		return vehicles.size() + lcVehicles.size();
+	}
+
+	/**
+	 * Returns the number of Movables that were taken from the pool.
+	 * @return Number of reused Movables.
+	 */
+	public synchronized int reused() {
+		return reused;
+	}
+}
@@ -0,0 +1,118 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+import static org.junit.Assert.*;
+
+import java.awt.geom.Point2D;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Test the reset of pooled Movables against new Movables */
+public class MovablePoolTest {
+
+	/** Fields that differ between a reset object and a new object by design */
+	private static final String[] IGNORED = { "id", "generation", "driver", "trajectory", "vehicle" };
+
+	/** Instance fields of a class and its superclasses */
+	private static java.util.ArrayList<Field> fields(Class<?> clazz) {
+		java.util.ArrayList<Field> result = new java.util.ArrayList<Field>();
+		for (Class<?> c = clazz; c != Object.class; c = c.getSuperclass())
+			for (Field field : c.getDeclaredFields())
+				if (!Modifier.isStatic(field.getModifiers()) && !Arrays.asList(IGNORED).contains(field.getName())) {
+					field.setAccessible(true);
+					result.add(field);
+				}
+		return result;
+	}
+
+	/** Gives all fields of an object other values than those of a new object */
+	@SuppressWarnings("unchecked")
+	private static void scramble(Object object, Lane lane, Random random) throws IllegalAccessException {
+		for (Field field : fields(object.getClass())) {
+			Class<?> type = field.getType();
+			Object value = field.get(object);
+			if (field.getName().equals("reverseNeighbors"))
+				continue;	// a released Movable is no neighbor of any other Movable
+			else if (type == double.class)
+				field.setDouble(object, random.nextDouble() + 1000);
+			else if (type == int.class)
+				field.setInt(object, random.nextInt(100) + 1000);
+			else if (type == boolean.class)
+				field.setBoolean(object, !field.getBoolean(object));
+			else if (value instanceof int[])
+				Arrays.fill((int[]) value, random.nextInt(100) + 1000);
+			else if (value instanceof Point2D.Double)
+				((Point2D.Double) value).setLocation(random.nextDouble(), random.nextDouble());
+			else if (value instanceof Collection)
+				((Collection<Object>) value).add(null);
+			else if (value instanceof Map)
+				((Map<Object, Object>) value).put(null, null);
+			else if (Modifier.isFinal(field.getModifiers()))
+				continue;
+			else if (type == Lane.class)
+				field.set(object, lane);
+			else if (type == String.class)
+				field.set(object, "scrambled");
+			else if (type == double[].class)
+				field.set(object, new double[1]);
+			else if (type == Point2D.Double.class)
+				field.set(object, new Point2D.Double(1, 2));
+			else if (type == Model.latDirection.class)
+				field.set(object, Model.latDirection.LEFT);
+		}
+	}
+
+	/** Asserts that all fields of two objects are equal */
+	private static void assertSameState(Object expected, Object actual) throws IllegalAccessException {
+		for (Field field : fields(expected.getClass())) {
+			Object expectedValue = field.get(expected);
+			Object actualValue = field.get(actual);
+			if (expectedValue instanceof int[])
+				assertArrayEquals(field.getName(), (int[]) expectedValue, (int[]) actualValue);
+			else if (expectedValue instanceof Object[])
+				assertArrayEquals(field.getName(), (Object[]) expectedValue, (Object[]) actualValue);
+			else
+				assertEquals(field.getName(), expectedValue, actualValue);
+		}
+	}
+
+	/**
+	 * A reset vehicle, with driver and trajectory, and a reset lane change vehicle are equal
+	 * to new ones and get new ids
+	 * @throws Exception on failure of reflection
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testReset() throws Exception {
+		Random random = new Random(5);
+		Model model = new Model();
+		Lane lane = new Lane(model, new double[]{0, 100}, new double[]{0, 0}, 1);
+		Vehicle expected = new Vehicle(model);
+		new Driver(expected);
+		expected.trajectory = new Trajectory(expected, "nl.tudelft.otsim.Simulators.LaneSimulator.FCD");
+		Vehicle vehicle = new Vehicle(model);
+		new Driver(vehicle);
+		vehicle.trajectory = new Trajectory(vehicle, "nl.tudelft.otsim.Simulators.LaneSimulator.FCD");
+		scramble(vehicle, lane, random);
+		scramble(vehicle.driver, lane, random);
+		scramble(vehicle.trajectory, lane, random);
+		vehicle.reset();
+		assertSameState(expected, vehicle);
+		assertSameState(expected.driver, vehicle.driver);
+		assertSameState(expected.trajectory, vehicle.trajectory);
+		assertEquals(model.nextMovableId, vehicle.id());
+		assertEquals(1, vehicle.generation());
+		LCVehicle expectedLC = new LCVehicle(expected);
+		LCVehicle lcVehicle = new LCVehicle(vehicle);
+		scramble(lcVehicle, lane, random);
+		lcVehicle.reset(expected);
+		assertSameState(expectedLC, lcVehicle);
+		assertSame(expected, lcVehicle.vehicle);
+		assertEquals(model.nextMovableId, lcVehicle.id());
+	}
+}
@@ -27,6 +27,9 @@ public class OccupancyDetector extends RSU implements SimulatedDetector {
      * List of vehicles that is at the detector.
      */
     protected java.util.ArrayList<Vehicle> vehicles = new java.util.ArrayList<Vehicle>();
+    
+    /** Generation of the vehicles in <tt>vehicles</tt>, see {@link Movable#generation()}. */
+    protected java.util.ArrayList<Integer> generations = new java.util.ArrayList<Integer>();
 
     /**
      * Constructor which positions the detector on the network.
@@ -52,6 +55,7 @@ public class OccupancyDetector extends RSU implements SimulatedDetector {
     @Override
     public void pass(Vehicle vehicle) {
         vehicles.add(vehicle);
+        generations.add(vehicle.generation());
         detections.add(vehicle.v);
         //System.out.println("Added vehicle " + vehicle + " to detector " + this);
         //System.out.println("count is now " + vehicles.size());
@@ -65,16 +69,19 @@ public class OccupancyDetector extends RSU implements SimulatedDetector {
     public void control() {
         // Loop over the vehicles
         java.util.Iterator<Vehicle> iter = vehicles.iterator();
+        java.util.Iterator<Integer> generationIter = generations.iterator();
         while (iter.hasNext()) {
             Vehicle veh = iter.next();
+            int generation = generationIter.next();
             /*
              * The vehicle is downstream of the detector, which will return a
              * negative distance between the nose of the vehicle and the start
              * of the detector. If this distance is larger than the detector
              * length and vehicle length the vehicle rear has left the detector.
              */
-            if ((this.lane.xAdj(veh.getLane()) + veh.x > x + length + veh.l) || ((! model.vehicles.contains(veh)) && (! model.lcVehicles.contains(veh)))) {
+            if ((veh.generation() != generation) || (this.lane.xAdj(veh.getLane()) + veh.x > x + length + veh.l) || ((! model.vehicles.contains(veh)) && (! model.lcVehicles.contains(veh)))) {
                 iter.remove(); // safely remove using the iterator
+                generationIter.remove();
                 //System.out.println("Removed vehicle " + veh + " from VehicleDetector " + this);
             }
         }
@@ -96,6 +103,25 @@ public class OccupancyDetector extends RSU implements SimulatedDetector {
     @Override
     public void noControl() {}
 
+    /**
+     * Returns that this detector only needs to run when vehicles are on it.
+     * @return {@link Controller.Wake#PASSAGE}.
+     */
+    @Override
+    public Wake wake() {
+        return Wake.PASSAGE;
+    }
+
+    /**
+     * Returns whether vehicles are on the detector, which are removed by 
+     * <tt>control()</tt> when they have left.
+     * @return Whether vehicles are on the detector.
+     */
+    @Override
+    public boolean stayAwake() {
+        return !vehicles.isEmpty();
+    }
+
 	@Override
 	public void paint(double when, GraphicsPanel gp) {
 		gp.setStroke(0F);
@@ -34,5 +34,14 @@ public class SpeedReduction extends RSU {
     /** Empty, needs to be implemented. */
     @Override
 	public void noControl() {}
+
+    /**
+     * Returns that this speed reduction never needs to run, as it is only passed.
+     * Subclasses may implement control and run every time step.
+     */
+    @Override
+	public Wake wake() {
+        return SpeedReduction.class == getClass() ? Wake.IDLE : Wake.EVERY_STEP;
+    }
     
 }
\ No newline at end of file
@@ -113,6 +113,15 @@ public class TrafficLight extends RSU implements SimulatedTrafficLight {
     /** Empty, needs to be implemented. */
     @Override
 	public void noControl() {}
+
+    /**
+     * Returns that this traffic light never needs to run, as its controller sets its color.
+     * Subclasses may implement control and run every time step.
+     */
+    @Override
+	public Wake wake() {
+        return TrafficLight.class == getClass() ? Wake.IDLE : Wake.EVERY_STEP;
+    }
     
     /** Enumeration for traffic light colors. */
     protected enum lightColor {
@@ -198,6 +207,25 @@ public class TrafficLight extends RSU implements SimulatedTrafficLight {
         /** Empty, needs to be implemented. */
         @Override
         public void noControl() {}
+
+        /** Returns that this controller only needs to run at the next switch. */
+        @Override
+        public Wake wake() {
+            return Wake.SCHEDULED;
+        }
+
+        /**
+         * Returns the time of the next switch.
+         * @return End time [s] of the current color.
+         */
+        @Override
+        public double dueTime() {
+            if (isGreen())
+                return tSwitch + tGreen;
+            else if (isYellow())
+                return tSwitch + tYellow;
+            return tSwitch + tRed;
+        }
     }
 
 	@Override
@@ -21,6 +21,9 @@ public class Trajectory {
     
     /** Class of the FCD data to use. */
     protected Class<?> FCDclass;
+    
+    /** Samples of the {@link FCDPipeline} of the model, if it is used. */
+    protected FCDPipeline.Buffer samples;
 
     /**
      * Constructor linking this trajectory to a vehicle.
@@ -35,9 +38,15 @@ public class Trajectory {
     }
 
     /**
-     * Appends current data of vehicle to an internal array at appropriate interval.
+     * Appends current data of vehicle to an internal array at appropriate 
+     * interval, or to the columns of the {@link FCDPipeline} of the model if 
+     * it is set.
      */
     public void append() {
+        if (null != vehicle.model.fcdPipeline) {
+            vehicle.model.fcdPipeline.sample(this);
+            return;
+        }
         if (!tDataSet) {
             tData = vehicle.model.t-vehicle.model.settings.getDouble("trajectoryPeriod");
             tDataSet = true;
@@ -65,6 +74,19 @@ public class Trajectory {
     public TrajectoryData asSerializable() {
         return new TrajectoryData(this);
     }
+    
+    /**
+     * Removes all data of the trajectory, for reuse by the {@link MovablePool}.
+     * @param newFCDclass Class of the FCD data to use.
+     */
+    public void reset(Class<?> newFCDclass) {
+        FCD.clear();
+        if (null != samples)
+            samples.clear();
+        tData = 0;
+        tDataSet = false;
+        FCDclass = newFCDclass;
+    }
      
     /**
      * Returns the class of the FCD objects.
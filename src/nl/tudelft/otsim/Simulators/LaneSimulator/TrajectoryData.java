@@ -8,6 +8,12 @@ public class TrajectoryData implements java.io.Serializable {
 	/** List of data objects by field name. */
     protected java.util.HashMap<String, Object> data = new java.util.HashMap<String, Object>();
 
+    /**
+     * Constructs an empty data object, of which the fields are set with <tt>put</tt>.
+     */
+    public TrajectoryData() {
+    }
+
     /**
      * Constructs a data object from the given <tt>jTrajectory</tt>.
      * @param trajectory Trajectory of which the data needs to be stored.
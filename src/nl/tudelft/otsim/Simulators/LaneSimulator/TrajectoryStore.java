@@ -0,0 +1,443 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Columnar store of vehicle trajectories, as an alternative to one file of
+ * {@link TrajectoryData} per vehicle.<br>
+ * <br>
+ * The store is a directory with an index file and segment files of
+ * <tt>segmentRows</tt> samples each. A segment holds its samples in columns:
+ * time, position, speed, acceleration and lane change progress as doubles,
+ * followed by the lane id and vehicle id as ints. The samples of a trajectory
+ * are appended at once and are consecutive rows, which may continue in the
+ * next segment. The index holds, per trajectory, the vehicle id, class id,
+ * first row, number of rows and first and last time. Segments are memory
+ * mapped on demand and only a few are kept mapped.<br>
+ * <br>
+ * Only the fields of {@link FCD} are stored, fields of subclasses are not.
+ * The store is also a sink of an {@link FCDPipeline} with these fields.
+ */
+public class TrajectoryStore implements FCDPipeline.Sink {
+	private static final int MAGIC = 0x4f545331;
+	private static final String INDEX = "trajectories.idx";
+	private static final String SEGMENT = "segment-";
+	private static final int MAPPED_SEGMENTS = 4;
+
+	/** Double columns. */
+	private static final int T = 0, X = 1, V = 2, A = 3, LC_PROGRESS = 4, DOUBLES = 5;
+
+	/** Int columns. */
+	private static final int LANE = 0, VEHICLE = 1, INTS = 2;
+
+	private final File directory;
+	private final int segmentRows;
+	/** Index file that entries are appended to, <tt>null</tt> if the store is read only. */
+	private final DataOutputStream index;
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+	private final HashMap<Integer, Entry> vehicles = new HashMap<Integer, Entry>();
+	private final LinkedHashMap<Integer, MappedByteBuffer> segments;
+	private long rows = 0;
+
+	private TrajectoryStore(File directory, int segmentRows, DataOutputStream index) {
+		this.directory = directory;
+		this.segmentRows = segmentRows;
+		this.index = index;
+		final boolean writable = null != index;
+		this.segments = new LinkedHashMap<Integer, MappedByteBuffer>(MAPPED_SEGMENTS, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
+				if (size() <= MAPPED_SEGMENTS)
+					return false;
+				// written to disk before it is released
+				if (writable)
+					eldest.getValue().force();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Create a new, empty store. An existing store in the directory is replaced.
+	 * @param directory directory of the store, created if needed
+	 * @param segmentRows number of samples per segment file
+	 */
+	public static TrajectoryStore create(File directory, int segmentRows) throws IOException {
+		if (segmentRows < 1 || (long) segmentRows*(8*DOUBLES + 4*INTS) > Integer.MAX_VALUE)
+			throw new IOException("Invalid number of rows per segment: " + segmentRows);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		File[] files = directory.listFiles();
+		if (null != files)
+			for (File file: files)
+				if (file.getName().startsWith(SEGMENT) && !file.delete())
+					throw new IOException("Cannot delete " + file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, INDEX))));
+		out.writeInt(MAGIC);
+		out.writeInt(segmentRows);
+		return new TrajectoryStore(directory, segmentRows, out);
+	}
+
+	/** Open an existing store for queries. */
+	public static TrajectoryStore open(File directory) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory, INDEX))));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a trajectory store: " + directory);
+			TrajectoryStore store = new TrajectoryStore(directory, in.readInt(), null);
+			while (true) {
+				Entry entry;
+				try {
+					entry = new Entry(in.readInt(), in.readInt(), in.readLong(), in.readInt(), in.readDouble(), in.readDouble());
+				} catch (EOFException e) {
+					// end of the index, or an entry of which the writing was interrupted
+					break;
+				}
+				store.add(entry);
+			}
+			return store;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Append the trajectory of a vehicle. The FCD objects are read directly,
+	 * without reflection.
+	 * @param trajectory trajectory with FCD of class {@link FCD}, only these fields are stored
+	 */
+	public void append(Trajectory trajectory) throws IOException {
+		int n = trajectory.FCD.size();
+		double[] t = new double[n];
+		double[] x = new double[n];
+		double[] v = new double[n];
+		double[] a = new double[n];
+		double[] lcProgress = new double[n];
+		int[] lane = new int[n];
+		for (int i = 0; i<n; i++) {
+			FCD fcd = trajectory.FCD.get(i);
+			t[i] = fcd.t;
+			x[i] = fcd.x;
+			v[i] = fcd.v;
+			a[i] = fcd.a;
+			lcProgress[i] = fcd.lcProgress;
+			lane[i] = null == fcd.lane ? -1 : fcd.lane.id;
+		}
+		append(trajectory.vehicle.id(), trajectory.vehicle.classID, t, x, v, a, lcProgress, lane);
+	}
+
+	/**
+	 * Append trajectory data as stored by {@link Model#saveTrajectoryData(Trajectory)}.
+	 * Data without samples is skipped.
+	 * @param vehicle vehicle id
+	 * @param data trajectory data with the fields of {@link FCD}
+	 */
+	public void append(int vehicle, TrajectoryData data) throws IOException {
+		if (null == data.get("t"))
+			return;
+		Object classID = data.get("classID");
+		append(vehicle, classID instanceof Integer ? (Integer) classID : -1, (double[]) data.get("t"), (double[]) data.get("x"),
+				(double[]) data.get("v"), (double[]) data.get("a"), (double[]) data.get("lcProgress"), (int[]) data.get("lane"));
+	}
+
+	/**
+	 * Append the samples of an {@link FCDPipeline} with the fields of {@link FCD}.
+	 */
+	@Override
+	public void trajectory(int vehicle, int classID, FCDPipeline.Buffer samples) throws IOException {
+		double[] t = samples.getDouble("t");
+		double[] x = samples.getDouble("x");
+		double[] v = samples.getDouble("v");
+		double[] a = samples.getDouble("a");
+		double[] lcProgress = samples.getDouble("lcProgress");
+		int[] lane = samples.getInt("lane");
+		if (null == t || null == x || null == v || null == a || null == lcProgress || null == lane)
+			throw new IOException("Samples need the fields t, x, v, a, lcProgress and lane");
+		append(vehicle, classID, t, x, v, a, lcProgress, lane);
+	}
+
+	/**
+	 * Append the samples of one trajectory, in order of time.
+	 */
+	public synchronized void append(int vehicle, int classID, double[] t, double[] x, double[] v, double[] a, double[] lcProgress, int[] lane) throws IOException {
+		if (null == index)
+			throw new IOException("Store is opened for queries only: " + directory);
+		int n = t.length;
+		if (n == 0)
+			return;
+		int[] vehicleColumn = new int[n];
+		Arrays.fill(vehicleColumn, vehicle);
+		for (int done = 0; done<n; ) {
+			long row = rows + done;
+			int r = (int) (row % segmentRows);
+			int chunk = Math.min(n - done, segmentRows - r);
+			ByteBuffer segment = segment((int) (row/segmentRows), true);
+			doubleColumn(segment, T, r).asDoubleBuffer().put(t, done, chunk);
+			doubleColumn(segment, X, r).asDoubleBuffer().put(x, done, chunk);
+			doubleColumn(segment, V, r).asDoubleBuffer().put(v, done, chunk);
+			doubleColumn(segment, A, r).asDoubleBuffer().put(a, done, chunk);
+			doubleColumn(segment, LC_PROGRESS, r).asDoubleBuffer().put(lcProgress, done, chunk);
+			intColumn(segment, LANE, r).asIntBuffer().put(lane, done, chunk);
+			intColumn(segment, VEHICLE, r).asIntBuffer().put(vehicleColumn, done, chunk);
+			done += chunk;
+		}
+		Entry entry = new Entry(vehicle, classID, rows, n, t[0], t[n-1]);
+		index.writeInt(entry.vehicle);
+		index.writeInt(entry.classID);
+		index.writeLong(entry.first);
+		index.writeInt(entry.count);
+		index.writeDouble(entry.tStart);
+		index.writeDouble(entry.tEnd);
+		add(entry);
+	}
+
+	/**
+	 * Import trajectory files as written by {@link Model#saveTrajectoryData(Trajectory)}.
+	 * The number in the file name, which is the order in which the trajectories
+	 * were saved, is used as vehicle id.
+	 * @param trajectoryDirectory directory with <tt>trajectory######.dat</tt> files
+	 * @return number of imported files
+	 */
+	public int importTrajectoryData(File trajectoryDirectory) throws IOException {
+		File[] files = trajectoryDirectory.listFiles();
+		if (null == files)
+			throw new IOException("Cannot list " + trajectoryDirectory);
+		Arrays.sort(files);
+		int n = 0;
+		for (File file: files) {
+			String name = file.getName();
+			if (!name.matches("trajectory\\d+\\.dat"))
+				continue;
+			append(Integer.parseInt(name.substring(10, name.length() - 4)), Model.loadTrajectoryData(file.getPath()));
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return ids of all vehicles in the store, in the order their trajectories were appended
+	 */
+	public synchronized int[] getVehicles() {
+		int[] result = new int[entries.size()];
+		for (int i = 0; i<result.length; i++)
+			result[i] = entries.get(i).vehicle;
+		return result;
+	}
+
+	/**
+	 * @return number of samples in the store
+	 */
+	public synchronized long getRows() {
+		return rows;
+	}
+
+	/**
+	 * Trajectory of one vehicle, with the fields of the trajectory files.
+	 * @param vehicle vehicle id
+	 * @return trajectory data, <tt>null</tt> if the vehicle is not in the store
+	 */
+	public synchronized TrajectoryData getTrajectory(int vehicle) throws IOException {
+		Entry entry = vehicles.get(vehicle);
+		if (null == entry)
+			return null;
+		Samples samples = new Samples(entry.count);
+		read(entry.first, entry.count, samples, 0);
+		TrajectoryData data = new TrajectoryData();
+		data.put("t", samples.t);
+		data.put("x", samples.x);
+		data.put("v", samples.v);
+		data.put("a", samples.a);
+		data.put("lcProgress", samples.lcProgress);
+		data.put("lane", samples.lane);
+		data.put("classID", entry.classID);
+		return data;
+	}
+
+	/**
+	 * All samples with a time in [t0, t1], per trajectory in the order the
+	 * trajectories were appended. Trajectories outside the window are skipped
+	 * using the index.
+	 */
+	public synchronized Samples getWindow(double t0, double t1) throws IOException {
+		ArrayList<long[]> ranges = new ArrayList<long[]>();
+		int n = 0;
+		for (Entry entry: entries) {
+			if (entry.tEnd < t0 || entry.tStart > t1)
+				continue;
+			long first = firstRow(entry.first, entry.first + entry.count, t0);
+			long end = firstRowAfter(first, entry.first + entry.count, t1);
+			if (end > first) {
+				ranges.add(new long[] {first, end - first});
+				n += end - first;
+			}
+		}
+		Samples samples = new Samples(n);
+		int at = 0;
+		for (long[] range: ranges) {
+			read(range[0], (int) range[1], samples, at);
+			at += range[1];
+		}
+		return samples;
+	}
+
+	/** Write all mapped segments to disk and close the index. */
+	public synchronized void close() throws IOException {
+		if (null != index) {
+			for (MappedByteBuffer buffer: segments.values())
+				buffer.force();
+			index.close();
+		}
+		segments.clear();
+	}
+
+	/** Columns of a number of samples. */
+	public static class Samples {
+		public final double[] t;
+		public final double[] x;
+		public final double[] v;
+		public final double[] a;
+		public final double[] lcProgress;
+		public final int[] lane;
+		public final int[] vehicle;
+
+		Samples(int n) {
+			t = new double[n];
+			x = new double[n];
+			v = new double[n];
+			a = new double[n];
+			lcProgress = new double[n];
+			lane = new int[n];
+			vehicle = new int[n];
+		}
+
+		/** @return number of samples */
+		public int size() {
+			return t.length;
+		}
+	}
+
+	/** Index entry of a trajectory. */
+	private static class Entry {
+		final int vehicle;
+		final int classID;
+		final long first;
+		final int count;
+		final double tStart;
+		final double tEnd;
+
+		Entry(int vehicle, int classID, long first, int count, double tStart, double tEnd) {
+			this.vehicle = vehicle;
+			this.classID = classID;
+			this.first = first;
+			this.count = count;
+			this.tStart = tStart;
+			this.tEnd = tEnd;
+		}
+	}
+
+	private void add(Entry entry) {
+		entries.add(entry);
+		vehicles.put(entry.vehicle, entry);
+		rows = Math.max(rows, entry.first + entry.count);
+	}
+
+	/** Copy rows from the segments to the samples, starting at sample <tt>at</tt>. */
+	private void read(long first, int count, Samples samples, int at) throws IOException {
+		for (int done = 0; done<count; ) {
+			long row = first + done;
+			int r = (int) (row % segmentRows);
+			int chunk = Math.min(count - done, segmentRows - r);
+			ByteBuffer segment = segment((int) (row/segmentRows), false);
+			doubleColumn(segment, T, r).asDoubleBuffer().get(samples.t, at + done, chunk);
+			doubleColumn(segment, X, r).asDoubleBuffer().get(samples.x, at + done, chunk);
+			doubleColumn(segment, V, r).asDoubleBuffer().get(samples.v, at + done, chunk);
+			doubleColumn(segment, A, r).asDoubleBuffer().get(samples.a, at + done, chunk);
+			doubleColumn(segment, LC_PROGRESS, r).asDoubleBuffer().get(samples.lcProgress, at + done, chunk);
+			intColumn(segment, LANE, r).asIntBuffer().get(samples.lane, at + done, chunk);
+			intColumn(segment, VEHICLE, r).asIntBuffer().get(samples.vehicle, at + done, chunk);
+			done += chunk;
+		}
+	}
+
+	/** @return first row in [from, to) with a time of at least t, rows are in order of time */
+	private long firstRow(long from, long to, double t) throws IOException {
+		while (from < to) {
+			long mid = (from + to) >>> 1;
+			if (time(mid) < t)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+
+	/** @return first row in [from, to) with a time after t, rows are in order of time */
+	private long firstRowAfter(long from, long to, double t) throws IOException {
+		while (from < to) {
+			long mid = (from + to) >>> 1;
+			if (time(mid) <= t)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+
+	private double time(long row) throws IOException {
+		return segment((int) (row/segmentRows), false).getDouble(T*8*segmentRows + (int) (row % segmentRows)*8);
+	}
+
+	/** @return buffer positioned at a row of a double column */
+	private ByteBuffer doubleColumn(ByteBuffer segment, int column, int row) {
+		ByteBuffer buffer = segment.duplicate();
+		buffer.position(column*8*segmentRows + row*8);
+		return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** @return buffer positioned at a row of an int column */
+	private ByteBuffer intColumn(ByteBuffer segment, int column, int row) {
+		ByteBuffer buffer = segment.duplicate();
+		buffer.position(DOUBLES*8*segmentRows + column*4*segmentRows + row*4);
+		return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private ByteBuffer segment(int number, boolean create) throws IOException {
+		synchronized (segments) {
+			MappedByteBuffer buffer = segments.get(number);
+			if (null == buffer) {
+				File file = new File(directory, SEGMENT + number + ".bin");
+				if (!file.exists() && !create)
+					throw new IOException("Missing segment " + file);
+				RandomAccessFile raf = new RandomAccessFile(file, null == index ? "r" : "rw");
+				try {
+					FileChannel.MapMode mode = null == index ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+					buffer = raf.getChannel().map(mode, 0, (long) segmentRows*(8*DOUBLES + 4*INTS));
+					buffer.order(ByteOrder.LITTLE_ENDIAN);
+				} finally {
+					raf.close();
+				}
+				segments.put(number, buffer);
+			}
+			return buffer;
+		}
+	}
+}
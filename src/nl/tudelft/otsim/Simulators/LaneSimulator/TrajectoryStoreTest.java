@@ -0,0 +1,166 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/** Test that the TrajectoryStore reads back what it wrote and imported */
+public class TrajectoryStoreTest {
+
+	/** FCD with a field the store does not keep */
+	public static class LengthFCD extends FCD {
+		public double l;
+
+		public LengthFCD(Vehicle veh) {
+			super(veh);
+			l = veh.l;
+		}
+	}
+
+	/** Samples of a vehicle, every second from the start time */
+	private static TrajectoryData trajectory(int vehicle, double start, int n) {
+		double[] t = new double[n];
+		double[] x = new double[n];
+		double[] v = new double[n];
+		double[] a = new double[n];
+		double[] lcProgress = new double[n];
+		int[] lane = new int[n];
+		for (int i = 0; i<n; i++) {
+			t[i] = start + i;
+			x[i] = 10*i + vehicle;
+			v[i] = 10 + 0.5*vehicle;
+			a[i] = -0.1*i;
+			lcProgress[i] = i/(double) n;
+			lane[i] = vehicle + i/2;
+		}
+		TrajectoryData data = new TrajectoryData();
+		data.put("t", t);
+		data.put("x", x);
+		data.put("v", v);
+		data.put("a", a);
+		data.put("lcProgress", lcProgress);
+		data.put("lane", lane);
+		data.put("classID", vehicle % 2);
+		return data;
+	}
+
+	private static void assertSameTrajectory(TrajectoryData expected, TrajectoryData actual) {
+		for (String field: new String[] {"t", "x", "v", "a", "lcProgress"})
+			assertArrayEquals(field, (double[]) expected.get(field), (double[]) actual.get(field), 0);
+		assertArrayEquals((int[]) expected.get("lane"), (int[]) actual.get("lane"));
+		assertEquals(expected.get("classID"), actual.get("classID"));
+	}
+
+	private static File createDirectory() throws IOException {
+		File directory = File.createTempFile("trajectoryStoreTest", "");
+		if (!directory.delete() || !directory.mkdir())
+			throw new IOException("Cannot create " + directory);
+		return directory;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (null != files)
+			for (File f: files)
+				delete(f);
+		file.delete();
+	}
+
+	/**
+	 * Trajectories that span segments must be read back exactly, per vehicle and per time window
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testRoundTrip() throws IOException {
+		File directory = createDirectory();
+		try {
+			int[] vehicles = new int[] {3, 8, 5};
+			TrajectoryData[] data = new TrajectoryData[] {trajectory(3, 0, 3), trajectory(8, 2, 6), trajectory(5, 4, 5)};
+			TrajectoryStore store = TrajectoryStore.create(directory, 4);
+			for (int i = 0; i<data.length; i++)
+				store.append(vehicles[i], data[i]);
+			store.append(9, new TrajectoryData());
+			store.close();
+
+			store = TrajectoryStore.open(directory);
+			assertEquals(14, store.getRows());
+			assertArrayEquals(vehicles, store.getVehicles());
+			assertSameTrajectory(data[1], store.getTrajectory(8));
+			assertSameTrajectory(data[2], store.getTrajectory(5));
+			assertNull(store.getTrajectory(9));
+			// vehicle 3 in [0, 2], vehicle 8 in [2, 7] and vehicle 5 in [4, 8]
+			TrajectoryStore.Samples samples = store.getWindow(2, 4.5);
+			assertEquals(5, samples.size());
+			assertArrayEquals(new int[] {3, 8, 8, 8, 5}, samples.vehicle);
+			assertArrayEquals(new double[] {2, 2, 3, 4, 4}, samples.t, 0);
+			assertArrayEquals(new double[] {23, 8, 18, 28, 5}, samples.x, 0);
+			assertEquals(0, store.getWindow(9, 10).size());
+			store.close();
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Trajectory files written by the model are imported with the file number as vehicle id
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testImport() throws IOException {
+		File directory = createDirectory();
+		try {
+			Model model = new Model();
+			model.settings.putString("outputDir", directory.getPath());
+			TrajectoryData first = trajectory(1, 0, 7);
+			TrajectoryData second = trajectory(2, 3, 2);
+			model.saveData(first, "trajectories", "trajectory000001.dat");
+			model.saveData(second, "trajectories", "trajectory000002.dat");
+			TrajectoryStore store = TrajectoryStore.create(new File(directory, "store"), 5);
+			assertEquals(2, store.importTrajectoryData(new File(directory, "trajectories")));
+			assertArrayEquals(new int[] {1, 2}, store.getVehicles());
+			assertSameTrajectory(first, store.getTrajectory(1));
+			assertSameTrajectory(second, store.getTrajectory(2));
+			store.close();
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * With the setting trajectoryColumns the model appends trajectories of FCD to the store,
+	 * and keeps trajectories of a subclass of FCD for the files
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testModelColumns() throws Exception {
+		File directory = createDirectory();
+		try {
+			Model model = new Model();
+			model.settings.putString("outputDir", directory.getPath());
+			model.settings.putBoolean("trajectoryColumns", true);
+			model.settings.putBoolean("storeTrajectoryData", true);
+			Lane lane = new Lane(model, new double[]{0, 1000}, new double[]{0, 0}, 7);
+			Vehicle vehicle = new Vehicle(model);
+			vehicle.l = 4;
+			vehicle.setLane(lane);
+			vehicle.trajectory = new Trajectory(vehicle, LengthFCD.class.getName());
+			vehicle.trajectory.append();
+			model.saveTrajectoryData(vehicle.trajectory);
+			assertNull(model.trajectoryStore);
+			assertEquals(1, model.trajectories.size());
+			assertArrayEquals(new double[] {4}, (double[]) model.trajectories.get(0).get("l"), 0);
+
+			vehicle.trajectory = new Trajectory(vehicle, FCD.class.getName());
+			vehicle.trajectory.append();
+			model.saveTrajectoryData(vehicle.trajectory);
+			assertEquals(1, model.trajectories.size());
+			assertEquals(1, model.trajectoryStore.getRows());
+			model.trajectoryStore.close();
+		} finally {
+			delete(directory);
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+/**
+ * Runs the road-side units and controllers of a model only in the time steps
+ * in which they need to run, as given by {@link Controller#wake()}. Units that
+ * run every time step are run as before. Scheduled units are kept in a
+ * hierarchical timing wheel by the time step in which they are due. Units
+ * that are woken by passing vehicles are run in the next time step and for as
+ * long as they stay awake. Idle units are never run. The cost per time step
+ * is therefore proportional to the number of units that run.<br>
+ * <br>
+ * The units that run in a time step are run in the order of
+ * {@link Model#runUnits()} without scheduling, i.e. the RSUs per lane of the
+ * network followed by the controllers, so the simulation is the same. Units
+ * are collected when the scheduler is created, by {@link Model#init()}.
+ */
+public class UnitScheduler {
+
+	/** Number of bits of the time step per level of the wheel. */
+	private static final int BITS = 6;
+
+	/** Number of slots per level of the wheel. */
+	private static final int SLOTS = 1 << BITS;
+
+	/** Number of levels of the wheel. */
+	private static final int LEVELS = 4;
+
+	/** Main model. */
+	private final Model model;
+
+	/** Units in the order of {@link Model#runUnits()}, a unit may occur more than once. */
+	private final Controller[] units;
+
+	/** Number of road-side units, which precede the controllers in <tt>units</tt>. */
+	private final int roadSideUnits;
+
+	/** Way in which each unit is woken. */
+	private final Controller.Wake[] wakes;
+
+	/** Index of each unit in <tt>units</tt>, per unit that is woken by passing vehicles. */
+	private final java.util.IdentityHashMap<Controller, int[]> passageUnits = new java.util.IdentityHashMap<Controller, int[]>();
+
+	/** Units that run every time step, in order. */
+	private final int[] everyStep;
+
+	/** Time step in which each scheduled unit is due, -1 if not scheduled. */
+	private final long[] dueSteps;
+
+	/** Whether each unit that is woken by passing vehicles is awake. */
+	private final boolean[] awake;
+
+	/** Awake units. */
+	private final IntList awakeUnits = new IntList();
+
+	/** Slots of the wheel per level, with units that may be due. */
+	private final IntList[][] wheel = new IntList[LEVELS][SLOTS];
+
+	/** Units that are due beyond the range of the wheel. */
+	private final IntList overflow = new IntList();
+
+	/** Units that are due in the current time step. */
+	private final IntList due = new IntList();
+
+	/** Units to run in the current time step. */
+	private final IntList run = new IntList();
+
+	/** Last time step of which the due units were collected. */
+	private long step;
+
+	/**
+	 * Collects the units of a model. All units that are not idle run in the
+	 * first time step.
+	 * @param model Main model.
+	 */
+	public UnitScheduler(Model model) {
+		this.model = model;
+		java.util.ArrayList<Controller> list = new java.util.ArrayList<Controller>();
+		for (Lane lane : model.network)
+			list.addAll(lane.RSUs);
+		roadSideUnits = list.size();
+		list.addAll(model.controllers);
+		units = list.toArray(new Controller[list.size()]);
+		wakes = new Controller.Wake[units.length];
+		dueSteps = new long[units.length];
+		awake = new boolean[units.length];
+		IntList every = new IntList();
+		step = model.k - 1;
+		for (int i = 0; i < units.length; i++) {
+			wakes[i] = units[i].wake();
+			dueSteps[i] = -1;
+			switch (wakes[i]) {
+			case EVERY_STEP:
+				every.add(i);
+				break;
+			case SCHEDULED:
+				schedule(i, model.k);
+				break;
+			case PASSAGE:
+				int[] indices = passageUnits.get(units[i]);
+				indices = null == indices ? new int[1] : java.util.Arrays.copyOf(indices, indices.length + 1);
+				indices[indices.length - 1] = i;
+				passageUnits.put(units[i], indices);
+				wakeUp(i);
+				break;
+			case IDLE:
+				break;
+			}
+		}
+		everyStep = every.toArray();
+	}
+
+	/**
+	 * Wakes a unit that is woken by passing vehicles, so it runs in the next
+	 * run of the units. Other units are ignored.
+	 * @param unit Unit that a vehicle passed.
+	 */
+	public void passed(Controller unit) {
+		int[] indices = passageUnits.get(unit);
+		if (null != indices)
+			for (int i : indices)
+				wakeUp(i);
+	}
+
+	/**
+	 * Runs the units that need to run in the current time step of the model.
+	 * The on-board units are run by the model between the road-side units and
+	 * the controllers, as without scheduling.
+	 */
+	public void run() {
+		// collect scheduled units that are due
+		due.clear();
+		while (step < model.k) {
+			step++;
+			advance(step);
+		}
+		// merge with the awake units and the units that run every step, in order
+		for (int j = 0; j < awakeUnits.size; j++)
+			due.add(awakeUnits.values[j]);
+		java.util.Arrays.sort(due.values, 0, due.size);
+		run.clear();
+		int a = 0;
+		int b = 0;
+		int last = -1;
+		while ((a < everyStep.length) || (b < due.size)) {
+			int i;
+			if ((b == due.size) || ((a < everyStep.length) && (everyStep[a] < due.values[b])))
+				i = everyStep[a++];
+			else
+				i = due.values[b++];
+			if (i != last)
+				run.add(i);
+			last = i;
+		}
+		// run, after which the units are scheduled again
+		awakeUnits.clear();
+		boolean onBoardUnits = false;
+		for (int j = 0; j < run.size; j++) {
+			int i = run.values[j];
+			if (!onBoardUnits && (i >= roadSideUnits)) {
+				model.runOBUs();
+				onBoardUnits = true;
+			}
+			Controller unit = units[i];
+			unit.run();
+			if (wakes[i] == Controller.Wake.SCHEDULED)
+				schedule(i, unitStep(unit.dueTime()));
+			else if (wakes[i] == Controller.Wake.PASSAGE) {
+				awake[i] = false;
+				if (unit.stayAwake())
+					wakeUp(i);
+			}
+		}
+		if (!onBoardUnits)
+			model.runOBUs();
+	}
+
+	/**
+	 * Returns the number of units that ran in the last time step.
+	 * @return Number of units that ran.
+	 */
+	public int getActiveCount() {
+		return run.size;
+	}
+
+	/**
+	 * Returns the number of units.
+	 * @return Number of units, counting a unit that occurs more than once as often.
+	 */
+	public int getUnitCount() {
+		return units.length;
+	}
+
+	/** Wakes a unit that is woken by passing vehicles. */
+	private void wakeUp(int i) {
+		if (!awake[i]) {
+			awake[i] = true;
+			awakeUnits.add(i);
+		}
+	}
+
+	/**
+	 * Returns the time step in which a unit is run for a due time. This is one
+	 * step early, as the time of a step is <tt>k * dt</tt> and a run before the
+	 * due time does nothing.
+	 */
+	private long unitStep(double dueTime) {
+		if (!(dueTime < Double.POSITIVE_INFINITY))
+			return Long.MAX_VALUE;
+		double k = Math.floor(dueTime / model.dt) - 1;
+		return k > model.k ? (k < Long.MAX_VALUE / 2 ? (long) k : Long.MAX_VALUE) : model.k + 1;
+	}
+
+	/** Schedules a unit in a time step after the last collected step. */
+	private void schedule(int i, long dueStep) {
+		if (dueStep == Long.MAX_VALUE) {
+			dueSteps[i] = -1;
+			return;
+		}
+		dueSteps[i] = Math.max(dueStep, step + 1);
+		insert(i);
+	}
+
+	/** Inserts a unit in the wheel relative to the last collected step. */
+	private void insert(int i) {
+		long delta = dueSteps[i] - step;
+		for (int level = 0; level < LEVELS; level++)
+			if (delta < (1L << (BITS * (level + 1)))) {
+				int slot = (int) ((dueSteps[i] >>> (BITS * level)) & (SLOTS - 1));
+				if (null == wheel[level][slot])
+					wheel[level][slot] = new IntList();
+				wheel[level][slot].add(i);
+				return;
+			}
+		overflow.add(i);
+	}
+
+	/** Cascades the higher levels of the wheel and collects the units due in a step. */
+	private void advance(long k) {
+		if ((k & ((1L << (BITS * LEVELS)) - 1)) == 0)
+			reinsert(overflow);
+		for (int level = LEVELS - 1; level > 0; level--)
+			if ((k & ((1L << (BITS * level)) - 1)) == 0) {
+				IntList slot = wheel[level][(int) ((k >>> (BITS * level)) & (SLOTS - 1))];
+				if (null != slot)
+					reinsert(slot);
+			}
+		IntList slot = wheel[0][(int) (k & (SLOTS - 1))];
+		if (null != slot) {
+			for (int j = 0; j < slot.size; j++) {
+				int i = slot.values[j];
+				// units that were scheduled again are also in another slot
+				if (dueSteps[i] == k) {
+					dueSteps[i] = -1;
+					due.add(i);
+				}
+			}
+			slot.clear();
+		}
+	}
+
+	/** Moves the units of a slot to lower levels, relative to the current step. */
+	private void reinsert(IntList slot) {
+		int[] values = slot.toArray();
+		slot.clear();
+		for (int i : values)
+			if (dueSteps[i] >= step)
+				insert(i);
+	}
+
+	/** Growable list of ints. */
+	private static class IntList {
+		int[] values = new int[8];
+		int size = 0;
+
+		void add(int value) {
+			if (size == values.length)
+				values = java.util.Arrays.copyOf(values, 2 * size);
+			values[size++] = value;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		int[] toArray() {
+			return java.util.Arrays.copyOf(values, size);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package nl.tudelft.otsim.Simulators.LaneSimulator;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import nl.tudelft.otsim.Events.Scheduler;
+import nl.tudelft.otsim.GUI.FakeGraphicsPanel;
+
+import org.junit.Test;
+
+/** Test that the UnitScheduler runs units as without scheduling */
+public class UnitSchedulerTest {
+
+	/** Two roads that cross, traffic from the second road yields */
+	private static final String CROSSING = "EndTime:\t600.00\nSeed:\t1\n"
+			+ "Lane\tlaneID:\t0\tSpeedLimit:\t80\tXY:\t0.00,-1.75\t3000.00,-1.75\n"
+			+ "Lane\tlaneID:\t10\tSpeedLimit:\t80\tXY:\t1500.00,-1500.00\t1500.00,1500.00\n"
+			+ "LaneData\tlaneID:\t0\torigin:\t1\tdestination:\t2\n"
+			+ "LaneData\tlaneID:\t10\tcrossingYieldTo:\t0\torigin:\t11\tdestination:\t12\n"
+			+ "TrafficClass\tPassengerCar\t4.000\t160.000\t-6.000\t0.000000\t0.000\n"
+			+ "TripPattern\tnumberOfTrips:\t[0.000/1200.000000][0.000/1.000000]\tLocationPattern:\t[z1, z2]\tFractions\tPassengerCar:1.000000\n"
+			+ "TripPatternPath\tnumberOfTrips:\t[0.000/1200.000000][0.000/1.000000]\tNodePattern:\t[]\n"
+			+ "Path:\t1.000000\tnodes:\t1\t2\n"
+			+ "TripPattern\tnumberOfTrips:\t[0.000/600.000000][0.000/1.000000]\tLocationPattern:\t[z11, z12]\tFractions\tPassengerCar:1.000000\n"
+			+ "TripPatternPath\tnumberOfTrips:\t[0.000/600.000000][0.000/1.000000]\tNodePattern:\t[]\n"
+			+ "Path:\t1.000000\tnodes:\t11\t12\n";
+
+	/** Controller that logs its control runs */
+	private static class Periodic extends Controller {
+		final ArrayList<String> log;
+		final Controller.Wake wake;
+		int runs = 0;
+
+		Periodic(Model model, double period, Controller.Wake wake, ArrayList<String> log) {
+			super(model, period);
+			this.wake = wake;
+			this.log = log;
+		}
+
+		@Override
+		public void init() {
+			// nothing to initialize
+		}
+
+		@Override
+		public void run() {
+			runs++;
+			super.run();
+		}
+
+		@Override
+		public void control() {
+			log.add(String.format("%s %d %.1f", wake, model.k, model.t));
+		}
+
+		@Override
+		public void noControl() {
+			// only runs control
+		}
+
+		@Override
+		public Wake wake() {
+			return wake;
+		}
+	}
+
+	/** RSU that logs a number of runs after a vehicle passed */
+	private static class Passage extends RSU {
+		final ArrayList<String> log;
+		int remaining = 0;
+		int runs = 0;
+
+		Passage(Lane lane, ArrayList<String> log) {
+			super(lane, 50, true, false);
+			this.log = log;
+		}
+
+		@Override
+		public void init() {
+			// nothing to initialize
+		}
+
+		@Override
+		public void pass(Vehicle vehicle) {
+			remaining = 3;
+		}
+
+		@Override
+		public void run() {
+			runs++;
+			super.run();
+		}
+
+		@Override
+		public void control() {
+			if (remaining > 0) {
+				log.add(String.format("passage %d %d", model.k, remaining));
+				remaining--;
+			}
+		}
+
+		@Override
+		public void noControl() {
+			// only runs control
+		}
+
+		@Override
+		public Wake wake() {
+			return Wake.PASSAGE;
+		}
+
+		@Override
+		public boolean stayAwake() {
+			return remaining > 0;
+		}
+	}
+
+	/**
+	 * Runs units with periods up to beyond the range of the third level of
+	 * the wheel, returning the log of their control runs and traffic light
+	 * colors.
+	 */
+	private static ArrayList<String> run(boolean schedule, int[] runs) {
+		Model model = new Model();
+		model.settings.putBoolean("scheduleUnits", schedule);
+		model.dt = 0.1;
+		Lane lane = new Lane(model, new double[]{0, 1000}, new double[]{0, 0}, 1);
+		model.network = new Lane[] {lane};
+		ArrayList<String> log = new ArrayList<String>();
+		TrafficLight light = new TrafficLight(lane, 500, "light", null);
+		light.attachSimpleController(600, 3, 900, 100);
+		Passage passage = new Passage(lane, log);
+		Periodic everyStep = new Periodic(model, 1.5, Controller.Wake.EVERY_STEP, log);
+		Periodic scheduled = new Periodic(model, 5000, Controller.Wake.SCHEDULED, log);
+		Periodic far = new Periodic(model, 27000, Controller.Wake.SCHEDULED, log);
+		Periodic idle = new Periodic(model, 1, Controller.Wake.IDLE, new ArrayList<String>());
+		model.addController(everyStep);
+		model.addController(scheduled);
+		model.addController(far);
+		model.addController(idle);
+		model.init();
+		char color = ' ';
+		for (int k = 0; k<=300000; k++) {
+			model.runUnits();
+			char now = light.isGreen() ? 'G' : light.isYellow() ? 'Y' : 'R';
+			if (now != color)
+				log.add(String.format("light %d %c", model.k, now));
+			color = now;
+			if (k % 7919 == 0 || k == 262143 || k == 262144) {
+				model.passed(passage);
+				passage.pass(null);
+			}
+			model.k++;
+			model.t = model.k * model.dt;
+		}
+		runs[0] = passage.runs;
+		runs[1] = scheduled.runs + far.runs;
+		runs[2] = idle.runs;
+		return log;
+	}
+
+	/**
+	 * Scheduled units take the same control actions in the same time steps
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testSameRuns() {
+		int[] runs = new int[3];
+		ArrayList<String> expected = run(false, runs);
+		assertEquals(4 * 300001, runs[0] + runs[1] + runs[2]);
+		int[] scheduledRuns = new int[3];
+		ArrayList<String> actual = run(true, scheduledRuns);
+		assertEquals(expected, actual);
+		assertTrue(expected.contains("SCHEDULED 270000 27000.0"));
+		assertTrue(expected.contains("light 5000 Y"));
+		assertTrue(scheduledRuns[0] < 200);
+		assertTrue(scheduledRuns[1] < 50);
+		assertEquals(0, scheduledRuns[2]);
+	}
+
+	/** Speed reduction that implements control */
+	private static class ControlledReduction extends SpeedReduction {
+		int runs = 0;
+
+		ControlledReduction(Lane lane) {
+			super(lane, 100);
+		}
+
+		@Override
+		public void control() {
+			runs++;
+		}
+	}
+
+	/**
+	 * Speed reductions, traffic lights and VMS are idle, but their subclasses run every
+	 * time step, also with scheduled units
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testSubclassWake() throws Exception {
+		Model model = new Model();
+		model.settings.putBoolean("scheduleUnits", true);
+		model.dt = 0.1;
+		Lane lane = new Lane(model, new double[]{0, 1000}, new double[]{0, 0}, 1);
+		model.network = new Lane[] {lane};
+		assertEquals(Controller.Wake.IDLE, new SpeedReduction(lane, 50).wake());
+		assertEquals(Controller.Wake.IDLE, new TrafficLight(lane, 200, "light", null).wake());
+		assertEquals(Controller.Wake.IDLE, new VMS(lane, 300, "").wake());
+		assertEquals(Controller.Wake.EVERY_STEP, new TrafficLight(lane, 400, "subclass", null) {
+			// subclass without changes
+		}.wake());
+		assertEquals(Controller.Wake.EVERY_STEP, new VMS(lane, 500, "") {
+			// subclass without changes
+		}.wake());
+		ControlledReduction reduction = new ControlledReduction(lane);
+		assertEquals(Controller.Wake.EVERY_STEP, reduction.wake());
+		model.init();
+		for (int k = 0; k<100; k++) {
+			model.runUnits();
+			model.k++;
+			model.t = model.k * model.dt;
+		}
+		assertEquals(100, reduction.runs);
+	}
+
+	/** State of all vehicles and the upstream vehicles of the conflicts every 10 s */
+	private static ArrayList<String> runCrossing(boolean schedule) {
+		Scheduler scheduler = new Scheduler(LaneSimulator.simulatorType, new FakeGraphicsPanel(), CROSSING);
+		Model model = ((LaneSimulator) scheduler.getSimulator()).getModel();
+		model.settings.putBoolean("scheduleUnits", schedule);
+		// the model is initialized by the scheduler, before the setting could be changed
+		model.unitScheduler = schedule ? new UnitScheduler(model) : null;
+		ArrayList<String> result = new ArrayList<String>();
+		int upstream = 0;
+		for (double t = 10; t <= 600; t += 10) {
+			scheduler.stepUpTo(t);
+			for (Vehicle v : model.getVehicles())
+				result.add(String.format("%d %d %s %s %s", v.id(), v.getLane().id(), Double.toHexString(v.x), Double.toHexString(v.v), Double.toHexString(v.a)));
+			for (Lane lane : model.network)
+				for (int i = 0; i<lane.RSUcount(); i++)
+					if (lane.getRSU(i) instanceof Conflict.conflictRSU) {
+						Movable up = ((Conflict.conflictRSU) lane.getRSU(i)).up();
+						result.add(lane.id() + " up " + (null == up ? "-" : Integer.toString(up.id())));
+						if (null != up)
+							upstream++;
+					}
+		}
+		assertTrue("conflicts find upstream vehicles", upstream > 0);
+		return result;
+	}
+
+	/**
+	 * Vehicles at a crossing conflict behave the same with scheduled units
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testConflict() {
+		assertEquals(runCrossing(false), runCrossing(true));
+	}
+}
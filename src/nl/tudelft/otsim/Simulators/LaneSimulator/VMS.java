@@ -50,4 +50,13 @@ public class VMS extends RSU {
 		// Required; does nothing;
 	}
 
+	/**
+	 * Returns that this VMS never needs to run, as it is only passed. Subclasses may
+	 * implement control and run every time step.
+	 */
+	@Override
+	public Wake wake() {
+		return VMS.class == getClass() ? Wake.IDLE : Wake.EVERY_STEP;
+	}
+
 }
@@ -57,6 +57,12 @@ public class Vehicle extends Movable implements SimulatedObject {
     
     /** Lane where the rear is located, used for heading determination. */ 
     protected Lane rearLane;
+    
+    /** Section of the rear lane curvature at the last heading determination. */
+    private int rearSection = 1;
+    
+    /** Global x and y of the rear, set by {@link #setHeading()}. */
+    private final java.awt.geom.Point2D.Double rearXY = new java.awt.geom.Point2D.Double();
 
     /** 
      * Constructor connecting the vehicle with the main model. 
@@ -66,6 +72,43 @@ public class Vehicle extends Movable implements SimulatedObject {
         super(model);
     }
 
+    /**
+     * Resets this vehicle to the state of a new vehicle, for reuse by the 
+     * {@link MovablePool}. The driver and trajectory are kept and reset as 
+     * well.
+     */
+    @Override
+    protected void reset() {
+        super.reset();
+        OBU = null;
+        dy = 0;
+        lcProgress = 0;
+        lcDirection = null;
+        lcVehicle = null;
+        vMax = 0;
+        aMin = 0;
+        route = null;
+        classID = 0;
+        RSUsInRange.clear();
+        RSURange = 0;
+        moved = -1;
+        rearLane = null;
+        rearSection = 1;
+        rearXY.setLocation(0, 0);
+        driver.reset();
+        if (null != trajectory)
+            trajectory.reset(trajectory.getFCDclass());
+    }
+
+    /**
+     * Publishes the state of the vehicle and of the driver.
+     */
+    @Override
+    void publish() {
+        super.publish();
+        driver.publish();
+    }
+
     /**
      * Sets the acceleration which is limited by vehicle capabilities and by
      * reaching a speed of zero.
@@ -190,6 +233,7 @@ public class Vehicle extends Movable implements SimulatedObject {
             	//if ((3 == id) && (rsu instanceof Lane.splitRSU))
             	//	System.out.println("Vehicle " + id + " passes splitRSU " + ((Lane.splitRSU) rsu).toString());
                 if (rsu.passable || rsu.noticeable) {
+                    model.passed(rsu);
                     rsu.pass(this);
                     if (! model.vehicles.contains(this))
                     	return;	// this vehicle was deleted by rsu.pass
@@ -312,7 +356,7 @@ public class Vehicle extends Movable implements SimulatedObject {
      * Starts a lane change by creating an <tt>lcVehicle</tt>.
      */
     public void startLaneChange() {
-        lcVehicle = new LCVehicle(this);//
+        lcVehicle = model.pool.lcVehicle(this);
         model.addVehicle(lcVehicle);//
         Lane atLane;
         if (lcDirection==Model.latDirection.LEFT)
@@ -398,11 +442,12 @@ public class Vehicle extends Movable implements SimulatedObject {
      * Sets the heading of this vehicle based on lane curvature.
      */
     public void setHeading() {
-        java.awt.geom.Point2D.Double p1 = getLane().XY(x);
+        java.awt.geom.Point2D.Double p1 = atLaneXY();
         java.awt.geom.Point2D.Double p2;
         if ((x > l) || (null == rearLane)) {
             rearLane = getLane();
-            p2 = getLane().XY (x - l);
+            rearSection = rearLane.section(x - l, rearSection);
+            p2 = rearLane.XY(x - l, rearSection, rearXY);
         } else {
             // update rearLane
         	int attempt = 0;
@@ -428,7 +473,8 @@ public class Vehicle extends Movable implements SimulatedObject {
                 }
                 xRear = rearLane.xAdj (getLane()) + x - l;
             }
-            p2 = rearLane.XY (xRear);
+            rearSection = rearLane.section(xRear, rearSection);
+            p2 = rearLane.XY(xRear, rearSection, rearXY);
         }
         double xx = p1.x - p2.x;
         double yy = p1.y - p2.y;
@@ -474,7 +520,7 @@ public class Vehicle extends Movable implements SimulatedObject {
     	String location = "null";
     	if (null != global)
     		location = String.format(Main.locale, "%.3f,%.3f", global.x, global.y);
-    	return String.format (Main.locale, "%d at (%s), route %s", id, location, route.toString());
+    	return String.format (Main.locale, "%d at (%s), route %s", id(), location, route.toString());
     }
     
     /**
@@ -73,8 +73,13 @@ public class VehicleDriver {
      * @return Default vehicle copy.
      */
     protected Vehicle copyDefaultVehicle() {
-        // new vehicle
-        Vehicle veh = new Vehicle(model);
+        // deleted vehicle with driver and trajectory from the pool, or new vehicle
+        Vehicle veh = null;
+        if (model.pool.isEnabled() && MovablePool.isPoolable(defaultVehicle))
+            veh = model.pool.vehicle();
+        if (null != veh)
+            return copyDefaultVehicle(veh);
+        veh = new Vehicle(model);
 
         // copy or set all relevant vehicle attributes
         veh.aMin = defaultVehicle.aMin;
@@ -140,6 +145,44 @@ public class VehicleDriver {
         }
 
         // copy driver parameters
+        copyDriverParameters(veh);
+        return veh;
+    }
+
+    /**
+     * Sets a vehicle from the pool, with its driver and trajectory, as a copy
+     * of the default vehicle. The default vehicle has no OBU.
+     * @param veh Vehicle from the pool.
+     * @return Default vehicle copy.
+     */
+    private Vehicle copyDefaultVehicle(Vehicle veh) {
+        veh.aMin = defaultVehicle.aMin;
+        veh.l = defaultVehicle.l;
+        veh.marker = defaultVehicle.marker;
+        if (null == defaultVehicle.trajectory)
+            veh.trajectory = null;
+        else if (null == veh.trajectory) {
+            try {
+                veh.trajectory = new Trajectory(veh, defaultVehicle.trajectory.getFCDclass().getName());
+            } catch (ClassNotFoundException e) {
+                throw new java.lang.RuntimeException("Could not instantiate a new trajectory.", e);
+            }
+        } else {
+            veh.trajectory.reset(defaultVehicle.trajectory.getFCDclass());
+            veh.trajectory.vehicle = veh;
+        }
+        veh.vMax = defaultVehicle.vMax;
+        veh.classID = id;
+        copyDriverParameters(veh);
+        return veh;
+    }
+
+    /**
+     * Copies all accessible primitive attributes of the default driver to the
+     * driver of a vehicle.
+     * @param veh Vehicle of the driver.
+     */
+    private void copyDriverParameters(Vehicle veh) {
         java.lang.reflect.Field[] fields = veh.driver.getClass().getFields();
         for (int i = 0; i < fields.length; i++) {
             if (fields[i].getType().isPrimitive()) {
@@ -165,7 +208,6 @@ public class VehicleDriver {
                 }
             }
         }
-        return veh;
     }
 
     /**
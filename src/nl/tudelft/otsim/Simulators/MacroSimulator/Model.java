@@ -3,6 +3,7 @@ package nl.tudelft.otsim.Simulators.MacroSimulator;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 
@@ -376,6 +377,118 @@ public class Model implements SimulatedModel {
 			c.updateVariables();
 		}
 	}
+	/**
+	 * Copy one state variable of all elements into a column of a preallocated buffer.
+	 * Element i is written to target[offset+i][column]; no intermediate arrays are created.
+	 * @param outputType name of the state variable (see {@link #saveStateToArray(String)})
+	 * @param target buffer with one row per state variable
+	 * @param offset first row to write
+	 * @param column column (ensemble member) to write
+	 */
+	public void saveStateToColumn(String outputType, double[][] target, int offset, int column) {
+		if (outputType.equals("density")) {
+			for (int i=0; i<nrCells; i++)
+				target[offset+i][column] = cells.get(i).KCell;
+		} else if (outputType.equals("speed")) {
+			for (int i=0; i<nrCells; i++)
+				target[offset+i][column] = cells.get(i).VCell;
+		} else if (outputType.equals("inflow")) {
+			for (int i=0; i<nrInflowNodes; i++)
+				target[offset+i][column] = inflowNodes.get(i).getInflow();
+		} else if (outputType.equals("criticalDensity")) {
+			for (int i=0; i<nrCells; i++)
+				target[offset+i][column] = cells.get(i).kCri;
+		} else if (outputType.equals("speedLimit")) {
+			for (int i=0; i<nrCells; i++)
+				target[offset+i][column] = cells.get(i).vLim;
+		} else if (outputType.equals("jamDensity")) {
+			for (int i=0; i<nrCells; i++)
+				target[offset+i][column] = cells.get(i).kJam;
+		} else if (outputType.equals("criticalSpeed")) {
+			for (int i=0; i<nrCells; i++)
+				target[offset+i][column] = cells.get(i).vCri;
+		} else if (outputType.equals("speedLimitLink")) {
+			for (int i=0; i<links.size(); i++)
+				target[offset+i][column] = links.get(i).vLim;
+		} else if (outputType.equals("criticalDensityLink")) {
+			for (int i=0; i<links.size(); i++)
+				target[offset+i][column] = links.get(i).kCri;
+		} else if (outputType.equals("jamDensityLink")) {
+			for (int i=0; i<links.size(); i++)
+				target[offset+i][column] = links.get(i).kJam;
+		} else if (outputType.equals("criticalSpeedLink")) {
+			for (int i=0; i<links.size(); i++)
+				target[offset+i][column] = links.get(i).vCri;
+		} else if (outputType.equals("turnfraction")) {
+			for (int i=0; i<junctionNodes.size(); i++)
+				target[offset+i][column] = junctionNodes.get(i).getTurningRatioCompact();
+		} else {
+			throw new Error("Wrong parameter to be saved");
+		}
+	}
+
+	/**
+	 * Restore one state variable of all elements from a column of a buffer. Applies the
+	 * same bounds as {@link #restoreState(double[], String)} and
+	 * {@link #restoreStateLinks(double[], String)}, but does not update the derived cell
+	 * variables; call {@link #updateCellVariables()} once after all variables are restored.
+	 * @param source buffer with one row per state variable
+	 * @param offset first row to read
+	 * @param column column (ensemble member) to read
+	 * @param outputType name of the state variable
+	 */
+	public void restoreStateFromColumn(double[][] source, int offset, int column, String outputType) {
+		if (outputType.equals("density")) {
+			for (int i=0; i<nrCells; i++) {
+				double value = source[offset+i][column];
+				if (Double.isNaN(value))
+					throw new Error("NaN");
+				cells.get(i).KCell = Math.min(Math.max(value,0),cells.get(i).kJam);
+			}
+		} else if (outputType.equals("inflow")) {
+			for (int i=0; i<nrInflowNodes; i++) {
+				double value = source[offset+i][column];
+				if (Double.isNaN(value))
+					throw new Error("NaN");
+				inflowNodes.get(i).setInflow(Math.min(Math.max(value,0),99));
+			}
+		} else if (outputType.equals("criticalDensity")) {
+			for (int i=0; i<nrCells; i++)
+				cells.get(i).kCri = Math.max(source[offset+i][column],0.0001);
+		} else if (outputType.equals("speedLimit")) {
+			for (int i=0; i<nrCells; i++)
+				cells.get(i).setVLim(Math.max(source[offset+i][column],0));
+		} else if (outputType.equals("jamDensity")) {
+			for (int i=0; i<nrCells; i++)
+				cells.get(i).kJam = Math.max(source[offset+i][column],0.0001);
+		} else if (outputType.equals("turnfraction")) {
+			for (int i=0; i<junctionNodes.size(); i++) {
+				double value = source[offset+i][column];
+				if (Double.isNaN(value))
+					throw new Error("NaN");
+				junctionNodes.get(i).setTurningRatioCompact(Math.min(Math.max(value,0.0000),1));
+			}
+		} else if (outputType.equals("criticalDensityLink")) {
+			for (int i=0; i<links.size(); i++)
+				links.get(i).setKCri(Math.max(source[offset+i][column],0.0001));
+		} else if (outputType.equals("speedLimitLink")) {
+			for (int i=0; i<links.size(); i++)
+				links.get(i).setVLim(Math.max(source[offset+i][column],0));
+		} else if (outputType.equals("jamDensityLink")) {
+			for (int i=0; i<links.size(); i++)
+				links.get(i).setKJam(Math.max(source[offset+i][column],0.0001));
+		} else if (outputType.equals("criticalSpeedLink")) {
+			for (int i=0; i<links.size(); i++)
+				links.get(i).setVCri(Math.max(source[offset+i][column],0.0001));
+		} else {
+			throw new Error("Wrong parameter to be restored");
+		}
+	}
+	public void updateCellVariables() {
+		for (MacroCell c: getCells()) {
+			c.updateVariables();
+		}
+	}
 	public double[] getOutput(String outputType) {
 		double[] tmpstate = null;
 
@@ -476,6 +589,9 @@ public class Model implements SimulatedModel {
 	public void setExternalEvents(List<ExternalEvent> externalEvents) {
 		this.externalEvents = externalEvents;
 	}
+	public List<ExternalEvent> getExternalEvents() {
+		return this.externalEvents;
+	}
 	public ArrayList<NodeDetector> getDetectors() {
 		return this.detectors;
 	}
@@ -488,11 +604,41 @@ public class Model implements SimulatedModel {
 	public void setLinks(ArrayList<Link> links) {
 		this.links = links;
 	}
+	private HashMap<MacroCell, Integer> cellIndex;
+	private HashMap<NodeDetector, Integer> detectorIndex;
+	/** 
+	 * Index of a cell in {@link #getCells()}, or -1. The cached index is checked against
+	 * the list, so it is rebuilt whenever the cells are changed.
+	 */
+	public int indexOf(MacroCell c) {
+		Integer index = cellIndex == null ? null : cellIndex.get(c);
+		if (index == null || index >= cells.size() || cells.get(index) != c) {
+			cellIndex = new HashMap<MacroCell, Integer>(2*cells.size());
+			for (int i = 0; i<cells.size(); i++)
+				cellIndex.put(cells.get(i), i);
+			index = cellIndex.get(c);
+		}
+		return index == null ? -1 : index;
+	}
+	/** 
+	 * Index of a detector in {@link #getDetectors()}, or -1. The cached index is checked
+	 * against the list, so it is rebuilt whenever the detectors are changed.
+	 */
+	public int indexOf(NodeDetector n) {
+		Integer index = detectorIndex == null ? null : detectorIndex.get(n);
+		if (index == null || index >= detectors.size() || detectors.get(index) != n) {
+			detectorIndex = new HashMap<NodeDetector, Integer>(2*detectors.size());
+			for (int i = 0; i<detectors.size(); i++)
+				detectorIndex.put(detectors.get(i), i);
+			index = detectorIndex.get(n);
+		}
+		return index == null ? -1 : index;
+	}
 	public int[] getIndices(LinkedHashSet<MacroCell> cells) {
 		int[] result = new int[cells.size()];
 		int i=0;
 		for (MacroCell c: cells) {
-			result[i]=this.cells.indexOf(c);
+			result[i]=indexOf(c);
 			i++;
 		}
 
@@ -502,7 +648,7 @@ public class Model implements SimulatedModel {
 		int[] result = new int[detectors.size()*2];
 		int i=0;
 		for (NodeDetector n: detectors) {
-			int index = this.detectors.indexOf(n);
+			int index = indexOf(n);
 			result[i]=index;
 
 			result[detectors.size()+i]=index+this.detectors.size();
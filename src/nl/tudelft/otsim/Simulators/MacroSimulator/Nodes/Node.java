@@ -106,6 +106,34 @@ abstract public class Node {
 	}
 	abstract public void calcFlux();
 	
+	/**
+	 * Derivatives of the fluxes of {@link #calcFlux()} at the given supplies and demands, as
+	 * used by the adjoint of the model. The rows are the fluxes in, followed by the fluxes out.
+	 * The columns are given by {@link #supplyColumn(int)}, {@link #demandColumn(int)},
+	 * {@link #capacityColumn(int)} and {@link #turningRatioColumn(int, int)}.
+	 * @param supply supply of every cell out
+	 * @param demand demand of every cell in
+	 * @param qCapIn capacity of every cell in
+	 */
+	public double[][] calcFluxJacobian(double[] supply, double[] demand, double[] qCapIn) {
+		throw new Error("No flux derivatives for " + getClass().getSimpleName());
+	}
+	protected double[][] newFluxJacobian() {
+		return new double[nrIn + nrOut][nrOut + 2*nrIn + nrIn*nrOut];
+	}
+	public int supplyColumn(int out) {
+		return out;
+	}
+	public int demandColumn(int in) {
+		return nrOut + in;
+	}
+	public int capacityColumn(int in) {
+		return nrOut + nrIn + in;
+	}
+	public int turningRatioColumn(int in, int out) {
+		return nrOut + 2*nrIn + in*nrOut + out;
+	}
+	
 	
 	
 }
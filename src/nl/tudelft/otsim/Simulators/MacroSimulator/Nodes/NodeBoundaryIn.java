@@ -61,6 +61,43 @@ public class NodeBoundaryIn extends Node {
 		}
 				
 	}
+	public double getRestVehicles() {
+		return restVehicles;
+	}
+	/**
+	 * Derivatives of one {@link #calcFlux()}, as used by the adjoint of the model.
+	 * @param supply supply of the cell out
+	 * @param inflow inflow at the time of the flux
+	 * @param rest rest vehicles before the flux
+	 * @param dt time step
+	 * @return derivatives of the flux and of the new rest vehicles, both with respect to the
+	 * supply, the inflow and the rest vehicles
+	 */
+	public static double[] calcFluxDerivatives(double supply, double inflow, double rest, double dt) {
+		double res = Math.min(supply, inflow + rest/dt);
+		double[] result = new double[6];
+		if (supply <= inflow + rest/dt)
+			result[0] = 1;
+		else {
+			result[1] = 1;
+			result[2] = 1/dt;
+		}
+		double diff = (inflow - res)*dt;
+		double newRest = rest;
+		result[5] = 1;
+		if (Math.abs(diff)>0.000001) {
+			newRest += diff;
+			result[3] = -dt*result[0];
+			result[4] = dt*(1 - result[1]);
+			result[5] = 1 - dt*result[2];
+		}
+		if (Math.abs(newRest)<0.00000001) {
+			result[3] = 0;
+			result[4] = 0;
+			result[5] = 0;
+		}
+		return result;
+	}
 	public double calcFluxValue(MacroCell cell, double[] addedParam, double addedFlowIn) {
 			double supply = cellsOut.get(0).calcSupplyValue(new double[]{cell.KCell+addedParam[0], cell.vLim + addedParam[1], cell.kCri + addedParam[2], cell.kJam+addedParam[3], cell.vCri+addedParam[4]});
 			return Math.min(supply, getInflow() + addedFlowIn);
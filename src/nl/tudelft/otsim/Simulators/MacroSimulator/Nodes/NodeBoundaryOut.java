@@ -16,4 +16,10 @@ public class NodeBoundaryOut extends Node {
 		}
 
 	}
+	public double[][] calcFluxJacobian(double[] supply, double[] demand, double[] qCapIn) {
+		double[][] jacobian = newFluxJacobian();
+		if (nrIn == 1 && nrOut == 0)
+			jacobian[0][demandColumn(0)] = 1;
+		return jacobian;
+	}
 }
@@ -1,18 +1,42 @@
 package nl.tudelft.otsim.Simulators.MacroSimulator.Nodes;
 
+import java.util.Arrays;
+
 import nl.tudelft.otsim.GeoObjects.Vertex;
 import nl.tudelft.otsim.Simulators.MacroSimulator.MacroCell;
 
 
 // For now: turnfractions are hardcoded to 50% in each direction
 public class NodeInterior extends Node {
+	/** supplies, demands and capacities of the cells, reused in every step */
+	private double[] supply;
+	private double[] demand;
+	private double[] qCapIn;
+
 	public NodeInterior(Vertex loc) {
 		super(loc);
 	}
 	
+	@Override
+	public void init() {
+		super.init();
+		supply = new double[nrOut];
+		demand = new double[nrIn];
+		qCapIn = new double[nrIn];
+	}
+
 	public void calcFlux() {
+		for (int j=0; j<nrOut; j++)
+			supply[j] = cellsOut.get(j).Supply;
+		for (int i=0; i<nrIn; i++) {
+			demand[i] = cellsIn.get(i).Demand;
+			qCapIn[i] = cellsIn.get(i).qCap;
+		}
+		calcFlux(supply, demand, qCapIn);
+	}
+	public void calcFlux(double[] supply, double[] demand, double[] qCapIn) {
 		if (nrIn == 1 && nrOut == 1) {
-			double res = Math.min(cellsOut.get(0).Supply, cellsIn.get(0).Demand);
+			double res = Math.min(supply[0], demand[0]);
 			fluxesIn[0] = res;
 			fluxesOut[0] = res;
 		/*	if (Double.isNaN(res)) {
@@ -28,10 +52,10 @@ public class NodeInterior extends Node {
     		}
 			fluxesIn[0] = totIn;*/
 			double totIn = 0;
-			double totalflux = cellsIn.get(0).Demand;
+			double totalflux = demand[0];
 			for (int i=0; i<nrOut; i++) {
 				if (turningRatio[0][i] > 0)
-					totalflux = Math.min(totalflux, cellsOut.get(i).Supply/turningRatio[0][i]);
+					totalflux = Math.min(totalflux, supply[i]/turningRatio[0][i]);
 			}
 			
 			for (int i=0; i<nrOut; i++) {
@@ -55,18 +79,18 @@ public class NodeInterior extends Node {
 			}
 			double totalSstar = 0;
 			for (int i=0; i<nrIn; i++) {
-				totalCapacity += cellsIn.get(i).qCap;
+				totalCapacity += qCapIn[i];
 			}
 			for (int i=0; i<nrIn; i++) {
-				Sstar[i] = cellsIn.get(i).qCap/totalCapacity*cellsOut.get(0).Supply;
+				Sstar[i] = qCapIn[i]/totalCapacity*supply[0];
 				//totalSstar += Sstar[i];
 			}
 			double[] S = new double[2];
-			S[0] = Sstar[0] + Math.max(0, Sstar[1] - cellsIn.get(1).Demand);
-			S[1] = Sstar[1] + Math.max(0, Sstar[0] - cellsIn.get(0).Demand);
+			S[0] = Sstar[0] + Math.max(0, Sstar[1] - demand[1]);
+			S[1] = Sstar[1] + Math.max(0, Sstar[0] - demand[0]);
 			//double a = cellsOut.get(0).Supply/totalDemand;
     		for (int i=0; i<nrIn; i++) {
-    			fluxesIn[i] = Math.min(cellsIn.get(i).Demand,S[i]);
+    			fluxesIn[i] = Math.min(demand[i],S[i]);
     			totOut += fluxesIn[i];
     			/*//System.out.println(FluxIn2.length);
     			//System.out.println(Supply);
@@ -83,4 +107,65 @@ public class NodeInterior extends Node {
 		}
 		
 	}
+	/**
+	 * Derivatives of {@link #calcFlux(double[], double[], double[])}, taking the same branches.
+	 */
+	public double[][] calcFluxJacobian(double[] supply, double[] demand, double[] qCapIn) {
+		double[][] jacobian = newFluxJacobian();
+		if (nrIn == 1 && nrOut == 1) {
+			int column = supply[0] <= demand[0] ? supplyColumn(0) : demandColumn(0);
+			jacobian[0][column] = 1;
+			jacobian[1][column] = 1;
+		}
+		if (nrIn == 1 && nrOut > 1) {
+			double totalflux = demand[0];
+			double[] dTotalflux = new double[jacobian[0].length];
+			dTotalflux[demandColumn(0)] = 1;
+			for (int i=0; i<nrOut; i++) {
+				if (turningRatio[0][i] > 0 && !(totalflux <= supply[i]/turningRatio[0][i])) {
+					totalflux = supply[i]/turningRatio[0][i];
+					Arrays.fill(dTotalflux, 0);
+					dTotalflux[supplyColumn(i)] = 1/turningRatio[0][i];
+					dTotalflux[turningRatioColumn(0, i)] = -totalflux/turningRatio[0][i];
+				}
+			}
+			for (int i=0; i<nrOut; i++) {
+				for (int c=0; c<dTotalflux.length; c++)
+					jacobian[1+i][c] = dTotalflux[c]*turningRatio[0][i];
+				jacobian[1+i][turningRatioColumn(0, i)] += totalflux;
+			}
+			jacobian[0] = dTotalflux;
+		}
+		if (nrIn == 2 && nrOut == 1) {
+			int n = jacobian[0].length;
+			double totalCapacity = qCapIn[0] + qCapIn[1];
+			double[] Sstar = new double[2];
+			double[][] dSstar = new double[2][n];
+			for (int i=0; i<nrIn; i++) {
+				Sstar[i] = qCapIn[i]/totalCapacity*supply[0];
+				dSstar[i][supplyColumn(0)] = qCapIn[i]/totalCapacity;
+				for (int m=0; m<nrIn; m++)
+					dSstar[i][capacityColumn(m)] = ((i == m ? totalCapacity : 0) - qCapIn[i])*supply[0]/(totalCapacity*totalCapacity);
+			}
+			for (int i=0; i<nrIn; i++) {
+				// S[i] = Sstar[i] + max(0, Sstar[other] - demand[other])
+				int other = 1 - i;
+				double[] dS = dSstar[i].clone();
+				double S = Sstar[i];
+				if (Sstar[other] - demand[other] > 0) {
+					S += Sstar[other] - demand[other];
+					for (int c=0; c<n; c++)
+						dS[c] += dSstar[other][c];
+					dS[demandColumn(other)] -= 1;
+				}
+				if (demand[i] <= S)
+					jacobian[i][demandColumn(i)] = 1;
+				else
+					jacobian[i] = dS;
+				for (int c=0; c<n; c++)
+					jacobian[2][c] += jacobian[i][c];
+			}
+		}
+		return jacobian;
+	}
 }
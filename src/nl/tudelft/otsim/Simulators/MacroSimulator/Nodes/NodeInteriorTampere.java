@@ -371,5 +371,175 @@ public class NodeInteriorTampere extends NodeInterior {
 		
 		
 	}
+	/**
+	 * Derivatives of {@link #calcFluxValues(double[], double[], double[])}. The fluxes are
+	 * piecewise linear in the supplies, demands and capacities; every step of the algorithm
+	 * is repeated with the same decisions, carrying the derivatives of every intermediate value.
+	 */
+	public double[][] calcFluxJacobian(double[] supply, double[] demand, double[] qCapIn) {
+		double[][] jacobian = newFluxJacobian();
+		int n = jacobian[0].length;
+		int maxK = nrIn+2;
+		boolean[][][] Ut = new boolean[maxK][nrOut][nrIn];
+		boolean[][] Jt = new boolean[maxK][nrOut];
+		double[][] Rt = new double[maxK][nrOut];
+		double[][][] dRt = new double[maxK][nrOut][n];
+		double[][][] dq = new double[nrIn][nrOut][n];
+
+		Rt[0] = supply.clone();
+		for (int j=0; j<nrOut; j++)
+			dRt[0][j][supplyColumn(j)] = 1;
+		double[] S1 = demand;
+		double[] C1 = qCapIn;
+
+		// step 1
+		double[][] S2 = new double[nrIn][nrOut];
+		double[][][] dS2 = new double[nrIn][nrOut][n];
+		for (int i=0; i<nrIn; i++) {
+			for (int j=0; j<nrOut; j++) {
+				S2[i][j] = turningRatio[i][j]*S1[i];
+				dS2[i][j][demandColumn(i)] = turningRatio[i][j];
+				dS2[i][j][turningRatioColumn(i, j)] = S1[i];
+			}
+		}
+		for (int j=0; j<nrOut; j++) {
+			double temp = 0;
+			for (int i=0; i<nrIn; i++) {
+				Ut[0][j][i] = S2[i][j] > 0;
+				if (Ut[0][j][i])
+					temp += S2[i][j];
+			}
+			Jt[0][j] = temp > 0;
+		}
+
+		// step 2
+		double[][] C2 = new double[nrIn][nrOut];
+		double[][][] dC2 = new double[nrIn][nrOut][n];
+		for (int i=0; i<nrIn; i++) {
+			if (S1[i] > 0) {
+				for (int j=0; j<nrOut; j++) {
+					double share = S2[i][j]/S1[i];
+					C2[i][j] = share*C1[i];
+					for (int c=0; c<n; c++)
+						dC2[i][j][c] = C1[i]*dS2[i][j][c]/S1[i];
+					dC2[i][j][demandColumn(i)] -= C1[i]*share/S1[i];
+					dC2[i][j][capacityColumn(i)] += share;
+				}
+			}
+		}
+
+		// step 3
+		int k = 0;
+		double[][] a = new double[maxK][nrOut];
+		double[] ajhat = new double[maxK];
+		double[][] dAjhat = new double[maxK][n];
+		int[] jhat = new int[maxK];
+		boolean stop = false;
+		while (!stop) {
+			ajhat[k] = 9999999;
+			jhat[k] = 0;
+			Jt[k+1] = Jt[k].clone();
+			Rt[k+1] = Rt[k].clone();
+			for (int j=0; j<nrOut; j++) {
+				Ut[k+1][j] = Ut[k][j].clone();
+				dRt[k+1][j] = dRt[k][j].clone();
+			}
+			for (int j=0; j<nrOut; j++) {
+				if (Jt[k][j]) {
+					double tmpc = 0;
+					double[] dTmpc = new double[n];
+					for (int i=0; i<nrIn; i++) {
+						if (Ut[k][j][i]) {
+							tmpc += C2[i][j];
+							for (int c=0; c<n; c++)
+								dTmpc[c] += dC2[i][j][c];
+						}
+					}
+					a[k][j] = Rt[k][j]/tmpc;
+					if (a[k][j] < ajhat[k]) {
+						ajhat[k] = a[k][j];
+						jhat[k] = j;
+						for (int c=0; c<n; c++)
+							dAjhat[k][c] = (dRt[k][j][c] - a[k][j]*dTmpc[c])/tmpc;
+					}
+				}
+			}
+
+			// step 4
+			boolean demandConstrained = false;
+			for (int i=0; i<nrIn; i++) {
+				if (Ut[k][jhat[k]][i] & (S1[i] <= a[k][jhat[k]]*C1[i])) {
+					demandConstrained = true;
+					for (int j=0; j<nrOut; j++)
+						dq[i][j] = dS2[i][j].clone();
+					for (int j=0; j<nrOut; j++) {
+						if (Jt[k][j]) {
+							Rt[k+1][j] = Rt[k+1][j] - S2[i][j];
+							for (int c=0; c<n; c++)
+								dRt[k+1][j][c] -= dS2[i][j][c];
+							Ut[k+1][j][i] = false;
+							boolean tmpval = false;
+							for (boolean val: Ut[k+1][j]) {
+								if (val)
+									tmpval = true;
+							}
+							if (!tmpval)
+								Jt[k+1][j] = false;
+						}
+					}
+				}
+			}
+			if (!demandConstrained) {
+				for (int i=0; i<nrIn; i++) {
+					if (Ut[k][jhat[k]][i]) {
+						for (int j=0; j<nrOut; j++) {
+							for (int c=0; c<n; c++)
+								dq[i][j][c] = ajhat[k]*dC2[i][j][c] + C2[i][j]*dAjhat[k][c];
+						}
+						for (int j=0; j<nrOut; j++) {
+							if (Jt[k][j]) {
+								Rt[k+1][j] = Rt[k+1][j] - ajhat[k]*C2[i][j];
+								for (int c=0; c<n; c++)
+									dRt[k+1][j][c] -= dq[i][j][c];
+								if (j != jhat[k]) {
+									for (int val=0; val<nrIn; val++) {
+										if (Ut[k][jhat[k]][val])
+											Ut[k+1][j][val] = false;
+									}
+									boolean tmpval = false;
+									for (int val=0; val<nrIn; val++) {
+										if (Ut[k+1][j][val])
+											tmpval = true;
+									}
+									if (!tmpval)
+										Jt[k+1][j] = false;
+								} else
+									Jt[k+1][jhat[k]] = false;
+							}
+						}
+					}
+				}
+			}
+			boolean empty = true;
+			for (int j=0; j<nrOut; j++) {
+				if (Jt[k+1][j])
+					empty = false;
+			}
+			if (empty)
+				stop = true;
+			else
+				k++;
+		}
+
+		for (int i=0; i<nrIn; i++) {
+			for (int j=0; j<nrOut; j++) {
+				for (int c=0; c<n; c++) {
+					jacobian[i][c] += dq[i][j][c];
+					jacobian[nrIn+j][c] += dq[i][j][c];
+				}
+			}
+		}
+		return jacobian;
+	}
 
 }
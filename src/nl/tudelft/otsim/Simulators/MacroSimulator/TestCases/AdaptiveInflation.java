@@ -0,0 +1,212 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import nl.tudelft.otsim.Simulators.MacroSimulator.TestCases.StateDefinition.StateFunction;
+
+/**
+ * Online estimate of the multiplicative and additive inflation per state group from the
+ * innovation statistics of every analysis.
+ * <br>
+ * A group is a {@link StateDefinition} of the state, i.e. the rows that share one factor of
+ * {@link AssimilationConfiguration#getInflationFactorArray()}. Every group uses the
+ * observations that are local to any of its rows (all observations without localization).
+ * With the innovation <tt>d = y - mean(HX)</tt>, the forecast spread <tt>var(HX)</tt> and
+ * the observation error <tt>R</tt>, a consistent ensemble satisfies
+ * <tt>E[d^2] = lambda*var(HX) + R</tt>. Per group the variance factor
+ * <br>
+ * <tt>lambda = sum(d^2/R - 1) / sum(var(HX)/R)</tt>
+ * <br>
+ * is estimated, where the division by <tt>R</tt> makes speed and flow observations
+ * comparable. Estimates are smoothed over the analyses and then bounded; the inflation factor
+ * of the anomalies is <tt>sqrt(lambda)</tt>. Innovation variance that remains above the
+ * upper bound is attributed to model error: it is added as uncorrelated noise with a
+ * variance proportional to the mean forecast variance of the group, so groups whose spread
+ * has collapsed recover spread.
+ * <br>
+ * The cost is one pass over the observations per group and, for additive inflation, one
+ * pass over the ensemble.
+ */
+public class AdaptiveInflation {
+	/** first row per group, and the number of rows as the last element */
+	private final int[] groupStart;
+	/** local observations per group */
+	private final int[][] groupObservations;
+	/** smoothed estimate of the variance factor per group, not bounded */
+	private final double[] estimate;
+	/** bounded variance factor per group */
+	private final double[] lambda;
+	/** additive variance per group, relative to the mean forecast variance of the group */
+	private final double[] additive;
+	/** mean forecast variance per group of the last update */
+	private final double[] forecastVariance;
+	private final Random random;
+	private double weight = 0.1;
+	private double minFactor = 1.0;
+	private double maxFactor = 1.5;
+	private boolean additiveInflation = true;
+
+	/**
+	 * @param groupStart first row of every group, followed by the number of rows
+	 * @param groupObservations observation indices used for every group
+	 * @param initialFactors initial inflation factor of every group
+	 * @param seed seed of the additive noise
+	 */
+	public AdaptiveInflation(int[] groupStart, int[][] groupObservations, double[] initialFactors, long seed) {
+		if (groupStart.length != groupObservations.length+1 || initialFactors.length != groupObservations.length)
+			throw new Error("Inconsistent number of groups");
+		this.groupStart = groupStart.clone();
+		this.groupObservations = groupObservations;
+		estimate = new double[initialFactors.length];
+		lambda = new double[initialFactors.length];
+		for (int g = 0; g<lambda.length; g++) {
+			lambda[g] = initialFactors[g]*initialFactors[g];
+			estimate[g] = lambda[g];
+		}
+		additive = new double[lambda.length];
+		forecastVariance = new double[lambda.length];
+		random = new Random(seed);
+	}
+
+	/**
+	 * Groups of the state of an assimilation configuration, initialized with its inflation factors.
+	 * @param localization localization of the observations, or null to use all observations for every group
+	 * @param nrObservations number of observations
+	 */
+	public static AdaptiveInflation create(AssimilationConfiguration config, LocalizationIndex localization, int nrObservations, long seed) {
+		int nrGroups = 0;
+		for (StateDefinition s: config.stateIds) {
+			if (s.is(StateFunction.IN))
+				nrGroups++;
+		}
+		int[] start = new int[nrGroups+1];
+		int[][] observations = new int[nrGroups][];
+		double[] factors = new double[nrGroups];
+		int g = 0;
+		int row = 0;
+		for (StateDefinition s: config.stateIds) {
+			if (!s.is(StateFunction.IN))
+				continue;
+			int nrEl = config.nrOfElements.get(s.getType());
+			start[g] = row;
+			factors[g] = config.inflationFactors.get(s);
+			if (localization == null) {
+				observations[g] = new int[nrObservations];
+				for (int j = 0; j<nrObservations; j++)
+					observations[g][j] = j;
+			} else {
+				boolean[] used = new boolean[nrObservations];
+				int n = 0;
+				for (int i = row; i<row+nrEl; i++) {
+					for (int j: localization.getObservationIndices(i)) {
+						if (!used[j]) {
+							used[j] = true;
+							n++;
+						}
+					}
+				}
+				observations[g] = new int[n];
+				n = 0;
+				for (int j = 0; j<nrObservations; j++) {
+					if (used[j])
+						observations[g][n++] = j;
+				}
+			}
+			row += nrEl;
+			g++;
+		}
+		start[nrGroups] = row;
+		return new AdaptiveInflation(start, observations, factors, seed);
+	}
+
+	/** @param weight weight of a new estimate in the smoothed factor, between 0 and 1 */
+	public void setWeight(double weight) {
+		this.weight = weight;
+	}
+	/** Bounds of the multiplicative inflation factor of the anomalies. */
+	public void setBounds(double minFactor, double maxFactor) {
+		this.minFactor = minFactor;
+		this.maxFactor = maxFactor;
+	}
+	public void setAdditiveInflation(boolean additiveInflation) {
+		this.additiveInflation = additiveInflation;
+	}
+	public int getNrGroups() {
+		return lambda.length;
+	}
+	/** @return current multiplicative inflation factor of the anomalies of a group */
+	public double getFactor(int group) {
+		return Math.sqrt(lambda[group]);
+	}
+	/** @return current additive variance of a group */
+	public double getAdditiveVariance(int group) {
+		return additive[group]*forecastVariance[group];
+	}
+
+	/**
+	 * Update the estimates with the innovations of an analysis.
+	 * @param observations observed values; missing values (NaN) are skipped
+	 * @param meanH ensemble mean of the predicted observations
+	 * @param varianceH ensemble variance of the predicted observations
+	 * @param observationVariance observation error variance, the diagonal of <tt>R</tt>
+	 * @param varianceX ensemble variance of the forecast state
+	 * @return inflation factor per row, for {@link EnsembleMoments#inflate(double[][], double[], double[], double[])}
+	 */
+	public double[] update(double[] observations, double[] meanH, double[] varianceH, double[] observationVariance, double[] varianceX) {
+		double maxLambda = maxFactor*maxFactor;
+		double minLambda = minFactor*minFactor;
+		double[] result = new double[groupStart[lambda.length]];
+		for (int g = 0; g<lambda.length; g++) {
+			double excess = 0;
+			double spread = 0;
+			for (int j: groupObservations[g]) {
+				double d = observations[j] - meanH[j];
+				if (Double.isNaN(d) || !(observationVariance[j] > 0))
+					continue;
+				excess += d*d/observationVariance[j] - 1;
+				spread += varianceH[j]/observationVariance[j];
+			}
+			double v = 0;
+			for (int i = groupStart[g]; i<groupStart[g+1]; i++)
+				v += varianceX[i];
+			forecastVariance[g] = groupStart[g+1] > groupStart[g] ? v/(groupStart[g+1] - groupStart[g]) : 0;
+			if (spread > 0)
+				estimate[g] += weight*(excess/spread - estimate[g]);
+			// bounding the smoothed rather than the single estimates keeps them unbiased
+			lambda[g] = Math.max(minLambda, Math.min(maxLambda, estimate[g]));
+			// innovation variance beyond the maximum multiplicative inflation
+			additive[g] = additiveInflation ? Math.max(0, estimate[g] - maxLambda) : 0;
+			Arrays.fill(result, groupStart[g], groupStart[g+1], Math.sqrt(lambda[g]));
+		}
+		return result;
+	}
+
+	/**
+	 * Add the additive inflation to an (already multiplicatively inflated) ensemble. The
+	 * noise of every row has zero mean, so the ensemble mean is unchanged.
+	 * @param ensemble one row per state variable and one column per member
+	 * @param variance variance of every row, updated
+	 */
+	public void addModelError(double[][] ensemble, double[] variance) {
+		for (int g = 0; g<lambda.length; g++) {
+			double q = getAdditiveVariance(g);
+			if (!(q > 0))
+				continue;
+			double std = Math.sqrt(q);
+			for (int i = groupStart[g]; i<groupStart[g+1]; i++) {
+				double[] row = ensemble[i];
+				int N = row.length;
+				double[] noise = new double[N];
+				double mean = 0;
+				for (int j = 0; j<N; j++) {
+					noise[j] = random.nextGaussian()*std;
+					mean += noise[j]/N;
+				}
+				for (int j = 0; j<N; j++)
+					row[j] += noise[j] - mean;
+				variance[i] += q;
+			}
+		}
+	}
+}
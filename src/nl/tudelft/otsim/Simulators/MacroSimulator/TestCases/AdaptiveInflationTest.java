@@ -0,0 +1,81 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Test the estimates of the AdaptiveInflation on innovations with a known spread */
+public class AdaptiveInflationTest {
+
+	/**
+	 * Feed innovations with variance lambda*var(HX) + R per group and return the inflation.
+	 */
+	private static AdaptiveInflation run(double[] trueLambda, int updates) {
+		Random r = new Random(5);
+		int nrObservations = 40;
+		// group 0 sees the first half of the observations, group 1 the second half
+		int[][] observations = new int[2][nrObservations/2];
+		for (int j = 0; j<nrObservations/2; j++) {
+			observations[0][j] = j;
+			observations[1][j] = j + nrObservations/2;
+		}
+		AdaptiveInflation inflation = new AdaptiveInflation(new int[]{0, 3, 5}, observations, new double[]{1.0, 1.0}, 1);
+		double[] meanH = new double[nrObservations];
+		double[] varianceH = new double[nrObservations];
+		double[] R = new double[nrObservations];
+		double[] y = new double[nrObservations];
+		double[] varianceX = new double[]{1, 1, 1, 2, 2};
+		for (int k = 0; k<updates; k++) {
+			for (int j = 0; j<nrObservations; j++) {
+				// speeds and flows have very different scales
+				double scale = j%2 == 0 ? 2.25 : 0.0016;
+				varianceH[j] = scale*0.5;
+				R[j] = scale;
+				double lambda = trueLambda[j < nrObservations/2 ? 0 : 1];
+				y[j] = meanH[j] + r.nextGaussian()*Math.sqrt(lambda*varianceH[j] + R[j]);
+			}
+			inflation.update(y, meanH, varianceH, R, varianceX);
+		}
+		return inflation;
+	}
+
+	/**
+	 * The factor converges to the spread of the innovations within the bounds
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testMultiplicative() {
+		AdaptiveInflation inflation = run(new double[]{1.3, 1.0}, 500);
+		assertEquals(Math.sqrt(1.3), inflation.getFactor(0), 0.05);
+		assertEquals(1.0, inflation.getFactor(1), 0.05);
+		assertEquals(0, inflation.getAdditiveVariance(0), 1e-12);
+	}
+
+	/**
+	 * Spread beyond the upper bound becomes additive inflation that keeps the mean
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testAdditive() {
+		AdaptiveInflation inflation = run(new double[]{4.0, 1.0}, 500);
+		assertEquals(1.5, inflation.getFactor(0), 1e-6);
+		// lambda 4 against a maximum of 2.25, relative to a mean forecast variance of 1
+		assertEquals(1.75, inflation.getAdditiveVariance(0), 0.3);
+		double[][] ensemble = new double[5][10];
+		double[] variance = new double[5];
+		for (int i = 0; i<5; i++)
+			for (int j = 0; j<10; j++)
+				ensemble[i][j] = i + j;
+		inflation.addModelError(ensemble, variance);
+		for (int i = 0; i<5; i++) {
+			double mean = 0;
+			for (int j = 0; j<10; j++)
+				mean += ensemble[i][j]/10;
+			assertEquals(i + 4.5, mean, 1e-9);
+		}
+		assertTrue(variance[0] > 1);
+		assertEquals(0, variance[3], 1e-12);
+	}
+}
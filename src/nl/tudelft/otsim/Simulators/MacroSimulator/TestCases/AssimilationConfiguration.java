@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Set;
@@ -610,30 +611,37 @@ public class AssimilationConfiguration {
 	public int[] getIndicesDetector(Model model, LinkedHashSet<NodeDetector> detectors) {
 		return model.getIndicesDetector(detectors);
 	}
+	private Model indexedModel;
+	private HashMap<Object, int[]> objectPositions;
 	public int[] getIndicesObject(Model model, LinkedHashSet<Object> objects) {
-		ArrayList<Object> listOfObjects = getStateVariables(model);
-
-		ArrayList<Integer> res = new ArrayList<Integer>();
-		//ArrayList<Object> obj2 = new ArrayList<Object>(objects);
-		for (int i = 0; i<listOfObjects.size(); i++) {
-			if (objects.contains(listOfObjects.get(i)))
-				res.add(i);
+		if (indexedModel != model) {
+			ArrayList<Object> listOfObjects = getStateVariables(model);
+			objectPositions = new HashMap<Object, int[]>(2*listOfObjects.size());
+			for (int i = 0; i<listOfObjects.size(); i++) {
+				int[] positions = objectPositions.get(listOfObjects.get(i));
+				positions = positions == null ? new int[1] : Arrays.copyOf(positions, positions.length+1);
+				positions[positions.length-1] = i;
+				objectPositions.put(listOfObjects.get(i), positions);
+			}
+			indexedModel = model;
 		}
-		
-		/*
+
+		int n = 0;
 		for (Object o: objects) {
-			int index = listOfObjects.indexOf(o);
-			if (index != -1){
-				res.add(index);
-			}
-		}*/
-		
-		int[] result = new int[res.size()];
+			int[] positions = objectPositions.get(o);
+			if (positions != null)
+				n += positions.length;
+		}
+		int[] result = new int[n];
 		int i = 0;
-		for (Integer in: res) {
-			result[i++]=in;
-
+		for (Object o: objects) {
+			int[] positions = objectPositions.get(o);
+			if (positions == null)
+				continue;
+			for (int p: positions)
+				result[i++] = p;
 		}
+		Arrays.sort(result);
 		return result;
 	}
 }
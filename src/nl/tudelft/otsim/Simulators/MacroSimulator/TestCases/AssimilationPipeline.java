@@ -0,0 +1,184 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous stages of an assimilation cycle.
+ * <br>
+ * Work that does not influence the next cycle (indicators of the main simulator,
+ * forecast branches, exports) is handed to a stage, so the next prediction step of the
+ * ensemble can proceed. Tasks only get immutable snapshots (copied arrays, configuration
+ * strings, new matrices), never a model that is still being simulated.
+ * <br>
+ * Every stage has its own worker threads and a bounded number of pending tasks. A stage
+ * either blocks the submitter when full (back-pressure, for results that are needed) or
+ * drops the task (for optional output), so a slow stage can never use unbounded memory
+ * and an optional exporter can never stall the assimilation.
+ */
+public class AssimilationPipeline {
+	private final ArrayList<Stage> stages = new ArrayList<Stage>();
+
+	/**
+	 * Add a stage.
+	 * @param name name of the worker threads
+	 * @param threads number of worker threads
+	 * @param capacity maximum number of pending (queued or running) tasks, at least 1
+	 * @param dropWhenFull drop tasks when the stage is full instead of blocking the submitter
+	 */
+	public Stage addStage(String name, int threads, int capacity, boolean dropWhenFull) {
+		Stage stage = new Stage(name, threads, capacity, dropWhenFull);
+		stages.add(stage);
+		return stage;
+	}
+
+	/** Wait for all submitted tasks of all stages and stop the worker threads. */
+	public void shutdown() {
+		RuntimeException failure = null;
+		for (Stage s: stages) {
+			try {
+				s.shutdown();
+			} catch (RuntimeException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	public static class Stage {
+		private final String name;
+		private final ExecutorService executor;
+		private final Semaphore permits;
+		private final boolean dropWhenFull;
+		private final AtomicInteger dropped = new AtomicInteger();
+		private final ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+
+		private Stage(final String name, int threads, int capacity, boolean dropWhenFull) {
+			if (capacity < 1)
+				throw new Error("Stage " + name + " needs a capacity of at least 1, not " + capacity);
+			this.name = name;
+			this.permits = new Semaphore(capacity);
+			this.dropWhenFull = dropWhenFull;
+			this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private int n = 0;
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name + "-" + (n++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		/**
+		 * Submit a task. Blocks while the stage is full, unless the stage drops tasks.
+		 * @return future of the task, or null if it was dropped
+		 */
+		public <T> Future<T> submit(final Callable<T> task) {
+			if (dropWhenFull) {
+				if (!permits.tryAcquire()) {
+					dropped.incrementAndGet();
+					return null;
+				}
+			} else {
+				permits.acquireUninterruptibly();
+			}
+			FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					try {
+						return task.call();
+					} finally {
+						permits.release();
+					}
+				}
+			});
+			synchronized (pending) {
+				// forget completed tasks, failures are reported by get()
+				for (int i = pending.size()-1; i>=0; i--) {
+					if (pending.get(i).isDone() && !failed(pending.get(i)))
+						pending.remove(i);
+				}
+				pending.add(future);
+			}
+			executor.execute(future);
+			return future;
+		}
+
+		public Future<?> submit(final Runnable task) {
+			return submit(new Callable<Object>() {
+				@Override
+				public Object call() {
+					task.run();
+					return null;
+				}
+			});
+		}
+
+		/** Wait for all submitted tasks; rethrows the first failure. */
+		public void drain() {
+			ArrayList<Future<?>> list;
+			synchronized (pending) {
+				list = new ArrayList<Future<?>>(pending);
+				pending.clear();
+			}
+			for (Future<?> f: list)
+				get(f);
+		}
+
+		/** Wait for all submitted tasks and stop the worker threads. */
+		public void shutdown() {
+			try {
+				drain();
+			} finally {
+				executor.shutdown();
+			}
+		}
+
+		/** @return number of tasks dropped because the stage was full */
+		public int getDropped() {
+			return dropped.get();
+		}
+		public String getName() {
+			return name;
+		}
+
+		private static boolean failed(Future<?> f) {
+			try {
+				f.get(0, TimeUnit.NANOSECONDS);
+				return false;
+			} catch (Exception e) {
+				return true;
+			}
+		}
+	}
+
+	/** Wait for a task and rethrow its failure. */
+	public static <T> T get(Future<T> future) {
+		if (future == null)
+			return null;
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new Error("Interrupted while waiting for pipeline task", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new Error(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/** Test the ordering, back-pressure and dropping of the AssimilationPipeline stages */
+public class AssimilationPipelineTest {
+
+	/** Task that waits for a latch */
+	private static Runnable blocking(final CountDownLatch started, final CountDownLatch release) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new Error(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * A stage with one thread runs its tasks in the order of submission
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testOrdering() {
+		AssimilationPipeline pipeline = new AssimilationPipeline();
+		AssimilationPipeline.Stage stage = pipeline.addStage("ordering", 1, 3, false);
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		for (int i = 0; i<100; i++) {
+			final int n = i;
+			stage.submit(new Runnable() {
+				@Override
+				public void run() {
+					order.add(n);
+				}
+			});
+		}
+		pipeline.shutdown();
+		assertEquals(100, order.size());
+		for (int i = 0; i<100; i++)
+			assertEquals(i, order.get(i).intValue());
+		assertEquals(0, stage.getDropped());
+	}
+
+	/**
+	 * A full blocking stage blocks the submitter until a task finishes
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testBackPressure() throws InterruptedException {
+		AssimilationPipeline pipeline = new AssimilationPipeline();
+		final AssimilationPipeline.Stage stage = pipeline.addStage("blocking", 1, 1, false);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		stage.submit(blocking(started, release));
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		final AtomicBoolean submitted = new AtomicBoolean();
+		Thread submitter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				stage.submit(new Runnable() {
+					@Override
+					public void run() {
+						// nothing
+					}
+				});
+				submitted.set(true);
+			}
+		});
+		submitter.start();
+		submitter.join(200);
+		assertFalse(submitted.get());
+		release.countDown();
+		submitter.join(10000);
+		assertTrue(submitted.get());
+		pipeline.shutdown();
+		assertEquals(0, stage.getDropped());
+	}
+
+	/**
+	 * A full dropping stage drops and counts tasks without blocking, and a stage without a
+	 * capacity is refused
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testDrop() throws InterruptedException {
+		AssimilationPipeline pipeline = new AssimilationPipeline();
+		AssimilationPipeline.Stage dropping = pipeline.addStage("dropping", 1, 1, true);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		assertNotNull(dropping.submit(blocking(started, release)));
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i<5; i++)
+			assertNull(dropping.submit(blocking(started, release)));
+		assertEquals(5, dropping.getDropped());
+		release.countDown();
+		pipeline.shutdown();
+		assertEquals(5, dropping.getDropped());
+		try {
+			pipeline.addStage("unbounded", 1, 0, false);
+			fail("stage without a capacity was added");
+		} catch (Error e) {
+			assertTrue(e.getMessage().contains("capacity"));
+		}
+	}
+
+	/**
+	 * A failure of a task is rethrown when the stage is drained
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testFailure() {
+		AssimilationPipeline pipeline = new AssimilationPipeline();
+		AssimilationPipeline.Stage stage = pipeline.addStage("failing", 2, 2, false);
+		Future<?> future = stage.submit(new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("export failed");
+			}
+		});
+		try {
+			pipeline.shutdown();
+			fail("failure was not rethrown");
+		} catch (IllegalStateException e) {
+			assertEquals("export failed", e.getMessage());
+		}
+		assertTrue(future.isDone());
+	}
+}
@@ -0,0 +1,371 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Jama.Matrix;
+
+/**
+ * Binary store of detector speeds and flows on a fixed time grid.
+ * <br>
+ * The store is a directory with an index file and one file per partition of
+ * <tt>slotsPerPartition</tt> time slots. A partition holds, per slot, the speed and flow of
+ * every detector (missing values are NaN), so all detectors at one time are contiguous.
+ * Partitions are memory mapped on demand and only a few are kept mapped, so queries never
+ * load the full history. CSV files are ingested line by line.
+ * <br>
+ * Detectors are in the order given at creation, normally the order of
+ * {@link nl.tudelft.otsim.Simulators.MacroSimulator.Model#getDetectors()}. Observation
+ * vectors have the layout of <tt>HX</tt> in {@link TestEnKF#update(Matrix)}: speeds first,
+ * flows second.
+ */
+public class DetectorObservationStore {
+	private static final int MAGIC = 0x4f425331;
+	private static final String INDEX = "store.idx";
+	private static final int MAPPED_PARTITIONS = 4;
+
+	private final File directory;
+	private final double origin;
+	private final double timestep;
+	private final int slotsPerPartition;
+	private final String[] detectorNames;
+	private final HashMap<String, Integer> detectorIndex = new HashMap<String, Integer>();
+	private final LinkedHashMap<Integer, MappedByteBuffer> partitions;
+	private String dateFormat = "yyyy-MM-dd HH:mm:ss";
+	/** skipped lines of all ingests, which may run in different threads */
+	private final AtomicLong skippedLines = new AtomicLong();
+
+	private DetectorObservationStore(File directory, double origin, double timestep, int slotsPerPartition, String[] detectorNames) {
+		this.directory = directory;
+		this.origin = origin;
+		this.timestep = timestep;
+		this.slotsPerPartition = slotsPerPartition;
+		this.detectorNames = detectorNames;
+		for (int d = 0; d<detectorNames.length; d++)
+			detectorIndex.put(detectorNames[d], d);
+		this.partitions = new LinkedHashMap<Integer, MappedByteBuffer>(MAPPED_PARTITIONS, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
+				if (size() <= MAPPED_PARTITIONS)
+					return false;
+				// written to disk before it is released
+				eldest.getValue().force();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Create a new, empty store.
+	 * @param directory directory of the store, created if needed
+	 * @param origin time of the first slot [s]
+	 * @param timestep length of a slot [s]
+	 * @param slotsPerPartition number of slots per partition file
+	 * @param detectorNames names of the detectors, in the order of the observation vector
+	 */
+	public static DetectorObservationStore create(File directory, double origin, double timestep, int slotsPerPartition, String[] detectorNames) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		if (new File(directory, INDEX).exists())
+			throw new IOException("Store already exists in " + directory);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(directory, INDEX)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeDouble(origin);
+			out.writeDouble(timestep);
+			out.writeInt(slotsPerPartition);
+			out.writeInt(detectorNames.length);
+			for (String name: detectorNames)
+				out.writeUTF(name);
+		} finally {
+			out.close();
+		}
+		return new DetectorObservationStore(directory, origin, timestep, slotsPerPartition, detectorNames.clone());
+	}
+
+	/** Open an existing store. */
+	public static DetectorObservationStore open(File directory) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(new File(directory, INDEX)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a detector observation store: " + directory);
+			double origin = in.readDouble();
+			double timestep = in.readDouble();
+			int slotsPerPartition = in.readInt();
+			String[] names = new String[in.readInt()];
+			for (int d = 0; d<names.length; d++)
+				names[d] = in.readUTF();
+			return new DetectorObservationStore(directory, origin, timestep, slotsPerPartition, names);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Date format of the period start in CSV files that is not given in seconds (UTC). */
+	public void setDateFormat(String dateFormat) {
+		this.dateFormat = dateFormat;
+	}
+
+	/**
+	 * Ingest a CSV file with a header line, e.g. as written by {@link SamenVoegenCSV}:
+	 * <tt>DetectorName,PeriodStart,PeriodEnd,avgVehicleFlow,avgVehicleSpeed,dataError</tt>.
+	 * The period start is either a time in seconds or a date in the date format. Lines of
+	 * unknown detectors, outside the store or with a nonzero data error are skipped.
+	 * @param in reader, read line by line
+	 * @param flowFactor factor from the flow in the file to the flow of the model
+	 * @param speedFactor factor from the speed in the file to the speed of the model
+	 * @return number of ingested lines
+	 */
+	public int ingest(BufferedReader in, double flowFactor, double speedFactor) throws IOException {
+		String header = in.readLine();
+		if (header == null)
+			return 0;
+		String[] columns = header.trim().split(",");
+		int iName = column(columns, "DetectorName");
+		int iStart = column(columns, "PeriodStart");
+		int iFlow = column(columns, "avgVehicleFlow");
+		int iSpeed = column(columns, "avgVehicleSpeed");
+		int iError = Arrays.asList(columns).indexOf("dataError");
+		SimpleDateFormat format = new SimpleDateFormat(dateFormat);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		int n = 0;
+		long skipped = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			String[] fields = line.trim().split(",");
+			if (fields.length < columns.length) {
+				skipped++;
+				continue;
+			}
+			Integer d = detectorIndex.get(fields[iName]);
+			if (d == null || (iError >= 0 && !isZero(fields[iError]))) {
+				skipped++;
+				continue;
+			}
+			try {
+				double t = parseTime(fields[iStart], format);
+				if (!put(t, d, Double.parseDouble(fields[iSpeed])*speedFactor, Double.parseDouble(fields[iFlow])*flowFactor)) {
+					skipped++;
+					continue;
+				}
+			} catch (NumberFormatException e) {
+				skipped++;
+				continue;
+			} catch (ParseException e) {
+				skipped++;
+				continue;
+			}
+			n++;
+		}
+		skippedLines.addAndGet(skipped);
+		return n;
+	}
+
+	/**
+	 * Store the speed and flow of a detector.
+	 * @return false if the time is before the origin of the store
+	 */
+	public boolean put(double t, int detector, double speed, double flow) throws IOException {
+		long slot = slot(t);
+		if (slot < 0)
+			return false;
+		DoubleBuffer p = partition((int) (slot/slotsPerPartition), true);
+		int i = ((int) (slot % slotsPerPartition)*detectorNames.length + detector)*2;
+		p.put(i, speed);
+		p.put(i+1, flow);
+		return true;
+	}
+
+	/**
+	 * @return speeds and flows of all detectors at time t, speeds first; NaN where missing
+	 */
+	public double[] getObservation(double t) throws IOException {
+		int nrDetectors = detectorNames.length;
+		double[] result = new double[2*nrDetectors];
+		Arrays.fill(result, Double.NaN);
+		long slot = slot(t);
+		DoubleBuffer p = slot < 0 ? null : partition((int) (slot/slotsPerPartition), false);
+		if (p == null)
+			return result;
+		int base = (int) (slot % slotsPerPartition)*nrDetectors*2;
+		for (int d = 0; d<nrDetectors; d++) {
+			result[d] = p.get(base + 2*d);
+			result[nrDetectors+d] = p.get(base + 2*d + 1);
+		}
+		return result;
+	}
+
+	/**
+	 * @return times, speeds and flows of one detector for all slots in [t0, t1]
+	 */
+	public double[][] getDetector(int detector, double t0, double t1) throws IOException {
+		long first = Math.max(0, slot(t0));
+		long last = slot(t1);
+		int n = (int) Math.max(0, last - first + 1);
+		double[][] result = new double[3][n];
+		Arrays.fill(result[1], Double.NaN);
+		Arrays.fill(result[2], Double.NaN);
+		for (int k = 0; k<n; k++) {
+			long slot = first + k;
+			result[0][k] = origin + slot*timestep;
+			DoubleBuffer p = partition((int) (slot/slotsPerPartition), false);
+			if (p == null)
+				continue;
+			int i = ((int) (slot % slotsPerPartition)*detectorNames.length + detector)*2;
+			result[1][k] = p.get(i);
+			result[2][k] = p.get(i+1);
+		}
+		return result;
+	}
+
+	/**
+	 * Cursor over the observations in [t0, t1] with a given step, for the assimilation.
+	 * Missing values are replaced by the last value of the same detector.
+	 */
+	public Cursor cursor(double t0, double t1, double step) {
+		return new Cursor(t0, t1, step);
+	}
+
+	public class Cursor {
+		private double time;
+		private final double end;
+		private final double step;
+		private final double[] last;
+
+		private Cursor(double t0, double t1, double step) {
+			this.time = t0;
+			this.end = t1;
+			this.step = step;
+			this.last = new double[2*detectorNames.length];
+			Arrays.fill(last, Double.NaN);
+		}
+		public boolean hasNext() {
+			return time <= end + 1e-9*step;
+		}
+		/** @return observation column vector for {@link TestEnKF#update(Matrix)} */
+		public Matrix next() throws IOException {
+			double[] obs = getObservation(time);
+			for (int i = 0; i<obs.length; i++) {
+				if (Double.isNaN(obs[i]))
+					obs[i] = last[i];
+				else
+					last[i] = obs[i];
+			}
+			time += step;
+			return new Matrix(obs, obs.length);
+		}
+		/** @return time of the next observation */
+		public double getTime() {
+			return time;
+		}
+	}
+
+	/** Write all mapped partitions to disk. */
+	public void flush() {
+		synchronized (partitions) {
+			for (MappedByteBuffer buffer: partitions.values())
+				buffer.force();
+		}
+	}
+
+	public String[] getDetectorNames() {
+		return detectorNames.clone();
+	}
+	public int getNrDetectors() {
+		return detectorNames.length;
+	}
+	public double getOrigin() {
+		return origin;
+	}
+	public double getTimestep() {
+		return timestep;
+	}
+	public long getSkippedLines() {
+		return skippedLines.get();
+	}
+
+	private long slot(double t) {
+		return (long) Math.floor((t - origin)/timestep + 1e-9);
+	}
+
+	private DoubleBuffer partition(int index, boolean create) throws IOException {
+		synchronized (partitions) {
+			MappedByteBuffer buffer = partitions.get(index);
+			if (buffer == null) {
+				File file = new File(directory, "part-" + index + ".bin");
+				if (!file.exists() && !create)
+					return null;
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					boolean fresh = raf.length() == 0;
+					buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 16L*slotsPerPartition*detectorNames.length);
+					buffer.order(ByteOrder.LITTLE_ENDIAN);
+					if (fresh) {
+						DoubleBuffer p = buffer.asDoubleBuffer();
+						for (int i = 0; i<p.capacity(); i++)
+							p.put(i, Double.NaN);
+					}
+				} finally {
+					raf.close();
+				}
+				partitions.put(index, buffer);
+			}
+			return buffer.asDoubleBuffer();
+		}
+	}
+
+	private double parseTime(String field, SimpleDateFormat format) throws ParseException {
+		try {
+			return Double.parseDouble(field);
+		} catch (NumberFormatException e) {
+			return format.parse(field).getTime()/1000.0;
+		}
+	}
+
+	private static boolean isZero(String field) {
+		try {
+			return Double.parseDouble(field) == 0;
+		} catch (NumberFormatException e) {
+			return field.isEmpty();
+		}
+	}
+
+	private static int column(String[] columns, String name) throws IOException {
+		for (int i = 0; i<columns.length; i++) {
+			if (columns[i].trim().equals(name))
+				return i;
+		}
+		throw new IOException("Column " + name + " not found");
+	}
+
+	/** Convert observations as generated by {@link TestEKF2#generateTruthData} (one row per time, speeds first). */
+	public void putAll(Matrix observations, double t0, double step) throws IOException {
+		int nrDetectors = detectorNames.length;
+		if (observations.getColumnDimension() != 2*nrDetectors)
+			throw new Error("Wrong number of observations");
+		double[][] a = observations.getArray();
+		for (int k = 0; k<a.length; k++) {
+			for (int d = 0; d<nrDetectors; d++)
+				put(t0 + k*step, d, a[k][d], a[k][nrDetectors+d]);
+		}
+	}
+}
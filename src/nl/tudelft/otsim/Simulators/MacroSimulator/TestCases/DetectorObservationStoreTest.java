@@ -0,0 +1,122 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import Jama.Matrix;
+
+import org.junit.Test;
+
+/** Test that the DetectorObservationStore reads back what was written and ingested */
+public class DetectorObservationStoreTest {
+
+	private static File directory() throws IOException {
+		File directory = File.createTempFile("detectorObservationStoreTest", "");
+		if (!directory.delete())
+			throw new IOException("Cannot delete " + directory);
+		return directory;
+	}
+
+	private static void delete(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f: files)
+				f.delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Values put in several partitions are read back after reopening, missing values are NaN
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testRoundTrip() throws IOException {
+		File directory = directory();
+		try {
+			String[] names = new String[] {"d1", "d2", "d3"};
+			DetectorObservationStore store = DetectorObservationStore.create(directory, 100, 60, 4, names);
+			Matrix observations = new Matrix(20, 6);
+			for (int k = 0; k<20; k++) {
+				for (int d = 0; d<3; d++) {
+					observations.set(k, d, 10*k + d);
+					observations.set(k, 3+d, 1000 + k + 0.5*d);
+				}
+			}
+			store.putAll(observations, 100, 60);
+			assertFalse(store.put(99, 0, 1, 1));
+			store.flush();
+
+			DetectorObservationStore reopened = DetectorObservationStore.open(directory);
+			assertArrayEquals(names, reopened.getDetectorNames());
+			assertEquals(60, reopened.getTimestep(), 0);
+			for (int k = 0; k<20; k++)
+				assertArrayEquals(observations.getArray()[k], reopened.getObservation(100 + 60*k + 30), 0);
+			double[] missing = reopened.getObservation(100 + 60*20);
+			for (double v: missing)
+				assertTrue(Double.isNaN(v));
+			double[][] d2 = reopened.getDetector(1, 160, 340);
+			assertArrayEquals(new double[] {160, 220, 280, 340}, d2[0], 0);
+			assertArrayEquals(new double[] {11, 21, 31, 41}, d2[1], 0);
+			assertArrayEquals(new double[] {1001.5, 1002.5, 1003.5, 1004.5}, d2[2], 0);
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Malformed lines, unknown detectors, data errors and times before the origin are
+	 * skipped and counted, the other lines are ingested; the cursor fills missing values
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testIngest() throws IOException {
+		File directory = directory();
+		try {
+			DetectorObservationStore store = DetectorObservationStore.create(directory, 0, 60, 8, new String[] {"a", "b"});
+			String csv = "DetectorName,PeriodStart,PeriodEnd,avgVehicleFlow,avgVehicleSpeed,dataError\n"
+					+ "a,0,60,1200,90,0\n"
+					+ "b,0,60,600,80,0\n"
+					+ "a,60,120,1800,72,0\n"
+					+ "a,120\n"
+					+ "c,120,180,1000,100,0\n"
+					+ "b,60,120,900,60,1\n"
+					+ "b,120,180,abc,60,0\n"
+					+ "b,-60,0,100,100,0\n"
+					+ "b,1970-01-01 00:02:00,180,300,40,0\n";
+			int n = store.ingest(new BufferedReader(new StringReader(csv)), 1.0/3600, 1/3.6);
+			assertEquals(4, n);
+			assertEquals(5, store.getSkippedLines());
+			double[] obs = store.getObservation(0);
+			assertEquals(25, obs[0], 1e-9);
+			assertEquals(80/3.6, obs[1], 1e-9);
+			assertEquals(1200.0/3600, obs[2], 1e-12);
+			assertEquals(600.0/3600, obs[3], 1e-12);
+			obs = store.getObservation(60);
+			assertEquals(20, obs[0], 1e-9);
+			assertTrue(Double.isNaN(obs[1]));
+			assertEquals(0.5, obs[2], 1e-12);
+			assertEquals(40/3.6, store.getObservation(120)[1], 1e-9);
+
+			// skipped lines of a second ingest are added
+			store.ingest(new BufferedReader(new StringReader("DetectorName,PeriodStart,PeriodEnd,avgVehicleFlow,avgVehicleSpeed\nx,0,60,1,1\n")), 1, 1);
+			assertEquals(6, store.getSkippedLines());
+
+			DetectorObservationStore.Cursor cursor = store.cursor(0, 120, 60);
+			cursor.next();
+			Matrix second = cursor.next();
+			assertEquals(80/3.6, second.get(1, 0), 1e-9);
+			assertEquals(600.0/3600, second.get(3, 0), 1e-12);
+			Matrix third = cursor.next();
+			assertEquals(20, third.get(0, 0), 1e-9);
+			assertEquals(40/3.6, third.get(1, 0), 1e-9);
+			assertFalse(cursor.hasNext());
+		} finally {
+			delete(directory);
+		}
+	}
+}
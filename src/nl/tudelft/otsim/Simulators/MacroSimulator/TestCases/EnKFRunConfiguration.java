@@ -1,14 +1,18 @@
 package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 
-public class EnKFRunConfiguration {
+public class EnKFRunConfiguration implements Serializable {
+	private static final long serialVersionUID = 1L;
 	AssimilationMethod assimilationMethod;
 	ArrayList<ErrorConfiguration> errorConfigurations;
 	int nrSurroundingCells;
 	int ensembleSize;
 	int inflowTFWidth;
+	double localizationHalfWidth = 0;
+	boolean adaptiveInflation = false;
 	
 	public EnKFRunConfiguration(AssimilationMethod assimilationMethod, int nrSurroundingCells, ArrayList<ErrorConfiguration> errorConfigurations, int ensembleSize, int inflowTFWidth) {
 		//this.nrEnsembles = nrEnsembles;
@@ -38,14 +42,34 @@ public class EnKFRunConfiguration {
 	public int getNrSurroundingCells() {
 		return nrSurroundingCells;
 	}
+	/** @return Gaspari-Cohn half width [m] of the localization, 0 for a cut-off at the number of surrounding cells only */
+	public double getLocalizationHalfWidth() {
+		return localizationHalfWidth;
+	}
+	public void setLocalizationHalfWidth(double localizationHalfWidth) {
+		this.localizationHalfWidth = localizationHalfWidth;
+	}
+	/** @return whether the inflation factors are estimated from the innovations, see {@link AdaptiveInflation} */
+	public boolean isAdaptiveInflation() {
+		return adaptiveInflation;
+	}
+	/** Estimate the inflation online, starting at the inflation factors of the error configurations. */
+	public void setAdaptiveInflation(boolean adaptiveInflation) {
+		this.adaptiveInflation = adaptiveInflation;
+	}
 	
 	
+	/**
+	 * Matlab cell array with the method, the number of surrounding cells, the ensemble size,
+	 * the inflow width, the error configurations, the localization half width and whether
+	 * the inflation is adaptive
+	 */
 	public String toString() {
 		String s = "{'"+assimilationMethod.toString()+"',"+nrSurroundingCells+","+ensembleSize+","+inflowTFWidth;
 		for (ErrorConfiguration er : errorConfigurations) {
 			s = s +","+er.toMatlab();
 		}
-		return s+"};";
+		return s+","+localizationHalfWidth+","+adaptiveInflation+"};";
 	}
 	
 	
@@ -0,0 +1,104 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Ensemble mean, variance and anomalies computed row by row over an ensemble buffer with
+ * one row per variable and one column per member (see {@link EnsembleStateLayout}).
+ * <br>
+ * Mean and variance are accumulated in a single pass per row (Welford), the anomalies and
+ * the inflation are written in place. Rows are distributed over the shared fork-join pool.
+ */
+public class EnsembleMoments extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private double[][] ensemble;
+	private double[][] anomalies;
+	private double[] inflation;
+	private double[] mean;
+	private double[] variance;
+	private int from;
+	private int to;
+
+	private EnsembleMoments(double[][] ensemble, double[][] anomalies, double[] inflation, double[] mean, double[] variance, int from, int to) {
+		this.ensemble = ensemble;
+		this.anomalies = anomalies;
+		this.inflation = inflation;
+		this.mean = mean;
+		this.variance = variance;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * Compute mean, sample variance (1/(N-1)) and anomalies of every row.
+	 * @param ensemble buffer with one row per variable
+	 * @param mean receives the mean of every row
+	 * @param variance receives the sample variance of every row
+	 * @param anomalies receives ensemble minus mean, may be null
+	 */
+	public static void compute(double[][] ensemble, double[] mean, double[] variance, double[][] anomalies) {
+		FJPool.fjPool.invoke(new EnsembleMoments(ensemble, anomalies, null, mean, variance, 0, ensemble.length));
+	}
+
+	/**
+	 * Inflate every row in place around its mean, x = mean + r*(x - mean), and return the
+	 * mean and the variance after inflation.
+	 * @param ensemble buffer with one row per variable, overwritten
+	 * @param inflation inflation factor per row, e.g. {@link AssimilationConfiguration#getInflationFactorArray()}
+	 * @param mean receives the mean of every row
+	 * @param variance receives the sample variance of every row after inflation
+	 */
+	public static void inflate(double[][] ensemble, double[] inflation, double[] mean, double[] variance) {
+		FJPool.fjPool.invoke(new EnsembleMoments(ensemble, null, inflation, mean, variance, 0, ensemble.length));
+	}
+
+	public static double[] std(double[] variance) {
+		double[] result = new double[variance.length];
+		for (int i = 0; i<variance.length; i++)
+			result[i] = Math.sqrt(variance[i]);
+		return result;
+	}
+
+	protected void computeDirectly() {
+		for (int i = from; i<to; i++) {
+			double[] row = ensemble[i];
+			int N = row.length;
+			double m = 0;
+			double m2 = 0;
+			for (int j = 0; j<N; j++) {
+				double delta = row[j] - m;
+				m += delta/(j+1);
+				m2 += delta*(row[j] - m);
+			}
+			double var = N > 1 ? m2/(N-1) : 0;
+			if (inflation != null) {
+				double r = inflation[i];
+				for (int j = 0; j<N; j++)
+					row[j] = m + r*(row[j] - m);
+				var *= r*r;
+			}
+			if (anomalies != null) {
+				double[] a = anomalies[i];
+				for (int j = 0; j<N; j++)
+					a[j] = row[j] - m;
+			}
+			mean[i] = m;
+			variance[i] = var;
+		}
+	}
+
+	protected static int rowThreshold = 1024;
+	@Override
+	protected void compute() {
+		if (to - from <= rowThreshold) {
+			computeDirectly();
+			return;
+		}
+		int split = from + (to - from)/2;
+		EnsembleMoments left = new EnsembleMoments(ensemble, anomalies, inflation, mean, variance, from, split);
+		EnsembleMoments right = new EnsembleMoments(ensemble, anomalies, inflation, mean, variance, split, to);
+		left.fork();
+		right.compute();
+		left.join();
+	}
+}
@@ -0,0 +1,89 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import Jama.Matrix;
+
+import org.junit.Test;
+
+/** Test the EnsembleMoments against the Matrix computation it replaced in TestEnKF.update */
+public class EnsembleMomentsTest {
+
+	/** Ensemble with more rows than the row threshold, so the rows are split over tasks */
+	private static Matrix ensemble(int rows, int N) {
+		Random r = new Random(27);
+		Matrix X = new Matrix(rows, N);
+		for (int i = 0; i<rows; i++) {
+			double scale = i%2 == 0 ? 0.05 : 30;
+			for (int j = 0; j<N; j++)
+				X.set(i, j, scale*(1 + r.nextGaussian()));
+		}
+		return X;
+	}
+
+	/** Mean, sample variance and anomalies as computed with matrices */
+	private static Matrix[] matrixMoments(Matrix X) {
+		int N = X.getColumnDimension();
+		int n = X.getRowDimension();
+		Matrix gemX = X.times(new Matrix(N, 1, 1.0/N));
+		Matrix A = X.minus(gemX.times(new Matrix(1, N, 1.0)));
+		Matrix varX = new Matrix(n, 1);
+		for (int j = 0; j<N; j++) {
+			Matrix tmpX = A.getMatrix(0, n-1, j, j);
+			varX = varX.plus(tmpX.arrayTimes(tmpX));
+		}
+		varX = varX.times(1.0/(N-1));
+		return new Matrix[]{gemX, varX, A};
+	}
+
+	/**
+	 * Mean, variance and anomalies equal the Matrix computation
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testCompute() {
+		Matrix X = ensemble(3000, 20);
+		Matrix[] expected = matrixMoments(X);
+		double[] mean = new double[X.getRowDimension()];
+		double[] variance = new double[X.getRowDimension()];
+		double[][] anomalies = new double[X.getRowDimension()][X.getColumnDimension()];
+		EnsembleMoments.compute(X.getArray(), mean, variance, anomalies);
+		for (int i = 0; i<mean.length; i++) {
+			assertEquals(expected[0].get(i, 0), mean[i], 1e-12*Math.abs(expected[0].get(i, 0)));
+			assertEquals(expected[1].get(i, 0), variance[i], 1e-9*expected[1].get(i, 0));
+			for (int j = 0; j<X.getColumnDimension(); j++)
+				assertEquals(expected[2].get(i, j), anomalies[i][j], 1e-9);
+		}
+		double[] std = EnsembleMoments.std(variance);
+		assertEquals(Math.sqrt(variance[1]), std[1], 0);
+	}
+
+	/**
+	 * Inflation around the mean equals the Matrix computation, and the variance is of the
+	 * inflated ensemble
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testInflate() {
+		Matrix X = ensemble(1500, 10);
+		int N = X.getColumnDimension();
+		double[] factors = new double[X.getRowDimension()];
+		for (int i = 0; i<factors.length; i++)
+			factors[i] = 1 + 0.01*(i%7);
+		Matrix AX = X.times(new Matrix(N, 1, 1.0/N)).times(new Matrix(1, N, 1.0));
+		Matrix r2 = new Matrix(factors, factors.length).times(new Matrix(1, N, 1.0));
+		Matrix expected = X.minus(AX).arrayTimes(r2).plus(AX);
+		Matrix[] expectedMoments = matrixMoments(expected);
+		double[] mean = new double[factors.length];
+		double[] variance = new double[factors.length];
+		EnsembleMoments.inflate(X.getArray(), factors, mean, variance);
+		for (int i = 0; i<factors.length; i++) {
+			for (int j = 0; j<N; j++)
+				assertEquals(expected.get(i, j), X.get(i, j), 1e-9);
+			assertEquals(expectedMoments[0].get(i, 0), mean[i], 1e-9);
+			assertEquals(expectedMoments[1].get(i, 0), variance[i], 1e-9*expectedMoments[1].get(i, 0));
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+
+import Jama.Matrix;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Model;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeDetector;
+import nl.tudelft.otsim.Simulators.MacroSimulator.TestCases.StateDefinition.StateFunction;
+
+/**
+ * Fixed layout of the ensemble state and predicted observations.
+ * <br>
+ * Every {@link StateDefinition} of an {@link AssimilationConfiguration} is mapped to a
+ * fixed range of rows, in the same order as
+ * {@link AssimilationConfiguration#saveStateToArray(Model)}. The states of all ensemble
+ * members are gathered directly into one preallocated buffer (one row per state variable,
+ * one column per member) and scattered back from the analysis without intermediate arrays.
+ * The buffers are shared with the analysis through {@link Matrix} views, so the matrices
+ * returned by {@link #getStateMatrix()} and {@link #getObservationMatrix()} are
+ * overwritten by the next gather, and the anomaly matrices by the next moment computation.
+ */
+public class EnsembleStateLayout {
+	private final StateDefinition[] definitions;
+	private final int[] offsets;
+	private final EnumMap<StateDefinition, Integer> definitionIndex = new EnumMap<StateDefinition, Integer>(StateDefinition.class);
+	private final int nrStateVariables;
+	private final int nrDetectors;
+	private final int nrEnsembles;
+	private final double[][] stateBuffer;
+	private final double[][] observationBuffer;
+	private final double[][] stateAnomalyBuffer;
+	private final double[][] observationAnomalyBuffer;
+	private final Matrix stateMatrix;
+	private final Matrix observationMatrix;
+	private final Matrix stateAnomalyMatrix;
+	private final Matrix observationAnomalyMatrix;
+
+	public EnsembleStateLayout(AssimilationConfiguration config, int nrDetectors, int nrEnsembles) {
+		ArrayList<StateDefinition> list = new ArrayList<StateDefinition>();
+		for (StateDefinition s: config.stateIds) {
+			if (s.is(StateFunction.IN))
+				list.add(s);
+		}
+		this.definitions = list.toArray(new StateDefinition[list.size()]);
+		this.offsets = new int[definitions.length+1];
+		for (int i = 0; i<definitions.length; i++) {
+			definitionIndex.put(definitions[i], i);
+			offsets[i+1] = offsets[i] + config.nrOfElements.get(definitions[i].getType());
+		}
+		this.nrStateVariables = offsets[definitions.length];
+		if (nrStateVariables != config.nrStateVariables)
+			throw new Error("State layout does not match the assimilation configuration");
+		this.nrDetectors = nrDetectors;
+		this.nrEnsembles = nrEnsembles;
+		this.stateBuffer = new double[nrStateVariables][nrEnsembles];
+		this.observationBuffer = new double[2*nrDetectors][nrEnsembles];
+		this.stateAnomalyBuffer = new double[nrStateVariables][nrEnsembles];
+		this.observationAnomalyBuffer = new double[2*nrDetectors][nrEnsembles];
+		this.stateMatrix = new Matrix(stateBuffer, nrStateVariables, nrEnsembles);
+		this.observationMatrix = new Matrix(observationBuffer, 2*nrDetectors, nrEnsembles);
+		this.stateAnomalyMatrix = new Matrix(stateAnomalyBuffer, nrStateVariables, nrEnsembles);
+		this.observationAnomalyMatrix = new Matrix(observationAnomalyBuffer, 2*nrDetectors, nrEnsembles);
+	}
+
+	/** Copy the state of one ensemble member into its column of the state buffer. */
+	public void gatherState(Model model, int member) {
+		for (int i = 0; i<definitions.length; i++)
+			model.saveStateToColumn(definitions[i].getName(), stateBuffer, offsets[i], member);
+	}
+
+	/**
+	 * Copy the 1 minute detector measurements of one ensemble member into its column of
+	 * the observation buffer: speeds first, flows second.
+	 */
+	public void gatherObservations(Model model, int member) {
+		ArrayList<NodeDetector> detectors = model.getDetectors();
+		for (int d = 0; d<nrDetectors; d++) {
+			double[] obs = detectors.get(d).getMeasurements(model.t()-60, model.t(), model.dt);
+			observationBuffer[d][member] = obs[1];
+			observationBuffer[nrDetectors+d][member] = obs[0];
+		}
+	}
+
+	public void gather(Model model, int member) {
+		gatherState(model, member);
+		gatherObservations(model, member);
+	}
+
+	/**
+	 * Restore the state of a model from one column of an analysis matrix with this layout.
+	 * @param analysis matrix with one row per state variable
+	 * @param model model to restore
+	 * @param member column to read
+	 */
+	public void scatter(Matrix analysis, Model model, int member) {
+		if (analysis.getRowDimension() != nrStateVariables)
+			throw new Error("Wrong number of state variables");
+		double[][] source = analysis.getArray();
+		for (int i = 0; i<definitions.length; i++)
+			model.restoreStateFromColumn(source, offsets[i], member, definitions[i].getName());
+		model.updateCellVariables();
+	}
+
+	/**
+	 * Compute the ensemble mean and variance of the gathered states and write the
+	 * anomalies into the state anomaly buffer.
+	 */
+	public void computeStateMoments(double[] mean, double[] variance) {
+		EnsembleMoments.compute(stateBuffer, mean, variance, stateAnomalyBuffer);
+	}
+	/**
+	 * Compute the ensemble mean and variance of the gathered observations and write the
+	 * anomalies into the observation anomaly buffer.
+	 */
+	public void computeObservationMoments(double[] mean, double[] variance) {
+		EnsembleMoments.compute(observationBuffer, mean, variance, observationAnomalyBuffer);
+	}
+
+	public Matrix getStateMatrix() {
+		return stateMatrix;
+	}
+	public Matrix getObservationMatrix() {
+		return observationMatrix;
+	}
+	public Matrix getStateAnomalyMatrix() {
+		return stateAnomalyMatrix;
+	}
+	public Matrix getObservationAnomalyMatrix() {
+		return observationAnomalyMatrix;
+	}
+	public int getOffset(StateDefinition s) {
+		return offsets[definitionIndex.get(s)];
+	}
+	public int getLength(StateDefinition s) {
+		int i = definitionIndex.get(s);
+		return offsets[i+1] - offsets[i];
+	}
+	public StateDefinition[] getDefinitions() {
+		return definitions.clone();
+	}
+	public int getNrStateVariables() {
+		return nrStateVariables;
+	}
+	public int getNrObservations() {
+		return 2*nrDetectors;
+	}
+	public int getNrEnsembles() {
+		return nrEnsembles;
+	}
+}
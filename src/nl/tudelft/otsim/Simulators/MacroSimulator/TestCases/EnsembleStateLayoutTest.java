@@ -0,0 +1,103 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import nl.tudelft.otsim.Events.Scheduler;
+import nl.tudelft.otsim.GUI.FakeGraphicsPanel;
+import nl.tudelft.otsim.Simulators.MacroSimulator.MacroSimulator;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Model;
+
+import Jama.Matrix;
+
+import org.junit.Test;
+
+/** Test the EnsembleStateLayout against the array based saveStateToArray and restoreState */
+public class EnsembleStateLayoutTest {
+
+	/** Two roadways with a lane drop and two detectors, run for some time */
+	private static Model createModel(double inflowFactor) {
+		String pattern = "[0.000/1400:1800/2200:2400.000/2200]";
+		String configuration = "EndTime:\t7200.00\nSeed:\t1\n"
+				+ "Roadway:\t0\tfrom\t1\tto\t2\tspeedlimit\t100\tlanes\t2\tvertices\t(0.000,-0.250,0.000)\t(3000.000,-0.250,0.000)\tins\touts\t1\tfd\t0.02\t0.125\t22.222\tSMULDERS\n"
+				+ "Roadway:\t1\tfrom\t2\tto\t3\tspeedlimit\t100\tlanes\t1\tvertices\t(3000.000,-0.250,0.000)\t(4000.000,-0.250,0.000)\tins\t0\touts\tfd\t0.02\t0.125\t22.222\tSMULDERS\n"
+				+ "TrafficClass\tpassengerCar_act\t4.000\t140.000\t-6.000\t0.900000\t600.000\n"
+				+ "TripPattern\tnumberOfTrips:\t" + pattern + "\tLocationPattern:\t[z1, z2]\tFractions\tpassengerCar_act:1.000000\n"
+				+ "TripPatternPath\tnumberOfTrips:\t" + pattern + "\tNodePattern:\t[origin ID=1 (0.00m, 0.00m, 0.00m), destination ID=2 (3500.00m, 0.00m, 0.00m)]\n"
+				+ "Path:\t1.00000\tnodes:\t1\t2\t3\n"
+				+ "Detector:\t0\t(1000.000,-0.250,0.000)\nDetector:\t1\t(3250.000,-0.250,0.000)\n";
+		Scheduler scheduler = new Scheduler(MacroSimulator.simulatorType, new FakeGraphicsPanel(), configuration);
+		Model model = (Model) scheduler.getSimulator().getModel();
+		model.init();
+		model.getInflowNodes().get(0).setInflow(model.getInflowNodes().get(0).getInflow()*inflowFactor);
+		scheduler.stepUpTo(900);
+		return model;
+	}
+
+	private static AssimilationConfiguration configuration(Model model) {
+		ErrorConfiguration[] state = new ErrorConfiguration[] {
+				new ErrorConfiguration(StateDefinition.K_CELL, 0.005, 1.0),
+				new ErrorConfiguration(StateDefinition.VLIM_CELL, 1, 1.0),
+				new ErrorConfiguration(StateDefinition.KJAM_LINK, 0.005, 1.0),
+				new ErrorConfiguration(StateDefinition.INFLOW_NODE, 0.05, 1.0)};
+		return new AssimilationConfiguration(state, model, AssimilationMethod.DENKF);
+	}
+
+	/**
+	 * Gathered columns equal saveStateToArray, and scattering a column restores the same
+	 * state as restoreState
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testGatherScatter() {
+		Model[] models = new Model[] {createModel(1), createModel(0.8), createModel(1.2)};
+		AssimilationConfiguration config = configuration(models[0]);
+		EnsembleStateLayout layout = new EnsembleStateLayout(config, models[0].getDetectors().size(), models.length);
+		assertEquals(config.nrStateVariables, layout.getNrStateVariables());
+		for (int j = 0; j<models.length; j++)
+			layout.gather(models[j], j);
+		Matrix X = layout.getStateMatrix();
+		for (int j = 0; j<models.length; j++)
+			assertArrayEquals(config.saveStateToArray(models[j]), X.getMatrix(0, X.getRowDimension()-1, j, j).getColumnPackedCopy(), 0);
+		assertFalse(java.util.Arrays.equals(config.saveStateToArray(models[1]), config.saveStateToArray(models[2])));
+		assertEquals(0, layout.getOffset(StateDefinition.K_CELL));
+		assertEquals(config.nrCells, layout.getLength(StateDefinition.VLIM_CELL));
+		// speeds before flows
+		double[] obs = models[1].getDetectors().get(1).getMeasurements(models[1].t()-60, models[1].t(), models[1].dt);
+		assertEquals(obs[1], layout.getObservationMatrix().get(1, 1), 0);
+		assertEquals(obs[0], layout.getObservationMatrix().get(models[1].getDetectors().size()+1, 1), 0);
+
+		// restore the state of member 2 in the first and a copy of the second model
+		Matrix analysis = X.copy();
+		Model expected = createModel(0.8);
+		config.restoreState(analysis.getMatrix(0, X.getRowDimension()-1, 2, 2).getColumnPackedCopy(), expected);
+		layout.scatter(analysis, models[1], 2);
+		assertArrayEquals(config.saveStateToArray(expected), config.saveStateToArray(models[1]), 0);
+		assertArrayEquals(expected.saveStateToArray("speed"), models[1].saveStateToArray("speed"), 0);
+	}
+
+	/**
+	 * Moments are computed on the gathered buffers
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testMoments() {
+		Model[] models = new Model[] {createModel(1), createModel(0.8), createModel(1.2)};
+		AssimilationConfiguration config = configuration(models[0]);
+		EnsembleStateLayout layout = new EnsembleStateLayout(config, models[0].getDetectors().size(), models.length);
+		for (int j = 0; j<models.length; j++)
+			layout.gather(models[j], j);
+		double[] mean = new double[layout.getNrObservations()];
+		double[] variance = new double[layout.getNrObservations()];
+		layout.computeObservationMoments(mean, variance);
+		Matrix HX = layout.getObservationMatrix();
+		Matrix HA = layout.getObservationAnomalyMatrix();
+		for (int i = 0; i<mean.length; i++) {
+			double sum = 0;
+			for (int j = 0; j<models.length; j++)
+				sum += HX.get(i, j);
+			assertEquals(sum/models.length, mean[i], 1e-9);
+			for (int j = 0; j<models.length; j++)
+				assertEquals(HX.get(i, j) - mean[i], HA.get(i, j), 1e-9);
+		}
+	}
+}
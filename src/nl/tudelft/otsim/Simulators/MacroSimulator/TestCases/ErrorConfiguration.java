@@ -1,6 +1,9 @@
 package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
 
-public class ErrorConfiguration {
+import java.io.Serializable;
+
+public class ErrorConfiguration implements Serializable {
+	private static final long serialVersionUID = 1L;
 	StateDefinition id;
 	double initialError;
 	double inflationFactor;
@@ -1,12 +1,14 @@
 package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 
 
 
 
-public class ExperimentConfiguration {
+public class ExperimentConfiguration implements Serializable {
+	private static final long serialVersionUID = 1L;
 
 
 	ArrayList<ArrayList<ErrorConfiguration>> errorConfigurations;
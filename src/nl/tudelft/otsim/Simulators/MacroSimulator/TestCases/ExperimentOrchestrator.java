@@ -0,0 +1,285 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import Jama.Matrix;
+
+/**
+ * Runs the runs of an experiment (every network configuration with every run
+ * configuration of an {@link ExperimentConfiguration}) in parallel worker processes.
+ * <br>
+ * {@link TestEnKF} keeps run state (random generators, routes, output settings) in
+ * static fields, so every run gets its own JVM. At most <tt>workers</tt> runs are active,
+ * and a run is only started when its memory estimate fits in the memory budget. Every
+ * worker gets an equal share of the processors, so the parallel updates within a run do
+ * not compete with the other runs.
+ * <br>
+ * A study lives in a directory with the serialized {@link Study}, a log file per run and
+ * a marker per completed run that holds its computation times. Restarting an interrupted
+ * study only starts the runs without a marker. The truth is simulated once and shared
+ * through the {@link SimulationCache}.
+ */
+public class ExperimentOrchestrator {
+	private final File directory;
+	private final Study study;
+	private int workers = Runtime.getRuntime().availableProcessors();
+	private long memoryBudgetMB = defaultMemoryBudgetMB();
+	private long baseMemoryMB = 256;
+	private long memoryPerMemberMB = 8;
+
+	/** Everything a worker needs to perform one run. */
+	public static class Study implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final String truthConfiguration;
+		final int nrSteps;
+		final double timestep;
+		final ExperimentConfiguration experimentConfiguration;
+		final String prefix;
+
+		/**
+		 * @param truthConfiguration configuration of the truth, see {@link TestEnKF#generateTruthValues}
+		 * @param nrSteps number of steps of the truth
+		 * @param timestep time step of the truth [s]
+		 * @param experimentConfiguration grid of networks and run configurations
+		 * @param prefix prefix of the output files
+		 */
+		public Study(String truthConfiguration, int nrSteps, double timestep, ExperimentConfiguration experimentConfiguration, String prefix) {
+			this.truthConfiguration = truthConfiguration;
+			this.nrSteps = nrSteps;
+			this.timestep = timestep;
+			this.experimentConfiguration = experimentConfiguration;
+			this.prefix = prefix;
+		}
+	}
+
+	/**
+	 * Create a study in a directory, or continue the study in it.
+	 * @param study study to run; if null the study is read from the directory
+	 */
+	public ExperimentOrchestrator(File directory, Study study) throws IOException {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		File file = new File(directory, "study.ser");
+		if (study == null) {
+			this.study = readStudy(directory);
+		} else {
+			if (file.isFile() && !file.delete())
+				throw new IOException("Cannot replace " + file);
+			ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+			try {
+				out.writeObject(study);
+			} finally {
+				out.close();
+			}
+			this.study = study;
+		}
+	}
+
+	private static Study readStudy(File directory) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new FileInputStream(new File(directory, "study.ser")));
+		try {
+			return (Study) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static long defaultMemoryBudgetMB() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getTotalMemorySize()/(1024*1024)*3/4;
+		return Runtime.getRuntime().maxMemory()/(1024*1024);
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+	public void setMemoryBudgetMB(long memoryBudgetMB) {
+		this.memoryBudgetMB = memoryBudgetMB;
+	}
+	/**
+	 * Memory estimate of a run: a base plus an amount per ensemble member. The estimate is
+	 * also the maximum heap of the worker.
+	 */
+	public void setMemoryEstimate(long baseMemoryMB, long memoryPerMemberMB) {
+		this.baseMemoryMB = baseMemoryMB;
+		this.memoryPerMemberMB = memoryPerMemberMB;
+	}
+
+	long memoryEstimateMB(EnKFRunConfiguration runConfig) {
+		return Math.min(memoryBudgetMB, baseMemoryMB + memoryPerMemberMB*runConfig.getEnsembleSize());
+	}
+
+	private File marker(int network, int runConfiguration) {
+		return new File(directory, "run_" + network + "_" + runConfiguration + ".done");
+	}
+
+	/**
+	 * Runs without a valid marker, in the order in which they are started. An empty or
+	 * damaged marker, e.g. of a worker that was killed, does not count as done.
+	 * @return network and run configuration index of every pending run
+	 */
+	ArrayList<int[]> pendingRuns() throws IOException {
+		ExperimentConfiguration config = study.experimentConfiguration;
+		ArrayList<int[]> result = new ArrayList<int[]>();
+		for (int i = 0; i<config.getNetworkConfigurations().size(); i++) {
+			for (int j = 0; j<config.getRunConfigurations().size(); j++) {
+				if (readMarker(marker(i, j)) == null)
+					result.add(new int[]{i, j});
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Perform all runs without a valid marker, and wait for them.
+	 * @return computation times per network and run configuration, as returned by
+	 * {@link TestEnKF#performExperiment(Matrix[], ExperimentConfiguration, String)}; null
+	 * for runs that failed
+	 */
+	public long[][][] run() throws IOException {
+		ExperimentConfiguration config = study.experimentConfiguration;
+		int nrNetworks = config.getNetworkConfigurations().size();
+		int nrRuns = config.getRunConfigurations().size();
+		// simulate the truth once, the workers load it from the cache
+		if (SimulationCache.getDefault() != null)
+			TestEnKF.generateTruthValues(study.truthConfiguration, study.nrSteps, study.timestep);
+		final Semaphore memory = new Semaphore((int) Math.min(Integer.MAX_VALUE, memoryBudgetMB));
+		final int processors = Math.max(1, Runtime.getRuntime().availableProcessors()/workers);
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for (int[] pending: pendingRuns()) {
+				final int network = pending[0];
+				final int runConfiguration = pending[1];
+				final int memoryMB = (int) memoryEstimateMB(config.getRunConfigurations().get(runConfiguration));
+				// admission: wait here until the run fits in the memory budget
+				memory.acquireUninterruptibly(memoryMB);
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							runWorker(network, runConfiguration, memoryMB, processors);
+						} finally {
+							memory.release(memoryMB);
+						}
+					}
+				}));
+			}
+			for (Future<?> f: futures)
+				AssimilationPipeline.get(f);
+		} finally {
+			executor.shutdown();
+		}
+		long[][][] computationTimes = new long[nrNetworks][nrRuns][];
+		for (int i = 0; i<nrNetworks; i++) {
+			for (int j = 0; j<nrRuns; j++)
+				computationTimes[i][j] = readMarker(marker(i, j));
+		}
+		return computationTimes;
+	}
+
+	private void runWorker(int network, int runConfiguration, int memoryMB, int processors) {
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-Xmx" + memoryMB + "m");
+		command.add("-XX:ActiveProcessorCount=" + processors);
+		command.add("-Djava.awt.headless=true");
+		SimulationCache cache = SimulationCache.getDefault();
+		command.add("-Dotsim.cache=" + (cache == null ? "off" : cache.getDirectory().getAbsolutePath()));
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ExperimentOrchestrator.class.getName());
+		command.add(directory.getAbsolutePath());
+		command.add(Integer.toString(network));
+		command.add(Integer.toString(runConfiguration));
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.directory(directory);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(new File(directory, "run_" + network + "_" + runConfiguration + ".log"));
+		try {
+			int exit = pb.start().waitFor();
+			if (exit != 0 || readMarker(marker(network, runConfiguration)) == null)
+				System.err.println("Run (" + network + "," + runConfiguration + ") failed with exit code " + exit + ", see its log");
+			else
+				System.out.println("Run (" + network + "," + runConfiguration + ") done");
+		} catch (IOException e) {
+			System.err.println("Cannot start run (" + network + "," + runConfiguration + "): " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** @return computation times in a marker, or null if it does not exist or is empty or damaged */
+	static long[] readMarker(File marker) throws IOException {
+		if (!marker.isFile())
+			return null;
+		BufferedReader in = new BufferedReader(new FileReader(marker));
+		try {
+			String line = in.readLine();
+			if (line == null || line.trim().isEmpty())
+				return null;
+			String[] fields = line.trim().split(",");
+			long[] times = new long[fields.length];
+			for (int k = 0; k<fields.length; k++)
+				times[k] = Long.parseLong(fields[k].trim());
+			return times;
+		} catch (NumberFormatException e) {
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	static void writeMarker(File marker, long[] times) throws IOException {
+		File tmp = new File(marker.getPath() + ".tmp");
+		PrintWriter out = new PrintWriter(tmp);
+		try {
+			for (int k = 0; k<times.length; k++)
+				out.print((k > 0 ? "," : "") + times[k]);
+			out.println();
+		} finally {
+			out.close();
+		}
+		if (marker.isFile() && !marker.delete())
+			throw new IOException("Cannot replace " + marker);
+		if (!tmp.renameTo(marker))
+			throw new IOException("Cannot rename " + tmp + " to " + marker);
+	}
+
+	/**
+	 * Worker process: perform one run of a study and write its marker.
+	 * @param args study directory, network index, run configuration index
+	 */
+	public static void main(String[] args) throws IOException {
+		File directory = new File(args[0]);
+		int network = Integer.parseInt(args[1]);
+		int runConfiguration = Integer.parseInt(args[2]);
+		Study study = readStudy(directory);
+		TestEnKF.openGUI = false;
+		Matrix[] obsTest = TestEnKF.generateTruthValues(study.truthConfiguration, study.nrSteps, study.timestep);
+		long[] times = TestEnKF.performExperimentRun(obsTest, study.experimentConfiguration, study.prefix, network, runConfiguration);
+		writeMarker(new File(directory, "run_" + network + "_" + runConfiguration + ".done"), times);
+		// the forecast and indicator threads of the run are daemons, the GUI is not used
+		System.exit(0);
+	}
+}
@@ -0,0 +1,123 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/** Test the markers and the resuming of a study of the ExperimentOrchestrator */
+public class ExperimentOrchestratorTest {
+
+	private static File directory() throws IOException {
+		File directory = File.createTempFile("experimentOrchestratorTest", "");
+		if (!directory.delete() || !directory.mkdir())
+			throw new IOException("Cannot replace " + directory);
+		return directory;
+	}
+
+	private static void delete(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f: files)
+				f.delete();
+		}
+		directory.delete();
+	}
+
+	/** Study of two networks and three run configurations */
+	private static ExperimentOrchestrator.Study study() {
+		ArrayList<EnKFRunConfiguration> runs = new ArrayList<EnKFRunConfiguration>();
+		for (int n = 1; n<=3; n++)
+			runs.add(new EnKFRunConfiguration(AssimilationMethod.DENKF, 2, new ArrayList<ErrorConfiguration>(), 10*n));
+		ArrayList<String> networks = new ArrayList<String>();
+		networks.add("EndTime:\t600\n");
+		networks.add("EndTime:\t1200\n");
+		return new ExperimentOrchestrator.Study("EndTime:\t600\n", 10, 0.5, new ExperimentConfiguration(runs, networks, false, false), "test");
+	}
+
+	private static void write(File file, String text) throws IOException {
+		PrintWriter out = new PrintWriter(file);
+		try {
+			out.print(text);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Markers are read back, and empty, damaged or missing markers are not
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testMarkers() throws IOException {
+		File directory = directory();
+		try {
+			File marker = new File(directory, "run_0_0.done");
+			assertNull(ExperimentOrchestrator.readMarker(marker));
+			ExperimentOrchestrator.writeMarker(marker, new long[] {12, 0, 345});
+			assertArrayEquals(new long[] {12, 0, 345}, ExperimentOrchestrator.readMarker(marker));
+			ExperimentOrchestrator.writeMarker(marker, new long[] {7});
+			assertArrayEquals(new long[] {7}, ExperimentOrchestrator.readMarker(marker));
+			assertFalse(new File(directory, "run_0_0.done.tmp").exists());
+			write(marker, "");
+			assertNull(ExperimentOrchestrator.readMarker(marker));
+			write(marker, "\n");
+			assertNull(ExperimentOrchestrator.readMarker(marker));
+			write(marker, "12,abc");
+			assertNull(ExperimentOrchestrator.readMarker(marker));
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * A resumed study only has the runs without a valid marker pending, and a study with
+	 * all markers returns their times without starting workers
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testResume() throws IOException {
+		File directory = directory();
+		try {
+			ExperimentOrchestrator orchestrator = new ExperimentOrchestrator(directory, study());
+			assertEquals(6, orchestrator.pendingRuns().size());
+			ExperimentOrchestrator.writeMarker(new File(directory, "run_0_1.done"), new long[] {1, 2});
+			ExperimentOrchestrator.writeMarker(new File(directory, "run_1_2.done"), new long[] {3, 4});
+			write(new File(directory, "run_1_0.done"), "");
+
+			// continue the study in the directory
+			ExperimentOrchestrator resumed = new ExperimentOrchestrator(directory, null);
+			ArrayList<int[]> pending = resumed.pendingRuns();
+			assertEquals(4, pending.size());
+			assertArrayEquals(new int[] {0, 0}, pending.get(0));
+			assertArrayEquals(new int[] {0, 2}, pending.get(1));
+			assertArrayEquals(new int[] {1, 0}, pending.get(2));
+			assertArrayEquals(new int[] {1, 1}, pending.get(3));
+
+			for (int[] run: pending)
+				ExperimentOrchestrator.writeMarker(new File(directory, "run_" + run[0] + "_" + run[1] + ".done"), new long[] {10*run[0] + run[1]});
+			assertTrue(resumed.pendingRuns().isEmpty());
+			String cache = System.getProperty("otsim.cache");
+			System.setProperty("otsim.cache", "off");
+			long[][][] times;
+			try {
+				times = resumed.run();
+			} finally {
+				if (cache == null)
+					System.clearProperty("otsim.cache");
+				else
+					System.setProperty("otsim.cache", cache);
+			}
+			assertArrayEquals(new long[] {1, 2}, times[0][1]);
+			assertArrayEquals(new long[] {3, 4}, times[1][2]);
+			assertArrayEquals(new long[] {10}, times[1][0]);
+			assertFalse(new File(directory, "run_0_0.log").exists());
+		} finally {
+			delete(directory);
+		}
+	}
+}
@@ -0,0 +1,487 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.RecursiveAction;
+
+import nl.tudelft.otsim.Simulators.MacroSimulator.MacroCell;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Model;
+import nl.tudelft.otsim.Simulators.MacroSimulator.FundamentalDiagrams.FDDrake;
+import nl.tudelft.otsim.Simulators.MacroSimulator.FundamentalDiagrams.FDSmulders;
+import nl.tudelft.otsim.Simulators.MacroSimulator.FundamentalDiagrams.FDTrian;
+import nl.tudelft.otsim.Simulators.MacroSimulator.FundamentalDiagrams.FDs;
+import nl.tudelft.otsim.Simulators.MacroSimulator.FundamentalDiagrams.IFD;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeDetector;
+
+/**
+ * Calibration of fundamental diagrams from detector speeds and flows.
+ * <br>
+ * Per detector the density of every sample is <tt>k = q/v</tt>, and the parameters of a
+ * fundamental diagram family minimize a robust loss of the speed residuals
+ * <tt>v - V(k)</tt>. The speed residual is used for all families, as it is defined in free
+ * flow and in congestion alike. The minimization is a Nelder-Mead search in unconstrained
+ * coordinates, which keep all parameters positive, <tt>kCri &lt; kJam</tt> and
+ * <tt>vCri &lt; vLim</tt>. Detectors are fitted in parallel on the shared fork-join pool.
+ * <br>
+ * Fitted parameters are assigned to the cells around each detector with
+ * {@link #assign(Model, Fit[][], int)}: every cell gets the fit of the nearest detector
+ * (in cells), of the family of its own fundamental diagram. Densities are converted to
+ * per lane values, as {@link MacroCell#recalculateFDparameters()} scales them with the
+ * number of lanes.
+ * <br>
+ * Speeds are in m/s and flows in veh/s, as in the detector observations. The Drake diagram
+ * has no jam density; its fit gets twice the highest density of the samples.
+ */
+public class FDCalibration {
+	/** Robust loss of a residual relative to the scale. */
+	public enum Loss {
+		SQUARED {
+			@Override
+			double rho(double r) {
+				return 0.5*r*r;
+			}
+		},
+		HUBER {
+			@Override
+			double rho(double r) {
+				double a = Math.abs(r);
+				return a <= 1 ? 0.5*r*r : a - 0.5;
+			}
+		},
+		CAUCHY {
+			@Override
+			double rho(double r) {
+				return 0.5*Math.log1p(r*r);
+			}
+		};
+
+		abstract double rho(double r);
+	}
+
+	/** Fitted parameters of one family for one detector. */
+	public static class Fit {
+		public final FDs family;
+		public final double vLim;
+		public final double kCri;
+		public final double kJam;
+		public final double vCri;
+		/** mean loss per sample */
+		public final double loss;
+		public final int nrSamples;
+
+		Fit(FDs family, double vLim, double kCri, double kJam, double vCri, double loss, int nrSamples) {
+			this.family = family;
+			this.vLim = vLim;
+			this.kCri = kCri;
+			this.kJam = kJam;
+			this.vCri = vCri;
+			this.loss = loss;
+			this.nrSamples = nrSamples;
+		}
+
+		@Override
+		public String toString() {
+			return family + "{vLim=" + vLim + ",kCri=" + kCri + ",kJam=" + kJam + ",vCri=" + vCri + ",loss=" + loss + ",n=" + nrSamples + "}";
+		}
+	}
+
+	private final FDs[] families;
+	private final Loss loss;
+	private final double scale;
+	private int minSamples = 20;
+	private int maxEvaluations = 600;
+	private double tolerance = 1e-6;
+	/** number of density bins of the initial guess */
+	private static final int BINS = 20;
+	/** number of samples of the first search */
+	private static final int SUBSAMPLE = 240;
+	protected static int detectorThreshold = 4;
+
+	/**
+	 * @param loss loss function
+	 * @param scale speed residual [m/s] at which the robust losses start to deviate from the squared loss
+	 * @param families families to fit
+	 */
+	public FDCalibration(Loss loss, double scale, FDs... families) {
+		this.loss = loss;
+		this.scale = scale;
+		this.families = families.length == 0 ? FDs.values() : families.clone();
+	}
+
+	/** Detectors with fewer valid samples get no fit. */
+	public void setMinSamples(int minSamples) {
+		this.minSamples = minSamples;
+	}
+	public void setMaxEvaluations(int maxEvaluations) {
+		this.maxEvaluations = maxEvaluations;
+	}
+	public FDs[] getFamilies() {
+		return families.clone();
+	}
+
+	/**
+	 * Fit all families to the samples of one detector.
+	 * @param speeds speeds [m/s]; NaN for missing samples
+	 * @param flows flows [veh/s]; NaN for missing samples
+	 * @return fit per family, in the order of {@link #getFamilies()}; fits are null if there are too few samples
+	 */
+	public Fit[] fit(double[] speeds, double[] flows) {
+		int n = 0;
+		double[] v = new double[speeds.length];
+		double[] k = new double[speeds.length];
+		for (int i = 0; i<speeds.length; i++) {
+			if (speeds[i] > 0.5 && flows[i] >= 0) {
+				v[n] = speeds[i];
+				k[n] = flows[i]/speeds[i];
+				n++;
+			}
+		}
+		Fit[] result = new Fit[families.length];
+		if (n < minSamples)
+			return result;
+		// samples in order of density, for the initial guess and the subsample
+		Integer[] order = new Integer[n];
+		for (int i = 0; i<n; i++)
+			order[i] = i;
+		final double[] density = k;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(density[a], density[b]);
+			}
+		});
+		double[] vs = new double[n];
+		double[] ks = new double[n];
+		for (int i = 0; i<n; i++) {
+			vs[i] = v[order[i]];
+			ks[i] = k[order[i]];
+		}
+		for (int f = 0; f<families.length; f++)
+			result[f] = fit(families[f], vs, ks);
+		return result;
+	}
+
+	/**
+	 * Fit all detectors in parallel.
+	 * @param speeds speeds per detector
+	 * @param flows flows per detector
+	 * @return fits per detector, see {@link #fit(double[], double[])}
+	 */
+	public Fit[][] fitAll(double[][] speeds, double[][] flows) {
+		Fit[][] result = new Fit[speeds.length][];
+		FJPool.fjPool.invoke(new Task(speeds, flows, result, 0, speeds.length));
+		return result;
+	}
+
+	/** Fit all detectors of a store to the samples in [t0, t1]. */
+	public Fit[][] fitAll(DetectorObservationStore store, double t0, double t1) throws IOException {
+		int nrDetectors = store.getNrDetectors();
+		double[][] speeds = new double[nrDetectors][];
+		double[][] flows = new double[nrDetectors][];
+		// the store is read sequentially, the fits are parallel
+		for (int d = 0; d<nrDetectors; d++) {
+			double[][] samples = store.getDetector(d, t0, t1);
+			speeds[d] = samples[1];
+			flows[d] = samples[2];
+		}
+		return fitAll(speeds, flows);
+	}
+
+	private class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final double[][] speeds, flows;
+		private final Fit[][] result;
+		private final int from, to;
+
+		Task(double[][] speeds, double[][] flows, Fit[][] result, int from, int to) {
+			this.speeds = speeds;
+			this.flows = flows;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= detectorThreshold) {
+				for (int d = from; d<to; d++)
+					result[d] = fit(speeds[d], flows[d]);
+				return;
+			}
+			int split = (from + to)/2;
+			Task left = new Task(speeds, flows, result, from, split);
+			Task right = new Task(speeds, flows, result, split, to);
+			left.fork();
+			right.compute();
+			left.join();
+		}
+	}
+
+	/** Objective of one family on the samples of one detector. */
+	private class Objective {
+		final FDs family;
+		final IFD fd;
+		final double[] v;
+		final double[] k;
+		final double[] parameters;
+		final double kMax;
+
+		Objective(FDs family, double[] v, double[] k, double kMax) {
+			this.family = family;
+			this.fd = family.create();
+			this.v = v;
+			this.k = k;
+			this.kMax = kMax;
+			parameters = new double[fd instanceof FDSmulders ? 5 : 4];
+		}
+
+		/** @return vLim, kCri, kJam, vCri of unconstrained coordinates */
+		double[] decode(double[] z) {
+			double vLim = Math.exp(z[0]);
+			double kCri = Math.exp(z[1]);
+			double kJam = fd instanceof FDDrake ? Math.max(kCri, kMax)*2 : kCri*(1 + Math.exp(z[2]));
+			double vCri = fd instanceof FDSmulders ? vLim/(1 + Math.exp(-z[3])) : vLim;
+			return new double[]{vLim, kCri, kJam, vCri};
+		}
+
+		double[] encode(double vLim, double kCri, double kJam, double vCri) {
+			int n = fd instanceof FDDrake ? 2 : fd instanceof FDSmulders ? 4 : 3;
+			double[] z = new double[n];
+			z[0] = Math.log(vLim);
+			z[1] = Math.log(kCri);
+			if (n > 2)
+				z[2] = Math.log(kJam/kCri - 1);
+			if (n > 3)
+				z[3] = -Math.log(vLim/vCri - 1);
+			return z;
+		}
+
+		double value(double[] z) {
+			double[] p = decode(z);
+			if (!(p[0] < 1e3 && p[1] < 10 && p[2] < 10 && p[1] > 1e-6))
+				return Double.MAX_VALUE;
+			parameters[1] = p[0];
+			parameters[2] = p[1];
+			parameters[3] = p[2];
+			if (parameters.length > 4)
+				parameters[4] = p[3];
+			double sum = 0;
+			for (int i = 0; i<k.length; i++) {
+				// densities beyond jam density are clamped, the diagrams report them otherwise
+				parameters[0] = Math.min(k[i], p[2]);
+				sum += loss.rho((v[i] - fd.calcV(parameters))/scale);
+			}
+			return sum/k.length;
+		}
+	}
+
+	/**
+	 * Fit one family to samples in order of density. The search is done on a subsample
+	 * that is spread over the densities, and polished on all samples.
+	 */
+	private Fit fit(FDs family, double[] v, double[] k) {
+		int n = k.length;
+		double kMax = k[n-1];
+		// initial guess from bins of equal counts: free speed of the lowest densities and
+		// critical density at the highest median flow, both insensitive to outliers
+		int nrBins = Math.min(BINS, n);
+		double vLim = 0;
+		double kCri = 0;
+		double qMax = -1;
+		for (int b = 0; b<nrBins; b++) {
+			int from = b*n/nrBins;
+			int to = (b+1)*n/nrBins;
+			double[] q = new double[to - from];
+			for (int i = from; i<to; i++)
+				q[i - from] = k[i]*v[i];
+			Arrays.sort(q);
+			double median = q[q.length/2];
+			if (b == 0) {
+				double[] s = Arrays.copyOfRange(v, from, to);
+				Arrays.sort(s);
+				vLim = s[s.length/2];
+			}
+			if (median > qMax) {
+				qMax = median;
+				kCri = k[(from + to)/2];
+			}
+		}
+		kCri = Math.max(kCri, 1e-3);
+		double kJam = Math.max(3*kCri, 1.2*kMax);
+		double[] z;
+		Objective all = new Objective(family, v, k, kMax);
+		if (n > SUBSAMPLE) {
+			double[] vSub = new double[SUBSAMPLE];
+			double[] kSub = new double[SUBSAMPLE];
+			for (int i = 0; i<SUBSAMPLE; i++) {
+				int j = (int) ((i + 0.5)*n/SUBSAMPLE);
+				vSub[i] = v[j];
+				kSub[i] = k[j];
+			}
+			Objective sub = new Objective(family, vSub, kSub, kMax);
+			z = minimize(sub, sub.encode(vLim, kCri, kJam, 0.8*vLim), 0.2, maxEvaluations);
+			z = minimize(all, z, 0.02, maxEvaluations/10);
+		} else {
+			z = minimize(all, all.encode(vLim, kCri, kJam, 0.8*vLim), 0.2, maxEvaluations);
+		}
+		double[] p = all.decode(z);
+		return new Fit(family, p[0], p[1], p[2], p[3], all.value(z), n);
+	}
+
+	/**
+	 * Nelder-Mead minimization.
+	 * @param step initial size of the simplex
+	 */
+	private double[] minimize(Objective objective, double[] start, double step, int maxEvaluations) {
+		int n = start.length;
+		double[][] simplex = new double[n+1][];
+		double[] values = new double[n+1];
+		for (int i = 0; i<=n; i++) {
+			simplex[i] = start.clone();
+			if (i > 0)
+				simplex[i][i-1] += step;
+			values[i] = objective.value(simplex[i]);
+		}
+		int evaluations = n+1;
+		double[] centroid = new double[n];
+		while (evaluations < maxEvaluations) {
+			// order: best first, worst last
+			for (int i = 1; i<=n; i++) {
+				for (int j = i; j>0 && values[j] < values[j-1]; j--) {
+					double t = values[j];
+					values[j] = values[j-1];
+					values[j-1] = t;
+					double[] s = simplex[j];
+					simplex[j] = simplex[j-1];
+					simplex[j-1] = s;
+				}
+			}
+			if (Math.abs(values[n] - values[0]) <= tolerance*(Math.abs(values[0]) + tolerance))
+				break;
+			Arrays.fill(centroid, 0);
+			for (int i = 0; i<n; i++) {
+				for (int j = 0; j<n; j++)
+					centroid[j] += simplex[i][j]/n;
+			}
+			double[] reflected = affine(centroid, simplex[n], -1);
+			double fr = objective.value(reflected);
+			evaluations++;
+			if (fr < values[0]) {
+				double[] expanded = affine(centroid, simplex[n], -2);
+				double fe = objective.value(expanded);
+				evaluations++;
+				if (fe < fr) {
+					simplex[n] = expanded;
+					values[n] = fe;
+				} else {
+					simplex[n] = reflected;
+					values[n] = fr;
+				}
+			} else if (fr < values[n-1]) {
+				simplex[n] = reflected;
+				values[n] = fr;
+			} else {
+				double[] contracted = fr < values[n] ? affine(centroid, simplex[n], -0.5) : affine(centroid, simplex[n], 0.5);
+				double fc = objective.value(contracted);
+				evaluations++;
+				if (fc < Math.min(fr, values[n])) {
+					simplex[n] = contracted;
+					values[n] = fc;
+				} else {
+					// shrink towards the best point
+					for (int i = 1; i<=n; i++) {
+						simplex[i] = affine(simplex[0], simplex[i], 0.5);
+						values[i] = objective.value(simplex[i]);
+					}
+					evaluations += n;
+				}
+			}
+		}
+		int best = 0;
+		for (int i = 1; i<=n; i++) {
+			if (values[i] < values[best])
+				best = i;
+		}
+		return simplex[best];
+	}
+
+	/** @return c + t*(x - c) */
+	private static double[] affine(double[] c, double[] x, double t) {
+		double[] result = new double[c.length];
+		for (int j = 0; j<c.length; j++)
+			result[j] = c[j] + t*(x[j] - c[j]);
+		return result;
+	}
+
+	/**
+	 * Assign fitted parameters to the cells around the detectors of a model.
+	 * @param model model; its detectors are in the order of the fits
+	 * @param fits fits per detector, see {@link #fitAll(double[][], double[][])}
+	 * @param nrLevels maximum number of cells between a detector and a cell
+	 * @return number of cells that got new parameters
+	 */
+	public int assign(Model model, Fit[][] fits, int nrLevels) {
+		ArrayList<NodeDetector> detectors = model.getDetectors();
+		if (detectors.size() != fits.length)
+			throw new Error("Expected fits for " + detectors.size() + " detectors, got " + fits.length);
+		// breadth first from all detectors at once, so every cell is reached by its nearest detector
+		HashMap<MacroCell, Fit[]> nearest = new HashMap<MacroCell, Fit[]>();
+		ArrayList<MacroCell> level = new ArrayList<MacroCell>();
+		ArrayList<Fit[]> levelFits = new ArrayList<Fit[]>();
+		for (int d = 0; d<fits.length; d++) {
+			MacroCell c = detectors.get(d).getClosestCell();
+			if (fits[d] == null || c == null || nearest.containsKey(c))
+				continue;
+			nearest.put(c, fits[d]);
+			level.add(c);
+			levelFits.add(fits[d]);
+		}
+		for (int l = 0; l<nrLevels && !level.isEmpty(); l++) {
+			ArrayList<MacroCell> next = new ArrayList<MacroCell>();
+			ArrayList<Fit[]> nextFits = new ArrayList<Fit[]>();
+			for (int i = 0; i<level.size(); i++) {
+				for (int direction = 0; direction<2; direction++) {
+					for (MacroCell c: direction == 0 ? level.get(i).getDowns_r() : level.get(i).getUps_r()) {
+						if (nearest.containsKey(c))
+							continue;
+						nearest.put(c, levelFits.get(i));
+						next.add(c);
+						nextFits.add(levelFits.get(i));
+					}
+				}
+			}
+			level = next;
+			levelFits = nextFits;
+		}
+		int assigned = 0;
+		for (MacroCell c: model.getCells()) {
+			Fit[] cellFits = nearest.get(c);
+			Fit fit = cellFits == null ? null : select(cellFits, c.fd);
+			if (fit == null)
+				continue;
+			int lanes = Math.max(1, c.lanes);
+			c.vLim = fit.vLim;
+			c.kCriPerLane = fit.kCri/lanes;
+			c.kJamPerLane = fit.kJam/lanes;
+			c.vCri = fit.vCri;
+			c.vCriBeforeInit = fit.vCri;
+			c.recalculateFDparameters();
+			assigned++;
+		}
+		return assigned;
+	}
+
+	/** @return fit of the family of a fundamental diagram, or null if it was not fitted */
+	private static Fit select(Fit[] fits, IFD fd) {
+		for (Fit f: fits) {
+			if (f != null && ((f.family == FDs.SMULDERS && fd instanceof FDSmulders)
+					|| (f.family == FDs.TRIANGULAR && fd instanceof FDTrian)
+					|| (f.family == FDs.DRAKE && fd instanceof FDDrake)))
+				return f;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,52 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import nl.tudelft.otsim.Simulators.MacroSimulator.FundamentalDiagrams.FDSmulders;
+import nl.tudelft.otsim.Simulators.MacroSimulator.FundamentalDiagrams.FDs;
+
+import org.junit.Test;
+
+/** Test the FDCalibration on samples of a known fundamental diagram */
+public class FDCalibrationTest {
+
+	/**
+	 * A robust fit recovers the Smulders parameters despite 5% outliers
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testRobustSmulders() {
+		Random r = new Random(3);
+		FDSmulders fd = new FDSmulders();
+		int n = 1440;
+		double[][] speeds = new double[2][n];
+		double[][] flows = new double[2][n];
+		for (int i = 0; i<n; i++) {
+			double k = r.nextDouble()*0.2;
+			double v = fd.calcV(new double[]{k, 33.3, 0.04, 0.25, 22});
+			v = Math.max(1, v + r.nextGaussian()*1.5);
+			if (r.nextInt(20) == 0)
+				v = r.nextDouble()*40;
+			speeds[0][i] = v;
+			flows[0][i] = k*v;
+		}
+		// the second detector has too few valid samples
+		Arrays.fill(speeds[1], Double.NaN);
+		Arrays.fill(flows[1], Double.NaN);
+		FDCalibration calibration = new FDCalibration(FDCalibration.Loss.HUBER, 2.0, FDs.SMULDERS, FDs.TRIANGULAR);
+		FDCalibration.Fit[][] fits = calibration.fitAll(speeds, flows);
+		FDCalibration.Fit fit = fits[0][0];
+		assertEquals(FDs.SMULDERS, fit.family);
+		assertEquals(33.3, fit.vLim, 0.5);
+		assertEquals(0.04, fit.kCri, 0.003);
+		assertEquals(0.25, fit.kJam, 0.03);
+		assertEquals(22, fit.vCri, 1);
+		assertEquals(n, fit.nrSamples);
+		// the triangular diagram cannot follow the decreasing free flow speed
+		assertTrue(fits[0][1].loss > fit.loss);
+		assertNull(fits[1][0]);
+	}
+}
@@ -0,0 +1,158 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import Jama.Matrix;
+
+/**
+ * Streaming version of the indicators of {@link CalcOutput}.
+ * <br>
+ * Truth and estimates are added one time step (row) at a time, so they do not have to be
+ * kept for the whole run. Only sums and counts are stored; {@link #getOutput()} and
+ * {@link #getOutputExtended()} give the same arrays as {@link CalcOutput#calcOutput} and
+ * {@link CalcOutput#calcOutputExtended} for all added rows. Accumulators of parallel runs
+ * or of parts of a run can be merged; the result is then equal up to the order of
+ * summation.
+ */
+public class IndicatorAccumulator {
+	private final double[] cellLengths;
+	private final double timestep;
+
+	private double sqK, sqV;
+	private int nK, nV;
+	private double absTR;
+	private int nTR;
+	private double apeK, apeV;
+	private int nApeK, nApeV;
+	private double sqKFF, sqKCon, sqVFF, sqVCon;
+	private int nKFF, nKCon, nVFF, nVCon;
+	private double apeKFF, apeKCon, apeVFF, apeVCon;
+	private int nApeKFF, nApeKCon, nApeVFF, nApeVCon;
+
+	/**
+	 * @param cellLengths length of every cell (column), for the TRE
+	 * @param timestep time step of the rows, for the TRE
+	 */
+	public IndicatorAccumulator(double[] cellLengths, double timestep) {
+		this.cellLengths = cellLengths;
+		this.timestep = timestep;
+	}
+
+	/** Add all rows of truth and estimates, with one row per time step and one column per cell. */
+	public void add(Matrix truthK, Matrix truthV, Matrix truthTR, Matrix estimateK, Matrix estimateV, Matrix estimateTR) {
+		double[][] tK = truthK.getArray();
+		double[][] tV = truthV.getArray();
+		double[][] tTR = truthTR.getArray();
+		double[][] eK = estimateK.getArray();
+		double[][] eV = estimateV.getArray();
+		double[][] eTR = estimateTR.getArray();
+		for (int i = 0; i<truthK.getRowDimension(); i++)
+			add(tK[i], tV[i], tTR[i], eK[i], eV[i], eTR[i]);
+	}
+
+	/** Add one time step. */
+	public void add(double[] truthK, double[] truthV, double[] truthTR, double[] estimateK, double[] estimateV, double[] estimateTR) {
+		int n = truthK.length;
+		for (int j = 0; j<n; j++) {
+			boolean congested = truthTR[j] == 1;
+			double dK = truthK[j] - estimateK[j];
+			double dV = truthV[j] - estimateV[j];
+			sqK += dK*dK;
+			sqV += dV*dV;
+			absTR += Math.abs(truthTR[j] - estimateTR[j])*cellLengths[j];
+			if (congested) {
+				sqKCon += dK*dK;
+				nKCon++;
+				sqVCon += dV*dV;
+				nVCon++;
+			} else {
+				sqKFF += dK*dK;
+				nKFF++;
+				sqVFF += dV*dV;
+				nVFF++;
+			}
+			if (truthK[j] != 0) {
+				double ape = Math.abs(dK/truthK[j]);
+				apeK += Math.min(999999, ape);
+				nApeK++;
+				if (congested) {
+					apeKCon += ape;
+					nApeKCon++;
+				} else {
+					apeKFF += ape;
+					nApeKFF++;
+				}
+			}
+			if (truthV[j] != 0) {
+				double ape = Math.abs(dV/truthV[j]);
+				apeV += Math.min(999999, ape);
+				nApeV++;
+				if (congested) {
+					apeVCon += ape;
+					nApeVCon++;
+				} else {
+					apeVFF += ape;
+					nApeVFF++;
+				}
+			}
+		}
+		nK += n;
+		nV += n;
+		nTR += n;
+	}
+
+	/** Add the sums of another accumulator with the same cells and time step. */
+	public void merge(IndicatorAccumulator other) {
+		sqK += other.sqK;
+		sqV += other.sqV;
+		nK += other.nK;
+		nV += other.nV;
+		absTR += other.absTR;
+		nTR += other.nTR;
+		apeK += other.apeK;
+		apeV += other.apeV;
+		nApeK += other.nApeK;
+		nApeV += other.nApeV;
+		sqKFF += other.sqKFF;
+		sqKCon += other.sqKCon;
+		sqVFF += other.sqVFF;
+		sqVCon += other.sqVCon;
+		nKFF += other.nKFF;
+		nKCon += other.nKCon;
+		nVFF += other.nVFF;
+		nVCon += other.nVCon;
+		apeKFF += other.apeKFF;
+		apeKCon += other.apeKCon;
+		apeVFF += other.apeVFF;
+		apeVCon += other.apeVCon;
+		nApeKFF += other.nApeKFF;
+		nApeKCon += other.nApeKCon;
+		nApeVFF += other.nApeVFF;
+		nApeVCon += other.nApeVCon;
+	}
+
+	/** @return same layout as {@link CalcOutput#calcOutput} */
+	public double[] getOutput() {
+		double[] e = getOutputExtended();
+		double[] result = new double[13];
+		System.arraycopy(e, 0, result, 0, 13);
+		return result;
+	}
+
+	/** @return same layout as {@link CalcOutput#calcOutputExtended} */
+	public double[] getOutputExtended() {
+		double RMSEK = Math.sqrt(sqK/nK);
+		double RMSEV = Math.sqrt(sqV/nV);
+		double TRE = absTR*timestep;
+		double MAPEK = nApeK != 0 ? apeK/nApeK : 0;
+		double MAPEV = nApeV != 0 ? apeV/nApeV : 0;
+		double RMSEKFF = nKFF != 0 ? Math.sqrt(sqKFF/nKFF) : 0;
+		double RMSEKCon = nKCon != 0 ? Math.sqrt(sqKCon/nKCon) : 0;
+		double RMSEVFF = nVFF != 0 ? Math.sqrt(sqVFF/nVFF) : 0;
+		double RMSEVCon = nVCon != 0 ? Math.sqrt(sqVCon/nVCon) : 0;
+		double MAPEKFF = nApeKFF != 0 ? apeKFF/nApeKFF : 0;
+		double MAPEKCon = nApeKCon != 0 ? apeKCon/nApeKCon : 0;
+		double MAPEVFF = nApeVFF != 0 ? apeVFF/nApeVFF : 0;
+		double MAPEVCon = nApeVCon != 0 ? apeVCon/nApeVCon : 0;
+		return new double[]{RMSEK,MAPEK,RMSEV,MAPEV,TRE,RMSEKFF,MAPEKFF,RMSEVFF,MAPEVFF,RMSEKCon,MAPEKCon,RMSEVCon,MAPEVCon,
+				nK,nApeK,nV,nApeV,nTR,nKFF,nApeKFF,nVFF,nApeVFF,nKCon,nApeKCon,nVCon,nApeVCon};
+	}
+}
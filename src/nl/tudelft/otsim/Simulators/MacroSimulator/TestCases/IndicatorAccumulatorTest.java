@@ -0,0 +1,72 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import Jama.Matrix;
+
+import org.junit.Test;
+
+/** Test the IndicatorAccumulator against the batch indicators of CalcOutput */
+public class IndicatorAccumulatorTest {
+
+	private static Matrix[] randomRun(Random r, int steps, int cells) {
+		Matrix[] m = new Matrix[6];
+		for (int k = 0; k<6; k++)
+			m[k] = new Matrix(steps, cells);
+		for (int i = 0; i<steps; i++) {
+			for (int j = 0; j<cells; j++) {
+				// some zero truth values to exercise the MAPE exclusion
+				m[0].set(i, j, r.nextInt(10) == 0 ? 0 : r.nextDouble()*0.1);
+				m[1].set(i, j, r.nextInt(10) == 0 ? 0 : r.nextDouble()*30);
+				m[2].set(i, j, r.nextBoolean() ? 1 : 0);
+				m[3].set(i, j, r.nextDouble()*0.1);
+				m[4].set(i, j, r.nextDouble()*30);
+				m[5].set(i, j, r.nextBoolean() ? 1 : 0);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Adding one row at a time must give exactly the batch result
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testStreamingEqualsBatch() {
+		Random r = new Random(31);
+		int steps = 50;
+		int cells = 17;
+		double[] lengths = new double[cells];
+		for (int j = 0; j<cells; j++)
+			lengths[j] = 50 + r.nextDouble()*100;
+		Matrix[] m = randomRun(r, steps, cells);
+		IndicatorAccumulator acc = new IndicatorAccumulator(lengths, 2);
+		for (int i = 0; i<steps; i++)
+			acc.add(m[0].getArray()[i], m[1].getArray()[i], m[2].getArray()[i], m[3].getArray()[i], m[4].getArray()[i], m[5].getArray()[i]);
+		assertArrayEquals(CalcOutput.calcOutputExtended(m[0], m[1], m[2], m[3], m[4], m[5], lengths, 2), acc.getOutputExtended(), 0);
+		assertArrayEquals(CalcOutput.calcOutput(m[0], m[1], m[2], m[3], m[4], m[5], lengths, 2), acc.getOutput(), 0);
+	}
+
+	/**
+	 * Merging the accumulators of two halves must give the batch result of the whole
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testMerge() {
+		Random r = new Random(7);
+		int steps = 40;
+		int cells = 9;
+		double[] lengths = new double[cells];
+		for (int j = 0; j<cells; j++)
+			lengths[j] = 100;
+		Matrix[] m = randomRun(r, steps, cells);
+		IndicatorAccumulator first = new IndicatorAccumulator(lengths, 2);
+		IndicatorAccumulator second = new IndicatorAccumulator(lengths, 2);
+		first.add(m[0].getMatrix(0, 19, 0, cells-1), m[1].getMatrix(0, 19, 0, cells-1), m[2].getMatrix(0, 19, 0, cells-1), m[3].getMatrix(0, 19, 0, cells-1), m[4].getMatrix(0, 19, 0, cells-1), m[5].getMatrix(0, 19, 0, cells-1));
+		second.add(m[0].getMatrix(20, 39, 0, cells-1), m[1].getMatrix(20, 39, 0, cells-1), m[2].getMatrix(20, 39, 0, cells-1), m[3].getMatrix(20, 39, 0, cells-1), m[4].getMatrix(20, 39, 0, cells-1), m[5].getMatrix(20, 39, 0, cells-1));
+		first.merge(second);
+		assertArrayEquals(CalcOutput.calcOutputExtended(m[0], m[1], m[2], m[3], m[4], m[5], lengths, 2), first.getOutputExtended(), 1e-9);
+	}
+}
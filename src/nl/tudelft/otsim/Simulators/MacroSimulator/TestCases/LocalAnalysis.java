@@ -0,0 +1,256 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.RecursiveAction;
+
+import Jama.Matrix;
+
+/**
+ * Parallel localized analysis per grid point (state variable).
+ * <br>
+ * State variables with the same set of observations are grouped, so the innovation, the
+ * factorization of the local innovation covariance and the product <tt>HA2'M</tt> are
+ * computed once per group rather than once per state variable. Local rows of <tt>HX</tt>
+ * and <tt>HA</tt> are used as views on the rows of the full matrices, without copies.
+ * <br>
+ * With a {@link LocalizationIndex} the covariance between a state variable and each of its
+ * observations is tapered with the localization coefficient, as the Schur product of the
+ * global ENKF_SCHUR methods does. Without coefficients all local observations have full
+ * weight.
+ * <br>
+ * An instance only holds the index arrays of one model and configuration, so different
+ * experiments can use their own instance at the same time.
+ */
+public class LocalAnalysis {
+	private final int nrStateVariables;
+	/** observation indices per group */
+	private final int[][] groupObservations;
+	/** state variables per group */
+	private final int[][] groupStates;
+	/** localization coefficients per state variable, in the order of its observations, or null */
+	private final double[][] coefficients;
+	protected static int groupThreshold = 8;
+
+	/**
+	 * @param observationIndices for every state variable the indices of its local observations
+	 */
+	public LocalAnalysis(int[][] observationIndices) {
+		this(observationIndices, null);
+	}
+
+	/**
+	 * @param observationIndices for every state variable the indices of its local observations
+	 * @param coefficients for every state variable the localization coefficients of its local
+	 * observations, or null for full weight
+	 */
+	public LocalAnalysis(int[][] observationIndices, double[][] coefficients) {
+		nrStateVariables = observationIndices.length;
+		this.coefficients = coefficients;
+		LinkedHashMap<String, ArrayList<Integer>> groups = new LinkedHashMap<String, ArrayList<Integer>>();
+		LinkedHashMap<String, int[]> observations = new LinkedHashMap<String, int[]>();
+		for (int i = 0; i<nrStateVariables; i++) {
+			String key = Arrays.toString(observationIndices[i]);
+			ArrayList<Integer> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				groups.put(key, group);
+				observations.put(key, observationIndices[i].clone());
+			}
+			group.add(i);
+		}
+		groupObservations = new int[groups.size()][];
+		groupStates = new int[groups.size()][];
+		int g = 0;
+		for (String key: groups.keySet()) {
+			groupObservations[g] = observations.get(key);
+			ArrayList<Integer> group = groups.get(key);
+			groupStates[g] = new int[group.size()];
+			for (int k = 0; k<group.size(); k++)
+				groupStates[g][k] = group.get(k);
+			g++;
+		}
+	}
+
+	public LocalAnalysis(LocalizationIndex localization) {
+		this(observationIndices(localization), observationCoefficients(localization));
+	}
+
+	private static int[][] observationIndices(LocalizationIndex localization) {
+		int[][] result = new int[localization.getNrStateVariables()][];
+		for (int i = 0; i<result.length; i++)
+			result[i] = localization.getObservationIndices(i);
+		return result;
+	}
+
+	private static double[][] observationCoefficients(LocalizationIndex localization) {
+		double[][] result = new double[localization.getNrStateVariables()][];
+		for (int i = 0; i<result.length; i++)
+			result[i] = localization.getObservationCoefficients(i);
+		return result;
+	}
+
+	/** @return number of groups of state variables with the same observations */
+	public int getNrGroups() {
+		return groupObservations.length;
+	}
+
+	/**
+	 * Compute the analysis increments of all state variables.
+	 * @param HX predicted observations, one row per observation
+	 * @param D perturbed observations (LEnKF) or observations repeated for every member (DEnKF)
+	 * @param R observation error covariance, or its inverse for the SMW methods
+	 * @param HA anomalies of the predicted observations
+	 * @param X ensemble
+	 * @param A anomalies of the ensemble
+	 * @param method one of the parallel grid methods
+	 * @return increments, one row per state variable
+	 */
+	public Matrix compute(Matrix HX, Matrix D, Matrix R, Matrix HA, Matrix X, Matrix A, AssimilationMethod method) {
+		int N = X.getColumnDimension();
+		Matrix diff = new Matrix(nrStateVariables, N);
+		FJPool.fjPool.invoke(new Task(HX, D, R, HA, X, A, method, diff, 0, groupObservations.length));
+		return diff;
+	}
+
+	/** Rows of a matrix as a matrix, sharing the row arrays. */
+	private static Matrix rows(double[][] source, int[] indices, int N) {
+		double[][] rows = new double[indices.length][];
+		for (int k = 0; k<indices.length; k++)
+			rows[k] = source[indices[k]];
+		return new Matrix(rows, indices.length, N);
+	}
+
+	private class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Matrix HX, D, R, HA, X, A, diff;
+		private final AssimilationMethod method;
+		private final int from, to;
+
+		Task(Matrix HX, Matrix D, Matrix R, Matrix HA, Matrix X, Matrix A, AssimilationMethod method, Matrix diff, int from, int to) {
+			this.HX = HX;
+			this.D = D;
+			this.R = R;
+			this.HA = HA;
+			this.X = X;
+			this.A = A;
+			this.method = method;
+			this.diff = diff;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= groupThreshold) {
+				for (int g = from; g<to; g++)
+					computeGroup(g);
+				return;
+			}
+			int split = (from + to)/2;
+			Task left = new Task(HX, D, R, HA, X, A, method, diff, from, split);
+			Task right = new Task(HX, D, R, HA, X, A, method, diff, split, to);
+			left.fork();
+			right.compute();
+			left.join();
+		}
+
+		private void computeGroup(int g) {
+			int N = X.getColumnDimension();
+			int[] indices = groupObservations[g];
+			Matrix HX2 = rows(HX.getArray(), indices, N);
+			Matrix HA2 = rows(HA.getArray(), indices, N);
+			Matrix D21 = rows(D.getArray(), indices, N);
+			Matrix R2 = R.getMatrix(indices, indices);
+			double[][] a = A.getArray();
+			double[][] x = X.getArray();
+			double[][] out = diff.getArray();
+			Matrix M;
+			Matrix[] M21;
+			switch (method) {
+			case LENKF_GRID_PARALLEL:
+				M = TestEnKF.solveInversePStraightForward(R2, HA2, N, D21.minus(HX2));
+				incrementLEnKF(M.getArray(), HA2.getArray(), a, out, g, N);
+				break;
+			case LENKF_GRID_SMW_PARALLEL:
+				// R2 = Rinv!
+				M = TestEnKF.solveInversePShermanMorrisonWoodbury2(R2, HA2, N, D21.minus(HX2));
+				incrementLEnKF(M.getArray(), HA2.getArray(), a, out, g, N);
+				break;
+			case DENKF_GRID_PARALLEL:
+				M21 = TestEnKF.solveInversePStraightForwardMult(R2, HA2, N, D.getMatrix(indices, 0, 0).minus(HX2.times(new Matrix(N,1,1.0/N))), D21.minus(HX2));
+				incrementDEnKF(M21[0].getArray(), M21[1].getArray(), HA2.getArray(), a, x, out, g, N);
+				break;
+			case DENKF_GRID_SMW_PARALLEL:
+				M21 = TestEnKF.solveInversePShermanMorrisonWoodburyMult2(R2, HA2, N, D.getMatrix(indices, 0, 0).minus(HX2.times(new Matrix(N,1,1.0/N))), D21.minus(HX2));
+				incrementDEnKF(M21[0].getArray(), M21[1].getArray(), HA2.getArray(), a, x, out, g, N);
+				break;
+			default:
+				throw new Error("unimplemented method");
+			}
+		}
+
+		/**
+		 * Tapered covariance between a state variable and the local observations of its
+		 * group, rho(i,k) A(i,:) HA2(k,:)'/(N-1).
+		 */
+		private void covariance(int i, double[][] ha, double[] ai, double[] c, int N) {
+			double f = 1.0/(N-1);
+			double[] rho = coefficients == null ? null : coefficients[i];
+			for (int k = 0; k<ha.length; k++) {
+				double[] hak = ha[k];
+				double s = 0;
+				for (int j = 0; j<N; j++)
+					s += ai[j]*hak[j];
+				c[k] = rho == null ? s*f : rho[k]*s*f;
+			}
+		}
+
+		/** increment = (rho o A HA2'/(N-1))(i,:) M for every state variable i of the group */
+		private void incrementLEnKF(double[][] M, double[][] ha, double[][] a, double[][] out, int g, int N) {
+			double[] c = new double[ha.length];
+			for (int i: groupStates[g]) {
+				covariance(i, ha, a[i], c, N);
+				double[] di = out[i];
+				for (int j = 0; j<N; j++) {
+					double s = 0;
+					for (int k = 0; k<c.length; k++)
+						s += c[k]*M[k][j];
+					di[j] = s;
+				}
+			}
+		}
+
+		/** deterministic EnKF: mean update with M0, anomaly update with half of M1 */
+		private void incrementDEnKF(double[][] M0, double[][] M1, double[][] ha, double[][] a, double[][] x, double[][] out, int g, int N) {
+			double meanFactor = 1.0/N;
+			double[] xa3 = new double[N];
+			double[] c = new double[ha.length];
+			for (int i: groupStates[g]) {
+				double[] ai = a[i];
+				double[] xi = x[i];
+				covariance(i, ha, ai, c, N);
+				double s = 0;
+				for (int k = 0; k<c.length; k++)
+					s += c[k]*M0[k][0];
+				double meanX = 0;
+				for (int k = 0; k<N; k++)
+					meanX += xi[k]*meanFactor;
+				double meanXa2 = meanX + s;
+				for (int j = 0; j<N; j++) {
+					double t = 0;
+					for (int k = 0; k<c.length; k++)
+						t += c[k]*M1[k][j];
+					xa3[j] = xi[j] + t*0.5;
+				}
+				double meanXa3 = 0;
+				for (int k = 0; k<N; k++)
+					meanXa3 += xa3[k]*meanFactor;
+				double[] di = out[i];
+				for (int j = 0; j<N; j++)
+					di[j] = (xa3[j] + (meanXa2 - meanXa3)) - xi[j];
+			}
+		}
+	}
+}
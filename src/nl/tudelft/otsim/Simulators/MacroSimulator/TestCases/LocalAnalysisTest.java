@@ -0,0 +1,188 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import Jama.Matrix;
+
+import org.junit.Test;
+
+/** Test the LocalAnalysis against the global and the dense localized analysis on random ensembles */
+public class LocalAnalysisTest {
+	private static final int N = 15;
+	private static final int NR_STATES = 40;
+	private static final int NR_OBSERVATIONS = 8;
+
+	/** Random ensemble, predicted observations, observations and observation errors */
+	private static class Ensemble {
+		final Matrix X, A, HX, HA, d, D, R, Rinv;
+
+		Ensemble(long seed) {
+			Random r = new Random(seed);
+			X = new Matrix(NR_STATES, N);
+			for (int i = 0; i<NR_STATES; i++) {
+				double scale = i%3 == 0 ? 0.05 : 20;
+				for (int j = 0; j<N; j++)
+					X.set(i, j, scale*(1 + 0.2*r.nextGaussian()));
+			}
+			// observations are noisy linear combinations of the states
+			HX = new Matrix(NR_OBSERVATIONS, N);
+			for (int k = 0; k<NR_OBSERVATIONS; k++) {
+				for (int i = 0; i<NR_STATES; i++) {
+					double h = r.nextDouble() < 0.2 ? r.nextDouble() : 0;
+					for (int j = 0; j<N; j++)
+						HX.set(k, j, HX.get(k, j) + h*X.get(i, j));
+				}
+				for (int j = 0; j<N; j++)
+					HX.set(k, j, HX.get(k, j) + r.nextGaussian());
+			}
+			A = X.minus(X.times(new Matrix(N, 1, 1.0/N)).times(new Matrix(1, N, 1.0)));
+			HA = HX.minus(HX.times(new Matrix(N, 1, 1.0/N)).times(new Matrix(1, N, 1.0)));
+			d = new Matrix(NR_OBSERVATIONS, 1);
+			D = new Matrix(NR_OBSERVATIONS, N);
+			R = new Matrix(NR_OBSERVATIONS, NR_OBSERVATIONS);
+			Rinv = new Matrix(NR_OBSERVATIONS, NR_OBSERVATIONS);
+			for (int k = 0; k<NR_OBSERVATIONS; k++) {
+				double variance = 0.5 + r.nextDouble();
+				R.set(k, k, variance);
+				Rinv.set(k, k, 1/variance);
+				d.set(k, 0, HX.get(k, 0) + 3*r.nextGaussian());
+				for (int j = 0; j<N; j++)
+					D.set(k, j, d.get(k, 0) + Math.sqrt(variance)*r.nextGaussian());
+			}
+		}
+
+		/** D for the LEnKF methods, the observations repeated for every member for the DEnKF methods */
+		Matrix observations(AssimilationMethod method) {
+			if (method == AssimilationMethod.LENKF_GRID_PARALLEL || method == AssimilationMethod.LENKF_GRID_SMW_PARALLEL)
+				return D;
+			return d.times(new Matrix(1, N, 1.0));
+		}
+
+		Matrix errors(AssimilationMethod method) {
+			if (method == AssimilationMethod.LENKF_GRID_SMW_PARALLEL || method == AssimilationMethod.DENKF_GRID_SMW_PARALLEL)
+				return Rinv;
+			return R;
+		}
+
+		boolean deterministic(AssimilationMethod method) {
+			return method == AssimilationMethod.DENKF_GRID_PARALLEL || method == AssimilationMethod.DENKF_GRID_SMW_PARALLEL;
+		}
+	}
+
+	private static final AssimilationMethod[] METHODS = new AssimilationMethod[] {
+		AssimilationMethod.LENKF_GRID_PARALLEL, AssimilationMethod.LENKF_GRID_SMW_PARALLEL,
+		AssimilationMethod.DENKF_GRID_PARALLEL, AssimilationMethod.DENKF_GRID_SMW_PARALLEL};
+
+	/**
+	 * Increments of the global analysis: K(D - HX) for the stochastic and
+	 * mean + K(d - mean HX) + A - K HA/2 - X for the deterministic EnKF
+	 */
+	private static Matrix globalIncrement(Ensemble e, boolean deterministic) {
+		Matrix P = e.R.plus(e.HA.times(e.HA.transpose()).times(1.0/(N-1)));
+		Matrix K = e.A.times(e.HA.transpose()).times(1.0/(N-1)).times(P.inverse());
+		if (!deterministic)
+			return K.times(e.D.minus(e.HX));
+		Matrix ones = new Matrix(1, N, 1.0);
+		Matrix meanX = e.X.times(new Matrix(N, 1, 1.0/N));
+		Matrix meanHX = e.HX.times(new Matrix(N, 1, 1.0/N));
+		Matrix meanXa = meanX.plus(K.times(e.d.minus(meanHX)));
+		return meanXa.times(ones).plus(e.A).minus(K.times(e.HA).times(0.5)).minus(e.X);
+	}
+
+	/**
+	 * Increment of one state variable with its own local observations and the tapered
+	 * covariance rho o (A HA')/(N-1)
+	 */
+	private static double[] localIncrement(Ensemble e, int i, int[] local, double[] rho, boolean deterministic) {
+		int[] all = new int[N];
+		for (int j = 0; j<N; j++)
+			all[j] = j;
+		Matrix HA2 = e.HA.getMatrix(local, all);
+		Matrix P = e.R.getMatrix(local, local).plus(HA2.times(HA2.transpose()).times(1.0/(N-1)));
+		Matrix c = e.A.getMatrix(i, i, 0, N-1).times(HA2.transpose()).times(1.0/(N-1));
+		for (int k = 0; k<local.length; k++)
+			c.set(0, k, c.get(0, k)*rho[k]);
+		Matrix K = c.times(P.inverse());
+		if (!deterministic)
+			return K.times(e.D.getMatrix(local, all).minus(e.HX.getMatrix(local, all))).getRowPackedCopy();
+		Matrix meanHX = e.HX.getMatrix(local, all).times(new Matrix(N, 1, 1.0/N));
+		double meanIncrement = K.times(e.d.getMatrix(local, new int[] {0}).minus(meanHX)).get(0, 0);
+		double[] anomalyIncrement = K.times(HA2).times(-0.5).getRowPackedCopy();
+		for (int j = 0; j<N; j++)
+			anomalyIncrement[j] += meanIncrement;
+		return anomalyIncrement;
+	}
+
+	/**
+	 * With all observations local to every state variable, the local analysis equals the
+	 * global analysis for all parallel grid methods
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testGlobalEquivalence() {
+		int[] allObservations = new int[NR_OBSERVATIONS];
+		for (int k = 0; k<NR_OBSERVATIONS; k++)
+			allObservations[k] = k;
+		int[][] indices = new int[NR_STATES][];
+		for (int i = 0; i<NR_STATES; i++)
+			indices[i] = allObservations;
+		LocalAnalysis analysis = new LocalAnalysis(indices);
+		assertEquals(1, analysis.getNrGroups());
+		for (long seed = 1; seed<=5; seed++) {
+			Ensemble e = new Ensemble(seed);
+			for (AssimilationMethod method: METHODS) {
+				Matrix expected = globalIncrement(e, e.deterministic(method));
+				Matrix actual = analysis.compute(e.HX, e.observations(method), e.errors(method), e.HA, e.X, e.A, method);
+				for (int i = 0; i<NR_STATES; i++) {
+					double scale = Math.abs(e.X.get(i, 0));
+					for (int j = 0; j<N; j++)
+						assertEquals(method + " seed " + seed + " state " + i, expected.get(i, j), actual.get(i, j), 1e-9*scale);
+				}
+			}
+		}
+	}
+
+	/**
+	 * With local observations and localization coefficients, every state variable is
+	 * updated with its own local observations and the tapered covariance, also when many
+	 * state variables share the same observations
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testTapered() {
+		Random r = new Random(5);
+		int[][] indices = new int[NR_STATES][];
+		double[][] coefficients = new double[NR_STATES][];
+		for (int i = 0; i<NR_STATES; i++) {
+			// windows of observations shared by groups of state variables
+			int first = (i/5)%(NR_OBSERVATIONS-2);
+			int length = 1 + (i/5)%3;
+			indices[i] = new int[length];
+			coefficients[i] = new double[length];
+			for (int k = 0; k<length; k++) {
+				indices[i][k] = first + k;
+				coefficients[i][k] = i%4 == 0 ? 1 : r.nextDouble();
+			}
+		}
+		int oldThreshold = LocalAnalysis.groupThreshold;
+		LocalAnalysis.groupThreshold = 1;
+		try {
+			LocalAnalysis tapered = new LocalAnalysis(indices, coefficients);
+			assertTrue(tapered.getNrGroups() < NR_STATES);
+			Ensemble e = new Ensemble(7);
+			for (AssimilationMethod method: METHODS) {
+				Matrix actual = tapered.compute(e.HX, e.observations(method), e.errors(method), e.HA, e.X, e.A, method);
+				for (int i = 0; i<NR_STATES; i++) {
+					double[] expected = localIncrement(e, i, indices[i], coefficients[i], e.deterministic(method));
+					double scale = Math.abs(e.X.get(i, 0));
+					for (int j = 0; j<N; j++)
+						assertEquals(method + " state " + i, expected[j], actual.get(i, j), 1e-9*scale);
+				}
+			}
+		} finally {
+			LocalAnalysis.groupThreshold = oldThreshold;
+		}
+	}
+}
@@ -0,0 +1,397 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import JamaSparseMatrix.SparseMatrix;
+import JamaSparseMatrix.SparseMatrixDirectRS;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Link;
+import nl.tudelft.otsim.Simulators.MacroSimulator.MacroCell;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Model;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.Node;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeDetector;
+import nl.tudelft.otsim.Simulators.MacroSimulator.TestCases.StateDefinition.StateFunction;
+
+/**
+ * Sparse covariance localization between state variables and observations, based on the
+ * network distance between cells.
+ * <br>
+ * For every detector a bounded search is done over the cell graph (upstream and
+ * downstream, as in {@link TestEnKF#returnSurroundingCellsIncludingDiverges}), starting at
+ * the closest cell of the detector. Cells are reached up to a number of levels, and within
+ * those the shortest distance between cell centres is computed up to twice the
+ * localization half width. The resulting Gaspari-Cohn coefficients are stored in
+ * compressed sparse row form with one row per state variable (in the order of
+ * {@link AssimilationConfiguration#getStateVariables(Model)}) and one column per
+ * observation (speeds first, flows second, as in <tt>HX</tt>).
+ * <br>
+ * As in the previous localization, links use their last cell and nodes their last
+ * outgoing cell, with a separate number of levels.
+ */
+public class LocalizationIndex {
+	private final int nrStateVariables;
+	private final int nrObservations;
+	private final int[] rowPointers;
+	private final int[] columnIndices;
+	private final double[] coefficients;
+	private int[] columnPointers;
+	private int[] rowIndices;
+
+	private LocalizationIndex(int nrStateVariables, int nrObservations, int[] rowPointers, int[] columnIndices, double[] coefficients) {
+		this.nrStateVariables = nrStateVariables;
+		this.nrObservations = nrObservations;
+		this.rowPointers = rowPointers;
+		this.columnIndices = columnIndices;
+		this.coefficients = coefficients;
+	}
+
+	/**
+	 * Build the index.
+	 * @param model macro model with detectors
+	 * @param config assimilation configuration that defines the state
+	 * @param cellLevels maximum number of cells between a detector and a cell in the state
+	 * @param objectLevels maximum number of cells between a detector and the cell of a link
+	 * or node in the state
+	 * @param halfWidth Gaspari-Cohn half width [m]; coefficients are zero beyond twice this
+	 * distance. With a half width of 0 or less only the levels apply and all coefficients
+	 * are 1.
+	 */
+	public static LocalizationIndex build(Model model, AssimilationConfiguration config, int cellLevels, int objectLevels, double halfWidth) {
+		ArrayList<MacroCell> cells = model.getCells();
+		int nrCells = cells.size();
+		int[][] neighbours = new int[nrCells][];
+		double[] length = new double[nrCells];
+		for (int i = 0; i<nrCells; i++) {
+			MacroCell c = cells.get(i);
+			length[i] = c.l;
+			int[] n = new int[c.ups.size() + c.downs.size()];
+			int k = 0;
+			for (MacroCell u: c.ups)
+				n[k++] = model.indexOf(u);
+			for (MacroCell d: c.downs)
+				n[k++] = model.indexOf(d);
+			neighbours[i] = n;
+		}
+
+		ArrayList<NodeDetector> detectors = model.getDetectors();
+		int nrDetectors = detectors.size();
+		int[] sources = new int[nrDetectors];
+		for (int d = 0; d<nrDetectors; d++)
+			sources[d] = model.indexOf(detectors.get(d).getClosestCell());
+		int[][] reachedCells = new int[nrDetectors][];
+		int[][] reachedLevels = new int[nrDetectors][];
+		double[][] reachedDistances = new double[nrDetectors][];
+		FJPool.fjPool.invoke(new Search(neighbours, length, sources, Math.max(cellLevels, objectLevels), halfWidth > 0 ? 2*halfWidth : Double.POSITIVE_INFINITY,
+				reachedCells, reachedLevels, reachedDistances, 0, nrDetectors));
+
+		// transpose to: cell -> (detector, level, distance), detectors in ascending order
+		int[] count = new int[nrCells+1];
+		for (int d = 0; d<nrDetectors; d++) {
+			for (int c: reachedCells[d])
+				count[c+1]++;
+		}
+		for (int c = 0; c<nrCells; c++)
+			count[c+1] += count[c];
+		int[] cellDetectors = new int[count[nrCells]];
+		int[] cellLevelsReached = new int[count[nrCells]];
+		double[] cellDistances = new double[count[nrCells]];
+		int[] fill = Arrays.copyOf(count, nrCells);
+		for (int d = 0; d<nrDetectors; d++) {
+			for (int k = 0; k<reachedCells[d].length; k++) {
+				int c = reachedCells[d][k];
+				cellDetectors[fill[c]] = d;
+				cellLevelsReached[fill[c]] = reachedLevels[d][k];
+				cellDistances[fill[c]++] = reachedDistances[d][k];
+			}
+		}
+
+		// one row per state variable: speed columns first, flow columns second
+		int nrStateVariables = config.nrStateVariables;
+		int[] rowPointers = new int[nrStateVariables+1];
+		int[] columns = new int[16];
+		double[] values = new double[16];
+		int nnz = 0;
+		int row = 0;
+		for (StateDefinition s: config.stateIds) {
+			if (!s.is(StateFunction.IN))
+				continue;
+			for (Object o: AssimilationConfiguration.getStateVariables(model, s.getType())) {
+				int levels = o instanceof MacroCell ? cellLevels : objectLevels;
+				MacroCell cell = cellOf(o);
+				if (cell == null) {
+					rowPointers[++row] = nnz;
+					continue;
+				}
+				int ci = model.indexOf(cell);
+				int from = count[ci];
+				int to = count[ci+1];
+				if (nnz + 2*(to-from) > columns.length) {
+					int size = Math.max(2*columns.length, nnz + 2*(to-from));
+					columns = Arrays.copyOf(columns, size);
+					values = Arrays.copyOf(values, size);
+				}
+				for (int t = 0; t<2; t++) {
+					for (int k = from; k<to; k++) {
+						if (cellLevelsReached[k] > levels)
+							continue;
+						double rho = halfWidth > 0 ? gaspariCohn(cellDistances[k]/halfWidth) : 1.0;
+						if (rho > 0) {
+							columns[nnz] = cellDetectors[k] + t*nrDetectors;
+							values[nnz++] = rho;
+						}
+					}
+				}
+				rowPointers[++row] = nnz;
+			}
+		}
+		if (row != nrStateVariables)
+			throw new Error("Localization index does not match the assimilation configuration");
+		return new LocalizationIndex(nrStateVariables, 2*nrDetectors, rowPointers, Arrays.copyOf(columns, nnz), Arrays.copyOf(values, nnz));
+	}
+
+	private static MacroCell cellOf(Object o) {
+		ArrayList<MacroCell> cells;
+		if (o instanceof MacroCell)
+			return (MacroCell) o;
+		else if (o instanceof Link)
+			cells = ((Link) o).correspondingCells;
+		else if (o instanceof Node)
+			cells = ((Node) o).cellsOut;
+		else
+			throw new Error("Unknown state variable " + o);
+		return cells.isEmpty() ? null : cells.get(cells.size()-1);
+	}
+
+	/**
+	 * Gaspari-Cohn fifth order piecewise rational function.
+	 * @param z distance divided by the half width
+	 * @return correlation, 1 at z = 0 and 0 for z >= 2
+	 */
+	public static double gaspariCohn(double z) {
+		z = Math.abs(z);
+		if (z >= 2)
+			return 0;
+		double z2 = z*z;
+		double z3 = z2*z;
+		double z4 = z3*z;
+		double z5 = z4*z;
+		if (z <= 1)
+			return -0.25*z5 + 0.5*z4 + 0.625*z3 - 5.0/3.0*z2 + 1;
+		return z5/12.0 - 0.5*z4 + 0.625*z3 + 5.0/3.0*z2 - 5*z + 4 - 2.0/(3.0*z);
+	}
+
+	public int getNrStateVariables() {
+		return nrStateVariables;
+	}
+	public int getNrObservations() {
+		return nrObservations;
+	}
+	public int[] getRowPointers() {
+		return rowPointers;
+	}
+	public int[] getColumnIndices() {
+		return columnIndices;
+	}
+	public double[] getCoefficients() {
+		return coefficients;
+	}
+	public int getNonZeros() {
+		return columnIndices.length;
+	}
+	/** @return ascending observation indices with a nonzero coefficient for a state variable */
+	public int[] getObservationIndices(int stateVariable) {
+		return Arrays.copyOfRange(columnIndices, rowPointers[stateVariable], rowPointers[stateVariable+1]);
+	}
+	/** @return coefficients of a state variable, in the order of {@link #getObservationIndices(int)} */
+	public double[] getObservationCoefficients(int stateVariable) {
+		return Arrays.copyOfRange(coefficients, rowPointers[stateVariable], rowPointers[stateVariable+1]);
+	}
+	/** @return ascending state variable indices with a nonzero coefficient for an observation */
+	public synchronized int[] getStateIndices(int observation) {
+		if (columnPointers == null) {
+			columnPointers = new int[nrObservations+1];
+			for (int c: columnIndices)
+				columnPointers[c+1]++;
+			for (int j = 0; j<nrObservations; j++)
+				columnPointers[j+1] += columnPointers[j];
+			rowIndices = new int[columnIndices.length];
+			int[] fill = Arrays.copyOf(columnPointers, nrObservations);
+			for (int i = 0; i<nrStateVariables; i++) {
+				for (int k = rowPointers[i]; k<rowPointers[i+1]; k++)
+					rowIndices[fill[columnIndices[k]]++] = i;
+			}
+		}
+		return Arrays.copyOfRange(rowIndices, columnPointers[observation], columnPointers[observation+1]);
+	}
+	public double get(int stateVariable, int observation) {
+		int k = Arrays.binarySearch(columnIndices, rowPointers[stateVariable], rowPointers[stateVariable+1], observation);
+		return k < 0 ? 0 : coefficients[k];
+	}
+	/** @return localization matrix for a Schur product with the gain */
+	public SparseMatrix toSparseMatrix() {
+		SparseMatrix result = new SparseMatrixDirectRS(nrStateVariables, nrObservations);
+		for (int i = 0; i<nrStateVariables; i++) {
+			for (int k = rowPointers[i]; k<rowPointers[i+1]; k++)
+				result.set(i, columnIndices[k], coefficients[k]);
+		}
+		return result;
+	}
+
+	/**
+	 * Bounded searches for a range of detectors: a breadth first search over at most
+	 * <tt>maxLevels</tt> levels, followed by a shortest path search restricted to the cells
+	 * found, stopping at <tt>maxDistance</tt>.
+	 */
+	private static class Search extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private int[][] neighbours;
+		private double[] length;
+		private int[] sources;
+		private int maxLevels;
+		private double maxDistance;
+		private int[][] reachedCells;
+		private int[][] reachedLevels;
+		private double[][] reachedDistances;
+		private int from;
+		private int to;
+
+		Search(int[][] neighbours, double[] length, int[] sources, int maxLevels, double maxDistance,
+				int[][] reachedCells, int[][] reachedLevels, double[][] reachedDistances, int from, int to) {
+			this.neighbours = neighbours;
+			this.length = length;
+			this.sources = sources;
+			this.maxLevels = maxLevels;
+			this.maxDistance = maxDistance;
+			this.reachedCells = reachedCells;
+			this.reachedLevels = reachedLevels;
+			this.reachedDistances = reachedDistances;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void computeDirectly() {
+			int n = length.length;
+			int[] level = new int[n];
+			double[] dist = new double[n];
+			boolean[] done = new boolean[n];
+			Arrays.fill(level, -1);
+			Arrays.fill(dist, Double.POSITIVE_INFINITY);
+			int[] queue = new int[16];
+			// binary heap of (distance, cell) with lazy deletion
+			double[] heapKey = new double[16];
+			int[] heapCell = new int[16];
+			for (int d = from; d<to; d++) {
+				int source = sources[d];
+				int nrQueued = 0;
+				queue[nrQueued++] = source;
+				level[source] = 0;
+				for (int q = 0; q<nrQueued; q++) {
+					int c = queue[q];
+					if (level[c] == maxLevels)
+						continue;
+					for (int nb: neighbours[c]) {
+						if (level[nb] >= 0)
+							continue;
+						level[nb] = level[c] + 1;
+						if (nrQueued == queue.length)
+							queue = Arrays.copyOf(queue, 2*nrQueued);
+						queue[nrQueued++] = nb;
+					}
+				}
+
+				int nrDone = 0;
+				dist[source] = 0;
+				heapKey[0] = 0;
+				heapCell[0] = source;
+				int heapSize = 1;
+				while (heapSize > 0) {
+					double key = heapKey[0];
+					int c = heapCell[0];
+					heapSize--;
+					if (heapSize > 0)
+						siftDown(heapKey, heapCell, heapSize, heapKey[heapSize], heapCell[heapSize]);
+					if (done[c] || key > dist[c])
+						continue;
+					done[c] = true;
+					nrDone++;
+					for (int nb: neighbours[c]) {
+						double alt = key + 0.5*(length[c] + length[nb]);
+						if (level[nb] < 0 || done[nb] || alt > maxDistance || alt >= dist[nb])
+							continue;
+						dist[nb] = alt;
+						if (heapSize == heapKey.length) {
+							heapKey = Arrays.copyOf(heapKey, 2*heapSize);
+							heapCell = Arrays.copyOf(heapCell, 2*heapSize);
+						}
+						siftUp(heapKey, heapCell, heapSize++, alt, nb);
+					}
+				}
+
+				int[] cells = new int[nrDone];
+				int[] levels = new int[nrDone];
+				double[] distances = new double[nrDone];
+				int k = 0;
+				for (int q = 0; q<nrQueued; q++) {
+					int c = queue[q];
+					if (done[c]) {
+						cells[k] = c;
+						levels[k] = level[c];
+						distances[k++] = dist[c];
+					}
+					level[c] = -1;
+					dist[c] = Double.POSITIVE_INFINITY;
+					done[c] = false;
+				}
+				reachedCells[d] = cells;
+				reachedLevels[d] = levels;
+				reachedDistances[d] = distances;
+			}
+		}
+
+		private static void siftUp(double[] key, int[] cell, int pos, double k, int c) {
+			while (pos > 0) {
+				int parent = (pos-1) >>> 1;
+				if (key[parent] <= k)
+					break;
+				key[pos] = key[parent];
+				cell[pos] = cell[parent];
+				pos = parent;
+			}
+			key[pos] = k;
+			cell[pos] = c;
+		}
+
+		private static void siftDown(double[] key, int[] cell, int size, double k, int c) {
+			int pos = 0;
+			int half = size >>> 1;
+			while (pos < half) {
+				int child = 2*pos + 1;
+				if (child+1 < size && key[child+1] < key[child])
+					child++;
+				if (k <= key[child])
+					break;
+				key[pos] = key[child];
+				cell[pos] = cell[child];
+				pos = child;
+			}
+			key[pos] = k;
+			cell[pos] = c;
+		}
+
+		protected static int detectorThreshold = 64;
+		@Override
+		protected void compute() {
+			if (to - from <= detectorThreshold) {
+				computeDirectly();
+				return;
+			}
+			int split = from + (to - from)/2;
+			Search left = new Search(neighbours, length, sources, maxLevels, maxDistance, reachedCells, reachedLevels, reachedDistances, from, split);
+			Search right = new Search(neighbours, length, sources, maxLevels, maxDistance, reachedCells, reachedLevels, reachedDistances, split, to);
+			left.fork();
+			right.compute();
+			left.join();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+import nl.tudelft.otsim.Events.Scheduler;
+import nl.tudelft.otsim.GUI.FakeGraphicsPanel;
+import nl.tudelft.otsim.Simulators.MacroSimulator.MacroCell;
+import nl.tudelft.otsim.Simulators.MacroSimulator.MacroSimulator;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Model;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeBoundaryIn;
+
+import Jama.Matrix;
+
+import org.junit.Test;
+
+/** Test the LocalizationIndex against the dense Schur matrix that TestEnKF used to build */
+public class LocalizationIndexTest {
+	private static final int CELL_LEVELS = 3;
+	private static final int OBJECT_LEVELS = 5;
+
+	/** Two roadways with a lane drop and four detectors */
+	private static Model createModel() {
+		String pattern = "[0.000/1400:1800/2200]";
+		String configuration = "EndTime:\t7200.00\nSeed:\t1\n"
+				+ "Roadway:\t0\tfrom\t1\tto\t2\tspeedlimit\t100\tlanes\t2\tvertices\t(0.000,-0.250,0.000)\t(3000.000,-0.250,0.000)\tins\touts\t1\tfd\t0.02\t0.125\t22.222\tSMULDERS\n"
+				+ "Roadway:\t1\tfrom\t2\tto\t3\tspeedlimit\t100\tlanes\t1\tvertices\t(3000.000,-0.250,0.000)\t(4000.000,-0.250,0.000)\tins\t0\touts\tfd\t0.02\t0.125\t22.222\tSMULDERS\n"
+				+ "TrafficClass\tpassengerCar_act\t4.000\t140.000\t-6.000\t0.900000\t600.000\n"
+				+ "TripPattern\tnumberOfTrips:\t" + pattern + "\tLocationPattern:\t[z1, z2]\tFractions\tpassengerCar_act:1.000000\n"
+				+ "TripPatternPath\tnumberOfTrips:\t" + pattern + "\tNodePattern:\t[origin ID=1 (0.00m, 0.00m, 0.00m), destination ID=2 (3500.00m, 0.00m, 0.00m)]\n"
+				+ "Path:\t1.00000\tnodes:\t1\t2\t3\n"
+				+ "Detector:\t0\t(300.000,-0.250,0.000)\nDetector:\t1\t(1500.000,-0.250,0.000)\n"
+				+ "Detector:\t2\t(2750.000,-0.250,0.000)\nDetector:\t3\t(3250.000,-0.250,0.000)\n";
+		Scheduler scheduler = new Scheduler(MacroSimulator.simulatorType, new FakeGraphicsPanel(), configuration);
+		Model model = (Model) scheduler.getSimulator().getModel();
+		model.init();
+		return model;
+	}
+
+	private static AssimilationConfiguration configuration(Model model) {
+		ErrorConfiguration[] state = new ErrorConfiguration[] {
+				new ErrorConfiguration(StateDefinition.K_CELL, 0.005, 1.0),
+				new ErrorConfiguration(StateDefinition.INFLOW_NODE, 0.05, 1.0)};
+		return new AssimilationConfiguration(state, model, AssimilationMethod.LENKF_GRID_PARALLEL);
+	}
+
+	/** Cells within a number of levels, as TestEnKF.returnSurroundingCellsIncludingDiverges */
+	private static LinkedHashSet<MacroCell> surroundingCells(MacroCell center, int nrLevels) {
+		LinkedHashSet<MacroCell> result = new LinkedHashSet<MacroCell>();
+		HashSet<MacroCell> currentLevel = new HashSet<MacroCell>();
+		HashSet<MacroCell> nextLevel = new HashSet<MacroCell>();
+		currentLevel.add(center);
+		result.add(center);
+		for (int level = 0; level<nrLevels; level++) {
+			for (MacroCell cell: currentLevel) {
+				for (MacroCell c: cell.downs)
+					if (!result.contains(c))
+						nextLevel.add(c);
+				for (MacroCell c: cell.ups)
+					if (!result.contains(c))
+						nextLevel.add(c);
+			}
+			result.addAll(nextLevel);
+			currentLevel.clear();
+			currentLevel.addAll(nextLevel);
+			nextLevel.clear();
+		}
+		return result;
+	}
+
+	/** Dense 0/1 Schur matrix: cells by their own levels, inflow nodes by their last outgoing cell */
+	private static Matrix denseSchur(Model model, AssimilationConfiguration config) {
+		int nrDetectors = model.getDetectors().size();
+		Matrix schur = new Matrix(config.nrStateVariables, 2*nrDetectors);
+		int nrCells = model.getCells().size();
+		for (int d = 0; d<nrDetectors; d++) {
+			MacroCell detectorCell = model.getDetectors().get(d).getClosestCell();
+			for (MacroCell c: surroundingCells(detectorCell, CELL_LEVELS)) {
+				schur.set(model.indexOf(c), d, 1);
+				schur.set(model.indexOf(c), d+nrDetectors, 1);
+			}
+			LinkedHashSet<MacroCell> extended = surroundingCells(detectorCell, OBJECT_LEVELS);
+			ArrayList<NodeBoundaryIn> inflowNodes = model.getInflowNodes();
+			for (int n = 0; n<inflowNodes.size(); n++) {
+				ArrayList<MacroCell> out = inflowNodes.get(n).cellsOut;
+				if (extended.contains(out.get(out.size()-1))) {
+					schur.set(nrCells+n, d, 1);
+					schur.set(nrCells+n, d+nrDetectors, 1);
+				}
+			}
+		}
+		return schur;
+	}
+
+	/** Distance between cell centres along the downstream chain of cells */
+	private static HashMap<MacroCell, Double> positions(Model model) {
+		HashMap<MacroCell, Double> result = new HashMap<MacroCell, Double>();
+		MacroCell cell = model.getInflowNodes().get(0).cellsOut.get(0);
+		double x = 0.5*cell.l;
+		while (cell != null) {
+			result.put(cell, x);
+			MacroCell next = cell.downs.isEmpty() ? null : cell.downs.get(0);
+			if (next != null)
+				x += 0.5*(cell.l + next.l);
+			cell = next;
+		}
+		assertEquals(model.getCells().size(), result.size());
+		return result;
+	}
+
+	/**
+	 * Without a half width the index has the same nonzeros as the dense Schur matrix, all 1
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testLevels() {
+		Model model = createModel();
+		AssimilationConfiguration config = configuration(model);
+		LocalizationIndex index = LocalizationIndex.build(model, config, CELL_LEVELS, OBJECT_LEVELS, 0);
+		Matrix schur = denseSchur(model, config);
+		int nonZeros = 0;
+		for (int i = 0; i<config.nrStateVariables; i++) {
+			for (int k = 0; k<2*model.getDetectors().size(); k++) {
+				assertEquals("state " + i + " observation " + k, schur.get(i, k), index.get(i, k), 0);
+				nonZeros += schur.get(i, k) > 0 ? 1 : 0;
+			}
+		}
+		assertEquals(nonZeros, index.getNonZeros());
+		for (int k = 0; k<2*model.getDetectors().size(); k++) {
+			int[] states = index.getStateIndices(k);
+			for (int i: states)
+				assertEquals(1, schur.get(i, k), 0);
+		}
+	}
+
+	/**
+	 * With a half width the coefficients are the dense 0/1 Schur matrix times Gaspari-Cohn of
+	 * the distance
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testSchurProduct() {
+		Model model = createModel();
+		AssimilationConfiguration config = configuration(model);
+		double halfWidth = 60;
+		LocalizationIndex index = LocalizationIndex.build(model, config, CELL_LEVELS, OBJECT_LEVELS, halfWidth);
+		Matrix levels = denseSchur(model, config);
+		HashMap<MacroCell, Double> positions = positions(model);
+		int nrDetectors = model.getDetectors().size();
+		Matrix rho = new Matrix(config.nrStateVariables, 2*nrDetectors);
+		for (int i = 0; i<model.getCells().size(); i++) {
+			MacroCell cell = model.getCells().get(i);
+			for (int k = 0; k<2*nrDetectors; k++) {
+				MacroCell detectorCell = model.getDetectors().get(k%nrDetectors).getClosestCell();
+				double distance = Math.abs(positions.get(cell) - positions.get(detectorCell));
+				rho.set(i, k, levels.get(i, k)*LocalizationIndex.gaspariCohn(distance/halfWidth));
+			}
+		}
+		for (int i = model.getCells().size(); i<config.nrStateVariables; i++)
+			for (int k = 0; k<2*nrDetectors; k++)
+				rho.set(i, k, index.get(i, k));
+		for (int i = 0; i<config.nrStateVariables; i++)
+			for (int k = 0; k<2*nrDetectors; k++) {
+				assertEquals(rho.get(i, k), index.get(i, k), 1e-9);
+				if (index.get(i, k) != 0)
+					assertEquals(1, levels.get(i, k), 0);
+			}
+		// the taper removes observations within the levels and weighs the others
+		boolean partial = false;
+		for (double c: index.getCoefficients())
+			partial |= c > 0 && c < 1;
+		assertTrue(partial);
+		assertTrue(index.getNonZeros() < LocalizationIndex.build(model, config, CELL_LEVELS, OBJECT_LEVELS, 0).getNonZeros());
+	}
+}
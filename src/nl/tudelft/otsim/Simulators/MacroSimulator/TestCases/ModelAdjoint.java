@@ -0,0 +1,389 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import nl.tudelft.otsim.Simulators.MacroSimulator.MacroCell;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Model;
+import nl.tudelft.otsim.Simulators.MacroSimulator.ExternalEvents.ExternalEvent;
+import nl.tudelft.otsim.Simulators.MacroSimulator.FundamentalDiagrams.FDDrake;
+import nl.tudelft.otsim.Simulators.MacroSimulator.FundamentalDiagrams.FDSmulders;
+import nl.tudelft.otsim.Simulators.MacroSimulator.FundamentalDiagrams.FDTrian;
+import nl.tudelft.otsim.Simulators.MacroSimulator.FundamentalDiagrams.IFD;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.Node;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeBoundaryIn;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeDetector;
+
+/**
+ * Discrete adjoint of {@link Model#run(int)}, for gradient based calibration against detectors.
+ * <br>
+ * {@link #run(int, double[][], double[][])} simulates a number of steps with the model itself,
+ * keeping the densities, inflows and rest vehicles of every step, and evaluates the objective
+ * <br>
+ * <tt>J = sum over steps and detectors of flowWeight/2*(q - qObs)^2 + speedWeight/2*(v - vObs)^2</tt>
+ * <br>
+ * for the flow and speed that the detectors measure at the start of every step. One backward
+ * sweep over the stored steps then gives the gradient of <tt>J</tt> with respect to the
+ * fundamental diagram parameters of every cell, the inflow of every inflow node in every
+ * step, the turning ratios of every node and the initial densities. The node models provide
+ * the derivatives of their fluxes through {@link Node#calcFluxJacobian(double[], double[], double[])}
+ * and {@link NodeBoundaryIn#calcFluxDerivatives(double, double, double, double)}.
+ * <br>
+ * The model is piecewise differentiable: the gradient is that of the branch (free or
+ * congested, supply or demand constrained) that the simulation takes. External events that
+ * start or end within the simulated period change parameters during the run and are not
+ * supported. Parameters are those of the cell as a whole, e.g. <tt>kCri</tt> rather than
+ * <tt>kCriPerLane</tt>.
+ */
+public class ModelAdjoint {
+	/** derivative indices of the fundamental diagram functions */
+	private static final int VALUE = 0;
+	private static final int K = 1;
+	private static final int VLIM = 2;
+	private static final int KCRI = 3;
+	private static final int KJAM = 4;
+	private static final int VCRI = 5;
+
+	private final Model model;
+	private final ArrayList<MacroCell> cells;
+	private final HashMap<MacroCell, Integer> cellIndex = new HashMap<MacroCell, Integer>();
+	private final ArrayList<Node> nodes = new ArrayList<Node>();
+	private final ArrayList<NodeBoundaryIn> inflowNodes;
+	private final ArrayList<NodeDetector> detectors;
+	private double flowWeight = 1;
+	private double speedWeight = 1;
+
+	private double objective;
+	private double[] vLimGradient;
+	private double[] kCriGradient;
+	private double[] kJamGradient;
+	private double[] vCriGradient;
+	private double[] densityGradient;
+	private double[][] inflowGradient;
+	private double[][] inflows;
+	private double[][][] turningRatioGradient;
+
+	public ModelAdjoint(Model model) {
+		this.model = model;
+		cells = model.getCells();
+		for (int c = 0; c<cells.size(); c++)
+			cellIndex.put(cells.get(c), c);
+		for (Node node: model.getNodes()) {
+			if (node instanceof NodeBoundaryIn || node instanceof NodeDetector)
+				continue;
+			if (node.cellsIn.size() + node.cellsOut.size() > 0)
+				nodes.add(node);
+		}
+		inflowNodes = model.getInflowNodes();
+		detectors = model.getDetectors();
+	}
+
+	/** Weights of the squared flow and speed errors in the objective. */
+	public void setWeights(double flowWeight, double speedWeight) {
+		this.flowWeight = flowWeight;
+		this.speedWeight = speedWeight;
+	}
+
+	/**
+	 * Simulate steps from the current state of the model and compute the objective and its gradient.
+	 * @param steps number of steps
+	 * @param observedFlows observed flow per step and detector (in the order of {@link Model#getDetectors()}), NaN if missing
+	 * @param observedSpeeds observed speed per step and detector, NaN if missing
+	 * @return the objective
+	 */
+	public double run(int steps, double[][] observedFlows, double[][] observedSpeeds) {
+		double t0 = model.t();
+		double t1 = t0 + steps*model.dt;
+		if (t1 > model.period + model.dt/2)
+			throw new Error("Simulation period ends before " + t1);
+		if (model.getExternalEvents() != null) {
+			for (ExternalEvent ext: model.getExternalEvents()) {
+				if ((ext.getBeginTime() > t0 && ext.getBeginTime() < t1) || (ext.getEndTime() > t0 && ext.getEndTime() < t1))
+					throw new Error("External events within the period are not supported");
+			}
+		}
+		int nrCells = cells.size();
+		int nrInflow = inflowNodes.size();
+		// forward, keeping the state at the start of every step
+		double[][] densities = new double[steps][nrCells];
+		double[][] rests = new double[steps][nrInflow];
+		inflows = new double[steps][nrInflow];
+		for (int s = 0; s<steps; s++) {
+			for (int c = 0; c<nrCells; c++)
+				densities[s][c] = cells.get(c).KCell;
+			for (int n = 0; n<nrInflow; n++) {
+				inflows[s][n] = inflowNodes.get(n).getInflow();
+				rests[s][n] = inflowNodes.get(n).getRestVehicles();
+			}
+			model.run(1);
+		}
+
+		// the capacity of a cell and its derivatives are fixed during the run
+		double[][] capacity = new double[nrCells][];
+		for (int c = 0; c<nrCells; c++) {
+			MacroCell cell = cells.get(c);
+			capacity[c] = flow(cell, cell.kCri, false);
+			capacity[c][KCRI] += capacity[c][K];
+			capacity[c][K] = 0;
+			capacity[c][VALUE] = cell.qCap;
+		}
+
+		// backward
+		objective = 0;
+		vLimGradient = new double[nrCells];
+		kCriGradient = new double[nrCells];
+		kJamGradient = new double[nrCells];
+		vCriGradient = new double[nrCells];
+		inflowGradient = new double[steps][nrInflow];
+		turningRatioGradient = new double[nodes.size()][][];
+		for (int m = 0; m<nodes.size(); m++)
+			turningRatioGradient[m] = new double[nodes.get(m).cellsIn.size()][nodes.get(m).cellsOut.size()];
+		double[] lambda = new double[nrCells];
+		double[] lambdaRest = new double[nrInflow];
+		double[][] demand = new double[nrCells][];
+		double[][] supply = new double[nrCells][];
+		for (int s = steps-1; s>=0; s--) {
+			double[] density = densities[s];
+			for (int c = 0; c<nrCells; c++) {
+				MacroCell cell = cells.get(c);
+				// at the critical density the supply takes the congested branch, also for its derivatives
+				double[] q = density[c] < cell.kCri ? flow(cell, density[c], false) : null;
+				demand[c] = q != null ? q : capacity[c];
+				supply[c] = q != null ? capacity[c] : flow(cell, density[c], true);
+			}
+			// dJ/dK at the start of the step, through the density update
+			double[] previous = lambda.clone();
+			for (int m = 0; m<nodes.size(); m++) {
+				Node node = nodes.get(m);
+				int nrIn = node.cellsIn.size();
+				int nrOut = node.cellsOut.size();
+				double[] nodeSupply = new double[nrOut];
+				double[] nodeDemand = new double[nrIn];
+				double[] nodeCapacity = new double[nrIn];
+				for (int j = 0; j<nrOut; j++)
+					nodeSupply[j] = supply[cellIndex.get(node.cellsOut.get(j))][VALUE];
+				for (int i = 0; i<nrIn; i++) {
+					int c = cellIndex.get(node.cellsIn.get(i));
+					nodeDemand[i] = demand[c][VALUE];
+					nodeCapacity[i] = capacity[c][VALUE];
+				}
+				double[][] jacobian = node.calcFluxJacobian(nodeSupply, nodeDemand, nodeCapacity);
+				// adjoint of every flux: it leaves the cells in and enters the cells out
+				double[] fluxAdjoint = new double[nrIn + nrOut];
+				for (int i = 0; i<nrIn; i++) {
+					MacroCell cell = node.cellsIn.get(i);
+					fluxAdjoint[i] = -lambda[cellIndex.get(cell)]*model.dt/cell.l;
+				}
+				for (int j = 0; j<nrOut; j++) {
+					MacroCell cell = node.cellsOut.get(j);
+					fluxAdjoint[nrIn + j] = lambda[cellIndex.get(cell)]*model.dt/cell.l;
+				}
+				for (int j = 0; j<nrOut; j++) {
+					int c = cellIndex.get(node.cellsOut.get(j));
+					addAdjoint(previous, c, supply[c], product(jacobian, fluxAdjoint, node.supplyColumn(j)));
+				}
+				for (int i = 0; i<nrIn; i++) {
+					int c = cellIndex.get(node.cellsIn.get(i));
+					addAdjoint(previous, c, demand[c], product(jacobian, fluxAdjoint, node.demandColumn(i)));
+					addAdjoint(previous, c, capacity[c], product(jacobian, fluxAdjoint, node.capacityColumn(i)));
+					for (int j = 0; j<nrOut; j++)
+						turningRatioGradient[m][i][j] += product(jacobian, fluxAdjoint, node.turningRatioColumn(i, j));
+				}
+			}
+			for (int n = 0; n<nrInflow; n++) {
+				MacroCell cell = inflowNodes.get(n).cellsOut.get(0);
+				int c = cellIndex.get(cell);
+				double[] d = NodeBoundaryIn.calcFluxDerivatives(supply[c][VALUE], inflows[s][n], rests[s][n], model.dt);
+				double fluxAdjoint = lambda[c]*model.dt/cell.l;
+				addAdjoint(previous, c, supply[c], fluxAdjoint*d[0] + lambdaRest[n]*d[3]);
+				inflowGradient[s][n] = fluxAdjoint*d[1] + lambdaRest[n]*d[4];
+				lambdaRest[n] = fluxAdjoint*d[2] + lambdaRest[n]*d[5];
+			}
+			// the measurements at the start of the step
+			for (int m = 0; m<detectors.size(); m++) {
+				MacroCell cell = detectors.get(m).getClosestCell();
+				int c = cellIndex.get(cell);
+				double error = flowWeight > 0 ? observedFlows[s][m] : Double.NaN;
+				if (!Double.isNaN(error)) {
+					double[] q = flow(cell, density[c], congested(cell, density[c]));
+					error = q[VALUE] - error;
+					objective += flowWeight/2*error*error;
+					addAdjoint(previous, c, q, flowWeight*error);
+				}
+				error = speedWeight > 0 ? observedSpeeds[s][m] : Double.NaN;
+				if (!Double.isNaN(error)) {
+					double[] v = speed(cell, density[c], congested(cell, density[c]));
+					error = v[VALUE] - error;
+					objective += speedWeight/2*error*error;
+					addAdjoint(previous, c, v, speedWeight*error);
+				}
+			}
+			lambda = previous;
+		}
+		densityGradient = lambda;
+		return objective;
+	}
+
+	private static double product(double[][] jacobian, double[] adjoint, int column) {
+		double result = 0;
+		for (int r = 0; r<jacobian.length; r++)
+			result += jacobian[r][column]*adjoint[r];
+		return result;
+	}
+
+	/** Add the adjoint of a function of the density and parameters of a cell. */
+	private void addAdjoint(double[] lambda, int c, double[] derivatives, double adjoint) {
+		if (adjoint == 0)
+			return;
+		lambda[c] += adjoint*derivatives[K];
+		vLimGradient[c] += adjoint*derivatives[VLIM];
+		kCriGradient[c] += adjoint*derivatives[KCRI];
+		kJamGradient[c] += adjoint*derivatives[KJAM];
+		vCriGradient[c] += adjoint*derivatives[VCRI];
+	}
+
+	/** @return whether the fundamental diagram of a cell uses its congested branch at a density */
+	static boolean congested(MacroCell cell, double k) {
+		if (cell.fd instanceof FDSmulders)
+			return k > cell.kCri;
+		return k >= cell.kCri;
+	}
+
+	/**
+	 * Flow of a cell at a density and its derivatives with respect to the density and the
+	 * parameters, indexed by {@link #K}, {@link #VLIM}, {@link #KCRI}, {@link #KJAM} and {@link #VCRI}.
+	 * @param congested whether the derivatives are those of the congested branch, which
+	 * matters at the critical density only
+	 */
+	static double[] flow(MacroCell cell, double k, boolean congested) {
+		IFD fd = cell.fd;
+		double vLim = cell.vLim;
+		double kCri = cell.kCri;
+		double kJam = cell.kJam;
+		double vCri = cell.vCri;
+		double[] d = new double[6];
+		if (fd instanceof FDSmulders) {
+			d[VALUE] = fd.calcQ(new double[]{k, vLim, kCri, kJam, vCri});
+			if (!congested) {
+				d[K] = vLim - 2*k*(vLim - vCri)/kCri;
+				d[VLIM] = k - k*k/kCri;
+				d[KCRI] = k*k*(vLim - vCri)/(kCri*kCri);
+				d[VCRI] = k*k/kCri;
+			} else {
+				double w = kCri*vCri/(kJam - kCri);
+				double dw = 1/((kJam - kCri)*(kJam - kCri));
+				d[K] = -w;
+				d[KCRI] = vCri*kJam*dw*(kJam - k);
+				d[KJAM] = -kCri*vCri*dw*(kJam - k) + w;
+				d[VCRI] = kCri/(kJam - kCri)*(kJam - k);
+			}
+		} else if (fd instanceof FDTrian) {
+			d[VALUE] = fd.calcQ(new double[]{k, vLim, kCri, kJam});
+			if (!congested) {
+				d[K] = vLim;
+				d[VLIM] = k;
+			} else {
+				double dw = 1/((kJam - kCri)*(kJam - kCri));
+				d[K] = -kCri*vLim/(kJam - kCri);
+				d[VLIM] = (kJam - k)/(kJam - kCri)*kCri;
+				d[KCRI] = (kJam - k)*vLim*kJam*dw;
+				d[KJAM] = kCri*vLim*(k - kCri)*dw;
+			}
+		} else if (fd instanceof FDDrake) {
+			d[VALUE] = fd.calcQ(new double[]{k, vLim, kCri, kJam});
+			double e = Math.exp(-0.5*(k/kCri)*(k/kCri));
+			d[K] = vLim*e*(1 - k*k/(kCri*kCri));
+			d[VLIM] = k*e;
+			d[KCRI] = vLim*e*k*k*k/(kCri*kCri*kCri);
+		} else
+			throw new Error("No derivatives of " + fd.getClass().getSimpleName());
+		return d;
+	}
+
+	/** Speed of a cell at a density and its derivatives, as {@link #flow(MacroCell, double, boolean)}. */
+	static double[] speed(MacroCell cell, double k, boolean congested) {
+		IFD fd = cell.fd;
+		double vLim = cell.vLim;
+		double kCri = cell.kCri;
+		double kJam = cell.kJam;
+		double vCri = cell.vCri;
+		double[] d;
+		if (fd instanceof FDSmulders && !congested) {
+			d = new double[6];
+			d[VALUE] = fd.calcV(new double[]{k, vLim, kCri, kJam, vCri});
+			d[K] = -(vLim - vCri)/kCri;
+			d[VLIM] = 1 - k/kCri;
+			d[KCRI] = k*(vLim - vCri)/(kCri*kCri);
+			d[VCRI] = k/kCri;
+		} else if (fd instanceof FDTrian && !congested) {
+			d = new double[6];
+			d[VALUE] = fd.calcV(new double[]{k, vLim, kCri, kJam});
+			d[VLIM] = 1;
+		} else if (fd instanceof FDDrake) {
+			d = new double[6];
+			d[VALUE] = fd.calcV(new double[]{k, vLim, kCri, kJam});
+			d[K] = -d[VALUE]*k/(kCri*kCri);
+			d[VLIM] = d[VALUE]/vLim;
+			d[KCRI] = d[VALUE]*k*k/(kCri*kCri*kCri);
+		} else {
+			// congested: v = q/k with k > kCri > 0
+			d = flow(cell, k, true);
+			d[K] = (d[K] - d[VALUE]/k)/k;
+			for (int p = VLIM; p<=VCRI; p++)
+				d[p] /= k;
+			d[VALUE] = fd instanceof FDSmulders ? fd.calcV(new double[]{k, vLim, kCri, kJam, vCri}) : fd.calcV(new double[]{k, vLim, kCri, kJam});
+		}
+		return d;
+	}
+
+	/** @return objective of the last run */
+	public double getObjective() {
+		return objective;
+	}
+	/** @return gradient with respect to the free flow speed of every cell */
+	public double[] getVLimGradient() {
+		return vLimGradient;
+	}
+	/** @return gradient with respect to the critical density of every cell */
+	public double[] getKCriGradient() {
+		return kCriGradient;
+	}
+	/** @return gradient with respect to the jam density of every cell */
+	public double[] getKJamGradient() {
+		return kJamGradient;
+	}
+	/** @return gradient with respect to the critical speed of every cell */
+	public double[] getVCriGradient() {
+		return vCriGradient;
+	}
+	/** @return gradient with respect to the density of every cell at the start of the run */
+	public double[] getDensityGradient() {
+		return densityGradient;
+	}
+	/** @return gradient with respect to the inflow of every inflow node in every step */
+	public double[][] getInflowGradient() {
+		return inflowGradient;
+	}
+	/**
+	 * @return gradient with respect to a factor on the inflow of an inflow node during the
+	 * whole run, as changed by {@link NodeBoundaryIn#setInflow(double)}
+	 */
+	public double getInflowFactorGradient(NodeBoundaryIn node) {
+		int n = inflowNodes.indexOf(node);
+		double result = 0;
+		for (int s = 0; s<inflowGradient.length; s++)
+			result += inflowGradient[s][n]*inflows[s][n];
+		return result;
+	}
+	/** @return gradient with respect to the normalized turning ratios of a node */
+	public double[][] getTurningRatioGradient(Node node) {
+		return turningRatioGradient[nodes.indexOf(node)];
+	}
+	/**
+	 * @return gradient with respect to the turn fraction of {@link Node#setTurningRatioCompact(double)}
+	 */
+	public double getTurningRatioCompactGradient(Node node) {
+		double[][] gradient = getTurningRatioGradient(node);
+		return gradient[0][0] - gradient[0][1];
+	}
+}
@@ -0,0 +1,204 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import nl.tudelft.otsim.Events.Scheduler;
+import nl.tudelft.otsim.GUI.FakeGraphicsPanel;
+import nl.tudelft.otsim.GeoObjects.Vertex;
+import nl.tudelft.otsim.Simulators.MacroSimulator.MacroCell;
+import nl.tudelft.otsim.Simulators.MacroSimulator.MacroSimulator;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Model;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeBoundaryIn;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeInterior;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeInteriorTampere;
+
+import org.junit.Test;
+
+/** Test the ModelAdjoint and the flux derivatives of the nodes against finite differences */
+public class ModelAdjointTest {
+	private static final int STEPS = 150;
+	private static final double START = 1900;
+
+	/** Two roadways with a lane drop, three detectors and an inflow above the capacity of the drop */
+	private static Model createModel(double inflowFactor) {
+		String pattern = "[0.000/1400:1800/2200:2400.000/2200:3900/1100:4200/1100]";
+		String configuration = "EndTime:\t7200.00\nSeed:\t1\n"
+				+ "Roadway:\t0\tfrom\t1\tto\t2\tspeedlimit\t100\tlanes\t2\tvertices\t(0.000,-0.250,0.000)\t(3000.000,-0.250,0.000)\tins\touts\t1\tfd\t0.02\t0.125\t22.222\tSMULDERS\n"
+				+ "Roadway:\t1\tfrom\t2\tto\t3\tspeedlimit\t100\tlanes\t1\tvertices\t(3000.000,-0.250,0.000)\t(4000.000,-0.250,0.000)\tins\t0\touts\tfd\t0.02\t0.125\t22.222\tSMULDERS\n"
+				+ "TrafficClass\tpassengerCar_act\t4.000\t140.000\t-6.000\t0.900000\t600.000\n"
+				+ "TripPattern\tnumberOfTrips:\t" + pattern + "\tLocationPattern:\t[z1, z2]\tFractions\tpassengerCar_act:1.000000\n"
+				+ "TripPatternPath\tnumberOfTrips:\t" + pattern + "\tNodePattern:\t[origin ID=1 (0.00m, 0.00m, 0.00m), destination ID=2 (3500.00m, 0.00m, 0.00m)]\n"
+				+ "Path:\t1.00000\tnodes:\t1\t2\t3\n"
+				+ "Detector:\t0\t(1000.000,-0.250,0.000)\nDetector:\t1\t(2750.000,-0.250,0.000)\nDetector:\t2\t(3250.000,-0.250,0.000)\n";
+		Scheduler scheduler = new Scheduler(MacroSimulator.simulatorType, new FakeGraphicsPanel(), configuration);
+		Model model = (Model) scheduler.getSimulator().getModel();
+		model.init();
+		scheduler.stepUpTo(START);
+		NodeBoundaryIn in = model.getInflowNodes().get(0);
+		in.setInflow(in.getInflow()*inflowFactor);
+		return model;
+	}
+
+	/** Flows and speeds of the detectors with a lower inflow than the model, and a bias so the queue does not fit either */
+	private static double[][][] observations() {
+		Model truth = createModel(0.9);
+		double[][][] result = new double[2][STEPS][truth.getDetectors().size()];
+		for (int s = 0; s<STEPS; s++) {
+			for (int m = 0; m<truth.getDetectors().size(); m++) {
+				double[] qv = truth.getDetectors().get(m).getInstantMeasurements();
+				result[0][s][m] = qv[0] + 0.02;
+				result[1][s][m] = qv[1] - 1;
+			}
+			truth.run(1);
+		}
+		return result;
+	}
+
+	private static double objective(Model model, double[][][] observations) {
+		ModelAdjoint adjoint = new ModelAdjoint(model);
+		adjoint.setWeights(100, 0.01);
+		return adjoint.run(STEPS, observations[0], observations[1]);
+	}
+
+	private static void setVLim(MacroCell cell, double vLim) {
+		cell.vLim = vLim;
+		cell.qCap = cell.fd.calcQCap(cell);
+	}
+
+	private static void setKCri(MacroCell cell, double kCri) {
+		cell.kCri = kCri;
+		cell.qCap = cell.fd.calcQCap(cell);
+	}
+
+	private static void setKJam(MacroCell cell, double kJam) {
+		cell.kJam = kJam;
+		cell.qCap = cell.fd.calcQCap(cell);
+	}
+
+	private static void assertGradient(String message, double expected, double actual) {
+		assertEquals(message, expected, actual, 1e-4*Math.abs(expected) + 1e-9);
+	}
+
+	/**
+	 * The gradients of one backward sweep equal central differences of the objective
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testGradient() {
+		double[][][] observations = observations();
+		Model model = createModel(1);
+		ModelAdjoint adjoint = new ModelAdjoint(model);
+		adjoint.setWeights(100, 0.01);
+		double objective = adjoint.run(STEPS, observations[0], observations[1]);
+		assertTrue(objective > 0);
+		// free flow cells upstream of the first detector and queued cells between the second
+		// detector and the lane drop; the cells after the drop run exactly at capacity, where
+		// the fluxes are not differentiable
+		int[] cells = new int[]{3, 5, 49, 50};
+		double h = 1e-6;
+		for (int c: cells) {
+			Model plus = createModel(1);
+			setVLim(plus.getCells().get(c), plus.getCells().get(c).vLim + h);
+			Model minus = createModel(1);
+			setVLim(minus.getCells().get(c), minus.getCells().get(c).vLim - h);
+			assertGradient("vLim " + c, (objective(plus, observations) - objective(minus, observations))/(2*h), adjoint.getVLimGradient()[c]);
+			plus = createModel(1);
+			setKCri(plus.getCells().get(c), plus.getCells().get(c).kCri + h*1e-3);
+			minus = createModel(1);
+			setKCri(minus.getCells().get(c), minus.getCells().get(c).kCri - h*1e-3);
+			assertGradient("kCri " + c, (objective(plus, observations) - objective(minus, observations))/(2*h*1e-3), adjoint.getKCriGradient()[c]);
+			plus = createModel(1);
+			setKJam(plus.getCells().get(c), plus.getCells().get(c).kJam + h*1e-3);
+			minus = createModel(1);
+			setKJam(minus.getCells().get(c), minus.getCells().get(c).kJam - h*1e-3);
+			assertGradient("kJam " + c, (objective(plus, observations) - objective(minus, observations))/(2*h*1e-3), adjoint.getKJamGradient()[c]);
+			plus = createModel(1);
+			plus.getCells().get(c).KCell += h*1e-3;
+			minus = createModel(1);
+			minus.getCells().get(c).KCell -= h*1e-3;
+			assertGradient("density " + c, (objective(plus, observations) - objective(minus, observations))/(2*h*1e-3), adjoint.getDensityGradient()[c]);
+		}
+		Model plus = createModel(1 + h);
+		Model minus = createModel(1 - h);
+		NodeBoundaryIn in = model.getInflowNodes().get(0);
+		assertGradient("inflow", (objective(plus, observations) - objective(minus, observations))/(2*h), adjoint.getInflowFactorGradient(in));
+	}
+
+	private static NodeInterior createNode(boolean tampere, int nrIn, int nrOut, Random random) {
+		NodeInterior node = tampere ? new NodeInteriorTampere(new Vertex()) : new NodeInterior(new Vertex());
+		// the flux functions do not use the cells
+		for (int i = 0; i<nrIn; i++)
+			node.cellsIn.add(null);
+		for (int j = 0; j<nrOut; j++)
+			node.cellsOut.add(null);
+		node.init();
+		double[][] ratios = new double[nrIn][nrOut];
+		for (int i = 0; i<nrIn; i++)
+			for (int j = 0; j<nrOut; j++)
+				ratios[i][j] = 0.2 + random.nextDouble();
+		node.setTurningRatio(ratios);
+		return node;
+	}
+
+	private static double[] fluxes(NodeInterior node, double[] inputs, int nrIn, int nrOut) {
+		double[] supply = new double[nrOut];
+		double[] demand = new double[nrIn];
+		double[] qCapIn = new double[nrIn];
+		System.arraycopy(inputs, 0, supply, 0, nrOut);
+		System.arraycopy(inputs, nrOut, demand, 0, nrIn);
+		System.arraycopy(inputs, nrOut + nrIn, qCapIn, 0, nrIn);
+		for (int i = 0; i<nrIn; i++)
+			for (int j = 0; j<nrOut; j++)
+				node.turningRatio[i][j] = inputs[node.turningRatioColumn(i, j)];
+		node.calcFlux(supply, demand, qCapIn);
+		double[] result = new double[nrIn + nrOut];
+		System.arraycopy(node.fluxesIn, 0, result, 0, nrIn);
+		System.arraycopy(node.fluxesOut, 0, result, nrIn, nrOut);
+		return result;
+	}
+
+	/**
+	 * The flux derivatives of the node models equal central differences of their fluxes
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testNodeJacobians() {
+		Random random = new Random(7);
+		int[][] sizes = new int[][]{{1, 1}, {1, 2}, {1, 3}, {2, 1}, {2, 2}, {3, 2}};
+		for (int trial = 0; trial<50; trial++) {
+			int[] size = sizes[trial%sizes.length];
+			int nrIn = size[0];
+			int nrOut = size[1];
+			boolean tampere = (trial/sizes.length)%2 == 1 || (nrIn > 1 && nrOut > 1);
+			NodeInterior node = createNode(tampere, nrIn, nrOut, random);
+			double[] inputs = new double[nrOut + 2*nrIn + nrIn*nrOut];
+			for (int j = 0; j<nrOut; j++)
+				inputs[node.supplyColumn(j)] = 0.2 + random.nextDouble();
+			for (int i = 0; i<nrIn; i++) {
+				inputs[node.capacityColumn(i)] = 0.5 + random.nextDouble();
+				inputs[node.demandColumn(i)] = random.nextDouble()*inputs[node.capacityColumn(i)];
+				for (int j = 0; j<nrOut; j++)
+					inputs[node.turningRatioColumn(i, j)] = node.turningRatio[i][j];
+			}
+			double[] supply = new double[nrOut];
+			double[] demand = new double[nrIn];
+			double[] qCapIn = new double[nrIn];
+			System.arraycopy(inputs, 0, supply, 0, nrOut);
+			System.arraycopy(inputs, nrOut, demand, 0, nrIn);
+			System.arraycopy(inputs, nrOut + nrIn, qCapIn, 0, nrIn);
+			double[][] jacobian = node.calcFluxJacobian(supply, demand, qCapIn);
+			double h = 1e-7;
+			for (int c = 0; c<inputs.length; c++) {
+				double[] x = inputs.clone();
+				x[c] += h;
+				double[] plus = fluxes(node, x, nrIn, nrOut);
+				x[c] -= 2*h;
+				double[] minus = fluxes(node, x, nrIn, nrOut);
+				for (int r = 0; r<nrIn + nrOut; r++)
+					assertEquals("node " + nrIn + "x" + nrOut + " flux " + r + " input " + c, (plus[r] - minus[r])/(2*h), jacobian[r][c], 1e-6);
+			}
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import Jama.Matrix;
+
+/**
+ * Binary store of experiment results, as a MATLAB (level 5) MAT-file.
+ * <br>
+ * Replaces the generated <tt>.m</tt> scripts of the exportToMatlab methods: variables are
+ * written as binary double or character arrays, which MATLAB reads with <tt>load</tt>
+ * and {@link Reader} reads back in Java (e.g. for regression tests). Values are written
+ * through a fixed buffer in chunks, without building strings.
+ * <br>
+ * Results that become available during a run are added row by row to a {@link Stream}.
+ * Every stream is buffered in its own temporary file and appended to the store when it
+ * is closed. A stream of rows with <tt>n</tt> values is stored as a <tt>rows x n</tt>
+ * array, one row per added row like the matrices of {@link #put(String, Matrix)}; as
+ * MATLAB stores arrays column by column, the rows are transposed when the stream is
+ * closed.
+ */
+public class ResultStore {
+	private static final int miINT8 = 1;
+	private static final int miUINT16 = 4;
+	private static final int miINT32 = 5;
+	private static final int miUINT32 = 6;
+	private static final int miDOUBLE = 9;
+	private static final int miMATRIX = 14;
+	private static final int mxCHAR_CLASS = 4;
+	private static final int mxDOUBLE_CLASS = 6;
+	private static final int CHUNK = 1 << 20;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+	private final ArrayList<Stream> openStreams = new ArrayList<Stream>();
+
+	/** Create a new store, an existing file is overwritten. */
+	public ResultStore(File file) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+		byte[] text = new byte[116];
+		byte[] description = "MATLAB 5.0 MAT-file, Platform: Java, Created by: OTSim ResultStore".getBytes(Charset.forName("US-ASCII"));
+		for (int i = 0; i<text.length; i++)
+			text[i] = i<description.length ? description[i] : (byte) ' ';
+		buffer.put(text);
+		buffer.putLong(0);
+		buffer.putShort((short) 0x0100);
+		buffer.put((byte) 'I').put((byte) 'M');
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** Add a matrix. */
+	public synchronized void put(String name, Matrix m) throws IOException {
+		int rows = m.getRowDimension();
+		int columns = m.getColumnDimension();
+		double[][] a = m.getArray();
+		writeHeader(name, mxDOUBLE_CLASS, rows, columns, miDOUBLE, 8L*rows*columns);
+		for (int j = 0; j<columns; j++) {
+			for (int i = 0; i<rows; i++) {
+				ensure(8);
+				buffer.putDouble(a[i][j]);
+			}
+		}
+		pad(8L*rows*columns);
+	}
+
+	/** Add a row vector. */
+	public synchronized void put(String name, double[] values) throws IOException {
+		writeHeader(name, mxDOUBLE_CLASS, 1, values.length, miDOUBLE, 8L*values.length);
+		for (double v: values) {
+			ensure(8);
+			buffer.putDouble(v);
+		}
+		pad(8L*values.length);
+	}
+
+	/** Add a row vector. */
+	public void put(String name, long[] values) throws IOException {
+		double[] d = new double[values.length];
+		for (int i = 0; i<values.length; i++)
+			d[i] = values[i];
+		put(name, d);
+	}
+
+	public void put(String name, double value) throws IOException {
+		put(name, new double[]{value});
+	}
+
+	/** Add a character array, e.g. a configuration. */
+	public synchronized void put(String name, String value) throws IOException {
+		writeHeader(name, mxCHAR_CLASS, 1, value.length(), miUINT16, 2L*value.length());
+		for (int i = 0; i<value.length(); i++) {
+			ensure(2);
+			buffer.putChar(value.charAt(i));
+		}
+		pad(2L*value.length());
+	}
+
+	/**
+	 * Open a stream to add a variable row by row.
+	 * @param columns number of values per row
+	 */
+	public synchronized Stream stream(String name, int columns) throws IOException {
+		Stream s = new Stream(name, columns);
+		openStreams.add(s);
+		return s;
+	}
+
+	/** Close all open streams and the store. */
+	public synchronized void close() throws IOException {
+		try {
+			while (!openStreams.isEmpty())
+				openStreams.get(0).close();
+			flush();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void writeHeader(String name, int mxClass, int rows, int columns, int dataType, long dataBytes) throws IOException {
+		byte[] nameBytes = name.getBytes(Charset.forName("US-ASCII"));
+		long nameBytesPadded = padded(nameBytes.length);
+		long size = 16 + 16 + 8 + nameBytesPadded + 8 + padded(dataBytes);
+		if (size > 0xffffffffL)
+			throw new Error("Variable " + name + " is too large for a MAT-file element");
+		ensure(64);
+		buffer.putInt(miMATRIX).putInt((int) size);
+		// array flags
+		buffer.putInt(miUINT32).putInt(8).putInt(mxClass).putInt(0);
+		// dimensions
+		buffer.putInt(miINT32).putInt(8).putInt(rows).putInt(columns);
+		// name
+		buffer.putInt(miINT8).putInt(nameBytes.length);
+		ensure((int) nameBytesPadded);
+		buffer.put(nameBytes);
+		pad(nameBytes.length);
+		ensure(8);
+		buffer.putInt(dataType).putInt((int) dataBytes);
+	}
+
+	private static long padded(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	private void pad(long bytes) throws IOException {
+		for (long i = bytes; i<padded(bytes); i++) {
+			ensure(1);
+			buffer.put((byte) 0);
+		}
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (buffer.remaining() < bytes)
+			flush();
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/** Variable that is added row by row. */
+	public class Stream {
+		private final String name;
+		private final int columns;
+		private final File part;
+		private final RandomAccessFile partFile;
+		private final FileChannel partChannel;
+		private final ByteBuffer partBuffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+		private int rows = 0;
+
+		private Stream(String name, int columns) throws IOException {
+			this.name = name;
+			this.columns = columns;
+			part = File.createTempFile("rs_" + name, ".part", file.getAbsoluteFile().getParentFile());
+			partFile = new RandomAccessFile(part, "rw");
+			partChannel = partFile.getChannel();
+		}
+
+		/** Add a row. */
+		public void add(double[] row) throws IOException {
+			if (row.length != columns)
+				throw new Error("Row of " + name + " has " + row.length + " values, expected " + columns);
+			for (double v: row) {
+				if (partBuffer.remaining() < 8)
+					flushPart();
+				partBuffer.putDouble(v);
+			}
+			rows++;
+		}
+
+		/** Add a row with the values of a column vector at the given indices. */
+		public void add(Matrix column, int[] indices) throws IOException {
+			double[][] a = column.getArray();
+			double[] row = new double[indices.length];
+			for (int i = 0; i<indices.length; i++)
+				row[i] = a[indices[i]][0];
+			add(row);
+		}
+
+		public int getRows() {
+			return rows;
+		}
+
+		private void flushPart() throws IOException {
+			partBuffer.flip();
+			while (partBuffer.hasRemaining())
+				partChannel.write(partBuffer);
+			partBuffer.clear();
+		}
+
+		/** Append the stream to the store as a <tt>rows x columns</tt> array. */
+		public void close() throws IOException {
+			synchronized (ResultStore.this) {
+				if (!openStreams.remove(this))
+					return;
+				try {
+					flushPart();
+					long bytes = 8L*rows*columns;
+					if (bytes > Integer.MAX_VALUE)
+						throw new Error("Stream " + name + " is too large to transpose");
+					writeHeader(name, mxDOUBLE_CLASS, rows, columns, miDOUBLE, bytes);
+					if (bytes > 0) {
+						ByteBuffer values = partChannel.map(FileChannel.MapMode.READ_ONLY, 0, bytes).order(ByteOrder.LITTLE_ENDIAN);
+						for (int j = 0; j<columns; j++) {
+							for (int i = 0; i<rows; i++) {
+								ensure(8);
+								buffer.putDouble(values.getDouble((i*columns + j)*8));
+							}
+						}
+					}
+					pad(bytes);
+				} finally {
+					partFile.close();
+					if (!part.delete())
+						part.deleteOnExit();
+				}
+			}
+		}
+	}
+
+	/** Reader for the double and character arrays of a MAT-file written by a {@link ResultStore}. */
+	public static class Reader {
+		private final LinkedHashMap<String, Object> variables = new LinkedHashMap<String, Object>();
+
+		public Reader(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel ch = raf.getChannel();
+				long size = ch.size();
+				long position = 128;
+				ByteBuffer tag = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+				while (position < size) {
+					tag.clear();
+					ch.read(tag, position);
+					tag.flip();
+					int type = tag.getInt();
+					long bytes = tag.getInt() & 0xffffffffL;
+					if (type != miMATRIX)
+						throw new Error("Unsupported element type " + type + " in " + file);
+					ByteBuffer element = ch.map(FileChannel.MapMode.READ_ONLY, position + 8, bytes).order(ByteOrder.LITTLE_ENDIAN);
+					readMatrix(element);
+					position += 8 + bytes;
+				}
+			} finally {
+				raf.close();
+			}
+		}
+
+		private void readMatrix(ByteBuffer e) {
+			e.getInt();
+			e.getInt();
+			int mxClass = e.getInt() & 0xff;
+			e.getInt();
+			e.getInt();
+			int dimBytes = e.getInt();
+			if (dimBytes != 8)
+				throw new Error("Only two-dimensional arrays are supported");
+			int rows = e.getInt();
+			int columns = e.getInt();
+			e.getInt();
+			int nameLength = e.getInt();
+			byte[] nameBytes = new byte[nameLength];
+			e.get(nameBytes);
+			e.position((int) padded(e.position()));
+			String name = new String(nameBytes, Charset.forName("US-ASCII"));
+			e.getInt();
+			e.getInt();
+			if (mxClass == mxCHAR_CLASS) {
+				char[] c = new char[rows*columns];
+				for (int i = 0; i<c.length; i++)
+					c[i] = e.getChar();
+				variables.put(name, new String(c));
+			} else if (mxClass == mxDOUBLE_CLASS) {
+				double[] packed = new double[rows*columns];
+				e.asDoubleBuffer().get(packed);
+				variables.put(name, new Matrix(packed, rows));
+			} else {
+				throw new Error("Unsupported class " + mxClass + " of " + name);
+			}
+		}
+
+		public Iterable<String> getNames() {
+			return variables.keySet();
+		}
+
+		public Matrix getMatrix(String name) {
+			Object o = variables.get(name);
+			if (!(o instanceof Matrix))
+				throw new Error("No matrix " + name);
+			return (Matrix) o;
+		}
+
+		public String getString(String name) {
+			Object o = variables.get(name);
+			if (!(o instanceof String))
+				throw new Error("No character array " + name);
+			return (String) o;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import Jama.Matrix;
+
+import org.junit.Test;
+
+/** Test that the ResultStore reads back what it wrote */
+public class ResultStoreTest {
+
+	/**
+	 * Matrices, strings and streamed rows must be read back exactly
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testRoundTrip() throws IOException {
+		Random r = new Random(34);
+		File file = File.createTempFile("resultStoreTest", ".mat");
+		try {
+			Matrix m = Matrix.random(7, 5);
+			double[][] rows = new double[1000][3];
+			for (double[] row: rows) {
+				for (int j = 0; j<row.length; j++)
+					row[j] = r.nextGaussian();
+			}
+			ResultStore store = new ResultStore(file);
+			store.put("m", m);
+			store.put("config", "method=LENKF_GRID");
+			ResultStore.Stream s = store.stream("streamed", 3);
+			for (double[] row: rows)
+				s.add(row);
+			store.put("x", 42.0);
+			store.close();
+
+			ResultStore.Reader reader = new ResultStore.Reader(file);
+			assertArrayEquals(m.getColumnPackedCopy(), reader.getMatrix("m").getColumnPackedCopy(), 0);
+			assertEquals("method=LENKF_GRID", reader.getString("config"));
+			assertEquals(42.0, reader.getMatrix("x").get(0, 0), 0);
+			Matrix streamed = reader.getMatrix("streamed");
+			assertEquals(rows.length, streamed.getRowDimension());
+			assertEquals(3, streamed.getColumnDimension());
+			for (int i = 0; i<rows.length; i++) {
+				for (int j = 0; j<3; j++)
+					assertEquals(rows[i][j], streamed.get(i, j), 0);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * The streamed estimates and the truth of the EnKF export have the same layout: one row
+	 * per time step and one column per cell of the route
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testExportLayout() throws IOException {
+		File file = File.createTempFile("resultStoreExport", ".mat");
+		String filename = file.getPath().substring(0, file.getPath().length()-4);
+		try {
+			int[] route = new int[] {4, 1, 2};
+			int steps = 6;
+			Matrix truthX = Matrix.random(steps+1, 5);
+			Matrix truthV = Matrix.random(steps+1, 5);
+			EnKFRunConfiguration runConfig = new EnKFRunConfiguration(AssimilationMethod.ENKF, 2, new ArrayList<ErrorConfiguration>(), 10);
+			String plain = runConfig.toString();
+			runConfig.setLocalizationHalfWidth(250);
+			runConfig.setAdaptiveInflation(true);
+			// runs that differ only in localization or inflation have different metadata
+			assertFalse(plain.equals(runConfig.toString()));
+			assertTrue(runConfig.toString().endsWith(",250.0,true};"));
+			TestEnKF.StoreExport export = new TestEnKF.StoreExport(filename, runConfig, 5, route);
+			for (int t = 0; t<steps; t++)
+				export.add(truthX.getMatrix(t, t, 0, 4).transpose());
+			export.close(truthX.getMatrix(0, steps-1, 0, 4), truthV.getMatrix(0, steps-1, 0, 4));
+
+			ResultStore.Reader reader = new ResultStore.Reader(file);
+			assertEquals(runConfig.toString(), reader.getString("config"));
+			Matrix X = reader.getMatrix("X");
+			Matrix storedTruthX = reader.getMatrix("TruthX");
+			assertEquals(steps, X.getRowDimension());
+			assertEquals(route.length, X.getColumnDimension());
+			assertArrayEquals(storedTruthX.getColumnPackedCopy(), X.getColumnPackedCopy(), 0);
+			assertArrayEquals(truthX.getMatrix(0, steps-1, route).getColumnPackedCopy(), X.getColumnPackedCopy(), 0);
+			assertEquals(steps, reader.getMatrix("TruthV").getRowDimension());
+			assertEquals(truthV.get(2, 4), reader.getMatrix("TruthV").get(2, 0), 0);
+		} finally {
+			file.delete();
+		}
+	}
+}
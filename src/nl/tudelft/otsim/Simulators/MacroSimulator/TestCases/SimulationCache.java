@@ -0,0 +1,241 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import Jama.Matrix;
+
+/**
+ * Disk cache of simulation results that only depend on their input, such as truth runs
+ * and open loop forecasts.
+ * <br>
+ * Entries are stored under a fingerprint (SHA-256) of everything that determines the
+ * result: the configuration string (network, demand, events and seed), the number of
+ * steps, time steps and, for forecasts, the initial state. Experiments that only differ
+ * in assimilation settings then simulate the truth once. An entry is a sequence of
+ * matrices as little endian doubles; it is written to a temporary file and renamed, so
+ * concurrent experiments never read a partial entry. Entries are read into memory and the
+ * file is closed, so no entry stays mapped and can block a rename.
+ * <br>
+ * The cache is opt-in: the default cache is only used when the system property
+ * <tt>otsim.cache</tt> gives its directory (a value of <tt>off</tt> also disables it), as
+ * entries of an older simulator build are only invalidated by {@link #VERSION}. Forecasts
+ * are only cached after {@link #setCacheForecasts(boolean)}, as they are many and rarely
+ * repeated.
+ */
+public class SimulationCache {
+	private static final int MAGIC = 0x4f544343;
+	/** part of every fingerprint; increase when the simulator changes its results */
+	static final String VERSION = "2";
+	private static SimulationCache defaultCache;
+
+	private final File directory;
+	private boolean cacheForecasts = false;
+	private int hits = 0;
+	private int misses = 0;
+
+	public SimulationCache(File directory) {
+		this.directory = directory;
+	}
+
+	/** @return cache of the system property <tt>otsim.cache</tt>, or null if it is not set or off */
+	public static synchronized SimulationCache getDefault() {
+		String dir = System.getProperty("otsim.cache");
+		if (dir == null || dir.isEmpty() || dir.equals("off"))
+			return null;
+		if (defaultCache == null || !defaultCache.directory.getPath().equals(dir))
+			defaultCache = new SimulationCache(new File(dir));
+		return defaultCache;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+	public boolean getCacheForecasts() {
+		return cacheForecasts;
+	}
+	public void setCacheForecasts(boolean cacheForecasts) {
+		this.cacheForecasts = cacheForecasts;
+	}
+	public synchronized int getHits() {
+		return hits;
+	}
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @param parts description of the result, e.g. kind, configuration and step counts
+	 * @param state initial state, or null
+	 * @return fingerprint as a hexadecimal string
+	 */
+	public static String fingerprint(String[] parts, double[] state) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+		Charset utf8 = Charset.forName("UTF-8");
+		digest.update(VERSION.getBytes(utf8));
+		for (String p: parts) {
+			byte[] b = p.getBytes(utf8);
+			digest.update(ByteBuffer.allocate(4).putInt(b.length).array());
+			digest.update(b);
+		}
+		if (state != null) {
+			ByteBuffer b = ByteBuffer.allocate(8*state.length);
+			for (double v: state)
+				b.putDouble(v);
+			digest.update(b.array());
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b: digest.digest())
+			sb.append(String.format("%02x", b & 0xff));
+		return sb.toString();
+	}
+
+	private File file(String fingerprint) {
+		return new File(directory, fingerprint + ".bin");
+	}
+
+	/** @return the cached matrices, or null if there is no entry */
+	public Matrix[] get(String fingerprint) {
+		File f = file(fingerprint);
+		if (!f.isFile()) {
+			count(false);
+			return null;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				if (channel.size() > Integer.MAX_VALUE)
+					throw new IOException("Cache entry too large: " + f);
+				ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0)
+						throw new IOException("Truncated cache entry: " + f);
+				}
+				buffer.flip();
+				if (buffer.getInt() != MAGIC)
+					throw new IOException("Not a cache entry: " + f);
+				Matrix[] result = new Matrix[buffer.getInt()];
+				for (int k = 0; k<result.length; k++) {
+					int rows = buffer.getInt();
+					int columns = buffer.getInt();
+					double[][] a = new double[rows][columns];
+					DoubleBuffer d = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+					for (int i = 0; i<rows; i++)
+						d.get(a[i]);
+					buffer.position(buffer.position() + 8*rows*columns);
+					result[k] = new Matrix(a, rows, columns);
+				}
+				count(true);
+				return result;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			// a damaged entry is simulated again and overwritten
+			System.err.println("Cannot read cache entry " + f + ": " + e.getMessage());
+			count(false);
+			return null;
+		} catch (RuntimeException e) {
+			// e.g. a truncated entry
+			System.err.println("Cannot read cache entry " + f + ": " + e.getMessage());
+			count(false);
+			return null;
+		}
+	}
+
+	/** Store matrices under a fingerprint; failures only cost a new simulation later. */
+	public void put(String fingerprint, Matrix[] matrices) {
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+				throw new IOException("Cannot create " + directory);
+			File tmp = File.createTempFile("entry", ".tmp", directory);
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+				buffer.putInt(MAGIC).putInt(matrices.length);
+				for (Matrix m: matrices) {
+					buffer.putInt(m.getRowDimension()).putInt(m.getColumnDimension());
+					for (double[] row: m.getArray()) {
+						for (int j = 0; j<m.getColumnDimension(); j++) {
+							if (buffer.remaining() < 8)
+								write(channel, buffer);
+							buffer.putDouble(row[j]);
+						}
+					}
+					if (buffer.remaining() < 8)
+						write(channel, buffer);
+				}
+				write(channel, buffer);
+			} finally {
+				raf.close();
+			}
+			File f = file(fingerprint);
+			if (!tmp.renameTo(f)) {
+				f.delete();
+				if (!tmp.renameTo(f)) {
+					tmp.delete();
+					throw new IOException("Cannot rename " + tmp + " to " + f);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot write cache entry " + fingerprint + ": " + e.getMessage());
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/** Store a forecast, one row of matrices per time step, as flattened matrices. */
+	public void putForecast(String fingerprint, Matrix[][] forecast) {
+		int steps = forecast.length;
+		int outputs = steps > 0 ? forecast[0].length : 0;
+		Matrix[] flat = new Matrix[outputs];
+		for (int s = 0; s<outputs; s++) {
+			int n = forecast[0][s].getRowDimension();
+			flat[s] = new Matrix(steps, n);
+			for (int j = 0; j<steps; j++)
+				flat[s].getArray()[j] = forecast[j][s].getColumnPackedCopy();
+		}
+		put(fingerprint, flat);
+	}
+
+	/** @return forecast stored with {@link #putForecast(String, Matrix[][])}, or null */
+	public Matrix[][] getForecast(String fingerprint) {
+		Matrix[] flat = get(fingerprint);
+		if (flat == null)
+			return null;
+		int steps = flat.length > 0 ? flat[0].getRowDimension() : 0;
+		Matrix[][] forecast = new Matrix[steps][flat.length];
+		for (int j = 0; j<steps; j++) {
+			for (int s = 0; s<flat.length; s++)
+				forecast[j][s] = new Matrix(flat[s].getArray()[j], flat[s].getColumnDimension());
+		}
+		return forecast;
+	}
+
+	private synchronized void count(boolean hit) {
+		if (hit)
+			hits++;
+		else
+			misses++;
+	}
+}
@@ -0,0 +1,133 @@
+package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import Jama.Matrix;
+
+import org.junit.Test;
+
+/** Test the hits, misses and invalidation of the SimulationCache */
+public class SimulationCacheTest {
+
+	private static File directory() throws IOException {
+		File directory = File.createTempFile("simulationCacheTest", "");
+		if (!directory.delete())
+			throw new IOException("Cannot delete " + directory);
+		return directory;
+	}
+
+	private static void delete(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f: files)
+				f.delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * A stored entry is a hit with the same matrices, a different input is a miss, and an
+	 * entry is replaced when it is stored again
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testHitMiss() throws IOException {
+		File directory = directory();
+		try {
+			SimulationCache cache = new SimulationCache(directory);
+			String[] parts = new String[] {"truth", "EndTime:\t600\n", "10", "0.5"};
+			String fingerprint = SimulationCache.fingerprint(parts, null);
+			assertNull(cache.get(fingerprint));
+			assertEquals(1, cache.getMisses());
+
+			Matrix[] matrices = new Matrix[] {Matrix.random(20, 7), Matrix.random(1, 3), new Matrix(0, 0)};
+			cache.put(fingerprint, matrices);
+			Matrix[] cached = cache.get(fingerprint);
+			assertEquals(1, cache.getHits());
+			assertEquals(matrices.length, cached.length);
+			for (int k = 0; k<matrices.length; k++) {
+				assertEquals(matrices[k].getRowDimension(), cached[k].getRowDimension());
+				assertArrayEquals(matrices[k].getColumnPackedCopy(), cached[k].getColumnPackedCopy(), 0);
+			}
+
+			// every part and the state are part of the fingerprint
+			assertEquals(fingerprint, SimulationCache.fingerprint(parts.clone(), null));
+			assertNull(cache.get(SimulationCache.fingerprint(new String[] {"truth", "EndTime:\t600\n", "10", "0.25"}, null)));
+			assertNull(cache.get(SimulationCache.fingerprint(new String[] {"truth", "EndTime:\t600\n1", "0", "0.5"}, null)));
+			assertFalse(SimulationCache.fingerprint(parts, new double[] {1}).equals(SimulationCache.fingerprint(parts, new double[] {2})));
+			assertEquals(3, cache.getMisses());
+
+			// an entry is replaced while it was read before
+			Matrix[] replaced = new Matrix[] {Matrix.random(4, 4)};
+			cache.put(fingerprint, replaced);
+			assertArrayEquals(replaced[0].getColumnPackedCopy(), cache.get(fingerprint)[0].getColumnPackedCopy(), 0);
+			assertEquals(1, directory.listFiles().length);
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * A damaged entry is a miss and is overwritten by the next put
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testInvalidation() throws IOException {
+		File directory = directory();
+		try {
+			SimulationCache cache = new SimulationCache(directory);
+			String fingerprint = SimulationCache.fingerprint(new String[] {"forecast"}, new double[] {0.5, 0.25});
+			Matrix[] matrices = new Matrix[] {Matrix.random(30, 30)};
+			cache.put(fingerprint, matrices);
+			File entry = new File(directory, fingerprint + ".bin");
+			RandomAccessFile raf = new RandomAccessFile(entry, "rw");
+			try {
+				raf.setLength(raf.length()/2);
+			} finally {
+				raf.close();
+			}
+			assertNull(cache.get(fingerprint));
+			raf = new RandomAccessFile(entry, "rw");
+			try {
+				raf.writeInt(0);
+			} finally {
+				raf.close();
+			}
+			assertNull(cache.get(fingerprint));
+			assertEquals(2, cache.getMisses());
+			cache.put(fingerprint, matrices);
+			assertArrayEquals(matrices[0].getColumnPackedCopy(), cache.get(fingerprint)[0].getColumnPackedCopy(), 0);
+			assertEquals(1, cache.getHits());
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * The default cache is only used when its directory is given
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testOptIn() throws IOException {
+		String old = System.getProperty("otsim.cache");
+		File directory = directory();
+		try {
+			System.clearProperty("otsim.cache");
+			assertNull(SimulationCache.getDefault());
+			System.setProperty("otsim.cache", "off");
+			assertNull(SimulationCache.getDefault());
+			System.setProperty("otsim.cache", directory.getPath());
+			assertEquals(directory.getPath(), SimulationCache.getDefault().getDirectory().getPath());
+		} finally {
+			if (old == null)
+				System.clearProperty("otsim.cache");
+			else
+				System.setProperty("otsim.cache", old);
+			delete(directory);
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.awt.BorderLayout;
 import java.awt.Container;
 import java.awt.event.ActionEvent;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -19,6 +20,8 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.ojalgo.matrix.BasicMatrix;
 import org.ojalgo.matrix.PrimitiveMatrix;
@@ -29,13 +32,11 @@ import nl.tudelft.otsim.GUI.FakeGraphicsPanel;
 import nl.tudelft.otsim.GUI.GraphicsPanel;
 import nl.tudelft.otsim.GUI.Main;
 import nl.tudelft.otsim.GUI.StandAlone;
-import nl.tudelft.otsim.Simulators.MacroSimulator.Link;
 import nl.tudelft.otsim.Simulators.MacroSimulator.MacroCell;
 import nl.tudelft.otsim.Simulators.MacroSimulator.MacroSimulator;
 import nl.tudelft.otsim.Simulators.MacroSimulator.Model;
 import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeBoundaryIn;
 import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeDetector;
-import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeInterior;
 import nl.tudelft.otsim.Simulators.MacroSimulator.TestCases.AssimilationMethod.AssimilationMethodType;
 import nl.tudelft.otsim.Utilities.JamaExtension;
 import Jama.CholeskyDecomposition;
@@ -72,20 +73,22 @@ public class TestEnKF {
 	protected int nrEnsembles;
 	protected ArrayList<Scheduler> ensembles = new ArrayList<Scheduler>();
 	protected AssimilationConfiguration config;
+	protected EnsembleStateLayout layout;
+	protected LocalizationIndex localization;
 	static private Random r = new Random(9);
 	static private Random r2 = new Random();
 	static private int r2seed = 79;
 	static private Random r3 = new Random();
 	HashMap<MacroCell, LinkedHashSet<MacroCell>> surroundingCellsMap;
-	HashMap<NodeDetector, LinkedHashSet<Object>> surroundingCellsMap2;
 	HashMap<Object, LinkedHashSet<NodeDetector>> surroundingObservationsMap;
 	LinkedHashSet<MacroCell> cellsWithDetectors;
 	ArrayList<Integer[]> correspondingIndicesOfDetectors = new ArrayList<Integer[]>();
 	ArrayList<ArrayList<Integer>> affectedDetectorsIndices = new ArrayList<ArrayList<Integer>>();
 	int[] detectorIndices1 = new int[1];
-	static ArrayList<Integer[]> correspondingIndicesOfStateObjects = new ArrayList<Integer[]>();
+	ArrayList<Integer[]> correspondingIndicesOfStateObjects = new ArrayList<Integer[]>();
+	protected LocalAnalysis localAnalysis;
+	protected AdaptiveInflation adaptiveInflation;
 	ArrayList<Object> stateVariables;
-	Matrix Schur = new Matrix(1,1);
 	SparseMatrix SparseSchur = new SparseMatrixDirectRS(1,1);
 	double ri=1.0;
 	int nr = 0;
@@ -95,6 +98,8 @@ public class TestEnKF {
 	static int run = 0;
 	static int[] exportRoute = new int[]{0};
 	static boolean extendedOutput;
+	/** show the main simulator in the GUI; off in orchestrated worker processes */
+	static boolean openGUI = true;
 	public static void main(String[] args) {
 		double inflowTruth = (2200.0);
 		String network = "EndTime:\t7200.00\nSeed:\t1\n"
@@ -187,27 +192,14 @@ public class TestEnKF {
 		run = 0;
 		exportRoute = experimentConfiguration.getExportRoute(); 
 		extendedOutput = experimentConfiguration.getExtendedOutput();
-		int[] ind = new int[(obsTest[0].getRowDimension()-1)/30 +1];
-		for (int i = 0; i< ind.length; i++) {
-			ind[i] = i*30;
-		}
-		Matrix obs1a = obsTest[0].getMatrix(ind, 0, obsTest[0].getColumnDimension()-1);
-		//int nrSteps = obs1a.getRowDimension();
-		//Matrix dens = obsTest[2];
-
-		double[] stdArray = new double[obs1a.getColumnDimension()];
-		double initErrorSpeedObs = 2.25;
-		double initErrorFlowObs= 0.0016;
-		/*double initErrorSpeedObs = 0;
-		double initErrorFlowObs= 0.000;*/
-		//Arrays.fill(stdArray, 0, nrSpeedObservations, Math.sqrt(initErrorSpeedObs)); //2.5
-		//Arrays.fill(stdArray, nrSpeedObservations, nrObservations, Math.sqrt(initErrorFlowObs)); //0.06
-		Arrays.fill(stdArray, 0, obs1a.getColumnDimension()/2, Math.sqrt(initErrorSpeedObs)); //2.5
-		Arrays.fill(stdArray, obs1a.getColumnDimension()/2, obs1a.getColumnDimension(), Math.sqrt(initErrorFlowObs)); //0.06
+		Matrix obs1a = assimilatedObservations(obsTest);
+		double[] stdArray = observationErrors(obs1a);
 		int i = 0;
 		r3.setSeed(24);
 		long[][][] computationTime = new long[experimentConfiguration.getNetworkConfigurations().size()][experimentConfiguration.getRunConfigurations().size()][obs1a.getRowDimension()];
 		for (String networkConfig: experimentConfiguration.getNetworkConfigurations()) {
+			// the same observation noise as a single run of performExperimentRun
+			r.setSeed(9 + i);
 			Matrix obs1 = generateWhiteNoise(obs1a,stdArray);
 			int j = 0;
 			r2seed = r3.nextInt();
@@ -220,6 +212,42 @@ public class TestEnKF {
 		}
 		return computationTime;
 	}
+	/** Truth observations at the assimilation times (every 30 model steps). */
+	static Matrix assimilatedObservations(Matrix[] obsTest) {
+		int[] ind = new int[(obsTest[0].getRowDimension()-1)/30 +1];
+		for (int i = 0; i< ind.length; i++) {
+			ind[i] = i*30;
+		}
+		return obsTest[0].getMatrix(ind, 0, obsTest[0].getColumnDimension()-1);
+	}
+	/** Standard deviations of the observation errors, speeds first. */
+	static double[] observationErrors(Matrix obs1a) {
+		double[] stdArray = new double[obs1a.getColumnDimension()];
+		double initErrorSpeedObs = 2.25;
+		double initErrorFlowObs= 0.0016;
+		Arrays.fill(stdArray, 0, obs1a.getColumnDimension()/2, Math.sqrt(initErrorSpeedObs)); //2.5
+		Arrays.fill(stdArray, obs1a.getColumnDimension()/2, obs1a.getColumnDimension(), Math.sqrt(initErrorFlowObs)); //0.06
+		return stdArray;
+	}
+	/**
+	 * One run (network, run configuration) of an experiment, independent of the runs before
+	 * it, e.g. in a worker process of the {@link ExperimentOrchestrator}. The seeds of the
+	 * observation noise (<tt>9+n</tt> for network <tt>n</tt>) and of the ensemble are the
+	 * same as in {@link #performExperiment(Matrix[], ExperimentConfiguration, String)}, so
+	 * the run gives the same results as in a sequential experiment.
+	 */
+	public static long[] performExperimentRun(Matrix[] obsTest, ExperimentConfiguration experimentConfiguration, String prefix, int network, int runConfiguration) {
+		run = network*experimentConfiguration.getRunConfigurations().size() + runConfiguration;
+		exportRoute = experimentConfiguration.getExportRoute(); 
+		extendedOutput = experimentConfiguration.getExtendedOutput();
+		Matrix obs1a = assimilatedObservations(obsTest);
+		r.setSeed(9 + network);
+		Matrix obs1 = generateWhiteNoise(obs1a, observationErrors(obs1a));
+		r3.setSeed(24);
+		for (int i = 0; i<=network; i++)
+			r2seed = r3.nextInt();
+		return performRun(obs1, experimentConfiguration.getRunConfigurations().get(runConfiguration), experimentConfiguration.getNetworkConfigurations().get(network), obsTest, prefix, experimentConfiguration.forecastsNeeded(), network);
+	}
 	public static void performExperiment(Matrix[] obsTest, String configExperiment) {
 		ArrayList<ErrorConfiguration> list = new ArrayList<ErrorConfiguration>();
 		/*list.add(new ErrorConfiguration(StateDefinition.K_CELL,0.005,1.00));
@@ -253,14 +281,13 @@ public class TestEnKF {
 
 
 	}
-	public static long[] performRun(Matrix obs1, EnKFRunConfiguration runConfig, String configExperiment, Matrix[] obsTest, String prefix, boolean forecastsNeeded, int network) {
+	public static long[] performRun(Matrix obs1, final EnKFRunConfiguration runConfig, String configExperiment, final Matrix[] obsTest, final String prefix, boolean forecastsNeeded, final int network) {
 		boolean showOutput = true;
 		long startTime = System.nanoTime();
 		System.out.println(runConfig);
 		int nrSteps = obs1.getRowDimension();
 		int nrModelSteps = obsTest[0].getRowDimension();
 		int nrModelStepsPerAssStep = (nrModelSteps-1)/(nrSteps-1);
-		boolean openGUI =true;
 		Scheduler scheduler;
 		if (openGUI) {
 			if (run == 0) {
@@ -337,26 +364,41 @@ public class TestEnKF {
 		}
 		long[] totalTime = new long[2*nrSteps-1];
 		StateDefinition[] defOut = new StateDefinition[]{StateDefinition.K_CELL, StateDefinition.V_CELL, StateDefinition.TRAFFICREGIME_CELL};
-		Matrix[][] res = new Matrix[nrModelSteps][defOut.length];
-		double[][] res2 = new double[nrModelSteps-1][defOut.length];
+		// estimates of the route are written to the binary store while the run proceeds
+		int[] route = exportRoute;
+		StoreExport storeExport = network == 0 && extendedOutput ? new StoreExport("ENKF" + prefix + "_"+run, runConfig, test.nrCells, route) : null;
+		final double[][] res2 = new double[nrModelSteps-1][defOut.length];
 		Matrix[][] forecast = new Matrix[3600/2][defOut.length];
 		//boolean extendedOutput = true;
 		StateDefinition[] extDef = new StateDefinition[]{StateDefinition.K_CELL, StateDefinition.V_CELL, StateDefinition.MIN1_DETECTOR};
 		Matrix[][] extOut = new Matrix[extDef.length][test.nrEnsembles];
 		double[] forecastResult = null;
+		// indicators and forecast branches run from snapshots while the ensemble proceeds
+		AssimilationPipeline pipeline = new AssimilationPipeline();
+		// indicators are needed and block the steps when they lag, the Matlab export is optional
+		AssimilationPipeline.Stage indicatorStage = pipeline.addStage("indicators", 1, 4*nrModelStepsPerAssStep, false);
+		AssimilationPipeline.Stage forecastStage = pipeline.addStage("forecast", 1, 2, false);
+		final AssimilationPipeline.Stage exportStage = pipeline.addStage("export", 1, 2, true);
+		Future<double[]> forecastFuture = null;
 		for (int i = 1; i < nrSteps; i++) {
 			//double time = 0;
 			long t0 = System.nanoTime();
 			for (int j = 1; j<=(nrModelStepsPerAssStep);j++) {
 				//macromodel.getCells().get(exportRoute.get(271))
 				scheduler.stepUpTo((i-1)*60.0+j*test.macromodel.dt);
-				int t = (i-1)*nrModelStepsPerAssStep + j-1;
+				final int t = (i-1)*nrModelStepsPerAssStep + j-1;
 				//System.out.println("t"+t);
 				//res[t] = AssimilationConfiguration.getOutput(macromodel, new StateDefinition[]{StateDefinition.K_CELL, StateDefinition.INFLOW_NODE, StateDefinition.TF_NODE});
-				res[t] = AssimilationConfiguration.getOutput(macromodel, new StateDefinition[]{StateDefinition.K_CELL});
-
-				Matrix[] indicators =  AssimilationConfiguration.getOutput(macromodel, defOut);
-				res2[t] = CalcOutput.calcOutputExtended(obsTest[1].getMatrix(t, t, 0, obsTest[1].getColumnDimension()-1),obsTest[2].getMatrix(t,t, 0, obsTest[2].getColumnDimension()-1),obsTest[3].getMatrix(t,t, 0, obsTest[3].getColumnDimension()-1), indicators[0].transpose(), indicators[1].transpose(), indicators[2].transpose(), cellLengths2, 2); 
+				if (storeExport != null)
+					storeExport.add(AssimilationConfiguration.getOutput(macromodel, StateDefinition.K_CELL)[0]);
+
+				final Matrix[] indicators =  AssimilationConfiguration.getOutput(macromodel, defOut);
+				indicatorStage.submit(new Runnable() {
+					@Override
+					public void run() {
+						res2[t] = CalcOutput.calcOutputExtended(obsTest[1].getMatrix(t, t, 0, obsTest[1].getColumnDimension()-1),obsTest[2].getMatrix(t,t, 0, obsTest[2].getColumnDimension()-1),obsTest[3].getMatrix(t,t, 0, obsTest[3].getColumnDimension()-1), indicators[0].transpose(), indicators[1].transpose(), indicators[2].transpose(), cellLengths2, 2); 
+					}
+				});
 				//res2[t] = CalcOutput.calcOutputExtended(obsTest[1].getMatrix(t+1, t+1, 0, obsTest[1].getColumnDimension()-1),obsTest[2].getMatrix(t+1,t+1, 0, obsTest[2].getColumnDimension()-1),obsTest[3].getMatrix(t+1,t+1, 0, obsTest[3].getColumnDimension()-1), indicators[0].transpose(), indicators[1].transpose(), indicators[2].transpose(), cellLengths2, 2); 
 
 				//res2[t] = CalcOutput.calcOutputExtended(obsTest[1].getMatrix(t+1, t+1, 0, obsTest[1].getColumnDimension()-1),obsTest[2].getMatrix(t+1,t+1, 0, obsTest[2].getColumnDimension()-1),obsTest[3].getMatrix(t+1,t+1, 0, obsTest[3].getColumnDimension()-1), indicators[0].transpose(), indicators[1].transpose(), indicators[2].transpose(), cellLengths2, 2); 
@@ -402,46 +444,71 @@ public class TestEnKF {
 				if (time == 1200) {
 					if (showOutput)
 						System.out.println("begin forecasts");
-					forecast = generateForecastValues(test,output[11],3600);
-					int cells = obsTest[1].getColumnDimension();
-					Matrix FXa = new Matrix((forecast.length), cells,0);
-					Matrix FV = new Matrix((forecast.length), cells,0);
-					Matrix FTr = new Matrix((forecast.length), cells,0);
-					for (int k = 0; k< forecast.length; k++) {
-						Matrix[] m1 = forecast[k];
-						FXa.setMatrix(k, k, 0, cells-1,m1[0].transpose());
-						FV.setMatrix(k, k, 0, cells-1,m1[1].transpose());
-						FTr.setMatrix(k, k, 0, cells-1,m1[2].transpose());
-						//times.add(m1[19].get(0,0));
-					}
-					int beginFHorizon = 1200/2;
-					//int endFHorizon = beginFHorizon + forecast.length-1;
-					int[] endFHorizons = new int[]{
-							/*beginFHorizon + 149,
-							beginFHorizon + 449,
-							beginFHorizon + 899,
-							beginFHorizon + 1599,*/
-							beginFHorizon + 149,
-							beginFHorizon + 449,
-							beginFHorizon + 899,
-							beginFHorizon + 1799,
-					};
-					forecastResult = new double[endFHorizons.length*13];
-					int i1 = 0;
-					for (int endFHorizon: endFHorizons) {
-						double[] fr = CalcOutput.calcOutput(obsTest[1].getMatrix(beginFHorizon, endFHorizon, 0, cells-1),obsTest[2].getMatrix(beginFHorizon, endFHorizon, 0, cells-1),obsTest[3].getMatrix(beginFHorizon, endFHorizon, 0, cells-1), FXa.getMatrix(0, endFHorizon-beginFHorizon, 0, cells-1), FV.getMatrix(0, endFHorizon-beginFHorizon, 0, cells-1), FTr.getMatrix(0, endFHorizon-beginFHorizon, 0, cells-1), cellLengths2, 2); 
-						System.arraycopy(fr, 0, forecastResult, i1, 13);
-						i1=i1+13;
-					}
+					final String forecastConfiguration = forecastConfiguration(test);
+					final double[] forecastState = output[11].getColumnPackedCopy();
+					final TestEnKF forecastTest = test;
+					final int forecastRun = run;
+					forecastFuture = forecastStage.submit(new Callable<double[]>() {
+						@Override
+						public double[] call() {
+							Matrix[][] fc = generateForecastValues(forecastConfiguration, forecastTest.config, forecastState, forecastTest.macromodel.dt, 3600);
+							int cells = obsTest[1].getColumnDimension();
+							int beginFHorizon = 1200/2;
+							//int endFHorizon = beginFHorizon + forecast.length-1;
+							int[] endFHorizons = new int[]{
+									/*beginFHorizon + 149,
+									beginFHorizon + 449,
+									beginFHorizon + 899,
+									beginFHorizon + 1599,*/
+									beginFHorizon + 149,
+									beginFHorizon + 449,
+									beginFHorizon + 899,
+									beginFHorizon + 1799,
+							};
+							// indicators of all horizons in one pass over the forecast
+							IndicatorAccumulator[] accumulators = new IndicatorAccumulator[endFHorizons.length];
+							for (int h = 0; h<endFHorizons.length; h++)
+								accumulators[h] = new IndicatorAccumulator(cellLengths2, 2);
+							Matrix FXa = network==0 ? new Matrix((fc.length), cells,0) : null;
+							for (int k = 0; k< fc.length; k++) {
+								Matrix[] m1 = fc[k];
+								double[] k1 = m1[0].getColumnPackedCopy();
+								double[] v1 = m1[1].getColumnPackedCopy();
+								double[] tr1 = m1[2].getColumnPackedCopy();
+								for (int h = 0; h<endFHorizons.length; h++) {
+									if (beginFHorizon + k <= endFHorizons[h])
+										accumulators[h].add(obsTest[1].getArray()[beginFHorizon+k], obsTest[2].getArray()[beginFHorizon+k], obsTest[3].getArray()[beginFHorizon+k], k1, v1, tr1);
+								}
+								if (FXa != null)
+									FXa.getArray()[k] = k1;
+								//times.add(m1[19].get(0,0));
+							}
+							double[] result = new double[endFHorizons.length*13];
+							int i1 = 0;
+							for (IndicatorAccumulator accumulator: accumulators) {
+								System.arraycopy(accumulator.getOutput(), 0, result, i1, 13);
+								i1=i1+13;
+							}
 
-					/*	for (int[] route: routesInt)
-						test.exportFCtoMatlab(obsTest[1].getMatrix(beginFHorizon, endFHorizons[endFHorizons.length-1], route),FXa.getMatrix(0,FXa.getRowDimension()-1,route),"ENKF" + prefix + "_"+run+"_"+routesInt.indexOf(route),runConfig);
-					 */
-					if (network==0)
-						test.exportFCtoMatlab(obsTest[1].getMatrix(beginFHorizon, endFHorizons[endFHorizons.length-1], 0,obsTest[1].getColumnDimension()-1),FXa,"FC" + prefix + "_"+run,runConfig);
+							/*	for (int[] route: routesInt)
+								forecastTest.exportFCtoMatlab(obsTest[1].getMatrix(beginFHorizon, endFHorizons[endFHorizons.length-1], route),FXa.getMatrix(0,FXa.getRowDimension()-1,route),"ENKF" + prefix + "_"+run+"_"+routesInt.indexOf(route),runConfig);
+							 */
+							if (network==0) {
+								final Matrix observed = obsTest[1].getMatrix(beginFHorizon, endFHorizons[endFHorizons.length-1], 0,obsTest[1].getColumnDimension()-1);
+								final Matrix forecasted = FXa;
+								exportStage.submit(new Runnable() {
+									@Override
+									public void run() {
+										forecastTest.exportFCtoMatlab(observed,forecasted,"FC" + prefix + "_"+forecastRun,runConfig);
+									}
+								});
+							}
 
+							return result;
+						}
+					});
 					if (showOutput)
-						System.out.println("end forecasts");
+						System.out.println("forecasts submitted");
 
 				}
 			}
@@ -462,8 +529,11 @@ public class TestEnKF {
 
 		}
 
+		pipeline.shutdown();
+		forecastResult = AssimilationPipeline.get(forecastFuture);
+		if (exportStage.getDropped() > 0)
+			System.out.println("exports dropped = " + exportStage.getDropped());
 		//res[nrModelSteps-1] = new Matrix[]{obsTest[3].getMatrix(1, obsTest[3].getRowDimension()-1, 0, obsTest[3].getColumnDimension()-1),obsTest[2].getMatrix(1, obsTest[2].getRowDimension()-1, 0, obsTest[2].getColumnDimension()-1),obsTest[4].getMatrix(1, obsTest[4].getRowDimension()-1, 0, obsTest[4].getColumnDimension()-1)};
-		res[nrModelSteps-1] = new Matrix[]{obsTest[1].getMatrix(0, obsTest[1].getRowDimension()-2, 0, obsTest[1].getColumnDimension()-1),obsTest[2].getMatrix(0, obsTest[2].getRowDimension()-2, 0, obsTest[2].getColumnDimension()-1),obsTest[3].getMatrix(0, obsTest[3].getRowDimension()-2, 0, obsTest[3].getColumnDimension()-1)};
 		//res[nrModelSteps-1] = new Matrix[]{obsTest[1].getMatrix(1, obsTest[1].getRowDimension()-1, 0, obsTest[1].getColumnDimension()-1)};
 		//res[nrModelSteps-1] = new Matrix[]{obsTest[1].getMatrix(1, obsTest[1].getRowDimension()-1, 0, obsTest[1].getColumnDimension()-1),obsTest[4].getMatrix(1, obsTest[4].getRowDimension()-1, 0, obsTest[4].getColumnDimension()-1),obsTest[5].getMatrix(1, obsTest[5].getRowDimension()-1, 0, obsTest[5].getColumnDimension()-1)};
 
@@ -479,7 +549,6 @@ public class TestEnKF {
 		int[] route = new int[obsTest[1].getColumnDimension()];
 		for (int i=0; i< obsTest[1].getColumnDimension(); i++)
 			route[i] = i;*/
-		int[] route = exportRoute;
 		//if (network == 0)
 		//test.exportToMatlab2(res2,forecast,"ENKF" + prefix + "_"+run,true);
 		//test.exportSummarizedToMatlab(results,forecasts,"SumENKF" + prefix + "_"+run,true);
@@ -490,8 +559,8 @@ public class TestEnKF {
 		//test.exportEnsemblesToMatlab(extOut,"ENKFEnsembles" + prefix + "_"+run);
 
 		//goede export:
-		if (network == 0 && extendedOutput)
-			test.exportToMatlab3(res,route,"ENKF" + prefix + "_"+run, runConfig);
+		if (storeExport != null)
+			storeExport.close(obsTest[1].getMatrix(0, obsTest[1].getRowDimension()-2, 0, obsTest[1].getColumnDimension()-1), obsTest[2].getMatrix(0, obsTest[2].getRowDimension()-2, 0, obsTest[2].getColumnDimension()-1));
 
 		//TestEKF.exportForecastsToMatlab(forecasts, "FC" + prefix + "_"+run, false);
 		run++;
@@ -500,7 +569,23 @@ public class TestEnKF {
 
 		return totalTime;
 	}
+	/**
+	 * Truth run, from the {@link SimulationCache} if the same configuration was simulated
+	 * before.
+	 */
 	public static Matrix[] generateTruthValues(String configuration, int nrSteps, double timestep) {
+		SimulationCache cache = SimulationCache.getDefault();
+		if (cache == null)
+			return simulateTruthValues(configuration, nrSteps, timestep);
+		String fingerprint = SimulationCache.fingerprint(new String[]{"truth", configuration, Integer.toString(nrSteps), Double.toString(timestep)}, null);
+		Matrix[] res = cache.get(fingerprint);
+		if (res == null) {
+			res = simulateTruthValues(configuration, nrSteps, timestep);
+			cache.put(fingerprint, res);
+		}
+		return res;
+	}
+	private static Matrix[] simulateTruthValues(String configuration, int nrSteps, double timestep) {
 		Scheduler tmpScheduler;
 		boolean openGUI = false;
 		if (openGUI) {
@@ -557,19 +642,39 @@ public class TestEnKF {
 		return res;
 	}
 	public static Matrix[][] generateForecastValues(TestEnKF test, Matrix newState, double timeinterval) {
+		return generateForecastValues(forecastConfiguration(test), test.config, newState.getColumnPackedCopy(), test.macromodel.dt, timeinterval);
+	}
+	/** Configuration of a forecast branch that starts at the current time of the ensemble. */
+	public static String forecastConfiguration(TestEnKF test) {
 		Scheduler scheduler = test.ensembles.get(0);
-		String config = "Offset:	-"+scheduler.getSimulatedTime()+"\n"+scheduler.getConfiguration();
-		Scheduler sch = new Scheduler(MacroSimulator.simulatorType, new FakeGraphicsPanel(),  config);
-		Model modelScheduler = (Model) scheduler.getSimulator().getModel();
+		return "Offset:	-"+scheduler.getSimulatedTime()+"\n"+scheduler.getConfiguration();
+	}
+	/**
+	 * Forecast from a snapshot, independent of the ensemble, so it can run while the
+	 * ensemble proceeds.
+	 * @param configuration configuration from {@link #forecastConfiguration(TestEnKF)}
+	 * @param config assimilation configuration of the state
+	 * @param state state vector to start from
+	 * @param dt time step of the main simulator
+	 * @param timeinterval forecast horizon [s]
+	 */
+	public static Matrix[][] generateForecastValues(String configuration, AssimilationConfiguration config, double[] state, double dt, double timeinterval) {
+		SimulationCache cache = SimulationCache.getDefault();
+		if (cache == null || !cache.getCacheForecasts())
+			return simulateForecastValues(configuration, config, state, dt, timeinterval);
+		String fingerprint = SimulationCache.fingerprint(new String[]{"forecast", configuration, config.stateIds.toString(), Double.toString(dt), Double.toString(timeinterval)}, state);
+		Matrix[][] res = cache.getForecast(fingerprint);
+		if (res == null) {
+			res = simulateForecastValues(configuration, config, state, dt, timeinterval);
+			cache.putForecast(fingerprint, res);
+		}
+		return res;
+	}
+	private static Matrix[][] simulateForecastValues(String configuration, AssimilationConfiguration config, double[] state, double dt, double timeinterval) {
+		Scheduler sch = new Scheduler(MacroSimulator.simulatorType, new FakeGraphicsPanel(),  configuration);
 		Model modelSch = (Model) sch.getSimulator().getModel();
 		modelSch.init();
-		double[] state= test.config.saveStateToArray(modelScheduler);
-		//System.out.println("state: "+Arrays.toString(state));
-		//System.out.println("state2: "+Arrays.toString((newState.transpose()).getArray()[0]));
-		//System.out.println("state3: "+Arrays.toString(test.config.saveStateToArray(modelSch)));
-		//System.out.println("inflows: "+Arrays.toString(inflow));
-		test.config.restoreState((newState.transpose()).getArray()[0], modelSch);
-		//System.out.println("state3: "+Arrays.toString(test.config.saveStateToArray(modelSch)));
+		config.restoreState(state, modelSch);
 
 		for (NodeDetector nd: modelSch.getDetectors()) {
 			nd.addMeasurements(0);
@@ -578,9 +683,8 @@ public class TestEnKF {
 		StateDefinition[] defOut = new StateDefinition[]{StateDefinition.K_CELL, StateDefinition.V_CELL, StateDefinition.TRAFFICREGIME_CELL};
 		Matrix[][] res = new Matrix[(int) (nrSteps)][defOut.length];
 
-		//double time = 0;
 		for (int j = 1; j<=(nrSteps);j++) {
-			sch.stepUpTo(j*test.macromodel.dt);
+			sch.stepUpTo(j*dt);
 			res[j-1] = AssimilationConfiguration.getOutput(modelSch, defOut);
 		}
 		return res;
@@ -631,10 +735,7 @@ public class TestEnKF {
 		LinkedHashSet<NodeDetector> lhsdetectors = new LinkedHashSet<NodeDetector>();
 		lhsdetectors.addAll(detectors);
 		surroundingCellsMap = new HashMap<MacroCell, LinkedHashSet<MacroCell>>();
-		HashMap<MacroCell, LinkedHashSet<MacroCell>> surroundingCellsExtendedMap = new HashMap<MacroCell, LinkedHashSet<MacroCell>>();
-		surroundingCellsMap2 = new HashMap<NodeDetector, LinkedHashSet<Object>>();
 		surroundingObservationsMap = new HashMap<Object, LinkedHashSet<NodeDetector>>();
-		HashMap<Object, LinkedHashSet<NodeDetector>> surroundingObservationsExtendedMap = new HashMap<Object, LinkedHashSet<NodeDetector>>();
 		//int[] indicesCellsWithDetectors;
 		cellsWithDetectors = new LinkedHashSet<MacroCell>();
 
@@ -654,68 +755,23 @@ public class TestEnKF {
 		case LOCAL: 
 
 			int nrSurroundingCells = runConfig.getNrSurroundingCells();
-			int inflowTFWidth = runConfig.getInflowTFWidth();
 			// init
 			for (MacroCell m: macromodel.getCells()) {
 				surroundingObservationsMap.put(m, new LinkedHashSet<NodeDetector>());
-				surroundingObservationsExtendedMap.put(m, new LinkedHashSet<NodeDetector>());
 			}
-			//for (Object o: stateVariables) {
-			//	surroundingObservationsMap.put(m, new LinkedHashSet<NodeDetector>());
-			//}
 			for (NodeDetector n: detectors) {
 				cellsWithDetectors.add(n.getClosestCell());
 			}
 			for (MacroCell m: cellsWithDetectors) {
-
 				surroundingCellsMap.put(m, returnSurroundingCellsIncludingDiverges(m,nrSurroundingCells));
-				surroundingCellsExtendedMap.put(m, returnSurroundingCellsIncludingDiverges(m,inflowTFWidth));
-
-
-
-
 			}
-
 			for (NodeDetector n: detectors) {
-				surroundingCellsMap2.put(n, new LinkedHashSet<Object>());
-				//cellsWithDetectors.add(n.getClosestCell());
 				LinkedHashSet<MacroCell> cells = surroundingCellsMap.get(n.getClosestCell());
 				for (MacroCell c: cells) {
 					surroundingObservationsMap.get(c).add(n);
 				}
-				LinkedHashSet<MacroCell> cellsExt = surroundingCellsExtendedMap.get(n.getClosestCell());
-				for (MacroCell c: cellsExt) {
-					surroundingObservationsExtendedMap.get(c).add(n);
-				}
 			}
-			for (NodeBoundaryIn n: macromodel.getInflowNodes()) {
-				for (MacroCell c: n.cellsOut) {
-					surroundingObservationsMap.put(n, surroundingObservationsExtendedMap.get(c));
-					//surroundingObservationsMap.put(n, lhsdetectors);
-				}
-			}
-			for (NodeInterior n: macromodel.getJunctionNodes()) {
-				for (MacroCell c: n.cellsOut) {
-					surroundingObservationsMap.put(n, surroundingObservationsExtendedMap.get(c));
-					//surroundingObservationsMap.put(n, lhsdetectors);
-				}
-			}
-			for (Link l: macromodel.getLinks()) {
-				surroundingObservationsMap.put(l, new LinkedHashSet<NodeDetector>());
-				for (MacroCell c: l.correspondingCells) {
-					surroundingObservationsMap.put(l, surroundingObservationsExtendedMap.get(c));
-					//surroundingObservationsMap.get(l).addAll(surroundingObservationsMap.get(c));
-				}
-			}
-			for (Object o: surroundingObservationsMap.keySet()) {
-				for (NodeDetector n: surroundingObservationsMap.get(o)) {
-					surroundingCellsMap2.get(n).add(o);
-				}
-			}
-
-
-
-
+			// links and nodes are localized through the localization index, see below
 		}
 		//surroundingObservationsMap.
 
@@ -748,6 +804,7 @@ public class TestEnKF {
 		//String[] c = new String[]{"density","inflow","speedLimitPerLink"};
 		this.config = new AssimilationConfiguration(list2, macromodel, runConfig.getAssimilationMethod());
 		stateVariables = config.getStateVariables(macromodel);
+		layout = new EnsembleStateLayout(config, detectors.size(), runConfig.getEnsembleSize());
 
 
 		r2.setSeed(r2seed);
@@ -779,26 +836,15 @@ public class TestEnKF {
 		}
 		correspondingIndicesOfDetectors = new ArrayList<Integer[]>();
 		if (runConfig.getAssimilationMethod().getType() == AssimilationMethodType.LOCAL) {
+			localization = LocalizationIndex.build(macromodel, config, runConfig.getNrSurroundingCells(), runConfig.getInflowTFWidth(), runConfig.getLocalizationHalfWidth());
 			for (int i = 0; i<nrObservations; i++) {
-				NodeDetector detector;
-				if (i < nrSpeedObservations) {
-					detector = detectors.get(i);
-					//indices = config.getIndicesObject(macromodel, surroundingCellsMap2.get(detectors.get(i1)));
-				} else {
-					detector = detectors.get(i-nrSpeedObservations);
-					//indices = config.getIndicesObject(macromodel, surroundingCellsMap2.get(detectors.get(i1-nrSpeedObservations)));
-
-				}
-				int[] indices = config.getIndicesObject(macromodel, surroundingCellsMap2.get(detector));
-				//List<Integer[]> integerList = new ArrayList<Integer[]>();
-				//integerList.addAll(Arrays.asList(indices));
-				correspondingIndicesOfDetectors.add(buildIntArray(indices));
-				
+				correspondingIndicesOfDetectors.add(buildIntArray(localization.getStateIndices(i)));
 			}
-			for (Object o: stateVariables) {
-				int[] indices = config.getIndicesDetector(macromodel, surroundingObservationsMap.get(o));
-				correspondingIndicesOfStateObjects.add(buildIntArray(indices));
+			correspondingIndicesOfStateObjects = new ArrayList<Integer[]>();
+			for (int i = 0; i<config.nrStateVariables; i++) {
+				correspondingIndicesOfStateObjects.add(buildIntArray(localization.getObservationIndices(i)));
 			}
+			localAnalysis = new LocalAnalysis(localization);
 			detectorIndices1 = config.getIndices(macromodel, cellsWithDetectors);
 			int index = 0;
 			affectedDetectorsIndices = new ArrayList<ArrayList<Integer>>();
@@ -809,7 +855,7 @@ public class TestEnKF {
 				
 				LinkedHashSet<NodeDetector> dets = surroundingObservationsMap.get(c);
 				for (NodeDetector d: dets) {
-					ArrayList<Integer> tmpList = affectedDetectorsIndices.get(detectors.indexOf(d));
+					ArrayList<Integer> tmpList = affectedDetectorsIndices.get(macromodel.indexOf(d));
 					tmpList.add(index);
 					//tmpList.add(index+cellsWithDetectors.size());
 					/*ArrayList<Integer> tmpList2 = affectedDetectorsIndices.get(detectors.indexOf(d)+cellsWithDetectors.size());
@@ -820,16 +866,31 @@ public class TestEnKF {
 				
 			}
 			
-			Schur = new Matrix(config.nrStateVariables,nrObservations);
-			
-			for (int tmpi = 0; tmpi<nrObservations; tmpi++) {
-				int[] indices = buildIntArray(correspondingIndicesOfDetectors.get(tmpi));
-				Schur.setMatrix(indices, tmpi,tmpi, new Matrix(indices.length,1,1.0));
-				
-			}
-			System.out.println("test");
-			SparseSchur = new SparseMatrixDirectRS(Schur.getArray());
+			SparseSchur = localization.toSparseMatrix();
 		}
+		adaptiveInflation = runConfig.isAdaptiveInflation() ? AdaptiveInflation.create(config, runConfig.getAssimilationMethod().getType() == AssimilationMethodType.LOCAL ? localization : null, nrObservations, r2seed) : null;
+	}
+	/**
+	 * Assimilate the observations of a cursor: predict the ensemble up to the time of every
+	 * observation and correct it.
+	 * @param cursor observations, e.g. from {@link DetectorObservationStore#cursor(double, double, double)}
+	 * @param timeOffset time in the store at simulation time 0
+	 * @param results receives the output of {@link #update(Matrix)} of every cycle, may be null
+	 * @return number of cycles
+	 */
+	public int assimilate(DetectorObservationStore.Cursor cursor, double timeOffset, List<Matrix[]> results) throws IOException {
+		Scheduler[] schedulers = ensembles.toArray(new Scheduler[ensembles.size()]);
+		int n = 0;
+		while (cursor.hasNext()) {
+			double time = cursor.getTime() - timeOffset;
+			Matrix observations = cursor.next();
+			MultiThreadedScheduler.predictUntil(time, schedulers);
+			Matrix[] output = update(observations);
+			if (results != null)
+				results.add(output);
+			n++;
+		}
+		return n;
 	}
 	public Matrix[] update(Matrix observations) {
 		boolean showOutput = false;
@@ -878,81 +939,25 @@ public class TestEnKF {
 		Matrix D1 = observations.minus(D.times(new Matrix(N,1,1.0/N)));
 		D = D.plus(D1.times(new Matrix(1,N,1)));
 		//Matrix D3 = D.minus(D2);
-		Matrix X = new Matrix(config.nrStateVariables, N);
-		;
-		Matrix HX = new Matrix(nrObservations, N);
-		for (Scheduler s: ensembles){
-			Model m = (Model) s.getSimulator().getModel();
-			//double[] x = m.saveStateToArray("density");
-			double[] x = config.saveStateToArray(m);
-			for (double i: x) {
-				if (i == 0) {
-					//System.out.println("stop");
-					//x = config.saveStateToArray(m);
-				}
-			}
-			double[][] y = new double[][]{x};
-			//double[0][] res = x;
-			X.setMatrix(0,x.length-1,ensembles.indexOf(s),ensembles.indexOf(s), (new Matrix(new double[][]{x})).transpose());
-			Matrix y1 = new Matrix(nrObservations,1);
-			for (NodeDetector nd: m.getDetectors() ) {
-				double[] obs= nd.getMeasurements(m.t()-60, m.t(), m.dt);
-				//double[] obs= nd.getInstantMeasurements();
-				y1.set(m.getDetectors().indexOf(nd),0, obs[1]);
-				y1.set(nrSpeedObservations + m.getDetectors().indexOf(nd),0, obs[0]);
-			}
-			HX.setMatrix(0,nrObservations-1,ensembles.indexOf(s),ensembles.indexOf(s),y1);
-
-		}
-
-
-
-
-		Matrix A1 = X.times(new Matrix(N,1,1.0));
-		Matrix A2 = A1.times(new Matrix(1,N,1.0));
-		Matrix A3 = A2.times(1.0/N);
-		Matrix A = X.minus(A3);
-
-
-		Matrix HA = new Matrix(nrObservations, N);
-		//int[] range = new int[]{0,nrObservations-1};
-		Matrix gemH = new Matrix(nrObservations, 1);
-		Matrix gemX = new Matrix(config.nrStateVariables,1);
-		for (int j = 0; j<N; j++) {
-			Matrix tmp = HX.getMatrix(0,nrObservations-1, j,j);
-			Matrix tmp2 = X.getMatrix(0,config.nrStateVariables-1, j,j);
-			gemH = gemH.plus(tmp);
-			gemX = gemX.plus(tmp2);
-		}
-		gemH = gemH.times(1.0/N);
-		gemX = gemX.times(1.0/N);
-		Matrix tmpH2 = new Matrix(nrObservations, 1);
-		Matrix tmpX2 = new Matrix(config.nrStateVariables, 1);
-		Matrix varH = new Matrix(nrObservations, 1);
-		Matrix varX = new Matrix(config.nrStateVariables,1);
-		Matrix stdH = new Matrix(nrObservations, 1);
-		Matrix stdX = new Matrix(config.nrStateVariables,1);
-		for (int j = 0; j<N; j++) {
-			Matrix tmpH = (HX.getMatrix(0,nrObservations-1, j,j)).minus(gemH);
-			Matrix tmpX = (X.getMatrix(0,config.nrStateVariables-1, j,j)).minus(gemX);
-			tmpH2 = tmpH2.plus(tmpH.arrayTimes(tmpH));
-			tmpX2 = tmpX2.plus(tmpX.arrayTimes(tmpX));
-		}
-
-		varH = tmpH2.times(1.0/(N-1));
-		varX = tmpX2.times(1.0/(N-1));
-		for (int j=0; j<nrObservations; j++) {
-			stdH.set(j, 0, Math.sqrt(varH.get(j, 0)));
-		}
-		for (int j=0; j<config.nrStateVariables; j++) {
-			stdX.set(j, 0, Math.sqrt(varX.get(j, 0)));
-		}
-		//Matrix HA2 = new Matrix(nrObservations, 1);
 		for (int i = 0; i<N; i++) {
-
-
-			HA.setMatrix(0,nrObservations-1, i, i, HX.getMatrix(0,nrObservations-1,i,i).minus(gemH));
+			layout.gather((Model) ensembles.get(i).getSimulator().getModel(), i);
 		}
+		Matrix X = layout.getStateMatrix();
+		Matrix HX = layout.getObservationMatrix();
+		double[] meanX = new double[config.nrStateVariables];
+		double[] varianceX = new double[config.nrStateVariables];
+		double[] meanH = new double[nrObservations];
+		double[] varianceH = new double[nrObservations];
+		layout.computeStateMoments(meanX, varianceX);
+		layout.computeObservationMoments(meanH, varianceH);
+		Matrix A = layout.getStateAnomalyMatrix();
+		Matrix HA = layout.getObservationAnomalyMatrix();
+		Matrix gemX = new Matrix(meanX, config.nrStateVariables);
+		Matrix gemH = new Matrix(meanH, nrObservations);
+		Matrix varX = new Matrix(varianceX, config.nrStateVariables);
+		Matrix varH = new Matrix(varianceH, nrObservations);
+		Matrix stdX = new Matrix(EnsembleMoments.std(varianceX), config.nrStateVariables);
+		Matrix stdH = new Matrix(EnsembleMoments.std(varianceH), nrObservations);
 		/*double[] inflowBefore = gemX.getMatrix(4645,4693, 0,0).transpose().getArray()[0];
 		System.out.println("Before: "+Arrays.toString(inflowBefore));
 		 */
@@ -1482,13 +1487,7 @@ public class TestEnKF {
 		case LENKF_GRID_PARALLEL:
 			
 
-			diff = new Matrix(config.nrStateVariables,N,0.0);
-			int[] stateIndices = new int[config.nrStateVariables];
-			    for (int i = 0; i < config.nrStateVariables; i++) {
-			    	stateIndices[i] = i;
-			    }
-		
-			diff = MultiThreadedUpdate.computeTotal(stateIndices, HX, D, R, HA, X, A, AssimilationMethod.LENKF_GRID_PARALLEL);
+			diff = localAnalysis.compute(HX, D, R, HA, X, A, AssimilationMethod.LENKF_GRID_PARALLEL);
 			 //System.out.println(diff.norm1());
 			Xa = X.plus(diff);
 
@@ -1533,13 +1532,7 @@ public class TestEnKF {
 			break;
 		case LENKF_GRID_SMW_PARALLEL:
 
-			diff = new Matrix(config.nrStateVariables,N,0.0);
-			int[] stateIndices2 = new int[config.nrStateVariables];
-			    for (int i = 0; i < config.nrStateVariables; i++) {
-			    	stateIndices2[i] = i;
-			    }
-		
-			diff = MultiThreadedUpdate.computeTotal(stateIndices2, HX, D, Rinv, HA, X, A, AssimilationMethod.LENKF_GRID_SMW_PARALLEL);
+			diff = localAnalysis.compute(HX, D, Rinv, HA, X, A, AssimilationMethod.LENKF_GRID_SMW_PARALLEL);
 		
 			Xa = X.plus(diff);
 
@@ -2056,13 +2049,7 @@ public class TestEnKF {
 		case DENKF_GRID_PARALLEL:
 			Matrix D221 = observations.times(new Matrix(1,N,1.0));
 			Y = observations.minus(gemH);
-			diff = new Matrix(config.nrStateVariables,N,0.0);
-			int[] stateIndices3 = new int[config.nrStateVariables];
-			    for (int i = 0; i < config.nrStateVariables; i++) {
-			    	stateIndices3[i] = i;
-			    }
-		
-			diff = MultiThreadedUpdate.computeTotal(stateIndices3, HX, D221, R, HA, X, A, AssimilationMethod.DENKF_GRID_PARALLEL);
+			diff = localAnalysis.compute(HX, D221, R, HA, X, A, AssimilationMethod.DENKF_GRID_PARALLEL);
 		
 			Xa = X.plus(diff);
 
@@ -2072,13 +2059,7 @@ public class TestEnKF {
 			Matrix D222 = observations.times(new Matrix(1,N,1.0));
 			Y = observations.minus(gemH);
 
-			diff = new Matrix(config.nrStateVariables,N,0.0);
-			int[] stateIndices4 = new int[config.nrStateVariables];
-			    for (int i = 0; i < config.nrStateVariables; i++) {
-			    	stateIndices4[i] = i;
-			    }
-		
-			diff = MultiThreadedUpdate.computeTotal(stateIndices4, HX, D222, Rinv, HA, X, A, AssimilationMethod.DENKF_GRID_SMW_PARALLEL);
+			diff = localAnalysis.compute(HX, D222, Rinv, HA, X, A, AssimilationMethod.DENKF_GRID_SMW_PARALLEL);
 		
 			Xa = X.plus(diff);
 
@@ -2089,57 +2070,25 @@ public class TestEnKF {
 			break;
 		}
 
-		Matrix AXa = ((Xa.times(new Matrix(N,1,1.0))).times(new Matrix(1,N,1.0))).times(1.0/N);
-		//Matrix AXa2 = Xa.minus(((Xa.times(new Matrix(N,1,1.0))).times(new Matrix(1,N,1.0))).times(1.0/N));
-		//Matrix AX2 = X.minus(((X.times(new Matrix(N,1,1.0))).times(new Matrix(1,N,1.0))).times(1.0/N));
-
-		//double r = 1.05;
-		//
-		//Matrix r1 = new Matrix(config.nrStateVariables,1,ri);
-		//Matrix r1 = Matrix.identity(config.nrStateVariables, 1).times(r);
-		Matrix r1 = new Matrix(config.getInflationFactorArray(),config.nrStateVariables);
-		Matrix r2 = r1.times(new Matrix(1,N,1.0));
-		//Matrix r2a = r2.minus(new Matrix(config.nrStateVariables,N,1.0));
-		//Matrix r2b = r2.minus(new Matrix(config.nrStateVariables,N,2.0));
-		Xa = ((Xa.minus(AXa)).arrayTimes(r2)).plus(AXa);
-		/*for (double i: Xa.getArray()[Xa.getRowDimension()-1]) {
-			if (i <= 0) {
-				//System.out.println("stop");
-				//x = config.saveStateToArray(m);
-			}
-		}
-		double alpha = 0.8;
-		double te=1;*/
-		//Xa = AXa2.arrayTimes(r2b).plus(AX2.arrayTimes(r2a)).plus(AXa);
-		//Xa = AXa2.times(1-alpha).plus(AX2.times(alpha)).plus(AXa);
-		//System.out.println(X);
-		Matrix gemXa = new Matrix(config.nrStateVariables,1);
-		for (int j = 0; j<N; j++) {
-
-			Matrix tmp2 = Xa.getMatrix(0,config.nrStateVariables-1, j,j);
-
-			gemXa = gemXa.plus(tmp2);
-		}
-		gemXa = gemXa.times(1.0/N);
-
-		Matrix varXa = new Matrix(config.nrStateVariables,1);
-		Matrix tmpXa2 = new Matrix(config.nrStateVariables, 1);
-		Matrix stdXa = new Matrix(config.nrStateVariables,1);
-		for (int j = 0; j<N; j++) {
-			Matrix tmpXa = (Xa.getMatrix(0,config.nrStateVariables-1, j,j)).minus(gemXa);
-			tmpXa2 = tmpXa2.plus(tmpXa.arrayTimes(tmpXa));
-		}
-		varXa = tmpXa2.times(1.0/(N-1));
-		for (int j=0; j<config.nrStateVariables; j++) {
-			stdXa.set(j, 0, Math.sqrt(varXa.get(j, 0)));
+		double[] meanXa = new double[config.nrStateVariables];
+		double[] varianceXa = new double[config.nrStateVariables];
+		if (adaptiveInflation == null) {
+			EnsembleMoments.inflate(Xa.getArray(), config.getInflationFactorArray(), meanXa, varianceXa);
+		} else {
+			double[] observationVariance = new double[nrObservations];
+			for (int i = 0; i<nrObservations; i++)
+				observationVariance[i] = R.get(i, i);
+			double[] inflation = adaptiveInflation.update(observations.getColumnPackedCopy(), meanH, varianceH, observationVariance, varianceX);
+			EnsembleMoments.inflate(Xa.getArray(), inflation, meanXa, varianceXa);
+			adaptiveInflation.addModelError(Xa.getArray(), varianceXa);
 		}
+		Matrix gemXa = new Matrix(meanXa, config.nrStateVariables);
+		Matrix varXa = new Matrix(varianceXa, config.nrStateVariables);
+		Matrix stdXa = new Matrix(EnsembleMoments.std(varianceXa), config.nrStateVariables);
 		/*double[] inflowAfter = gemXa.getMatrix(4645,4693, 0,0).transpose().getArray()[0];
 		System.out.println("After: "+Arrays.toString(inflowAfter));
-		 */		for (Scheduler s: ensembles){
-			 Model m = (Model) s.getSimulator().getModel();
-			 int i = ensembles.indexOf(s);
-			 double[] copy = Xa.getMatrix(0, config.nrStateVariables-1,i,i).getColumnPackedCopy();
-			 config.restoreState(copy, m);
+		 */		for (int i = 0; i<N; i++) {
+			 layout.scatter(Xa, (Model) ensembles.get(i).getSimulator().getModel(), i);
 		 }
 		 config.restoreState((gemXa.transpose()).getArray()[0], macromodel);
 		 double[] speeds = config.saveStateToArray(macromodel,StateDefinition.V_CELL);
@@ -2165,7 +2114,8 @@ public class TestEnKF {
 		Matrix Xar = gemXa.getMatrix(exportRoute, 0,0);*/
 		 /*double[] inflowAfter2 = AssimilationConfiguration.getOutput(macromodel, StateDefinition.INFLOW_NODE)[0].transpose().getArray()[0];
 		System.out.println("After2: "+Arrays.toString(inflowAfter2));
-		  */	return new Matrix[]{X,gemV,Xa,P,M,Z,observations, D, HX,gemH,gemX,gemXa,varH,varX,varXa,stdH,stdX,stdXa,output[2],new Matrix(1,1),new Matrix(1,1)};
+		  */	// X and HX are views of the layout buffers, which the next update overwrites
+		return new Matrix[]{X.copy(),gemV,Xa,P,M,Z,observations, D, HX.copy(),gemH,gemX,gemXa,varH,varX,varXa,stdH,stdX,stdXa,output[2],new Matrix(1,1),new Matrix(1,1)};
 	}
 	static public Matrix generateWhiteNoise(Matrix source, double std) {
 		int i = source.getRowDimension();
@@ -3051,6 +3001,70 @@ public class TestEnKF {
 			e.printStackTrace();
 		}
 	}
+	/**
+	 * Binary version of {@link #exportToMatlab3}, written during a run: <tt>filename.mat</tt>
+	 * with the estimates <tt>X</tt> and the truth <tt>TruthX</tt> and <tt>TruthV</tt> of
+	 * the cells of the route, all with one row per time step. Estimates are streamed to
+	 * the store as they are computed. A write error is reported once and stops the export,
+	 * not the run.
+	 */
+	static class StoreExport {
+		private final int[] route;
+		private ResultStore store;
+		private ResultStore.Stream X;
+
+		StoreExport(String filename, EnKFRunConfiguration runConfig, int nrCells, int[] route) {
+			this.route = route;
+			if (filename.isEmpty())
+				filename = "testEnKF";
+			try {
+				store = new ResultStore(new File(filename+".mat"));
+				store.put("config", runConfig.toString());
+				store.put("nrCells", nrCells);
+				X = store.stream("X", route.length);
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+
+		/** Add the estimates of one time step, a column vector of all cells. */
+		void add(Matrix estimates) {
+			if (store == null)
+				return;
+			try {
+				X.add(estimates, route);
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+
+		/** Write the truth, one row per time step and one column per cell, and close the store. */
+		void close(Matrix truthX, Matrix truthV) {
+			if (store == null)
+				return;
+			try {
+				X.close();
+				store.put("TruthX", truthX.getMatrix(0, truthX.getRowDimension()-1, route));
+				store.put("TruthV", truthV.getMatrix(0, truthV.getRowDimension()-1, route));
+				store.close();
+			} catch (IOException e) {
+				failed(e);
+			}
+			store = null;
+		}
+
+		private void failed(IOException e) {
+			e.printStackTrace();
+			if (store != null) {
+				try {
+					store.close();
+				} catch (IOException e2) {
+					// already reported
+				}
+			}
+			store = null;
+		}
+	}
 	public void  exportToMatlab(ArrayList<Matrix[]> results, String filename, boolean plot) {
 		PrintWriter out;
 		if (filename.isEmpty())
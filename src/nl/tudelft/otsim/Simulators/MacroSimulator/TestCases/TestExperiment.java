@@ -1,6 +1,7 @@
 package nl.tudelft.otsim.Simulators.MacroSimulator.TestCases;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -540,6 +541,7 @@ public class TestExperiment {
 
 			long[][][] computationTimes = TestEnKF.performExperiment(obsTest, expConfig, prefix);
 			exportToMatlab(expConfig, inflow3, turnfractionExp2, prefix, computationTimes);
+			exportToStore(expConfig, inflow3, turnfractionExp2, prefix, computationTimes);
 		}
 
 	}
@@ -1325,4 +1327,30 @@ public class TestExperiment {
 		}
 		System.out.println("experiment is finalized");
 	}
+
+	/**
+	 * Binary version of the data in {@link #exportToMatlab}: writes
+	 * <tt>sumConfigEnKF<i>prefix</i>.mat</tt> with per network <tt>inflow_j</tt> and
+	 * <tt>tf_j</tt>, and per run <tt>RUN_j_i</tt> and <tt>ComputationTime_j_i</tt>.
+	 */
+	public static void exportToStore(ExperimentConfiguration expConfig, double[][] inflow3, double[][] turnfractionExp2, String prefix, long[][][] computationTimes) {
+		try {
+			ResultStore store = new ResultStore(new File("sumConfigEnKF"+prefix+".mat"));
+			try {
+				ArrayList<EnKFRunConfiguration> runs = expConfig.getRunConfigurations();
+				for (int j=1; j<=expConfig.getNetworkConfigurations().size(); j++) {
+					store.put("inflow_"+j, inflow3[j-1]);
+					store.put("tf_"+j, turnfractionExp2[j-1]);
+					for (int i=1; i<=runs.size(); i++) {
+						store.put("RUN_"+j+"_"+i, runs.get(i-1).toString());
+						store.put("ComputationTime_"+j+"_"+i, computationTimes[j-1][i-1]);
+					}
+				}
+			} finally {
+				store.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 }
@@ -342,6 +342,7 @@ public class TestExperimentRotterdam {
 
 				long[][][] computationTimes = TestEnKF.performExperiment(obsTest, expConfig, prefix);
 				TestExperiment.exportToMatlab(expConfig, inflow3, turnfractionExp2, prefix, computationTimes);
+				TestExperiment.exportToStore(expConfig, inflow3, turnfractionExp2, prefix, computationTimes);
 			}
 			
 			
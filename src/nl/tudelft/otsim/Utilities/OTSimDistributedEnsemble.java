@@ -0,0 +1,491 @@
+package nl.tudelft.otsim.Utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Ensemble of macroscopic model instances spread over several local worker JVMs.
+ * <br>
+ * The coordinator starts the worker processes, which connect back over a loopback socket.
+ * Every worker hosts a contiguous range of members in an {@link OTSimOpenDAEnsembleWrapper},
+ * advances them on request and exchanges their states as binary doubles. The states have
+ * the layout of {@link OTSimOpenDAEnsembleWrapper#getStates()}: one row per state
+ * variable and one column per member.
+ * <br>
+ * After every request that changes its members, a worker returns their full model state
+ * (see {@link OTSimOpenDAEnsembleWrapper#getFullState(int)}), which the coordinator keeps
+ * together with the time of the members. When a worker fails or does not reply in time,
+ * it is replaced by a new worker whose members continue from that full state, and the
+ * failed request is repeated.
+ */
+public class OTSimDistributedEnsemble {
+	private static final int INIT = 1;
+	private static final int COMPUTE = 2;
+	private static final int GET_STATES = 3;
+	private static final int SET_STATES = 4;
+	private static final int RESTORE = 5;
+	private static final int SHUTDOWN = 6;
+	private static final int OK = 0;
+	private static final int FAILED = -1;
+
+	private final String configuration;
+	private final String[] parameters;
+	private final int nrMembers;
+	private final ServerSocket server;
+	private final Worker[] workers;
+	private final ExecutorService executor;
+	private int workerHeapMB = 1024;
+	private int timeoutMs = 600000;
+	private int stateLength = -1;
+	private int restarts = 0;
+
+	/** Coordinator side of a worker process. */
+	private class Worker {
+		final int id;
+		final int firstMember;
+		final int nrMembers;
+		Process process;
+		Socket socket;
+		DataInputStream in;
+		DataOutputStream out;
+		/** full states of the members after the last request that changed them, null before */
+		double[][] fullStates;
+		double time = 0;
+
+		Worker(int id, int firstMember, int nrMembers) {
+			this.id = id;
+			this.firstMember = firstMember;
+			this.nrMembers = nrMembers;
+		}
+
+		void launch() throws IOException {
+			ArrayList<String> command = new ArrayList<String>();
+			command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+			command.add("-Xmx" + workerHeapMB + "m");
+			command.add("-Djava.awt.headless=true");
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(OTSimDistributedEnsemble.class.getName());
+			command.add(Integer.toString(server.getLocalPort()));
+			command.add(Integer.toString(id));
+			ProcessBuilder pb = new ProcessBuilder(command);
+			pb.redirectErrorStream(true);
+			pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+			process = pb.start();
+		}
+
+		void connected(Socket s, DataInputStream i) throws IOException {
+			socket = s;
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeoutMs);
+			in = i;
+			out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+		}
+
+		void init() throws IOException {
+			out.writeInt(INIT);
+			writeString(out, configuration);
+			out.writeInt(nrMembers);
+			out.writeInt(parameters.length);
+			for (String p: parameters)
+				writeString(out, p);
+			out.flush();
+			int length = reply();
+			if (stateLength < 0)
+				stateLength = length;
+		}
+
+		int reply() throws IOException {
+			int status = in.readInt();
+			if (status == FAILED)
+				throw new IOException("Worker " + id + ": " + readString(in));
+			return status;
+		}
+
+		/** Read the full states that follow a reply and keep them with the time. */
+		void readFullStates(double t) throws IOException {
+			int length = in.readInt();
+			double[][] states = new double[nrMembers][];
+			for (int m = 0; m<nrMembers; m++) {
+				states[m] = new double[length];
+				readDoubles(in, length).get(states[m]);
+			}
+			fullStates = states;
+			time = t;
+		}
+
+		void stop() {
+			try {
+				if (socket != null)
+					socket.close();
+			} catch (IOException e) {
+				// already gone
+			}
+			if (process != null)
+				process.destroy();
+		}
+	}
+
+	/** A request to one worker. */
+	private interface Request {
+		void perform(Worker w) throws IOException;
+	}
+
+	/**
+	 * Start the workers.
+	 * @param configuration model configuration of all members
+	 * @param nrMembers number of members
+	 * @param nrWorkers number of worker processes
+	 * @param parameters state parameters, see {@link OTSimOpenDAEnsembleWrapper#setStateParameters(String...)}
+	 */
+	public OTSimDistributedEnsemble(String configuration, int nrMembers, int nrWorkers, String... parameters) throws IOException {
+		this.configuration = configuration;
+		this.parameters = parameters.clone();
+		this.nrMembers = nrMembers;
+		server = new ServerSocket(0, nrWorkers, InetAddress.getLoopbackAddress());
+		server.setSoTimeout(120000);
+		workers = new Worker[Math.min(nrWorkers, nrMembers)];
+		executor = Executors.newFixedThreadPool(workers.length);
+		int first = 0;
+		for (int w = 0; w<workers.length; w++) {
+			int n = nrMembers/workers.length + (w < nrMembers%workers.length ? 1 : 0);
+			workers[w] = new Worker(w, first, n);
+			first += n;
+		}
+		try {
+			for (Worker w: workers)
+				w.launch();
+			connect(workers);
+			forAll(new Request() {
+				@Override
+				public void perform(Worker w) throws IOException {
+					w.init();
+				}
+			}, false);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public void setWorkerHeapMB(int workerHeapMB) {
+		this.workerHeapMB = workerHeapMB;
+	}
+	/** Set the time a worker may take to reply before it is replaced. */
+	public void setTimeout(int timeoutMs) throws IOException {
+		this.timeoutMs = timeoutMs;
+		for (Worker w: workers)
+			w.socket.setSoTimeout(timeoutMs);
+	}
+	public int getNrMembers() {
+		return nrMembers;
+	}
+	public int getStateLength() {
+		return stateLength;
+	}
+	/** @return number of workers that were replaced after a failure */
+	public int getRestarts() {
+		return restarts;
+	}
+	/** @return process of a worker, e.g. to monitor it */
+	Process getProcess(int worker) {
+		return workers[worker].process;
+	}
+
+	/** Advance all members to time t. */
+	public void compute(final double t) throws IOException {
+		forAll(new Request() {
+			@Override
+			public void perform(Worker w) throws IOException {
+				w.out.writeInt(COMPUTE);
+				w.out.writeDouble(t);
+				w.out.flush();
+				w.reply();
+				w.readFullStates(t);
+			}
+		}, true);
+	}
+
+	/** @return states of all members, one row per state variable and one column per member */
+	public double[][] getStates() throws IOException {
+		final double[][] states = new double[stateLength][nrMembers];
+		forAll(new Request() {
+			@Override
+			public void perform(Worker w) throws IOException {
+				w.out.writeInt(GET_STATES);
+				w.out.flush();
+				w.reply();
+				DoubleBuffer d = readDoubles(w.in, w.nrMembers*stateLength);
+				for (int m = 0; m<w.nrMembers; m++) {
+					for (int i = 0; i<stateLength; i++)
+						states[i][w.firstMember + m] = d.get(m*stateLength + i);
+				}
+			}
+		}, true);
+		return states;
+	}
+
+	/** Set the states of all members, e.g. after an analysis. */
+	public void setStates(final double[][] states) throws IOException {
+		forAll(new Request() {
+			@Override
+			public void perform(Worker w) throws IOException {
+				w.out.writeInt(SET_STATES);
+				writeDoubles(w.out, states, w.firstMember, w.nrMembers);
+				w.out.flush();
+				w.reply();
+				w.readFullStates(w.time);
+			}
+		}, true);
+	}
+
+	/** Stop all workers. */
+	public void close() {
+		for (Worker w: workers) {
+			try {
+				if (w.out != null) {
+					w.out.writeInt(SHUTDOWN);
+					w.out.flush();
+				}
+			} catch (IOException e) {
+				// stopped below
+			}
+			w.stop();
+		}
+		executor.shutdown();
+		try {
+			server.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Accept the connections of started workers. Workers identify themselves, as they
+	 * may connect in any order; other connections are closed.
+	 */
+	private void connect(Worker[] started) throws IOException {
+		HashMap<Integer, Worker> waiting = new HashMap<Integer, Worker>();
+		for (Worker w: started)
+			waiting.put(w.id, w);
+		while (!waiting.isEmpty()) {
+			Socket s;
+			try {
+				s = server.accept();
+			} catch (SocketTimeoutException e) {
+				throw new IOException("Workers " + waiting.keySet() + " did not connect");
+			}
+			DataInputStream i = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			Worker w = null;
+			try {
+				s.setSoTimeout(timeoutMs);
+				w = waiting.remove(i.readInt());
+			} catch (IOException e) {
+				// not a worker
+			}
+			if (w == null)
+				s.close();
+			else
+				w.connected(s, i);
+		}
+	}
+
+	/**
+	 * Perform a request on all workers in parallel.
+	 * @param recover replace failed workers and repeat the request on them
+	 */
+	private void forAll(final Request request, boolean recover) throws IOException {
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (final Worker w: workers) {
+			futures.add(executor.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws IOException {
+					request.perform(w);
+					return null;
+				}
+			}));
+		}
+		ArrayList<Worker> failed = new ArrayList<Worker>();
+		IOException failure = null;
+		for (int w = 0; w<workers.length; w++) {
+			try {
+				futures.get(w).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted", e);
+			} catch (ExecutionException e) {
+				failed.add(workers[w]);
+				if (failure == null)
+					failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+		}
+		if (failure == null)
+			return;
+		if (!recover)
+			throw failure;
+		for (Worker w: failed) {
+			System.err.println("Worker " + w.id + " failed (" + failure + "), restarting");
+			restart(w);
+			request.perform(w);
+		}
+	}
+
+	/** Replace a failed worker and bring its members back to their last full states. */
+	private void restart(Worker w) throws IOException {
+		w.stop();
+		restarts++;
+		w.launch();
+		connect(new Worker[] {w});
+		w.init();
+		if (w.fullStates == null)
+			return; // members did not change yet: they start from the configuration, as at first
+		w.out.writeInt(RESTORE);
+		w.out.writeDouble(w.time);
+		w.out.writeInt(w.fullStates[0].length);
+		for (double[] state: w.fullStates)
+			writeDoubles(w.out, state);
+		w.out.flush();
+		w.reply();
+	}
+
+	private void writeDoubles(DataOutputStream out, double[][] states, int firstMember, int members) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(8*members*stateLength);
+		for (int m = 0; m<members; m++) {
+			for (int i = 0; i<stateLength; i++)
+				b.putDouble(states[i][firstMember + m]);
+		}
+		out.write(b.array());
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(8*values.length);
+		b.asDoubleBuffer().put(values);
+		out.write(b.array());
+	}
+
+	private static DoubleBuffer readDoubles(DataInputStream in, int n) throws IOException {
+		byte[] b = new byte[8*n];
+		in.readFully(b);
+		return ByteBuffer.wrap(b).asDoubleBuffer();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	/** Write the full states of all members of a worker after an OK reply. */
+	private static void writeFullStates(DataOutputStream out, OTSimOpenDAEnsembleWrapper wrapper) throws IOException {
+		for (int m = 0; m<wrapper.getNrInstances(); m++) {
+			double[] state = wrapper.getFullState(m);
+			if (m == 0)
+				out.writeInt(state.length);
+			writeDoubles(out, state);
+		}
+	}
+
+	/**
+	 * Worker process. It waits for requests until the coordinator shuts it down or is gone.
+	 * @param args port of the coordinator, worker id
+	 */
+	public static void main(String[] args) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]));
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		out.writeInt(Integer.parseInt(args[1]));
+		out.flush();
+		OTSimOpenDAEnsembleWrapper wrapper = null;
+		DoubleBuffer buffer = null;
+		try {
+			while (true) {
+				int command = in.readInt();
+				try {
+					switch (command) {
+					case INIT:
+						String configuration = readString(in);
+						int members = in.readInt();
+						String[] parameters = new String[in.readInt()];
+						for (int p = 0; p<parameters.length; p++)
+							parameters[p] = readString(in);
+						wrapper = new OTSimOpenDAEnsembleWrapper();
+						wrapper.initializeNewInstances(new String[]{configuration, Integer.toString(members)});
+						wrapper.setStateParameters(parameters);
+						buffer = ByteBuffer.allocate(8*members*wrapper.getStateLength()).asDoubleBuffer();
+						out.writeInt(wrapper.getStateLength());
+						break;
+					case COMPUTE:
+						wrapper.compute(in.readDouble());
+						out.writeInt(OK);
+						writeFullStates(out, wrapper);
+						break;
+					case GET_STATES:
+						wrapper.getStates(buffer);
+						out.writeInt(OK);
+						for (int i = 0; i<buffer.capacity(); i++)
+							out.writeDouble(buffer.get(i));
+						break;
+					case SET_STATES:
+						for (int i = 0; i<buffer.capacity(); i++)
+							buffer.put(i, in.readDouble());
+						wrapper.setStates(buffer);
+						out.writeInt(OK);
+						writeFullStates(out, wrapper);
+						break;
+					case RESTORE:
+						double time = in.readDouble();
+						int n = in.readInt();
+						for (int m = 0; m<wrapper.getNrInstances(); m++) {
+							double[] state = new double[n];
+							readDoubles(in, n).get(state);
+							wrapper.restoreFullInstance(m, time, state);
+						}
+						out.writeInt(OK);
+						break;
+					case SHUTDOWN:
+						return;
+					default:
+						throw new Error("Unknown command " + command);
+					}
+				} catch (RuntimeException e) {
+					out.writeInt(FAILED);
+					writeString(out, e.toString());
+				} catch (Error e) {
+					out.writeInt(FAILED);
+					writeString(out, e.toString());
+				}
+				out.flush();
+			}
+		} catch (EOFException e) {
+			// coordinator is gone
+		} finally {
+			socket.close();
+			System.exit(0);
+		}
+	}
+}
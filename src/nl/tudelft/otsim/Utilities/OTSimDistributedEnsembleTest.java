@@ -0,0 +1,61 @@
+package nl.tudelft.otsim.Utilities;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/** Test the OTSimDistributedEnsemble against an ensemble in this JVM */
+public class OTSimDistributedEnsembleTest {
+
+	private static void assertStates(double[][] expected, double[][] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i<expected.length; i++)
+			assertArrayEquals("state " + i, expected[i], actual[i], 1e-9);
+	}
+
+	/**
+	 * Members on two workers follow the members of the local ensemble; a killed worker is
+	 * replaced and its members continue from their last states, also after an analysis
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testWorkers() throws IOException, InterruptedException {
+		OTSimOpenDAEnsembleWrapper reference = OTSimOpenDAEnsembleWrapperTest.createWrapper(3);
+		OTSimDistributedEnsemble ensemble = new OTSimDistributedEnsemble(OTSimOpenDAEnsembleWrapperTest.CONFIGURATION, 3, 2, "density", "inflow");
+		try {
+			assertEquals(reference.getStateLength(), ensemble.getStateLength());
+			assertStates(reference.getStates(), ensemble.getStates());
+			reference.compute(300);
+			ensemble.compute(300);
+			double[][] states = ensemble.getStates();
+			assertStates(reference.getStates(), states);
+
+			// an analysis halves the densities of the last member, which is on the second worker
+			for (int i = 0; i<reference.getOffset("inflow"); i++)
+				states[i][2] *= 0.5;
+			reference.setStates(states);
+			ensemble.setStates(states);
+			assertStates(reference.getStates(), ensemble.getStates());
+
+			Process worker = ensemble.getProcess(1);
+			worker.destroyForcibly();
+			worker.waitFor();
+			reference.compute(600);
+			ensemble.compute(600);
+			assertEquals(1, ensemble.getRestarts());
+			assertStates(reference.getStates(), ensemble.getStates());
+			assertTrue(ensemble.getProcess(1) != worker);
+
+			// a worker killed before a state request is brought back to the current time
+			worker = ensemble.getProcess(0);
+			worker.destroyForcibly();
+			worker.waitFor();
+			assertStates(reference.getStates(), ensemble.getStates());
+			assertEquals(2, ensemble.getRestarts());
+		} finally {
+			ensemble.close();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package nl.tudelft.otsim.Utilities;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nl.tudelft.otsim.Events.Scheduler;
+import nl.tudelft.otsim.GUI.FakeGraphicsPanel;
+import nl.tudelft.otsim.Simulators.MacroSimulator.MacroSimulator;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Model;
+import nl.tudelft.otsim.Simulators.MacroSimulator.Nodes.NodeDetector;
+import nl.tudelft.otsim.Simulators.MacroSimulator.TestCases.MultiThreadedScheduler;
+
+/**
+ * OpenDA wrapper around an ensemble of macroscopic model instances in one JVM.
+ * <br>
+ * Where {@link OTSimOpenDAWrapper} copies one parameter of one instance per call, this
+ * wrapper exchanges the states of all members at once through a preallocated buffer with
+ * one row per state variable and one column per member. The state is the concatenation
+ * of the parameters given to {@link #setStateParameters(String...)}, e.g.
+ * <tt>density</tt>, <tt>inflow</tt> and <tt>speedLimitLink</tt>.
+ * <br>
+ * Instances can be saved in memory and restored later, also after the ensemble has moved
+ * on. A restored instance is a new instance started at the saved time (with an
+ * <tt>Offset:</tt> configuration, as for the forecasts in the EnKF tests) and the saved
+ * state. A saved instance holds the full model state of {@link #getFullState(int)}: the
+ * densities, inflows and fundamental diagram parameters of the cells and links, besides
+ * the state parameters. Anything else, such as the measurements of the detectors, starts
+ * anew. {@link #restoreInstance(int, double, double[])} only restores the state
+ * parameters and takes everything else from the configuration.
+ */
+public class OTSimOpenDAEnsembleWrapper {
+	private String otsimConfiguration;
+	private Scheduler[] schedulers;
+	private double[] timeOffsets;
+	private String[] parameters = new String[0];
+	private int[] offsets = new int[]{0};
+	private double[][] stateBuffer = new double[0][0];
+	private final LinkedHashMap<Integer, SavedInstance> savedInstances = new LinkedHashMap<Integer, SavedInstance>();
+	private int nextHandle = 0;
+	/** parameters of the full model state besides the state parameters, in restore order */
+	private static final String[] MODEL_PARAMETERS = new String[] {
+		"criticalDensityLink", "speedLimitLink", "jamDensityLink", "criticalSpeedLink",
+		"criticalDensity", "speedLimit", "jamDensity", "inflow", "density"};
+
+	private static class SavedInstance {
+		final double time;
+		final double[] state;
+		SavedInstance(double time, double[] state) {
+			this.time = time;
+			this.state = state;
+		}
+	}
+
+	public OTSimOpenDAEnsembleWrapper() {
+
+	}
+
+	/**
+	 * @param arguments configuration and number of instances
+	 */
+	public void initializeNewInstances(String[] arguments) {
+		this.otsimConfiguration = arguments[0];
+		int n = Integer.parseInt(arguments[1]);
+		schedulers = new Scheduler[n];
+		timeOffsets = new double[n];
+		for (int m = 0; m<n; m++) {
+			schedulers[m] = new Scheduler(MacroSimulator.simulatorType, new FakeGraphicsPanel(), otsimConfiguration);
+			getModel(m).init();
+		}
+		setStateParameters(parameters);
+	}
+
+	/** Define the state as the concatenation of these parameters. */
+	public void setStateParameters(String... parameters) {
+		// the model compares parameter names by reference
+		this.parameters = new String[parameters.length];
+		for (int p = 0; p<parameters.length; p++)
+			this.parameters[p] = parameters[p].intern();
+		this.offsets = new int[parameters.length+1];
+		for (int p = 0; p<parameters.length; p++)
+			offsets[p+1] = offsets[p] + getModel(0).saveStateToArray(this.parameters[p]).length;
+		stateBuffer = new double[offsets[parameters.length]][getNrInstances()];
+	}
+
+	public int getNrInstances() {
+		return schedulers.length;
+	}
+	public int getStateLength() {
+		return offsets[parameters.length];
+	}
+	/** @return offset of a parameter in the state */
+	public int getOffset(String parameter) {
+		for (int p = 0; p<parameters.length; p++) {
+			if (parameters[p].equals(parameter))
+				return offsets[p];
+		}
+		throw new Error("Parameter " + parameter + " is not in the state");
+	}
+	public double getEndTime() {
+		return schedulers[0].getSimulator().getModel().getPeriod();
+	}
+	public double getCurrentTime(int member) {
+		return schedulers[member].getSimulatedTime() + timeOffsets[member];
+	}
+
+	/** Advance all instances to time t, in parallel. */
+	public void compute(double t) {
+		// instances are grouped by their time offset, normally there is only one group
+		LinkedHashMap<Double, ArrayList<Scheduler>> groups = new LinkedHashMap<Double, ArrayList<Scheduler>>();
+		for (int m = 0; m<schedulers.length; m++) {
+			ArrayList<Scheduler> group = groups.get(timeOffsets[m]);
+			if (group == null) {
+				group = new ArrayList<Scheduler>();
+				groups.put(timeOffsets[m], group);
+			}
+			group.add(schedulers[m]);
+		}
+		for (Map.Entry<Double, ArrayList<Scheduler>> e: groups.entrySet())
+			MultiThreadedScheduler.predictUntil(t - e.getKey(), e.getValue().toArray(new Scheduler[e.getValue().size()]));
+	}
+
+	/**
+	 * Copy the states of all instances into the state buffer.
+	 * @return the state buffer, one row per state variable and one column per instance
+	 */
+	public double[][] getStates() {
+		for (int m = 0; m<schedulers.length; m++) {
+			Model model = getModel(m);
+			for (int p = 0; p<parameters.length; p++)
+				model.saveStateToColumn(parameters[p], stateBuffer, offsets[p], m);
+		}
+		return stateBuffer;
+	}
+
+	/** Restore the states of all instances from a buffer with the layout of {@link #getStates()}. */
+	public void setStates(double[][] states) {
+		for (int m = 0; m<schedulers.length; m++)
+			setState(states, m, m);
+	}
+
+	private void setState(double[][] states, int column, int member) {
+		Model model = getModel(member);
+		for (int p = 0; p<parameters.length; p++)
+			model.restoreStateFromColumn(states, offsets[p], column, parameters[p]);
+		model.updateCellVariables();
+	}
+
+	/**
+	 * Copy the states of all instances into a buffer, instance after instance, e.g. a
+	 * direct buffer shared with the data assimilation side.
+	 */
+	public void getStates(DoubleBuffer target) {
+		double[][] states = getStates();
+		int n = getStateLength();
+		for (int m = 0; m<schedulers.length; m++) {
+			for (int i = 0; i<n; i++)
+				target.put(m*n + i, states[i][m]);
+		}
+	}
+
+	/** Restore the states of all instances from a buffer with the layout of {@link #getStates(DoubleBuffer)}. */
+	public void setStates(DoubleBuffer source) {
+		int n = getStateLength();
+		for (int m = 0; m<schedulers.length; m++) {
+			for (int i = 0; i<n; i++)
+				stateBuffer[i][m] = source.get(m*n + i);
+		}
+		setStates(stateBuffer);
+	}
+
+	/**
+	 * Save the state of an instance in memory.
+	 * @return handle for {@link #restoreInstance(int, int)}
+	 */
+	public int saveInstance(int member) {
+		savedInstances.put(nextHandle, new SavedInstance(getCurrentTime(member), getFullState(member)));
+		return nextHandle++;
+	}
+
+	/** Replace an instance by a saved instance, at the time it was saved. */
+	public void restoreInstance(int handle, int member) {
+		SavedInstance saved = savedInstances.get(handle);
+		if (saved == null)
+			throw new Error("No saved instance " + handle);
+		restoreFullInstance(member, saved.time, saved.state);
+	}
+
+	/**
+	 * Full model state of an instance: the parameters of the cells and links, the inflows
+	 * and densities, followed by the state parameters.
+	 * @return state for {@link #restoreFullInstance(int, double, double[])}
+	 */
+	public double[] getFullState(int member) {
+		Model model = getModel(member);
+		String[] all = fullParameters();
+		int[] fullOffsets = fullOffsets(model, all);
+		double[][] column = new double[fullOffsets[all.length]][1];
+		for (int p = 0; p<all.length; p++)
+			model.saveStateToColumn(all[p], column, fullOffsets[p], 0);
+		double[] state = new double[column.length];
+		for (int i = 0; i<state.length; i++)
+			state[i] = column[i][0];
+		return state;
+	}
+
+	/**
+	 * Replace an instance by a new instance that starts at a time with a state. Only the
+	 * state parameters are restored; the fundamental diagrams and other parameters are
+	 * those of the configuration at that time, and the detectors start without
+	 * measurements. Use {@link #restoreFullInstance(int, double, double[])} to continue
+	 * an instance.
+	 */
+	public void restoreInstance(int member, double time, double[] state) {
+		Model model = newInstance(member, time);
+		double[][] column = new double[state.length][1];
+		for (int i = 0; i<column.length; i++)
+			column[i][0] = state[i];
+		setState(column, 0, member);
+		for (NodeDetector nd: model.getDetectors())
+			nd.addMeasurements(0);
+	}
+
+	/**
+	 * Replace an instance by a new instance that starts at a time with a full state of
+	 * {@link #getFullState(int)}. The detectors start without measurements.
+	 */
+	public void restoreFullInstance(int member, double time, double[] fullState) {
+		Model model = newInstance(member, time);
+		String[] all = fullParameters();
+		int[] fullOffsets = fullOffsets(model, all);
+		if (fullState.length != fullOffsets[all.length])
+			throw new Error("Full state has " + fullState.length + " values, expected " + fullOffsets[all.length]);
+		double[][] column = new double[fullState.length][1];
+		for (int i = 0; i<column.length; i++)
+			column[i][0] = fullState[i];
+		for (int p = 0; p<all.length; p++)
+			model.restoreStateFromColumn(column, fullOffsets[p], 0, all[p]);
+		model.updateCellVariables();
+		for (NodeDetector nd: model.getDetectors())
+			nd.addMeasurements(0);
+	}
+
+	private Model newInstance(int member, double time) {
+		Scheduler scheduler = new Scheduler(MacroSimulator.simulatorType, new FakeGraphicsPanel(), "Offset:	-"+time+"\n"+otsimConfiguration);
+		schedulers[member] = scheduler;
+		timeOffsets[member] = time;
+		Model model = getModel(member);
+		model.init();
+		return model;
+	}
+
+	private String[] fullParameters() {
+		String[] all = new String[MODEL_PARAMETERS.length + parameters.length];
+		for (int p = 0; p<MODEL_PARAMETERS.length; p++)
+			all[p] = MODEL_PARAMETERS[p].intern();
+		System.arraycopy(parameters, 0, all, MODEL_PARAMETERS.length, parameters.length);
+		return all;
+	}
+
+	private static int[] fullOffsets(Model model, String[] all) {
+		int[] result = new int[all.length+1];
+		for (int p = 0; p<all.length; p++)
+			result[p+1] = result[p] + model.saveStateToArray(all[p]).length;
+		return result;
+	}
+
+	/** Release a saved instance. */
+	public void releaseInstance(int handle) {
+		savedInstances.remove(handle);
+	}
+
+	public Model getModel(int member) {
+		return (Model) schedulers[member].getSimulator().getModel();
+	}
+}
@@ -0,0 +1,143 @@
+package nl.tudelft.otsim.Utilities;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import nl.tudelft.otsim.Simulators.MacroSimulator.Model;
+
+import org.junit.Test;
+
+/** Test the state exchange and the saving and restoring of the OTSimOpenDAEnsembleWrapper */
+public class OTSimOpenDAEnsembleWrapperTest {
+
+	/** Two roadways with a lane drop and two detectors */
+	static final String CONFIGURATION = "EndTime:\t7200.00\nSeed:\t1\n"
+			+ "Roadway:\t0\tfrom\t1\tto\t2\tspeedlimit\t100\tlanes\t2\tvertices\t(0.000,-0.250,0.000)\t(3000.000,-0.250,0.000)\tins\touts\t1\tfd\t0.02\t0.125\t22.222\tSMULDERS\n"
+			+ "Roadway:\t1\tfrom\t2\tto\t3\tspeedlimit\t100\tlanes\t1\tvertices\t(3000.000,-0.250,0.000)\t(4000.000,-0.250,0.000)\tins\t0\touts\tfd\t0.02\t0.125\t22.222\tSMULDERS\n"
+			+ "TrafficClass\tpassengerCar_act\t4.000\t140.000\t-6.000\t0.900000\t600.000\n"
+			+ "TripPattern\tnumberOfTrips:\t[0.000/1400:1800/2200:2400.000/2200]\tLocationPattern:\t[z1, z2]\tFractions\tpassengerCar_act:1.000000\n"
+			+ "TripPatternPath\tnumberOfTrips:\t[0.000/1400:1800/2200:2400.000/2200]\tNodePattern:\t[origin ID=1 (0.00m, 0.00m, 0.00m), destination ID=2 (3500.00m, 0.00m, 0.00m)]\n"
+			+ "Path:\t1.00000\tnodes:\t1\t2\t3\n"
+			+ "Detector:\t0\t(1000.000,-0.250,0.000)\nDetector:\t1\t(3250.000,-0.250,0.000)\n";
+
+	static OTSimOpenDAEnsembleWrapper createWrapper(int members) {
+		OTSimOpenDAEnsembleWrapper wrapper = new OTSimOpenDAEnsembleWrapper();
+		wrapper.initializeNewInstances(new String[] {CONFIGURATION, Integer.toString(members)});
+		wrapper.setStateParameters("density", "inflow");
+		return wrapper;
+	}
+
+	private static double[][] copy(double[][] states) {
+		double[][] result = new double[states.length][];
+		for (int i = 0; i<states.length; i++)
+			result[i] = states[i].clone();
+		return result;
+	}
+
+	private static double[] column(double[][] states, int member) {
+		double[] result = new double[states.length];
+		for (int i = 0; i<states.length; i++)
+			result[i] = states[i][member];
+		return result;
+	}
+
+	/**
+	 * States written to a file and read back are unchanged, and an analysis written to the
+	 * file is read into the instances
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testFileExchange() throws IOException {
+		File directory = File.createTempFile("openDAExchangeTest", "");
+		directory.delete();
+		OTSimOpenDAEnsembleWrapper wrapper = createWrapper(2);
+		OTSimOpenDAFileExchange exchange = new OTSimOpenDAFileExchange(directory, wrapper);
+		File forecast = new File(directory, "forecast.bin");
+		File analysis = new File(directory, "analysis.bin");
+		try {
+			wrapper.getModel(1).getInflowNodes().get(0).setInflow(0.3);
+			wrapper.compute(600);
+			double[][] before = copy(wrapper.getStates());
+			exchange.writeStates(forecast, 600);
+			OTSimOpenDAFileExchange.IDENTITY.analyse(forecast, analysis, 600);
+			exchange.readStates(analysis);
+			assertArrayEquals(before, wrapper.getStates());
+
+			// halve all densities of the second member in the file
+			int n = wrapper.getStateLength();
+			FileChannel channel = FileChannel.open(analysis.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try {
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+				assertEquals(2, buffer.getInt(4));
+				assertEquals(n, buffer.getInt(8));
+				assertEquals(600, buffer.getDouble(12), 0);
+				buffer.position(20);
+				DoubleBuffer states = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+				for (int i = 0; i<wrapper.getOffset("inflow"); i++)
+					states.put(n + i, 0.5*states.get(n + i));
+			} finally {
+				channel.close();
+			}
+			exchange.readStates(analysis);
+			double[][] after = wrapper.getStates();
+			for (int i = 0; i<n; i++) {
+				assertEquals(before[i][0], after[i][0], 0);
+				assertEquals(i < wrapper.getOffset("inflow") ? 0.5*before[i][1] : before[i][1], after[i][1], 1e-15);
+			}
+			assertTrue(before[wrapper.getOffset("inflow")][0] != before[wrapper.getOffset("inflow")][1]);
+		} finally {
+			forecast.delete();
+			analysis.delete();
+			directory.delete();
+		}
+	}
+
+	/**
+	 * A saved instance is restored with its full state and continues as the instance it was
+	 * saved from; a restore of only the state parameters takes the other parameters from
+	 * the configuration
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testSaveRestore() {
+		OTSimOpenDAEnsembleWrapper wrapper = createWrapper(3);
+		wrapper.compute(300);
+		Model model = wrapper.getModel(0);
+		double[] kCri = model.saveStateToArray("criticalDensity");
+		for (int i = 0; i<kCri.length; i++)
+			kCri[i] *= 0.8;
+		model.restoreState(kCri, "criticalDensity");
+		double[] fullState = wrapper.getFullState(0);
+		int handle = wrapper.saveInstance(0);
+		double[] state = column(wrapper.getStates(), 0);
+		wrapper.compute(900);
+		double[] continued = column(wrapper.getStates(), 0);
+
+		wrapper.restoreInstance(handle, 1);
+		wrapper.restoreInstance(2, 300, state);
+		assertEquals(300, wrapper.getCurrentTime(1), 1e-9);
+		assertArrayEquals(fullState, wrapper.getFullState(1), 0);
+		assertArrayEquals(state, column(wrapper.getStates(), 1), 0);
+		assertArrayEquals(state, column(wrapper.getStates(), 2), 0);
+		assertArrayEquals(kCri, wrapper.getModel(1).saveStateToArray("criticalDensity"), 0);
+		assertFalse(java.util.Arrays.equals(kCri, wrapper.getModel(2).saveStateToArray("criticalDensity")));
+
+		wrapper.compute(900);
+		assertEquals(900, wrapper.getCurrentTime(1), 1e-9);
+		assertArrayEquals(continued, column(wrapper.getStates(), 1), 1e-9);
+		wrapper.releaseInstance(handle);
+		try {
+			wrapper.restoreInstance(handle, 1);
+			fail("released instance was restored");
+		} catch (Error e) {
+			assertTrue(e.getMessage().contains("No saved instance"));
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package nl.tudelft.otsim.Utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * File based stand-in for the OpenDA side of an {@link OTSimOpenDAEnsembleWrapper}, to
+ * test the exchange of ensemble states without OpenDA.
+ * <br>
+ * At every analysis time the ensemble is computed up to that time and its states are
+ * written to <tt>forecast-k.bin</tt>. An {@link Analysis} reads that file and writes
+ * <tt>analysis-k.bin</tt> with the same layout, which is then read back into the
+ * ensemble. A state file has a header (magic, number of members, state length, time)
+ * followed by the states of all members, member after member, as little endian doubles.
+ */
+public class OTSimOpenDAFileExchange {
+	private static final int MAGIC = 0x4f54534d;
+	private static final int HEADER = 4 + 4 + 4 + 8;
+	private final File directory;
+	private final OTSimOpenDAEnsembleWrapper wrapper;
+
+	/** The OpenDA side of the exchange. */
+	public interface Analysis {
+		/** Read the forecast states and write the analysis states. */
+		void analyse(File forecast, File analysis, double time) throws IOException;
+	}
+
+	/** Analysis that leaves the states as they are. */
+	public static final Analysis IDENTITY = new Analysis() {
+		@Override
+		public void analyse(File forecast, File analysis, double time) throws IOException {
+			Files.copy(forecast.toPath(), analysis.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	};
+
+	public OTSimOpenDAFileExchange(File directory, OTSimOpenDAEnsembleWrapper wrapper) {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new Error("Cannot create directory " + directory);
+		this.directory = directory;
+		this.wrapper = wrapper;
+	}
+
+	/** Run the ensemble with an analysis at every given time. */
+	public void run(double[] analysisTimes, Analysis analysis) throws IOException {
+		for (int k = 0; k<analysisTimes.length; k++) {
+			wrapper.compute(analysisTimes[k]);
+			File forecast = new File(directory, "forecast-" + k + ".bin");
+			File result = new File(directory, "analysis-" + k + ".bin");
+			writeStates(forecast, analysisTimes[k]);
+			analysis.analyse(forecast, result, analysisTimes[k]);
+			readStates(result);
+		}
+	}
+
+	/** Write the states of all members to a file. */
+	public void writeStates(File file, double time) throws IOException {
+		int members = wrapper.getNrInstances();
+		int length = wrapper.getStateLength();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + 8L*members*length);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(members).putInt(length).putDouble(time);
+			wrapper.getStates(buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+			buffer.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** Read the states of all members from a file. */
+	public void readStates(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt() != MAGIC)
+				throw new Error("Not a state file: " + file);
+			int members = buffer.getInt();
+			int length = buffer.getInt();
+			buffer.getDouble();
+			if (members != wrapper.getNrInstances() || length != wrapper.getStateLength())
+				throw new Error("State file " + file + " has " + members + " members of length " + length + ", expected " + wrapper.getNrInstances() + " of length " + wrapper.getStateLength());
+			DoubleBuffer states = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			wrapper.setStates(states);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Run an ensemble without assimilation.
+	 * @param args configuration file, number of members, exchange directory, analysis interval [s]
+	 */
+	public static void main(String[] args) throws IOException {
+		String configuration = new String(Files.readAllBytes(new File(args[0]).toPath()), "ISO-8859-1");
+		OTSimOpenDAEnsembleWrapper wrapper = new OTSimOpenDAEnsembleWrapper();
+		wrapper.initializeNewInstances(new String[]{configuration, args[1]});
+		wrapper.setStateParameters("density", "inflow");
+		double interval = Double.parseDouble(args[3]);
+		int n = (int) Math.floor(wrapper.getEndTime()/interval);
+		double[] times = new double[n];
+		for (int k = 0; k<n; k++)
+			times[k] = (k+1)*interval;
+		new OTSimOpenDAFileExchange(new File(args[2]), wrapper).run(times, IDENTITY);
+		System.out.println("Ran " + wrapper.getNrInstances() + " members with " + n + " exchanges of " + wrapper.getStateLength() + " values");
+	}
+}